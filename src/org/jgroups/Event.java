@@ -73,6 +73,7 @@ public class Event {
     public static final int START_OK                  = 62;  // arg = exception of null - internal event, handled by Protocol
     public static final int STOP                      = 63;  // triggers stop() - internal event, handled by Protocol
     public static final int STOP_OK                   = 64;  // arg = exception or null - internal event, handled by Protocol
+    public static final int SUSPECT_MULTIPLE          = 65;  // arg = Vector of Addresses of suspected members
 
 
 
@@ -179,6 +180,7 @@ public class Event {
             case START_OK:               return "START_OK";
             case STOP:                   return "STOP";
             case STOP_OK:                return "STOP_OK";
+            case SUSPECT_MULTIPLE:       return "SUSPECT_MULTIPLE";
 
             case USER_DEFINED:           return "USER_DEFINED";
             default:                     return "UNDEFINED";
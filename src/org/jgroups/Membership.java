@@ -3,20 +3,27 @@
 package org.jgroups;
 
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Vector;
-import org.jgroups.log.Trace;
 
 
 /**
   * Class to keep track of Addresses.
   * The member ship object holds a vector of Address object that are in the same membership
-  * Each unique address can only exist once, ie, doing Membership.add(existing_address) will be ignored
-  *
+  * Each unique address can only exist once, ie, doing Membership.add(existing_address) will be ignored<p>
+  * The members are kept in an immutable snapshot (an ordered array plus a hash index), which is replaced on every
+  * modification. Reads (contains(), size(), elementAt(), getMembers()) therefore don't acquire a lock, and
+  * contains() is O(1). Modifications are synchronized on this object (as before), so callers can still
+  * synchronize on a Membership to make a sequence of operations atomic. Copies (copy(), clone(),
+  * set(Membership)) share the snapshot and are O(1).
   *
   */
 public class Membership implements Cloneable {
-    /* private vector to hold all the addresses */
-    private Vector members = null;
+    private static final Snapshot EMPTY=new Snapshot(new Address[0]);
+
+    /* the current members, replaced (never modified) on each change */
+    private volatile Snapshot members=EMPTY;
 
     /**
      * Public constructor
@@ -24,8 +31,6 @@ public class Membership implements Cloneable {
      */
     public Membership()
     {
-        // 11 is the optimized value for vector growth
-        members=new Vector(11);
     }
 
 
@@ -38,8 +43,7 @@ public class Membership implements Cloneable {
      */
     public Membership(Vector initial_members)
     {
-        if(initial_members != null)
-            members = (Vector)initial_members.clone();
+        add(initial_members);
     }
 
 
@@ -52,8 +56,11 @@ public class Membership implements Cloneable {
      */
     public Vector getMembers()
     {
-        /*clone so that this objects members can not be manipulated from the outside*/
-        return (Vector)members.clone();
+        Address[] mbrs=members.mbrs;
+        Vector    retval=new Vector(mbrs.length + 1);
+        for(int i=0; i < mbrs.length; i++)
+            retval.addElement(mbrs[i]);
+        return retval;
     }
 
 
@@ -64,9 +71,15 @@ public class Membership implements Cloneable {
      */
     public synchronized void add(Address new_member)
     {
-        if(new_member != null && !members.contains(new_member))
+        Address[] old_mbrs, new_mbrs;
+
+        if(new_member != null && !members.index.contains(new_member))
         {
-            members.addElement(new_member);
+            old_mbrs=members.mbrs;
+            new_mbrs=new Address[old_mbrs.length + 1];
+            System.arraycopy(old_mbrs, 0, new_mbrs, 0, old_mbrs.length);
+            new_mbrs[old_mbrs.length]=new_member;
+            members=new Snapshot(new_mbrs);
         }
     }
 
@@ -79,13 +92,7 @@ public class Membership implements Cloneable {
      */
     public synchronized void add(Vector v)
     {
-        if(v != null)
-        {
-            for(int i=0; i < v.size(); i++)
-            {
-                add((Address)v.elementAt(i));
-            }
-        }
+        merge(v, null);
     }
 
 
@@ -96,9 +103,19 @@ public class Membership implements Cloneable {
      */
     public synchronized void remove(Address old_member)
     {
-        if(old_member != null)
+        Address[] old_mbrs, new_mbrs;
+        int       index=0;
+
+        if(old_member != null && members.index.contains(old_member))
         {
-            members.remove(old_member);
+            old_mbrs=members.mbrs;
+            new_mbrs=new Address[old_mbrs.length - 1];
+            for(int i=0; i < old_mbrs.length; i++)
+            {
+                if(!old_mbrs[i].equals(old_member))
+                    new_mbrs[index++]=old_mbrs[i];
+            }
+            members=new Snapshot(new_mbrs);
         }
     }
 
@@ -109,10 +126,7 @@ public class Membership implements Cloneable {
      */
     public synchronized void remove(Vector v)
     {
-        if(v != null)
-        {
-            members.removeAll(v);
-        }
+        merge(null, v);
     }
 
 
@@ -121,41 +135,30 @@ public class Membership implements Cloneable {
      */
     public synchronized void clear()
     {
-        members.removeAllElements();
+        members=EMPTY;
     }
 
     /**
      * Clear the membership and adds all members of v
-     * This method will clear out all the old members of this membership by
-     * invoking the <code>Clear</code> method.
-     * Then it will add all the all members provided in the vector v
+     * The old members are replaced by all members provided in the vector v in a single step, so
+     * concurrent readers never see an empty membership in between
      * @param   v - a vector containing all the members this membership will contain
      */
     public synchronized void set(Vector v)
     {
-        clear();
-        if(v != null)
-        {
-            add(v);
-        }
+        members=merge(EMPTY, v, null);
     }
 
 
 
     /**
-     * Clear the membership and adds all members of v
-     * This method will clear out all the old members of this membership by
-     * invoking the <code>Clear</code> method.
-     * Then it will add all the all members provided in the vector v
+     * Clear the membership and adds all members of m
+     * The snapshot of m is shared (it is immutable), so this is O(1)
      * @param   m - a membership containing all the members this membership will contain
      */
     public synchronized void set(Membership m)
     {
-        clear();
-        if(m != null)
-        {
-            add( m.getMembers() );
-        }
+        members=m != null? m.members : EMPTY;
     }
 
 
@@ -171,8 +174,44 @@ public class Membership implements Cloneable {
      */
     public synchronized void merge(Vector new_mems, Vector suspects)
     {
-        remove(suspects);
-        add(new_mems);
+        members=merge(members, new_mems, suspects);
+    }
+
+
+    /** Returns a new snapshot with suspects removed from and new_mems added to old, or old if nothing changed */
+    private static Snapshot merge(Snapshot old, Vector new_mems, Vector suspects)
+    {
+        HashSet  index, removed=null;
+        Vector   tmp;
+        Address  mbr;
+
+        if((new_mems == null || new_mems.size() == 0) && (suspects == null || suspects.size() == 0))
+            return old;
+        tmp=new Vector(old.mbrs.length + (new_mems != null? new_mems.size() : 0));
+        index=new HashSet();
+        if(suspects != null && suspects.size() > 0)
+            removed=new HashSet(suspects);
+        for(int i=0; i < old.mbrs.length; i++)
+        {
+            mbr=old.mbrs[i];
+            if(removed == null || !removed.contains(mbr))
+            {
+                tmp.addElement(mbr);
+                index.add(mbr);
+            }
+        }
+        if(new_mems != null)
+        {
+            for(int i=0; i < new_mems.size(); i++)
+            {
+                mbr=(Address)new_mems.elementAt(i);
+                if(mbr != null && index.add(mbr))
+                    tmp.addElement(mbr);
+            }
+        }
+        if(tmp.size() == old.mbrs.length && removed == null)
+            return old;
+        return new Snapshot((Address[])tmp.toArray(new Address[tmp.size()]), index);
     }
 
 
@@ -181,40 +220,20 @@ public class Membership implements Cloneable {
      * @param   member
      * @return true if the member belongs to this membership
      */
-    public synchronized boolean contains(Address member)
+    public boolean contains(Address member)
     {
         if(member == null) return false;
-        return members.contains(member);
+        return members.index.contains(member);
     }
 
 
 
-    /* Simple inefficient bubble sort, but not used very often (only when merging) */
+    /* Sorts the members according to Address.compareTo() (only used when merging) */
     public synchronized void sort()
     {
-        Address  a1;
-        Address  a2;
-        Address  tmp;
-
-        for(int j=0; j < members.size(); j++)
-        {
-            for(int i=0; i < members.size()-1; i++)
-            {
-                a1=(Address)members.elementAt(i);
-                a2=(Address)members.elementAt(i+1);
-                if(a1 == null || a2 == null)
-                {
-                    Trace.error("Membership.sort()", "member's address is null");
-                    continue;
-                }
-                if(a1.compareTo(a2) > 0)
-                {
-                    tmp=a2;
-                    members.setElementAt(a1, i+1);
-                    members.setElementAt(tmp, i);
-                }
-            }
-        }
+        Address[] tmp=(Address[])members.mbrs.clone();
+        Arrays.sort(tmp);
+        members=new Snapshot(tmp, members.index);
     }
 
 
@@ -222,23 +241,18 @@ public class Membership implements Cloneable {
      * returns a copy of this membership
      * @return an exact copy of this membership
      */
-    public synchronized Membership copy()
+    public Membership copy()
     {
         return((Membership)clone());
     }
 
 
     /**
-     * @return a clone of this object. The list of members is copied to a new
-     * container
+     * @return a clone of this object. The copy shares the (immutable) snapshot of the members
      */
-    public synchronized Object clone() {
-        Membership m;
-
+    public Object clone() {
         try {
-	    m = (Membership)super.clone();
-	    m.members = (Vector)members.clone();
-	    return(m);
+	    return super.clone();
         }
 	catch(CloneNotSupportedException ex) {
 	    throw new InternalError();
@@ -250,9 +264,9 @@ public class Membership implements Cloneable {
      * Returns the number of addresses in this membership
      * @return the number of addresses in this membership
      */
-    public synchronized int size()
+    public int size()
     {
-        return members.size();
+        return members.mbrs.length;
     }
 
     /**
@@ -262,16 +276,31 @@ public class Membership implements Cloneable {
      * @see java.util.Vector#elementAt
      */
 
-    public synchronized Object elementAt(int index)
+    public Object elementAt(int index)
     {
-        return members.elementAt(index);
+        return members.mbrs[index];
     }
 
 
-    public synchronized String toString()
+    public String toString()
     {
-        return members.toString();
+        return Arrays.asList(members.mbrs).toString();
     }
 
 
+
+    /** An immutable list of members and the corresponding index */
+    private static final class Snapshot {
+        final Address[] mbrs;
+        final HashSet   index;
+
+        Snapshot(Address[] mbrs) {
+            this(mbrs, new HashSet(Arrays.asList(mbrs)));
+        }
+
+        Snapshot(Address[] mbrs, HashSet index) {
+            this.mbrs=mbrs;
+            this.index=index;
+        }
+    }
 }
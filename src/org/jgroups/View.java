@@ -9,6 +9,8 @@ import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.Vector;
 
+import org.jgroups.util.Marshaller;
+
 
 
 
@@ -38,6 +40,16 @@ public class View implements Externalizable, Cloneable
      */
     protected Vector  members = null;
 
+    /**
+     * If true, writeExternal() writes the compact form (see {@link #writeExternal(ObjectOutput)}), which members
+     * running an older version cannot read. readExternal() reads both forms. Set by the compact_views property of
+     * pbcast.GMS, or the view.compact system property
+     */
+    protected static boolean compact=new Boolean(System.getProperty("view.compact", "false")).booleanValue();
+
+    /** Written first in the compact form. The original form starts with the ViewId (or null) instead */
+    static final String COMPACT_VERSION="1";
+
 
 
     /**
@@ -169,16 +181,69 @@ public class View implements Externalizable, Cloneable
     }
 
 
+    public static void setCompact(boolean flag) {
+        compact=flag;
+    }
+
+    public static boolean isCompact() {
+        return compact;
+    }
+
+
+    /**
+     * Writes the view id and the members as objects, unless compact is set. The compact form consists of a version
+     * tag, the Lamport time, the coordinator as an index into the members (if it is a member) and the members with
+     * {@link Marshaller#writeList(java.util.List, ObjectOutput)}, which writes the class name of the addresses only once
+     */
     public void writeExternal(ObjectOutput out) throws IOException {
-	out.writeObject(vid);
-	out.writeObject(members);
+        if(!compact) {
+            out.writeObject(vid);
+            out.writeObject(members);
+            return;
+        }
+
+        Address coord=vid != null? vid.getCoordAddress() : null;
+        int     coord_index=coord != null && members != null? members.indexOf(coord) : -1;
+
+        out.writeObject(COMPACT_VERSION);
+        out.writeBoolean(vid != null);
+        if(vid != null) {
+            out.writeLong(vid.getId());
+            out.writeInt(coord_index);
+            if(coord_index < 0)
+                Marshaller.write(coord, out);
+        }
+        Marshaller.writeList(members, out);
     }
-    
-    
-    
+
+
+
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-	vid=(ViewId)in.readObject();
-	members=(Vector)in.readObject();
+        Object  first=in.readObject();
+        boolean has_vid;
+        long    id=0;
+        int     coord_index=-1;
+        Address coord=null;
+
+        if(!(first instanceof String)) { // original form
+            vid=(ViewId)first;
+            members=(Vector)in.readObject();
+            return;
+        }
+        if(!COMPACT_VERSION.equals(first))
+            throw new IOException("version " + first + " of the view is not supported");
+        has_vid=in.readBoolean();
+        if(has_vid) {
+            id=in.readLong();
+            coord_index=in.readInt();
+            if(coord_index < 0)
+                coord=(Address)Marshaller.read(in);
+        }
+        members=Marshaller.readList(in);
+        if(coord_index >= 0)
+            coord=(Address)members.elementAt(coord_index);
+        if(has_vid)
+            vid=new ViewId(coord, id);
     }
 
 
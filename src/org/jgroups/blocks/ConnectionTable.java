@@ -13,6 +13,7 @@ import org.jgroups.Address;
 import org.jgroups.Message;
 import org.jgroups.Version;
 import org.jgroups.log.Trace;
+import org.jgroups.log.Log;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.util.Util;
 
@@ -28,6 +29,8 @@ import org.jgroups.util.Util;
  * @author Bela Ban
  */
 public class ConnectionTable implements Runnable {
+    private static final Log log=Log.getLog("ConnectionTable");
+
     Hashtable     conns=new Hashtable();       // keys: Addresses (peer address), values: Connection
     Receiver      receiver=null;
     ServerSocket  srv_sock=null;
@@ -185,7 +188,7 @@ public class ConnectionTable implements Runnable {
         Connection conn;
 
         if(dest == null) {
-            Trace.error("ConnectionTable.send()", "msg is null or message's destination is null");
+            log.error("send()", "msg is null or message's destination is null");
             return;
         }
 
@@ -198,7 +201,7 @@ public class ConnectionTable implements Runnable {
             throw sock_ex;
         }
         catch(Throwable ex) {
-            Trace.info("ConnectionTable.send()", "connection to " + dest + " could not be established: " + ex);
+            log.info("send()", "connection to " + dest + " could not be established: " + ex);
             throw new SocketException(ex.toString());
         }
 
@@ -207,8 +210,8 @@ public class ConnectionTable implements Runnable {
             conn.send(msg);
         }
         catch(Throwable ex) {
-            if(Trace.trace)
-                Trace.info("ConnectionTable.send()", "sending message to " + dest + " failed (ex=" +
+            if(log.isInfoEnabled())
+                log.info("send()", "sending message to " + dest + " failed (ex=" +
                                                      ex.getClass().getName() + "); removing from connection table");
             remove(dest);
         }
@@ -229,14 +232,14 @@ public class ConnectionTable implements Runnable {
                     sock.setSendBufferSize(send_buf_size);
                 }
                 catch(IllegalArgumentException ex) {
-                    Trace.error("ConnectionTable.getConnection()", "exception setting send buffer size to " +
+                    log.error("getConnection()", "exception setting send buffer size to " +
                             send_buf_size + " bytes: " + ex);
                 }
                 try {
                     sock.setReceiveBufferSize(recv_buf_size);
                 }
                 catch(IllegalArgumentException ex) {
-                    Trace.error("ConnectionTable.getConnection()", "exception setting receive buffer size to " +
+                    log.error("getConnection()", "exception setting receive buffer size to " +
                             send_buf_size + " bytes: " + ex);
                 }
                 conn=new Connection(sock, dest);
@@ -245,7 +248,7 @@ public class ConnectionTable implements Runnable {
                 // conns.put(dest, conn);
                 addConnection(dest, conn);
                 conn.init();
-                if(Trace.trace) Trace.info("ConnectionTable.getConnection()", "created socket to " + dest);
+                if(log.isInfoEnabled()) log.info("getConnection()", "created socket to " + dest);
             }
             return conn;
         }
@@ -260,8 +263,8 @@ public class ConnectionTable implements Runnable {
         else
             local_addr=new IpAddress(srv_sock.getLocalPort());
 
-        if(Trace.trace) {
-            Trace.info("ConnectionTable.start()", "server socket created " +
+        if(log.isInfoEnabled()) {
+            log.info("start()", "server socket created " +
                                                   "on " + local_addr);
         }
 
@@ -328,8 +331,8 @@ public class ConnectionTable implements Runnable {
                 }
                 conns.remove(addr);
             }
-            if(Trace.trace)
-                Trace.info("ConnectionTable.remove()", "addr=" + addr + ", connections are " + toString());
+            if(log.isInfoEnabled())
+                log.info("remove()", "addr=" + addr + ", connections are " + toString());
         }
     }
 
@@ -347,8 +350,8 @@ public class ConnectionTable implements Runnable {
         while(srv_sock != null) {
             try {
                 client_sock=srv_sock.accept();
-                if(Trace.trace)
-                    Trace.info("ConnectionTable.run()", "accepted connection, client_sock=" + client_sock);
+                if(log.isInfoEnabled())
+                    log.info("run()", "accepted connection, client_sock=" + client_sock);
 
                 // create new thread and add to conn table
                 conn=new Connection(client_sock, null); // will call receive(msg)
@@ -360,8 +363,8 @@ public class ConnectionTable implements Runnable {
 
                 synchronized(conns) {
                     if(conns.contains(peer_addr)) {
-                        if(Trace.trace)
-                            Trace.warn("ConnectionTable.run()", peer_addr +
+                        if(log.isWarnEnabled())
+                            log.warn("run()", peer_addr +
                                                                 " is already there, will terminate connection");
                         conn.destroy();
                         return;
@@ -373,14 +376,14 @@ public class ConnectionTable implements Runnable {
                 conn.init(); // starts handler thread on this socket
             }
             catch(SocketException sock_ex) {
-                if(Trace.trace) Trace.info("ConnectionTable.run()", "exception is " + sock_ex);
+                if(log.isInfoEnabled()) log.info("run()", "exception is " + sock_ex);
                 if(conn != null)
                     conn.destroy();
                 if(srv_sock == null)
                     break;  // socket was closed, therefore stop
             }
             catch(Throwable ex) {
-                if(Trace.trace) Trace.warn("ConnectionTable.run()", "exception is " + ex);
+                if(log.isWarnEnabled()) log.warn("run()", "exception is " + ex);
             }
         }
     }
@@ -397,7 +400,7 @@ public class ConnectionTable implements Runnable {
             }
         }
         else
-            Trace.error("ConnectionTable.receive()", "receiver is null (not set) !");
+            log.error("receive()", "receiver is null (not set) !");
     }
 
 
@@ -435,7 +438,7 @@ public class ConnectionTable implements Runnable {
                 continue;
             }
             catch(IOException io_ex) {
-                Trace.error("ConnectionTable.createServerSocket()", "exception is " + io_ex);
+                log.error("createServerSocket()", "exception is " + io_ex);
             }
             srv_port=start_port;
             break;
@@ -483,7 +486,7 @@ public class ConnectionTable implements Runnable {
                 in=new DataInputStream(sock.getInputStream());
             }
             catch(Exception ex) {
-                Trace.error("ConnectionTable.Connection()", "exception is " + ex);
+                log.error("Connection()", "exception is " + ex);
             }
         }
 
@@ -499,13 +502,13 @@ public class ConnectionTable implements Runnable {
 
         void updateLastAccessed() {
             //if(Trace.trace)
-            ///Trace.info("ConnectionTable.Connection.updateLastAccessed()", "connections are " + conns);
+            ///log.info("Connection.updateLastAccessed()", "connections are " + conns);
             last_access=System.currentTimeMillis();
         }
 
         void init() {
-            if(Trace.trace)
-                Trace.info("ConnectionTable.Connection.init()", "connection was created to " + peer_addr);
+            if(log.isInfoEnabled())
+                log.info("Connection.init()", "connection was created to " + peer_addr);
             if(handler == null) {
                 // Roland Kurmann 4/7/2003, put in thread_group
                 handler=new Thread(thread_group, this, "ConnectionTable.Connection.HandlerThread");
@@ -528,22 +531,22 @@ public class ConnectionTable implements Runnable {
                     updateLastAccessed();
                 }
                 catch(IOException io_ex) {
-                    if(Trace.trace)
-                        Trace.warn("ConnectionTable.Connection.send()", "peer closed connection, " +
+                    if(log.isWarnEnabled())
+                        log.warn("Connection.send()", "peer closed connection, " +
                                                                         "trying to re-establish connection and re-send msg.");
                     try {
                         doSend(msg);
                         updateLastAccessed();
                     }
                     catch(IOException io_ex2) {
-                        if(Trace.trace) Trace.error("ConnectionTable.Connection.send()", "2nd attempt to send data failed too");
+                        if(log.isErrorEnabled()) log.error("Connection.send()", "2nd attempt to send data failed too");
                     }
                     catch(Exception ex2) {
-                        if(Trace.trace) Trace.error("ConnectionTable.Connection.send()", "exception is " + ex2);
+                        if(log.isErrorEnabled()) log.error("Connection.send()", "exception is " + ex2);
                     }
                 }
                 catch(Exception ex) {
-                    if(Trace.trace) Trace.error("ConnectionTable.Connection.send()", "exception is " + ex);
+                    if(log.isErrorEnabled()) log.error("Connection.send()", "exception is " + ex);
                 }
             }
         }
@@ -554,7 +557,7 @@ public class ConnectionTable implements Runnable {
             byte[]    buffie=null;
 
             if(dst_addr == null || dst_addr.getIpAddress() == null) {
-                Trace.error("ConnectionTable.Connection.doSend()", "the destination address is null; aborting send");
+                log.error("Connection.doSend()", "the destination address is null; aborting send");
                 return;
             }
 
@@ -565,7 +568,7 @@ public class ConnectionTable implements Runnable {
 
                 buffie=Util.objectToByteBuffer(msg);
                 if(buffie.length <= 0) {
-                    Trace.error("ConnectionTable.Connection.doSend()", "buffer.length is 0. Will not send message");
+                    log.error("Connection.doSend()", "buffer.length is 0. Will not send message");
                     return;
                 }
 
@@ -580,8 +583,8 @@ public class ConnectionTable implements Runnable {
                 }
             }
             catch(Exception ex) {
-                if(Trace.trace)
-                    Trace.error("ConnectionTable.Connection.doSend()",
+                if(log.isErrorEnabled())
+                    log.error("Connection.doSend()",
                                 "to " + dst_addr + ", exception is " + ex + ", stack trace:\n" +
                                 Util.printStackTrace(ex));
                 remove(dst_addr);
@@ -613,7 +616,7 @@ public class ConnectionTable implements Runnable {
                 in.read(version, 0, version.length);
 
                 if(Version.compareTo(version) == false) {
-                    Trace.warn("ConnectionTable.readPeerAddress()",
+                    log.warn("readPeerAddress()",
                                "packet from " + client_addr + ":" + client_port +
                                " has different version (" +
                                Version.printVersionId(version, Version.version_id.length) +
@@ -642,7 +645,7 @@ public class ConnectionTable implements Runnable {
             byte[] buf;
 
             if(local_addr == null) {
-                Trace.warn("ConnectionTable.Connection.sendLocalAddress()", "local_addr is null");
+                log.warn("Connection.sendLocalAddress()", "local_addr is null");
                 return;
             }
             if(out != null) {
@@ -664,7 +667,7 @@ public class ConnectionTable implements Runnable {
                     updateLastAccessed();
                 }
                 catch(Throwable t) {
-                    Trace.error("ConnectionTable.Connection.sendLocalAddress()", "exception is " + t);
+                    log.error("Connection.sendLocalAddress()", "exception is " + t);
                 }
             }
         }
@@ -678,8 +681,8 @@ public class ConnectionTable implements Runnable {
 
         boolean matchCookie(byte[] input) {
             if(input == null || input.length < cookie.length) return false;
-            if(Trace.trace)
-                Trace.info("ConnectionTable.Connection.matchCookie()", "input_cookie is " + printCookie(input));
+            if(log.isInfoEnabled())
+                log.info("Connection.matchCookie()", "input_cookie is " + printCookie(input));
             for(int i=0; i < cookie.length; i++)
                 if(cookie[i] != input[i]) return false;
             return true;
@@ -700,7 +703,7 @@ public class ConnectionTable implements Runnable {
             while(handler != null) {
                 try {
                     if(in == null) {
-                        Trace.error("ConnectionTable.Connection.run()", "input stream is null !");
+                        log.error("Connection.run()", "input stream is null !");
                         break;
                     }
                     len=in.readInt();
@@ -712,21 +715,21 @@ public class ConnectionTable implements Runnable {
                     receive(msg); // calls receiver.receiver(msg)
                 }
                 catch(OutOfMemoryError mem_ex) {
-                    Trace.warn("ConnectionTable.Connection.run()", "dropped invalid message, closing connection");
+                    log.warn("Connection.run()", "dropped invalid message, closing connection");
                     break; // continue;
                 }
                 catch(EOFException eof_ex) {  // peer closed connection
-                    Trace.info("ConnectionTable.Connection.run()", "exception is " + eof_ex);
+                    log.info("Connection.run()", "exception is " + eof_ex);
                     notifyConnectionClosed(peer_addr);
                     break;
                 }
                 catch(IOException io_ex) {
-                    Trace.info("ConnectionTable.Connection.run()", "exception is " + io_ex);
+                    log.info("Connection.run()", "exception is " + io_ex);
                     notifyConnectionClosed(peer_addr);
                     break;
                 }
                 catch(Exception e) {
-                    Trace.warn("ConnectionTable.Connection.run()", "exception is " + e);
+                    log.warn("Connection.run()", "exception is " + e);
                 }
             }
             handler=null;
@@ -827,8 +830,8 @@ public class ConnectionTable implements Runnable {
             Map.Entry entry;
             long curr_time;
 
-            if(Trace.trace)
-                Trace.info("ConnectionTable.Reaper.run()", "connection reaper thread was started. Number of connections=" +
+            if(log.isInfoEnabled())
+                log.info("Reaper.run()", "connection reaper thread was started. Number of connections=" +
                                                            conns.size() + ", reaper_interval=" + reaper_interval + ", conn_expire_time=" +
                                                            conn_expire_time);
 
@@ -840,13 +843,13 @@ public class ConnectionTable implements Runnable {
                     for(Iterator it=conns.entrySet().iterator(); it.hasNext();) {
                         entry=(Map.Entry)it.next();
                         value=(Connection)entry.getValue();
-                        if(Trace.trace)
-                            Trace.info("ConnectionTable.Reaper.run()", "connection is " +
+                        if(log.isInfoEnabled())
+                            log.info("Reaper.run()", "connection is " +
                                                                        ((curr_time - value.last_access) / 1000) + " seconds old (curr-time=" +
                                                                        curr_time + ", last_access=" + value.last_access + ")");
                         if(value.last_access + conn_expire_time < curr_time) {
-                            if(Trace.trace)
-                                Trace.info("ConnectionTable.Reaper.run()", "connection " + value +
+                            if(log.isInfoEnabled())
+                                log.info("Reaper.run()", "connection " + value +
                                                                            " has been idle for too long (conn_expire_time=" + conn_expire_time +
                                                                            "), will be removed");
 
@@ -856,8 +859,8 @@ public class ConnectionTable implements Runnable {
                     }
                 }
             }
-            if(Trace.trace)
-                Trace.info("ConnectionTable.Reaper.run()", "reaper terminated");
+            if(log.isInfoEnabled())
+                log.info("Reaper.run()", "reaper terminated");
             t=null;
         }
     }
@@ -6,12 +6,14 @@ package org.jgroups.blocks;
 import java.util.Vector;
 
 import org.jgroups.Address;
+import org.jgroups.JChannel;
 import org.jgroups.Message;
 import org.jgroups.Transport;
 import org.jgroups.View;
 import org.jgroups.log.Trace;
 import org.jgroups.util.Command;
 import org.jgroups.util.RspList;
+import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
 
@@ -37,6 +39,11 @@ import org.jgroups.util.Util;
  * channel. A mechanism outside this class has to do this; it has to determine what the responses
  * are for the message sent by the <code>execute()</code> method and call <code>receiveResponse()</code>
  * to do so.<p>
+ * <code>executeAsync()</code> sends the request without blocking the caller: the request completes
+ * from within <code>receiveResponse()</code>, <code>suspect()</code> or <code>viewChange()</code> (or from a timer
+ * on timeout) and notifies its {@link GroupRequestListener}s. In this mode the <code>GroupRequest</code> acts as a
+ * future: <code>isDone()</code>, <code>isSuccessful()</code>, <code>getResults()</code> (partial results while
+ * the request is still outstanding), <code>getResults(long)</code> and <code>cancel()</code>.<p>
  * <b>Requirements</b>: lossless delivery, e.g. acknowledgment-based message confirmation.
  * @author Bela Ban
  * @version $Revision: 1.1 $
@@ -91,6 +98,21 @@ public class GroupRequest implements RspCollector, Command {
 
     protected long req_id=-1; // request ID for this request
 
+    /** true while an executeAsync() request is outstanding or after it completed */
+    protected boolean async=false;
+
+    /** result of the last asynchronous execution (valid when done) */
+    protected boolean success=false;
+
+    /** GroupRequestListeners, notified when an asynchronous request completes */
+    private Vector listeners=null;
+
+    /** fires the timeout of the current asynchronous execution (null if timeout <= 0) */
+    private TimeoutTask timeout_task=null;
+
+    /** fires the timeouts of asynchronous requests; defaults to the timer of the protocol stack (see getTimer()) */
+    protected TimeScheduler timer=null;
+
 
     /**
      @param m The message to be sent
@@ -190,6 +212,7 @@ public class GroupRequest implements RspCollector, Command {
         }
         synchronized(rsp_mutex) {
             done=false;
+            async=false;
             retval=doExecute(timeout);
             if(retval == false && Trace.trace)
                 Trace.info("GroupRequest.execute()", "call did not execute correctly, request is " + toString());
@@ -199,6 +222,149 @@ public class GroupRequest implements RspCollector, Command {
     }
 
 
+    /**
+     * Sends the message and returns immediately. The request completes (and the listeners registered with
+     * {@link #addListener(GroupRequestListener)} are notified) when the responses required by the response mode
+     * have been received, when the timeout (if > 0) has elapsed, or when it is cancelled. No thread is blocked
+     * while the request is outstanding.
+     * @return False if the request could not be sent (the request is then done, and unsuccessful)
+     */
+    public boolean executeAsync() {
+        boolean sent;
+        Object[] to_notify=null;
+        TimeScheduler t;
+        if(corr == null && transport == null) {
+            Trace.error(
+                    "GroupRequest.executeAsync()",
+                    "both corr and transport are null, cannot send group request");
+            return false;
+        }
+        synchronized(rsp_mutex) {
+            done=false;
+            success=false;
+            async=true;
+            sent=sendRequest();
+            if(sent) {
+                to_notify=checkCompletion();
+                if(to_notify == null && timeout > 0) {
+                    if((t=getTimer()) != null) {
+                        timeout_task=new TimeoutTask(timeout);
+                        t.add(timeout_task);
+                    }
+                    else
+                        Trace.warn("GroupRequest.executeAsync()", "no timer available, request " + req_id +
+                                   " will not time out (set one with setTimer())");
+                }
+            }
+            else
+                to_notify=complete(false);
+        }
+        if(to_notify != null)
+            notifyListeners(to_notify, sent);
+        return sent;
+    }
+
+
+    /**
+     * Adds a listener which is notified when an asynchronous request completes. If the request is already
+     * done, the listener is notified immediately (on the caller's thread). A listener is notified exactly once
+     * per execution: it is either part of the snapshot taken when the request completed, or it is added after
+     * the completion and notified here.
+     */
+    public void addListener(GroupRequestListener l) {
+        boolean notify_now=false, result=false;
+        if(l == null)
+            return;
+        synchronized(rsp_mutex) {
+            if(listeners == null)
+                listeners=new Vector();
+            if(listeners.contains(l))
+                return;
+            listeners.addElement(l);
+            if(async && done) {
+                notify_now=true;
+                result=success;
+            }
+        }
+        if(notify_now)
+            notifyListener(l, result);
+    }
+
+
+    public void removeListener(GroupRequestListener l) {
+        synchronized(rsp_mutex) {
+            if(listeners != null)
+                listeners.removeElement(l);
+        }
+    }
+
+
+    /**
+     * Cancels an outstanding asynchronous request: responses received from now on are discarded, and the
+     * listeners are notified with success=false.
+     * @return True if the request was cancelled, false if it was already done
+     */
+    public boolean cancel() {
+        Object[] to_notify;
+        synchronized(rsp_mutex) {
+            to_notify=complete(false);
+        }
+        if(to_notify == null)
+            return false;
+        notifyListeners(to_notify, false);
+        return true;
+    }
+
+
+    /**
+     * Sets the timer used to fire the timeouts of asynchronous requests. By default the timer of the protocol
+     * stack the RequestCorrelator (or the JChannel transport) is part of is used.
+     */
+    public void setTimer(TimeScheduler timer) {
+        synchronized(rsp_mutex) {
+            this.timer=timer;
+        }
+    }
+
+
+    /** Returns true if the last asynchronous execution completed successfully */
+    public boolean isSuccessful() {
+        synchronized(rsp_mutex) {
+            return done && success;
+        }
+    }
+
+
+    /**
+     * Waits until an asynchronous request is done, or the timeout elapsed, and returns the (possibly partial)
+     * results. This parks the caller, and is therefore only a convenience for callers which don't want to
+     * use listeners.
+     * @param timeout Max time to wait (ms). A value <= 0 means wait until done.
+     */
+    public RspList getResults(long timeout) {
+        long start_time=System.currentTimeMillis(), time_to_wait=timeout;
+        synchronized(rsp_mutex) {
+            while(!done) {
+                if(timeout > 0) {
+                    time_to_wait=timeout - (System.currentTimeMillis() - start_time);
+                    if(time_to_wait <= 0)
+                        break;
+                }
+                try {
+                    if(timeout > 0)
+                        rsp_mutex.wait(time_to_wait);
+                    else
+                        rsp_mutex.wait();
+                }
+                catch(InterruptedException e) {
+                    break;
+                }
+            }
+            return getResults();
+        }
+    }
+
+
     /**
      * Resets the group request, so it can be reused for another execution.
      */
@@ -265,6 +431,7 @@ public class GroupRequest implements RspCollector, Command {
     public void receiveResponse(Message m) {
         Address sender=m.getSrc(), mbr;
         Object val=null;
+        Object[] to_notify;
         if(done) {
             Trace.warn(
                     "GroupRequest.receiveResponse()",
@@ -297,7 +464,10 @@ public class GroupRequest implements RspCollector, Command {
                     }
                 }
             }
+            to_notify=checkCompletion();
         }
+        if(to_notify != null)
+            notifyListeners(to_notify, true);
         // printReceived();
     }
 
@@ -310,6 +480,7 @@ public class GroupRequest implements RspCollector, Command {
      */
     public void suspect(Address suspected_member) {
         Address mbr;
+        Object[] to_notify;
         synchronized(rsp_mutex) { // modify 'suspects' and 'responses' array
             for(int i=0; i < membership.length; i++) {
                 mbr=membership[i];
@@ -321,7 +492,10 @@ public class GroupRequest implements RspCollector, Command {
                     break;
                 }
             }
+            to_notify=checkCompletion();
         }
+        if(to_notify != null)
+            notifyListeners(to_notify, true);
         // printReceived();
     }
 
@@ -346,6 +520,7 @@ public class GroupRequest implements RspCollector, Command {
     public void viewChange(View new_view) {
         Address mbr;
         Vector mbrs=new_view != null? new_view.getMembers() : null;
+        Object[] to_notify;
         if(membership == null || membership.length == 0 || mbrs == null)
             return;
 
@@ -361,7 +536,10 @@ public class GroupRequest implements RspCollector, Command {
                 }
             }
             rsp_mutex.notifyAll();
+            to_notify=checkCompletion();
         }
+        if(to_notify != null)
+            notifyListeners(to_notify, true);
     }
 
     /* -------------------- End of Interface RspCollector ----------------------------------- */
@@ -449,41 +627,9 @@ public class GroupRequest implements RspCollector, Command {
     /** This method runs with rsp_mutex locked (called by <code>execute()</code>). */
     protected boolean doExecute(long timeout) {
         long start_time=0;
-        Address mbr, suspect;
-        req_id=getRequestId();
-        reset(null); // clear 'responses' array
-        if(suspects != null) { // mark all suspects in 'received' array
-            for(int i=0; i < suspects.size(); i++) {
-                suspect=(Address)suspects.elementAt(i);
-                for(int j=0; j < membership.length; j++) {
-                    mbr=membership[j];
-                    if(mbr.equals(suspect)) {
-                        received[j]=SUSPECTED;
-                        break; // we can break here because we ensure there are no duplicate members
-                    }
-                }
-            }
-        }
 
-        try {
-            if(corr != null) {
-                java.util.List tmp=members != null? members : null;
-                corr.sendRequest(
-                        req_id,
-                        tmp,
-                        request_msg,
-                        rsp_mode == GET_NONE? null : this);
-            }
-            else {
-                transport.send(request_msg);
-            }
-        }
-        catch(Throwable e) {
-            Trace.error("GroupRequest.doExecute()", "exception=" + e);
-            if(corr != null)
-                corr.done(req_id);
+        if(!sendRequest())
             return false;
-        }
 
         if(timeout <= 0) {
             while(true) { /* Wait for responses: */
@@ -523,6 +669,151 @@ public class GroupRequest implements RspCollector, Command {
         }
     }
 
+
+    /**
+     * Generates a new request ID, clears the responses and sends the request. Runs with rsp_mutex locked.
+     * @return False if the request could not be sent
+     */
+    protected boolean sendRequest() {
+        Address mbr, suspect;
+        req_id=getRequestId();
+        reset(null); // clear 'responses' array
+        if(suspects != null) { // mark all suspects in 'received' array
+            for(int i=0; i < suspects.size(); i++) {
+                suspect=(Address)suspects.elementAt(i);
+                for(int j=0; j < membership.length; j++) {
+                    mbr=membership[j];
+                    if(mbr.equals(suspect)) {
+                        received[j]=SUSPECTED;
+                        break; // we can break here because we ensure there are no duplicate members
+                    }
+                }
+            }
+        }
+
+        try {
+            if(corr != null) {
+                java.util.List tmp=members != null? members : null;
+                corr.sendRequest(
+                        req_id,
+                        tmp,
+                        request_msg,
+                        rsp_mode == GET_NONE? null : this);
+            }
+            else {
+                transport.send(request_msg);
+            }
+        }
+        catch(Throwable e) {
+            Trace.error("GroupRequest.sendRequest()", "exception=" + e);
+            if(corr != null)
+                corr.done(req_id);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Checks whether an outstanding asynchronous request has all the responses it needs, and completes it
+     * if so. Runs with rsp_mutex locked.
+     * @return The listeners to notify (with success=true, without holding rsp_mutex) if this call completed
+     * the request, null otherwise
+     */
+    private Object[] checkCompletion() {
+        if(!async || done)
+            return null;
+        adjustMembership();
+        return getResponses()? complete(true) : null;
+    }
+
+
+    /**
+     * Marks an outstanding asynchronous request as done. Runs with rsp_mutex locked, so the snapshot of the
+     * listeners is taken atomically with setting done: listeners added later are notified by addListener().
+     * @return The listeners to notify (without holding rsp_mutex), or null if the request was not outstanding
+     */
+    private Object[] complete(boolean result) {
+        if(!async || done)
+            return null;
+        done=true;
+        success=result;
+        if(timeout_task != null) {
+            timeout_task.cancel();
+            timeout_task=null;
+        }
+        if(corr != null)
+            corr.done(req_id);
+        if(!result && Trace.trace)
+            Trace.info("GroupRequest.complete()", "call did not execute correctly, request is " + toString());
+        rsp_mutex.notifyAll(); // wakes up getResults(long)
+        return listeners != null? listeners.toArray() : new Object[0];
+    }
+
+
+    /** Notifies the listeners taken by complete(). Must not be called with rsp_mutex locked */
+    private void notifyListeners(Object[] tmp, boolean result) {
+        for(int i=0; i < tmp.length; i++)
+            notifyListener((GroupRequestListener)tmp[i], result);
+    }
+
+
+    private void notifyListener(GroupRequestListener l, boolean result) {
+        try {
+            l.requestDone(this, result);
+        }
+        catch(Throwable t) {
+            Trace.error("GroupRequest.notifyListener()", "listener " + l + " threw exception: " + t);
+        }
+    }
+
+
+    /** Returns the timer set with setTimer(), or else the timer of the protocol stack. Runs with rsp_mutex locked */
+    private TimeScheduler getTimer() {
+        if(timer == null) {
+            if(corr != null)
+                timer=corr.getTimer();
+            else if(transport instanceof JChannel && ((JChannel)transport).getProtocolStack() != null)
+                timer=((JChannel)transport).getProtocolStack().timer;
+        }
+        return timer;
+    }
+
+
+    /** Completes an asynchronous request unsuccessfully when its timeout has elapsed */
+    private class TimeoutTask implements TimeScheduler.Task {
+        final long    interval;
+        boolean       cancelled=false;
+
+        TimeoutTask(long interval) {
+            this.interval=interval;
+        }
+
+        void cancel() {
+            cancelled=true;
+        }
+
+        public boolean cancelled() {
+            return cancelled;
+        }
+
+        public long nextInterval() {
+            return interval;
+        }
+
+        public void run() {
+            Object[] to_notify;
+            synchronized(rsp_mutex) {
+                if(cancelled || timeout_task != this)
+                    return;
+                cancelled=true;
+                to_notify=complete(false);
+            }
+            if(to_notify != null)
+                notifyListeners(to_notify, false);
+        }
+    }
+
     protected boolean getResponses() {
         int num_not_received=getNum(NOT_RECEIVED);
         int num_received=getNum(RECEIVED);
@@ -0,0 +1,22 @@
+// $Id: GroupRequestListener.java,v 1.1 2008/09/03 04:24:38 commerce\wuti7102 Exp $
+
+package org.jgroups.blocks;
+
+
+/**
+ * Completion callback for requests started with {@link GroupRequest#executeAsync()}. The callback is invoked
+ * exactly once per execution, by the thread that completed the request (the thread delivering the last
+ * response, suspicion or view change, the timeout timer, or the caller of <code>cancel()</code>). It should
+ * therefore not block.
+ * @author Bela Ban
+ * @version $Id: GroupRequestListener.java,v 1.1 2008/09/03 04:24:38 commerce\wuti7102 Exp $
+ */
+public interface GroupRequestListener {
+
+    /**
+     * @param req The completed request; results are available via <code>req.getResults()</code>
+     * @param success True if the responses required by the response mode were received, false if the
+     *                request timed out, was cancelled or could not be sent
+     */
+    void requestDone(GroupRequest req, boolean success);
+}
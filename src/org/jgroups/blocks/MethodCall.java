@@ -4,6 +4,7 @@ package org.jgroups.blocks;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Hashtable;
 import java.util.Vector;
 
 import org.jgroups.log.Trace;
@@ -14,7 +15,12 @@ import org.jgroups.log.Trace;
 /**
  * A method call is the JavaGroup representation of a remote method.
  * It includes the name of the method (case sensitive) and a list of arguments.
- * A method call is serializable and can be passed over the wire.
+ * A method call is serializable and can be passed over the wire.<p>
+ * For frequently invoked methods, the method can be registered under a short ID on all members
+ * ({@link #registerMethod(short, Method)}). A method call created with {@link #MethodCall(short, Object[])}
+ * then only ships the ID, and its primitive and String arguments are written directly instead of being
+ * serialized. Methods resolved by name and arguments, types or signature are cached per target class by the
+ * {@link MethodLookupClos} passed to {@link #invoke(Object, MethodLookup)}.
  * @author Bela Ban
  * @version $Revision: 1.1 $
  */
@@ -52,6 +58,18 @@ public class MethodCall implements Externalizable {
     /** provide a signature, similar to JMX */
     protected static final short SIGNATURE=4;
 
+    /** ship only the ID of a method registered with registerMethod(), and encode the arguments compactly */
+    protected static final short ID=5;
+
+    /** the ID of the method (mode ID) */
+    protected short method_id=-1;
+
+    /** Methods registered for mode ID. Keys are method IDs (Shorts), values are Methods */
+    static final Hashtable methods=new Hashtable();
+
+    /* tags for compactly encoded non-primitive arguments (mode ID) */
+    static final byte NULL_ARG=0, STRING_ARG=1, OBJECT_ARG=2;
+
 
     /**
      * creates an empty method call, this is always invalid, until
@@ -194,6 +212,58 @@ public class MethodCall implements Externalizable {
         this.mode=SIGNATURE;
     }
 
+    /**
+     * Creates a method call for a method registered with {@link #registerMethod(short, Method)}. The method has
+     * to be registered under the same ID on the receivers
+     * @param method_id the ID of the method
+     * @param args the arguments, can be null (no arguments). Arguments for primitive parameters have to be
+     *             instances of the corresponding wrapper class
+     * @exception IllegalArgumentException if no method is registered under method_id
+     */
+    public MethodCall(short method_id, Object[] args) {
+        Method m=getRegisteredMethod(method_id);
+        if(m == null)
+            throw new IllegalArgumentException("no method is registered under ID " + method_id);
+        this.method_id=method_id;
+        this.method=m;
+        this.method_name=m.getName();
+        if(args != null) this.args=args;
+        this.mode=ID;
+    }
+
+
+    /**
+     * Registers a method under an ID, so that method calls can ship the ID instead of the method. The same
+     * method has to be registered under the same ID on all members
+     * @exception IllegalArgumentException if a different method is already registered under this ID
+     */
+    public static void registerMethod(short id, Method method) {
+        Short  key=new Short(id);
+        Method old;
+
+        if(method == null)
+            throw new IllegalArgumentException("method must not be null");
+        synchronized(methods) {
+            old=(Method)methods.get(key);
+            if(old != null && !old.equals(method))
+                throw new IllegalArgumentException("ID " + id + " is already registered for " + old);
+            methods.put(key, method);
+        }
+    }
+
+    public static void unregisterMethod(short id) {
+        methods.remove(new Short(id));
+    }
+
+    /** Returns the method registered under id, or null if no method is registered under this ID */
+    public static Method getRegisteredMethod(short id) {
+        return (Method)methods.get(new Short(id));
+    }
+
+    public short getMethodId() {
+        return method_id;
+    }
+
 
     public int getMode() {
         return mode;
@@ -339,6 +409,27 @@ public class MethodCall implements Externalizable {
     }
 
 
+    /** Returns a key of the form name(type1,type2,...) for the method cache */
+    static String methodKey(String method_name, Class[] types) {
+        StringBuffer sb=new StringBuffer(method_name).append('(');
+        for(int i=0; types != null && i < types.length; i++) {
+            if(i > 0) sb.append(',');
+            sb.append(types[i] != null? types[i].getName() : "null");
+        }
+        return sb.append(')').toString();
+    }
+
+
+    static String methodKey(String method_name, String[] signature) {
+        StringBuffer sb=new StringBuffer(method_name).append('(');
+        for(int i=0; signature != null && i < signature.length; i++) {
+            if(i > 0) sb.append(',');
+            sb.append(signature[i]);
+        }
+        return sb.append(')').toString();
+    }
+
+
 
     /**
      * Invokes the method with the supplied arguments against the target object.
@@ -355,6 +446,9 @@ public class MethodCall implements Externalizable {
         Class  cl;
         Method meth=null;
         Object retval=null;
+        // the methods resolved for TYPES and SIGNATURE calls are cached by the lookup (owned by the dispatcher),
+        // so the cache doesn't outlive the dispatcher and pin the classes (and classloaders) of its targets
+        MethodLookupClos cache=lookup instanceof MethodLookupClos? (MethodLookupClos)lookup : null;
 
 
         if(method_name == null || target == null) {
@@ -371,17 +465,30 @@ public class MethodCall implements Externalizable {
                         meth=lookup.findMethod(cl, method_name, getArgs());
                     break;
                 case METHOD:
+                case ID:
                     if(this.method != null)
                         meth=this.method;
                     break;
                 case TYPES:
-                    meth=cl.getMethod(method_name, types);
+                    if(cache != null)
+                        meth=cache.getMethod(cl, methodKey(method_name, types));
+                    if(meth == null) {
+                        meth=cl.getMethod(method_name, types);
+                        if(cache != null)
+                            cache.putMethod(cl, methodKey(method_name, types), meth);
+                    }
                     break;
                 case SIGNATURE:
-                    Class[] mytypes=null;
-                    if(signature != null)
-                        mytypes=getTypesFromString(cl, signature);
-                    meth=cl.getMethod(method_name, mytypes);
+                    if(cache != null)
+                        meth=cache.getMethod(cl, methodKey(method_name, signature));
+                    if(meth == null) {
+                        Class[] mytypes=null;
+                        if(signature != null)
+                            mytypes=getTypesFromString(cl, signature);
+                        meth=cl.getMethod(method_name, mytypes);
+                        if(cache != null)
+                            cache.putMethod(cl, methodKey(method_name, signature), meth);
+                    }
                     break;
                 default:
                     Trace.error("MethodCall.invoke()", "mode " + mode + " is invalid");
@@ -468,6 +575,12 @@ public class MethodCall implements Externalizable {
 
 
     public void writeExternal(ObjectOutput out) throws IOException {
+        if(mode == ID) { // an empty method name (no method has one) marks the compact encoding of mode ID
+            out.writeUTF("");
+            out.writeShort(method_id);
+            writeArgs(method.getParameterTypes(), out);
+            return;
+        }
         out.writeUTF(method_name);
         out.writeObject(args);
         out.writeShort(mode);
@@ -493,6 +606,16 @@ public class MethodCall implements Externalizable {
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
         method_name=in.readUTF();
+        if(method_name.length() == 0) {
+            mode=ID;
+            method_id=in.readShort();
+            method=getRegisteredMethod(method_id);
+            if(method == null)
+                throw new IOException("no method is registered under ID " + method_id);
+            method_name=method.getName();
+            args=readArgs(method.getParameterTypes(), in);
+            return;
+        }
         args=(Object[])in.readObject();
         mode=in.readShort();
 
@@ -522,6 +645,76 @@ public class MethodCall implements Externalizable {
     }
 
 
+    /**
+     * Writes the arguments according to the formal parameter types: primitives are written directly, Strings
+     * with writeUTF() (if short enough), and all other arguments are serialized
+     */
+    void writeArgs(Class[] types, ObjectOutput out) throws IOException {
+        Class  type;
+        Object arg;
+
+        if(args.length != types.length)
+            throw new IOException("method " + method_name + " expects " + types.length + " arguments, but " +
+                    args.length + " were given");
+        try {
+            for(int i=0; i < types.length; i++) {
+                type=types[i];
+                arg=args[i];
+                if(type == int.class)          out.writeInt(((Integer)arg).intValue());
+                else if(type == long.class)    out.writeLong(((Long)arg).longValue());
+                else if(type == boolean.class) out.writeBoolean(((Boolean)arg).booleanValue());
+                else if(type == byte.class)    out.writeByte(((Byte)arg).byteValue());
+                else if(type == short.class)   out.writeShort(((Short)arg).shortValue());
+                else if(type == char.class)    out.writeChar(((Character)arg).charValue());
+                else if(type == float.class)   out.writeFloat(((Float)arg).floatValue());
+                else if(type == double.class)  out.writeDouble(((Double)arg).doubleValue());
+                else if(arg == null)
+                    out.writeByte(NULL_ARG);
+                else if(arg instanceof String && ((String)arg).length() <= 0xffff / 3) { // writeUTF() limit is 64K bytes
+                    out.writeByte(STRING_ARG);
+                    out.writeUTF((String)arg);
+                }
+                else {
+                    out.writeByte(OBJECT_ARG);
+                    out.writeObject(arg);
+                }
+            }
+        }
+        catch(ClassCastException ex) {
+            throw new IOException("argument types of " + method_name + " don't match the formal parameters: " + ex);
+        }
+        catch(NullPointerException ex) {
+            throw new IOException("null argument for a primitive parameter of " + method_name);
+        }
+    }
+
+
+    static Object[] readArgs(Class[] types, ObjectInput in) throws IOException, ClassNotFoundException {
+        Object[] retval=new Object[types.length];
+        Class    type;
+
+        for(int i=0; i < types.length; i++) {
+            type=types[i];
+            if(type == int.class)          retval[i]=new Integer(in.readInt());
+            else if(type == long.class)    retval[i]=new Long(in.readLong());
+            else if(type == boolean.class) retval[i]=new Boolean(in.readBoolean());
+            else if(type == byte.class)    retval[i]=new Byte(in.readByte());
+            else if(type == short.class)   retval[i]=new Short(in.readShort());
+            else if(type == char.class)    retval[i]=new Character(in.readChar());
+            else if(type == float.class)   retval[i]=new Float(in.readFloat());
+            else if(type == double.class)  retval[i]=new Double(in.readDouble());
+            else {
+                switch(in.readByte()) {
+                    case NULL_ARG:   retval[i]=null; break;
+                    case STRING_ARG: retval[i]=in.readUTF(); break;
+                    default:         retval[i]=in.readObject(); break;
+                }
+            }
+        }
+        return retval;
+    }
+
+
     public static void main(String[] args) throws Exception {
         MethodCall m=new MethodCall(MethodCall.class.getMethod("invoke", new Class[]{Object.class}));
         m.addArg(m);
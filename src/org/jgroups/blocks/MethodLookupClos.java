@@ -4,11 +4,16 @@ package org.jgroups.blocks;
 
 
 import java.lang.reflect.Method;
+import java.util.Hashtable;
 import java.util.Vector;
 
 
 
-
+/**
+ * Finds the method whose formal parameters best match the actual arguments. Methods which have been
+ * found are cached per target class (keyed by method name and argument classes), so that the methods of
+ * the target class are only walked the first time a given call is looked up.
+ */
 public class MethodLookupClos implements MethodLookup {
 
     static Class boolean_type=Boolean.class;
@@ -20,8 +25,61 @@ public class MethodLookupClos implements MethodLookup {
     static Class float_type=Float.class;
     static Class double_type=Double.class;
 
+    /** Keys are Classes, values are Hashtables of method keys (name plus argument classes) and Methods */
+    final Hashtable cache=new Hashtable();
+
 
     public Method findMethod(Class target_class, String method_name, Vector args) throws Exception {
+        StringBuffer sb=new StringBuffer(method_name).append('(');
+        Object       arg;
+        String       key;
+        Hashtable    methods;
+        Method       retval;
+
+        for(int i=0; i < args.size(); i++) {
+            if(i > 0) sb.append(',');
+            arg=args.elementAt(i);
+            sb.append(arg != null? arg.getClass().getName() : "null");
+        }
+        key=sb.append(')').toString();
+
+        synchronized(cache) {
+            methods=(Hashtable)cache.get(target_class);
+            if(methods == null) {
+                methods=new Hashtable();
+                cache.put(target_class, methods);
+            }
+        }
+        retval=(Method)methods.get(key);
+        if(retval == null) {
+            retval=lookupMethod(target_class, method_name, args);
+            methods.put(key, retval);
+        }
+        return retval;
+    }
+
+
+    /** Returns the method cached for target_class under key (see MethodCall.methodKey()), or null */
+    Method getMethod(Class target_class, String key) {
+        Hashtable methods=(Hashtable)cache.get(target_class);
+        return methods != null? (Method)methods.get(key) : null;
+    }
+
+
+    void putMethod(Class target_class, String key, Method method) {
+        Hashtable methods;
+        synchronized(cache) {
+            methods=(Hashtable)cache.get(target_class);
+            if(methods == null) {
+                methods=new Hashtable();
+                cache.put(target_class, methods);
+            }
+        }
+        methods.put(key, method);
+    }
+
+
+    Method lookupMethod(Class target_class, String method_name, Vector args) throws Exception {
         Method retval=null, method;
         Method[] methods=target_class.getMethods();
         Vector matching_methods=new Vector();  // contains all possible matches
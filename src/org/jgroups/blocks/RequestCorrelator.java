@@ -5,8 +5,11 @@ package org.jgroups.blocks;
 import org.jgroups.*;
 import org.jgroups.log.Trace;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.Scheduler;
-import org.jgroups.util.SchedulerListener;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.Executor;
+import org.jgroups.util.LongHashMap;
+import org.jgroups.util.Marshaller;
+import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
 
 import java.io.*;
@@ -37,8 +40,9 @@ public class RequestCorrelator {
     /** The protocol layer to use to pass up/down messages. Can be either a Protocol or a Transport */
     protected Object transport=null;
 
-    /** The table of pending requests (keys=Long (request IDs), values=<tt>RequestEntry</tt>) */
-    protected HashMap requests=new HashMap();
+    /** The table of pending requests (keys=request IDs, values=<tt>RequestEntry</tt>). Striped, so that
+     * adding, finding and removing entries for different requests don't contend on a single lock */
+    protected LongHashMap requests=new LongHashMap(32);
 
     /** The handler for the incoming requests. It is called from inside the
      * dispatcher thread */
@@ -48,34 +52,45 @@ public class RequestCorrelator {
     protected String name=null;
 
     /** The dispatching thread pool */
-    protected Scheduler scheduler=null;
+    protected Executor executor=null;
+
+    /** Whether we created the executor (and therefore have to stop it), or it was set with setExecutor() */
+    protected boolean executor_owned=true;
+
+    /** Max number of threads used to process requests concurrently (if concurrent_processing is true) */
+    protected int max_threads=new Integer(System.getProperty("scheduler.max.threads", "128")).intValue();
 
     /** The address of this group member */
     protected Address local_addr=null;
 
     /**
      * This field is used only if deadlock detection is enabled.
-     * In case of nested synchronous requests, it holds a list of the
-     * addreses of the senders with the address at the bottom being the
-     * address of the first caller
+     * In case of nested synchronous requests, it holds (for the thread processing
+     * the request) the call chain of the request: a List of the addresses of all
+     * senders, from the first caller up to the sender of the request
      */
-    protected java.util.Stack call_stack=null;
+    protected ThreadLocal call_chain=new ThreadLocal();
 
     /** Whether to perform deadlock detection is synchronous calls */
     protected boolean deadlock_detection=true;
 
-    /**
-     * This field is used only if deadlock detection is enabled.
-     * It sets the calling stack for to that for the currently running request
-     */
-    protected CallStackSetter call_stack_setter=new CallStackSetter();
-
-    /** Process items on the queue concurrently (Scehduler). The default is to wait until the processing of an item
+    /** Process items on the queue concurrently (Executor). The default is to wait until the processing of an item
      * has completed before fetching the next item from the queue. Note that setting this to true
      * may destroy the properties of a protocol stack, e.g total or causal order may not be
      * guaranteed. Set this to true only if you know what you're doing ! */
     protected boolean concurrent_processing=false;
 
+    /**
+     * Requests with a destination list of at most <code>anycast_fraction</code> * view size members are sent as
+     * unicasts to each destination, rather than being multicast to the whole group (where all non-destinations
+     * would discard them). 0 (default) disables anycasting. Note that anycast requests are sent as unicasts
+     * (e.g. via UNICAST), so they are not ordered relative to the multicasts of the sender (e.g. via NAKACK)
+     */
+    protected double anycast_fraction=new Double(System.getProperty("request_correlator.anycast_fraction", "0")).doubleValue();
+
+    /** Size of the current view (set by receiveView()), 0 if not yet known */
+    protected int view_size=0;
+
 
     /**
      * Constructor. Uses transport to send messages. If <code>handler</code>
@@ -200,6 +215,39 @@ public class RequestCorrelator {
     }
 
 
+    /**
+     * Sets the max size of a destination list (as fraction of the view size) for which requests are sent as
+     * unicasts to the destinations rather than as multicast. 0 disables anycasting, 1 always anycasts.
+     * Anycast requests are not ordered relative to the multicasts sent by this member: enable anycasting only if
+     * the application doesn't rely on a request being delivered after the messages multicast before it
+     */
+    public void setAnycastFraction(double anycast_fraction) {
+        this.anycast_fraction=anycast_fraction;
+    }
+
+
+    public double getAnycastFraction() {
+        return anycast_fraction;
+    }
+
+
+    /**
+     * Sets the executor used to process incoming requests, e.g. to share one executor between several
+     * RequestCorrelators. The executor has to be started (and stopped) by the caller.
+     */
+    public void setExecutor(Executor executor) {
+        if(executor == null) return;
+        stop();
+        this.executor=executor;
+        executor_owned=false;
+    }
+
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+
     /**
      * Helper method for {@link #sendRequest(long,List,Message,RspCollector)}.
      */
@@ -216,7 +264,9 @@ public class RequestCorrelator {
      * time in millisecs)
      * @param dest_mbrs The list of members who should receive the call. Usually a group RPC
      *                  is sent via multicast, but a receiver drops the request if its own address
-     *                  is not in this list. Will not be used if it is null.
+     *                  is not in this list. If the list is small compared to the view (see
+     *                  {@link #setAnycastFraction(double)}), a unicast copy of the request is sent to each member
+     *                  instead. Will not be used if it is null.
      * @param msg The request to be sent. The body of the message carries
      * the request data
      *
@@ -237,34 +287,25 @@ public class RequestCorrelator {
         // msg
         // ii. If a reply is expected (sync call / 'coll != null'), add a
         // coresponding entry in the pending requests table
-        // iii. If deadlock detection is enabled, set/update the call stack
+        // iii. If deadlock detection is enabled, set the call chain
         // iv. Pass the msg down to the protocol layer below
         hdr = new Header(Header.REQ, id, (coll!=null? true:false), name);
         hdr.dest_mbrs=dest_mbrs;
 
         if (coll != null) {
-            if(deadlock_detection) {
-                if(local_addr == null) {
-                    Trace.error("RequestCorrelator.sendRequest()", "local address is null !");
-                    return;
-                }
-                java.util.Stack new_call_stack = (call_stack != null?
-                                                  (java.util.Stack)call_stack.clone():new java.util.Stack());
-                new_call_stack.push(local_addr);
-                hdr.call_stack=new_call_stack;
-            }
+            if(deadlock_detection)
+                hdr.call_chain=(java.util.List)call_chain.get(); // we are the sender: not added to the chain
             addEntry(hdr.id, new RequestEntry(coll));
         }
-        msg.putHeader(name, hdr);
 
+        if(dest_mbrs != null && msg.getDest() == null && isAnycast(dest_mbrs.size())) {
+            anycast(dest_mbrs, msg, hdr);
+            return;
+        }
+
+        msg.putHeader(name, hdr);
         try {
-            if(transport instanceof Protocol)
-                ((Protocol)transport).passDown(new Event(Event.MSG, msg));
-            else if(transport instanceof Transport)
-                ((Transport)transport).send(msg);
-            else
-                Trace.error("RequestCorrelator.sendRequest()", "transport object has to be either a " +
-                            "Transport or a Protocol, however it is a " + transport.getClass());
+            send(msg);
         }
         catch(Throwable e) {
             Trace.warn("RequestCorrelator.sendRequest()", e.toString());
@@ -272,6 +313,50 @@ public class RequestCorrelator {
     }
 
 
+    /** Whether a request to <code>num_dests</code> members should be sent as unicasts */
+    boolean isAnycast(int num_dests) {
+        int size=view_size;
+        return anycast_fraction > 0 && size > 0 && num_dests <= anycast_fraction * size;
+    }
+
+
+    /**
+     * Sends a copy of msg to each member of dest_mbrs. The copies share the buffer of msg, and carry a
+     * header without destination list (every receiver is a destination)
+     */
+    void anycast(List dest_mbrs, Message msg, Header hdr) {
+        Header  anycast_hdr=new Header(hdr.type, hdr.id, hdr.rsp_expected, hdr.name);
+        Address dest;
+        Message copy;
+
+        anycast_hdr.call_chain=hdr.call_chain;
+        for(Iterator it=dest_mbrs.iterator(); it.hasNext();) {
+            dest=(Address)it.next();
+            copy=msg.copy(true);
+            copy.setDest(dest);
+            copy.putHeader(name, anycast_hdr);
+            try {
+                send(copy);
+            }
+            catch(Throwable e) {
+                Trace.warn("RequestCorrelator.anycast()", "failed sending request to " + dest + ": " + e);
+            }
+        }
+    }
+
+
+    /** Passes msg down (if the transport is a Protocol), or sends it (if the transport is a Transport) */
+    private void send(Message msg) throws Exception {
+        if(transport instanceof Protocol)
+            ((Protocol)transport).passDown(new Event(Event.MSG, msg));
+        else if(transport instanceof Transport)
+            ((Transport)transport).send(msg);
+        else
+            Trace.error("RequestCorrelator.send()", "transport object has to be either a " +
+                        "Transport or a Protocol, however it is a " + transport.getClass());
+    }
+
+
 
 
 
@@ -320,15 +405,14 @@ public class RequestCorrelator {
 
 
     /**
+     * Creates and starts the executor, unless one was set with setExecutor(). Without concurrent processing,
+     * the executor has a single thread, so requests are processed in the order in which they were received
      */
     public void start() {
-        if(scheduler == null) {
-            scheduler=new Scheduler();
-            if(deadlock_detection && call_stack_setter != null)
-                scheduler.setListener(call_stack_setter);
-            if(concurrent_processing)
-                scheduler.setConcurrentProcessing(concurrent_processing);
-            scheduler.start();
+        if(executor == null) {
+            executor=new Executor("RequestCorrelator (" + name + ")", concurrent_processing? max_threads : 1);
+            executor_owned=true;
+            executor.start();
         }
     }
 
@@ -336,9 +420,10 @@ public class RequestCorrelator {
     /**
      */
     public void stop() {
-        if(scheduler != null) {
-            scheduler.stop();
-            scheduler=null;
+        if(executor != null) {
+            if(executor_owned)
+                executor.stop();
+            executor=null;
         }
     }
 
@@ -356,15 +441,14 @@ public class RequestCorrelator {
      * wait for its response.
      */
     public void receiveSuspect(Address mbr) {
-        RequestEntry entry;
-        ArrayList    copy;
+        RequestEntry   entry;
+        java.util.List copy;
 
         if(mbr == null) return;
 
         // copy so we don't run into bug #761804 - Bela June 27 2003
-        synchronized(requests) {
-            copy=new ArrayList(requests.values());
-        }
+        // (values() locks only one stripe at a time, so this doesn't block new requests)
+        copy=requests.values();
         for(Iterator it=copy.iterator(); it.hasNext();) {
             entry=(RequestEntry)it.next();
             if(entry.coll != null)
@@ -381,13 +465,14 @@ public class RequestCorrelator {
      *
      */
     public void receiveView(View new_view) {
-        RequestEntry entry;
-        ArrayList    copy;
+        RequestEntry   entry;
+        java.util.List copy;
+
+        if(new_view != null && new_view.getMembers() != null)
+            view_size=new_view.getMembers().size();
 
         // copy so we don't run into bug #761804 - Bela June 27 2003
-        synchronized(requests) {
-            copy=new ArrayList(requests.values());
-        }
+        copy=requests.values();
         for(Iterator it=copy.iterator(); it.hasNext();) {
             entry=(RequestEntry)it.next();
             if(entry.coll != null)
@@ -406,7 +491,6 @@ public class RequestCorrelator {
         Header          hdr;
         Request         req;
         RspCollector    coll;
-        java.util.Stack stack;
         java.util.List  dests;
 
         // i. If header is not an instance of request correlator header, ignore
@@ -440,8 +524,8 @@ public class RequestCorrelator {
         // [Header.REQ]:
         // i. If there is no request handler, discard
         // ii. Check whether priority: if synchronous and call stack contains
-        // address that equals local address -> add priority request. Else
-        // add normal request.
+        // address that equals local address -> add priority request (processed
+        // right away, even if all threads are busy). Else add normal request.
         //
         // [Header.RSP]:
         // Remove the msg request correlator header and notify the associated
@@ -456,15 +540,15 @@ public class RequestCorrelator {
 
             req=new Request(msg);
             if(deadlock_detection) {
-                stack=hdr.call_stack;
-                if(hdr.rsp_expected && stack != null && local_addr != null) {
-                    if(stack.contains(local_addr)) {
-                        scheduler.addPrio(req);
+                if(hdr.rsp_expected && local_addr != null) {
+                    if(local_addr.equals(msg.getSrc()) ||
+                       (hdr.call_chain != null && hdr.call_chain.contains(local_addr))) {
+                        executor.executePrio(req);
                         break;
                     }
                 }
             }
-            scheduler.add(req);
+            executor.execute(req);
             break;
 
         case Header.RSP:
@@ -491,6 +575,20 @@ public class RequestCorrelator {
     }
 
 
+    /**
+     * Returns the timer of the protocol stack requests are sent through, or null if the transport is
+     * neither a Protocol nor a JChannel (or is not part of a stack)
+     */
+    public TimeScheduler getTimer() {
+        ProtocolStack stack=null;
+        if(transport instanceof Protocol)
+            stack=((Protocol)transport).getProtocolStack();
+        else if(transport instanceof JChannel)
+            stack=((JChannel)transport).getProtocolStack();
+        return stack != null? stack.timer : null;
+    }
+
+
     // .......................................................................
 
     /**
@@ -498,13 +596,8 @@ public class RequestCorrelator {
      * ID -> <tt>RspCollector</tt>
      */
     private void addEntry(long id, RequestEntry entry) {
-        Long id_obj = new Long(id);
-        synchronized(requests) {
-            if(!requests.containsKey(id_obj))
-                requests.put(id_obj, entry);
-            else
-                Trace.warn("RequestCorrelator.addEntry()", "entry " + entry + " for request-id=" + id + " already present !");
-        }
+        if(requests.putIfAbsent(id, entry) != null)
+            Trace.warn("RequestCorrelator.addEntry()", "entry " + entry + " for request-id=" + id + " already present !");
     }
 
 
@@ -514,14 +607,10 @@ public class RequestCorrelator {
      * @param id the id of the <tt>RequestEntry</tt> to remove
      */
     private void removeEntry(long id) {
-        Long id_obj = new Long(id);
-
         // changed by bela Feb 28 2003 (bug fix for 690606)
         // changed back to use synchronization by bela June 27 2003 (bug fix for #761804),
         // we can do this because we now copy for iteration (viewChange() and suspect())
-        synchronized(requests) {
-            requests.remove(id_obj);
-        }
+        requests.remove(id);
     }
 
 
@@ -531,12 +620,7 @@ public class RequestCorrelator {
      * @return the <tt>RspCollector</tt> associated with the given ID
      */
     private RspCollector findEntry(long id) {
-        Long id_obj = new Long(id);
-        RequestEntry entry;
-
-        synchronized(requests) {
-            entry=(RequestEntry)requests.get(id_obj);
-        }
+        RequestEntry entry=(RequestEntry)requests.get(id);
         return((entry != null)? entry.coll:null);
     }
 
@@ -598,14 +682,8 @@ public class RequestCorrelator {
         rsp.putHeader(name, rsp_hdr);
 
         try {
-            if(transport instanceof Protocol)
-                ((Protocol)transport).passDown(new Event(Event.MSG, rsp));
-            else if(transport instanceof Transport)
-                ((Transport)transport).send(rsp);
-            else
-                Trace.error("RequestCorrelator.handleRequest()", "transport object has to be either a " +
-                            "Transport or a Protocol, however it is a " + transport.getClass());
-        } 
+            send(rsp);
+        }
         catch(Throwable e) {
             Trace.error("RequestCorrelator.handleRequest", throwableToString(e));
         }
@@ -661,8 +739,12 @@ public class RequestCorrelator {
         /** The unique name of the associated <tt>RequestCorrelator</tt> */
         public String name=null;
 
-        /** Contains senders (e.g. P --> Q --> R) */
-        public java.util.Stack call_stack=null;
+        /**
+         * Contains the senders of the requests this request is nested in (e.g. P --> Q for a request sent by R
+         * while processing a request from Q, which Q sent while processing a request from P). The sender of
+         * this request is not included: it is the source of the message. null if there is no call chain
+         */
+        public java.util.List call_chain=null;
 
         /** Contains a list of members who should receive the request (others will drop). Ignored if null */
         public java.util.List dest_mbrs=null;
@@ -698,6 +780,8 @@ public class RequestCorrelator {
             ret.append(", rsp_expected=" + rsp_expected + "]");
             if(dest_mbrs != null)
                 ret.append(", dest_mbrs=").append(dest_mbrs);
+            if(call_chain != null)
+                ret.append(", call_chain=").append(call_chain);
             return ret.toString();
         }
 
@@ -716,8 +800,8 @@ public class RequestCorrelator {
             else {
                 out.writeBoolean(false);
             }
-            out.writeObject(call_stack);
-            out.writeObject(dest_mbrs);
+            writeAddresses(call_chain, out);
+            writeAddresses(dest_mbrs, out);
         }
 
 
@@ -731,8 +815,30 @@ public class RequestCorrelator {
             rsp_expected = in.readBoolean();
             if(in.readBoolean())
                 name         = in.readUTF();
-            call_stack   = (java.util.Stack)in.readObject();
-            dest_mbrs=(java.util.List)in.readObject();
+            call_chain   = readAddresses(in);
+            dest_mbrs    = readAddresses(in);
+        }
+
+
+        static void writeAddresses(java.util.List addrs, ObjectOutput out) throws IOException {
+            if(addrs != null) {
+                out.writeInt(addrs.size());
+                for(Iterator it=addrs.iterator(); it.hasNext();)
+                    Marshaller.write((Address)it.next(), out);
+            }
+            else
+                out.writeInt(-1);
+        }
+
+
+        static java.util.List readAddresses(ObjectInput in) throws IOException, ClassNotFoundException {
+            int num=in.readInt();
+            if(num < 0)
+                return null;
+            java.util.List retval=new Vector(num);
+            for(int i=0; i < num; i++)
+                retval.add(Marshaller.read(in));
+            return retval;
         }
     }
 
@@ -740,56 +846,45 @@ public class RequestCorrelator {
 
 
     /**
-     * Listens for scheduler events and sets the current call chain (stack)
-     * whenever a thread is started, or a suspended thread resumed. Does
-     * this only for synchronous requests (<code>Runnable</code> is actually
-     * a <code>Request</code>).
+     * The runnable for an incoming request which is submitted to the
+     * dispatcher. If deadlock detection is enabled, the call chain (stack)
+     * of a synchronous request is set for the thread processing it, so that
+     * nested requests sent from that thread carry it along
      */
-    private class CallStackSetter implements SchedulerListener {
-        public void started(Runnable r)   { setCallStack(r); }
-        public void stopped(Runnable r)   { setCallStack(null); }
-        public void suspended(Runnable r) { setCallStack(null); }
-        public void resumed(Runnable r)   { setCallStack(r); }
-
-        void setCallStack(Runnable r) {
-            java.util.Stack new_stack;
-            Message req;
-            Header  hdr;
-            Object  obj;
+    private class Request implements Runnable {
+        public Message req;
 
-            if(r == null) {
-                call_stack=null;
-                return;
+        public Request(Message req) { this.req=req; }
+
+        public void run() {
+            Object prev=call_chain.get();
+            setCallChain();
+            try {
+                handleRequest(req);
+            }
+            finally {
+                call_chain.set(prev);
             }
+        }
 
-            req=((Request)r).req;
-            if(req == null)
-                return;
+        /** Sets the call chain of the request plus its sender (the caller of any nested requests we send) */
+        void setCallChain() {
+            java.util.List chain;
+            Object  obj;
+            Header  hdr;
 
+            if(!deadlock_detection || req == null)
+                return;
             obj=req.getHeader(name);
             if(obj == null || !(obj instanceof Header))
                 return;
-
             hdr=(Header)obj;
             if(hdr.rsp_expected == false)
                 return;
-
-            new_stack=hdr.call_stack;
-            if(new_stack != null)
-                call_stack=(java.util.Stack)new_stack.clone();
+            chain=hdr.call_chain != null? new Vector(hdr.call_chain) : new Vector(1);
+            chain.add(req.getSrc());
+            call_chain.set(chain);
         }
-    }
-
-
-    /**
-     * The runnable for an incoming request which is submitted to the
-     * dispatcher
-     */
-    private class Request implements Runnable {
-        public Message req;
-
-        public Request(Message req) { this.req=req; }
-        public void run() { handleRequest(req); }
 
         public String toString() {
             StringBuffer sb=new StringBuffer();
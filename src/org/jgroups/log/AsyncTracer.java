@@ -0,0 +1,174 @@
+// $Id: AsyncTracer.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+
+package org.jgroups.log;
+
+
+import java.util.Date;
+import java.util.LinkedList;
+
+
+/**
+ * Tracer which hands messages to a background thread, which formats them and writes them to the wrapped tracer.
+ * The calling thread therefore never blocks on I/O (or on the lock of the output). The timestamp is taken
+ * when the message is printed, not when it is written. If more than <code>max_queue_size</code> messages are
+ * pending, new messages are discarded (and counted), rather than blocking the caller.
+ * @author Bela Ban
+ * @version $Id: AsyncTracer.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+ */
+public class AsyncTracer extends Tracer implements Runnable {
+    private final Tracer     delegate;
+    private final LinkedList queue=new LinkedList();
+    private final int        max_queue_size;
+    private long             num_discarded=0;
+    private Thread           thread=null;
+
+
+    public AsyncTracer(Tracer delegate) {
+        this(delegate, 10000);
+    }
+
+
+    public AsyncTracer(Tracer delegate, int max_queue_size) {
+        super(delegate.getModule(), delegate.getLevel());
+        this.delegate=delegate;
+        this.max_queue_size=max_queue_size;
+    }
+
+
+    public Tracer getDelegate() {
+        return delegate;
+    }
+
+    public void setLevel(int level) {
+        super.setLevel(level);
+        delegate.setLevel(level);
+    }
+
+    public synchronized long getNumDiscarded() {
+        return num_discarded;
+    }
+
+
+    public void print(String module, int level, String message) {
+        print(module, level, null, message);
+    }
+
+
+    public void print(String module, int level, String identifier, String message) {
+        if(level < this.level || closed)
+            return;
+        synchronized(this) {
+            if(queue.size() >= max_queue_size) {
+                num_discarded++;
+                return;
+            }
+            queue.addLast(new Entry(System.currentTimeMillis(), module, level, identifier, message));
+            if(thread == null) {
+                thread=new Thread(this, "AsyncTracer (" + module + ")");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            notifyAll();
+        }
+    }
+
+
+    /** Waits until all pending messages have been written, then flushes the wrapped tracer */
+    public void flush() {
+        synchronized(this) {
+            while(!queue.isEmpty() && thread != null) {
+                try {
+                    wait(500);
+                }
+                catch(InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        delegate.flush();
+    }
+
+
+    public void run() {
+        Entry  entry;
+        long   discarded;
+
+        while(true) {
+            synchronized(this) {
+                while(queue.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+                if(queue.isEmpty()) { // closed
+                    thread=null;
+                    notifyAll();
+                    return;
+                }
+                entry=(Entry)queue.removeFirst();
+                discarded=num_discarded;
+                num_discarded=0;
+            }
+            if(discarded > 0)
+                delegate.doPrint(format(new Entry(entry.time, module, Trace.WARN, null,
+                                                  discarded + " messages discarded (queue full)")));
+            delegate.doPrint(format(entry));
+            synchronized(this) {
+                if(queue.isEmpty()) {
+                    if(autoFlush || delegate.getAutoFlush())
+                        delegate.doFlush();
+                    notifyAll(); // wakes up flush()
+                }
+            }
+        }
+    }
+
+
+    protected String format(Entry e) {
+        StringBuffer sb=new StringBuffer();
+        sb.append("[").append(Format.formatTimestamp(new Date(e.time), timestampFormat)).append("] [");
+        sb.append(Format.levelToString(e.level)).append("] ");
+        if(e.identifier != null)
+            sb.append("[").append(e.identifier).append("] ");
+        sb.append(e.module).append(": ").append(e.message);
+        return sb.toString();
+    }
+
+
+    protected void doPrint(String message) {
+        delegate.doPrint(message);
+    }
+
+    protected void doFlush() {
+        delegate.doFlush();
+    }
+
+    /** Writes the pending messages, stops the thread and closes the wrapped tracer */
+    protected void doClose() {
+        flush();
+        synchronized(this) {
+            closed=true;
+            notifyAll();
+        }
+        delegate.close();
+    }
+
+
+    private static class Entry {
+        final long   time;
+        final String module;
+        final int    level;
+        final String identifier;
+        final String message;
+
+        Entry(long time, String module, int level, String identifier, String message) {
+            this.time=time;
+            this.module=module;
+            this.level=level;
+            this.identifier=identifier;
+            this.message=message;
+        }
+    }
+}
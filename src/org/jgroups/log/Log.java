@@ -0,0 +1,232 @@
+// $Id: Log.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+
+package org.jgroups.log;
+
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * Level-gated logging facade on top of {@link Trace}. Each class gets a Log for its module, e.g.
+ * <pre>
+ * private static final Log log=Log.getLog("UDP");
+ * ...
+ * if(log.isDebugEnabled())
+ *     log.debug("handleMessage()", "message is " + msg + ", headers are " + msg.getHeaders());
+ * log.debug("handleMessage()", "received {} bytes from {}", len, sender); // no string built if disabled
+ * </pre>
+ * The level of a Log is derived from the outputs configured with Trace (the output for the module, any output for
+ * one of its methods, or the default output), and updated whenever the Trace configuration changes. If no
+ * output would print a message, the level is {@link #OFF}, so the <code>isXXXEnabled()</code> checks are a
+ * single field comparison and no message strings are created. When <code>Trace.trace</code> is false, only
+ * WARN and above are enabled.<p>
+ * Messages can be passed as any object (its toString() is invoked only if the level is enabled), or as a format
+ * string with <code>{}</code> placeholders which are replaced by the arguments, again only if enabled.
+ * Enabled messages are printed with <code>Trace.println(module + "." + method, level, message)</code>.
+ * @author Bela Ban
+ * @version $Id: Log.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+ */
+public class Log {
+    /** Level of a Log for which no messages are printed */
+    public static final int OFF=Trace.FATAL + 1;
+
+    /** Logs, keyed by module */
+    private static final Hashtable logs=new Hashtable();
+
+    /** Levels set explicitly with setLevel(), keyed by module. These override the levels derived from Trace */
+    private static final Hashtable levels=new Hashtable();
+
+    private final String module;
+    private int          level=OFF;
+
+
+    private Log(String module) {
+        this.module=module;
+    }
+
+
+    /** Returns the Log for the given module (e.g. "UDP"), creating it if necessary */
+    public static Log getLog(String module) {
+        Log log;
+        synchronized(logs) {
+            log=(Log)logs.get(module);
+            if(log != null)
+                return log;
+            log=new Log(module);
+            logs.put(module, log);
+        }
+        log.refreshLevel(); // not under the logs lock: refreshLevel() acquires the TRACERS lock
+        return log;
+    }
+
+
+    /** Returns the Log for the unqualified name of the class, e.g. "UDP" for org.jgroups.protocols.UDP */
+    public static Log getLog(Class clazz) {
+        String name=clazz.getName();
+        return getLog(name.substring(name.lastIndexOf('.') + 1));
+    }
+
+
+    /**
+     * Sets the level of a module, overriding the level derived from the Trace configuration. Note that the
+     * message is still printed by Trace, so an output has to exist for the module (or a default output)
+     * @param level The level, e.g. Trace.DEBUG, or -1 to remove the override
+     */
+    public static void setLevel(String module, int level) {
+        if(level < 0)
+            levels.remove(module);
+        else
+            levels.put(module, new Integer(level));
+        refreshLevels();
+    }
+
+
+    /** Recomputes the levels of all Logs. Called by Trace when its configuration changes */
+    public static void refreshLevels() {
+        Object[] tmp;
+        synchronized(logs) {
+            tmp=logs.values().toArray();
+        }
+        for(int i=0; i < tmp.length; i++)
+            ((Log)tmp[i]).refreshLevel();
+    }
+
+
+    public String getModule() {
+        return module;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isDebugEnabled() {
+        return level <= Trace.DEBUG;
+    }
+
+    public boolean isInfoEnabled() {
+        return level <= Trace.INFO;
+    }
+
+    public boolean isWarnEnabled() {
+        return level <= Trace.WARN;
+    }
+
+    public boolean isErrorEnabled() {
+        return level <= Trace.ERROR;
+    }
+
+
+    public void debug(String method, Object msg) {
+        if(level <= Trace.DEBUG) print(Trace.DEBUG, method, msg);
+    }
+
+    public void debug(String method, String format, Object arg) {
+        if(level <= Trace.DEBUG) print(Trace.DEBUG, method, format(format, arg, null, null));
+    }
+
+    public void debug(String method, String format, Object arg1, Object arg2) {
+        if(level <= Trace.DEBUG) print(Trace.DEBUG, method, format(format, arg1, arg2, null));
+    }
+
+    public void debug(String method, String format, Object arg1, Object arg2, Object arg3) {
+        if(level <= Trace.DEBUG) print(Trace.DEBUG, method, format(format, arg1, arg2, arg3));
+    }
+
+    public void info(String method, Object msg) {
+        if(level <= Trace.INFO) print(Trace.INFO, method, msg);
+    }
+
+    public void info(String method, String format, Object arg) {
+        if(level <= Trace.INFO) print(Trace.INFO, method, format(format, arg, null, null));
+    }
+
+    public void info(String method, String format, Object arg1, Object arg2) {
+        if(level <= Trace.INFO) print(Trace.INFO, method, format(format, arg1, arg2, null));
+    }
+
+    public void info(String method, String format, Object arg1, Object arg2, Object arg3) {
+        if(level <= Trace.INFO) print(Trace.INFO, method, format(format, arg1, arg2, arg3));
+    }
+
+    public void warn(String method, Object msg) {
+        if(level <= Trace.WARN) print(Trace.WARN, method, msg);
+    }
+
+    public void warn(String method, String format, Object arg1, Object arg2) {
+        if(level <= Trace.WARN) print(Trace.WARN, method, format(format, arg1, arg2, null));
+    }
+
+    public void error(String method, Object msg) {
+        if(level <= Trace.ERROR) print(Trace.ERROR, method, msg);
+    }
+
+    public void error(String method, String format, Object arg1, Object arg2) {
+        if(level <= Trace.ERROR) print(Trace.ERROR, method, format(format, arg1, arg2, null));
+    }
+
+    public void fatal(String method, Object msg) {
+        if(level <= Trace.FATAL) print(Trace.FATAL, method, msg);
+    }
+
+
+    public String toString() {
+        return module + " (level=" + (level >= OFF? "OFF" : Format.levelToString(level)) + ")";
+    }
+
+
+    private void print(int lvl, String method, Object msg) {
+        Trace.println(method != null? module + "." + method : module, lvl, String.valueOf(msg));
+    }
+
+
+    /** Replaces the first 3 occurrences of "{}" in format with the arguments */
+    static String format(String format, Object arg1, Object arg2, Object arg3) {
+        StringBuffer sb;
+        int          start=0, index, num=0;
+
+        if(format == null)
+            return null;
+        sb=new StringBuffer(format.length() + 32);
+        while(num < 3 && (index=format.indexOf("{}", start)) >= 0) {
+            sb.append(format.substring(start, index));
+            sb.append(num == 0? arg1 : num == 1? arg2 : arg3);
+            start=index + 2;
+            num++;
+        }
+        sb.append(format.substring(start));
+        return sb.toString();
+    }
+
+
+    /** Computes the level: the lowest level of the outputs which would print messages of this module */
+    private void refreshLevel() {
+        Integer override=(Integer)levels.get(module);
+        Tracer  tracer;
+        String  key, prefix=module + ".";
+        int     lvl=OFF;
+        Map.Entry entry;
+
+        if(override != null) {
+            lvl=override.intValue();
+        }
+        else {
+            synchronized(Trace.TRACERS) {
+                tracer=Trace.findTracerFor(module);
+                if(tracer != null)
+                    lvl=tracer.getLevel();
+                for(Iterator it=Trace.TRACERS.entrySet().iterator(); it.hasNext();) {
+                    entry=(Map.Entry)it.next();
+                    key=(String)entry.getKey();
+                    if(key.startsWith(prefix) && entry.getValue() != null)
+                        lvl=Math.min(lvl, ((Tracer)entry.getValue()).getLevel());
+                }
+            }
+            if(!Trace.trace && lvl < Trace.WARN)
+                lvl=Trace.WARN;
+        }
+        level=lvl;
+    }
+}
@@ -102,6 +102,7 @@ public class Trace {
     protected static final String STDOUT_STMT="STDOUT";
     protected static final String STDERR_STMT="STDERR";
     protected static final String DEFAULT_OUTPUT="default_output";
+    protected static final String ASYNC_OUTPUT_STMT="async_output";
 
 
     /** Completely private constructor; should never be called. */
@@ -197,6 +198,7 @@ public class Trace {
        <li><code>default_output=level output</code>.
        <li><code>timestamp_format=format</code>. Sets the format for timestamps, see
        {@link #setTimestampFormat}.
+       <li><code>async_output=true</code>. Writes all outputs from a background thread, see {@link #setAsyncOutput}.
        </ol>
        @exception IOException Throw when <code>fname</code> does not exist
        @exception SecurityException Thrown when file exists, but is not accessible
@@ -211,6 +213,8 @@ public class Trace {
             entry=(Map.Entry)it.next();
             parse((String)entry.getKey(), (String)entry.getValue());
         }
+        if(new Boolean(p.getProperty(ASYNC_OUTPUT_STMT, "false")).booleanValue())
+            setAsyncOutput();
         setAutoFlushAll(true);  // set if properties are read from file
         setAutoFlushDefault(true);
     }
@@ -312,8 +316,30 @@ public class Trace {
 	identifier=id;
     }
 
+    /**
+     * Wraps the default output and all module outputs in {@link AsyncTracer}s, so that threads printing trace
+     * statements don't block on I/O. Outputs created later are not affected.
+     */
+    public static void setAsyncOutput() {
+	Map.Entry entry;
+	Tracer    tracer;
+	synchronized(TRACERS) {
+	    for(Iterator it=TRACERS.entrySet().iterator(); it.hasNext();) {
+		entry=(Map.Entry)it.next();
+		tracer=(Tracer)entry.getValue();
+		if(tracer != null && !(tracer instanceof AsyncTracer))
+		    entry.setValue(new AsyncTracer(tracer));
+	    }
+	}
+	synchronized(Trace.class) {
+	    if(defaultTracer != null && !(defaultTracer instanceof AsyncTracer))
+		defaultTracer=new AsyncTracer(defaultTracer);
+	}
+    }
+
     public static void setTrace(boolean t) {
 	trace=t;
+	Log.refreshLevels();
     }
 
 
@@ -338,6 +364,7 @@ public class Trace {
 	}
 	if (tracer != null && tracer != getDefaultTracer())
 	    tracer.setLevel(level);
+	Log.refreshLevels();
     }
 
     /**
@@ -731,6 +758,7 @@ public class Trace {
 	    defaultTracer.close();	// Harmless when tracer is STDOUT or STDERR
 	//defaultTracer = getStdoutTracer(DEBUG);
 	defaultTracer = null;
+	Log.refreshLevels();
     }
 
     /**
@@ -741,6 +769,7 @@ public class Trace {
 	if (defaultTracer != null)
 	    defaultTracer.close();	// Harmless when tracer is STDOUT or STDERR
 	defaultTracer = null;
+	Log.refreshLevels();
     }
 
     /**
@@ -767,6 +796,7 @@ public class Trace {
 	    FileWriter out = new FileWriter(f.getAbsolutePath(), true);
 	    defaultTracer = new WriterTracer("", level, out);
 	}
+	Log.refreshLevels();
     }
 
     /**
@@ -810,6 +840,7 @@ public class Trace {
 	else
 	    defaultTracer = new WriterTracer("", level, new PrintWriter(outputStream));
 	defaultTracer.setLevel(level);
+	Log.refreshLevels();
     }
 
     /**
@@ -838,6 +869,7 @@ public class Trace {
 	defaultTracer = (writer == null) ? null : new WriterTracer("", level, writer);
 	if(defaultTracer != null)
 	    defaultTracer.setLevel(level);
+	Log.refreshLevels();
     }
 
     /**
@@ -869,6 +901,7 @@ public class Trace {
 	    new NetworkTracer("", level, new Socket(host, port));
 	if(defaultTracer != null)
 	    defaultTracer.setLevel(level);
+	Log.refreshLevels();
     }
 
     /**
@@ -908,6 +941,7 @@ public class Trace {
 	    new NetworkTracer("", level, new Socket(addr, port));
 	if(defaultTracer != null)
 	    defaultTracer.setLevel(level);
+	Log.refreshLevels();
     }
 
     /**
@@ -937,6 +971,7 @@ public class Trace {
 	synchronized(TRACERS) {
 	    TRACERS.put(moduleLookupName(module), tracer);
 	}
+	Log.refreshLevels();
     }
 
     /**
@@ -950,6 +985,7 @@ public class Trace {
 	synchronized(TRACERS) {
 	    TRACERS.remove(moduleLookupName(module));
 	}
+	Log.refreshLevels();
     }
 
     /**
@@ -1088,7 +1124,10 @@ public class Trace {
 	}
 	key=key.toLowerCase();
 	if(key.equals(TRACE_STMT)) {
-	    trace=new Boolean(val).booleanValue();
+	    setTrace(new Boolean(val).booleanValue());
+	}
+	else if(key.equals(ASYNC_OUTPUT_STMT)) {
+	    ; // handled by init(InputStream), after all outputs have been created
 	}
 	else if(key.startsWith(TRACE_STMT)) {
 	    parseTrace(val);
@@ -0,0 +1,343 @@
+// $Id: ClusterBenchmark.java,v 1.1 2008/09/03 04:24:44 commerce\wuti7102 Exp $
+
+package org.jgroups.perf;
+
+
+import org.jgroups.*;
+import org.jgroups.util.Metrics;
+import org.jgroups.util.Util;
+
+
+
+/**
+ * End-to-end throughput and latency benchmark of a cluster of JChannels in a single JVM. The members are connected
+ * by {@link org.jgroups.protocols.SHARED_LOOPBACK}, so the benchmark measures the cost of the protocols
+ * (NAKACK, STABLE, FC, GMS etc.) rather than that of the network. Usage:
+ * <pre>
+ * java org.jgroups.perf.ClusterBenchmark [-members n] [-senders n] [-msgs n] [-size bytes] [-props stack] [-metrics]
+ *                                        [-concurrent_join]
+ * </pre>
+ * The benchmark
+ * <ol>
+ * <li>connects <code>members</code> channels one after the other and reports the time taken for all of them to
+ * see the full view (join scaling). With <code>-concurrent_join</code>, all members except the first connect at
+ * the same time, as on startup of a cluster
+ * <li>lets the first <code>senders</code> members each multicast <code>msgs</code> messages of <code>size</code>
+ * bytes, and reports the time until all members received all messages, the throughput (messages and MB per
+ * second delivered per member) and the latency distribution (ms from send to delivery)
+ * <li>prints the metrics of all layers of the first member if <code>-metrics</code> is given
+ * <li>closes all channels and reports the time taken
+ * </ol>
+ * Loss, delay and reordering can be configured in the SHARED_LOOPBACK element of the stack.
+ * @author Bela Ban
+ * @version $Id: ClusterBenchmark.java,v 1.1 2008/09/03 04:24:44 commerce\wuti7102 Exp $
+ */
+public class ClusterBenchmark {
+    public static final String DEFAULT_PROPS="SHARED_LOOPBACK:" +
+            "PING(timeout=1000;num_initial_members=3):" +
+            "FD(timeout=3000;max_tries=5):" +
+            "VERIFY_SUSPECT(timeout=1500):" +
+            "pbcast.NAKACK(gc_lag=50;retransmit_timeout=300,600,1200,2400,4800):" +
+            "UNICAST(timeout=300,600,1200,2400,4800):" +
+            "pbcast.STABLE(desired_avg_gossip=20000;max_bytes=400000):" +
+            "pbcast.GMS(join_timeout=5000;join_retry_timeout=2000;shun=false;print_local_addr=false):" +
+            "FC(max_credits=2000000;min_threshold=0.10):" +
+            "FRAG2(frag_size=60000)";
+
+    final int          num_members, num_senders, num_msgs, msg_size;
+    final String       props;
+    final JChannel[]   channels;
+    final Receiver[]   receivers;
+    boolean            concurrent_join=false;
+
+    /** Latency (ms) between sending and delivery of a message, over all members */
+    final Metrics.Histogram latency=new Metrics().histogram("latency");
+
+    /** Number of receivers which have not yet received all messages */
+    int                num_pending=0;
+
+
+    public ClusterBenchmark(int num_members, int num_senders, int num_msgs, int msg_size, String props) {
+        this.num_members=num_members;
+        this.num_senders=Math.min(num_senders, num_members);
+        this.num_msgs=num_msgs;
+        this.msg_size=Math.max(msg_size, 8);
+        this.props=props;
+        channels=new JChannel[num_members];
+        receivers=new Receiver[num_members];
+    }
+
+
+    public void setConcurrentJoin(boolean flag) {
+        concurrent_join=flag;
+    }
+
+
+    public void start(boolean print_metrics) throws Exception {
+        long start, stop;
+
+        System.out.println("members=" + num_members + ", senders=" + num_senders + ", msgs=" + num_msgs +
+                           " per sender, size=" + msg_size + " bytes\nprops=" + props + "\n");
+
+        // 1. join
+        start=System.currentTimeMillis();
+        for(int i=0; i < num_members; i++) {
+            channels[i]=new JChannel(props);
+            channels[i].setOpt(Channel.LOCAL, Boolean.TRUE);
+            if(i == 0 || !concurrent_join)
+                connect(i);
+        }
+        if(concurrent_join) {
+            Thread[] joiners=new Thread[num_members];
+            for(int i=1; i < num_members; i++) {
+                final int index=i;
+                joiners[i]=new Thread("Joiner-" + i) {
+                    public void run() {
+                        try {
+                            connect(index);
+                        }
+                        catch(Exception ex) {
+                            System.err.println(getName() + ": failed connecting: " + ex);
+                        }
+                    }
+                };
+                joiners[i].start();
+            }
+            for(int i=1; i < num_members; i++)
+                joiners[i].join();
+        }
+        waitForView(num_members, 60000);
+        stop=System.currentTimeMillis();
+        System.out.println("join:    " + num_members + " members in " + (stop - start) + " ms");
+
+        // 2. multicast
+        synchronized(this) {
+            num_pending=num_members;
+            for(int i=0; i < num_members; i++)
+                receivers[i].expect((long)num_senders * num_msgs);
+        }
+        latency.reset();
+        start=System.currentTimeMillis();
+        for(int i=0; i < num_senders; i++)
+            new Sender(channels[i]).start();
+        synchronized(this) {
+            while(num_pending > 0)
+                wait();
+        }
+        stop=System.currentTimeMillis();
+        printResults(stop - start);
+
+        if(print_metrics)
+            System.out.println("\nmetrics of " + channels[0].getLocalAddress() + ":\n" +
+                               channels[0].getProtocolStack().dumpMetrics());
+
+        // 3. leave
+        start=System.currentTimeMillis();
+        for(int i=num_members-1; i >= 0; i--)
+            channels[i].close();
+        stop=System.currentTimeMillis();
+        System.out.println("\nleave:   " + num_members + " members in " + (stop - start) + " ms");
+    }
+
+
+    void connect(int index) throws Exception {
+        channels[index].connect("ClusterBenchmark");
+        receivers[index]=new Receiver(channels[index]);
+        receivers[index].start();
+    }
+
+
+    void printResults(long time) {
+        long   total=(long)num_senders * num_msgs;
+        double secs=time / 1000.0, msgs_sec=total / secs;
+
+        System.out.println("multicast: " + total + " msgs delivered to " + num_members + " members in " + time + " ms");
+        System.out.println("         " + format(msgs_sec) + " msgs/sec/member, " +
+                           format(msgs_sec * msg_size / (1024 * 1024)) + " MB/sec/member, " +
+                           format(msgs_sec * num_members) + " deliveries/sec total");
+        System.out.println("latency: " + latency);
+    }
+
+
+    void waitForView(int size, long timeout) throws Exception {
+        long    target=System.currentTimeMillis() + timeout;
+        boolean done;
+        View    v;
+
+        do {
+            done=true;
+            for(int i=0; i < channels.length; i++) {
+                v=channels[i].getView();
+                if(v == null || v.size() != size) {
+                    done=false;
+                    break;
+                }
+            }
+            if(done)
+                return;
+            Util.sleep(50);
+        }
+        while(System.currentTimeMillis() < target);
+        throw new TimeoutException("members did not see a view of " + size + " within " + timeout + " ms");
+    }
+
+
+    synchronized void receiverDone() {
+        if(--num_pending <= 0)
+            notifyAll();
+    }
+
+
+    static String format(double d) {
+        return String.valueOf(Math.round(d * 100) / 100.0);
+    }
+
+    static long readLong(byte[] buf) {
+        long l=0;
+        for(int i=0; i < 8; i++)
+            l=(l << 8) | (buf[i] & 0xff);
+        return l;
+    }
+
+    static void writeLong(long l, byte[] buf) {
+        for(int i=7; i >= 0; i--) {
+            buf[i]=(byte)l;
+            l>>>=8;
+        }
+    }
+
+
+
+    /** Multicasts num_msgs messages, with the send time in the first 8 bytes of the buffer */
+    class Sender extends Thread {
+        final JChannel ch;
+
+        Sender(JChannel ch) {
+            super("Sender (" + ch.getLocalAddress() + ")");
+            this.ch=ch;
+        }
+
+        public void run() {
+            byte[] buf;
+            try {
+                for(int i=0; i < num_msgs; i++) {
+                    buf=new byte[msg_size];
+                    writeLong(System.currentTimeMillis(), buf);
+                    ch.send(new Message(null, null, buf));
+                }
+            }
+            catch(Exception ex) {
+                System.err.println(getName() + ": failed sending: " + ex);
+            }
+        }
+    }
+
+
+
+    /** Receives messages from a channel, counts them and records their latency */
+    class Receiver extends Thread {
+        final JChannel ch;
+        long           expected=0, received=0;
+
+        Receiver(JChannel ch) {
+            super("Receiver (" + ch.getLocalAddress() + ")");
+            this.ch=ch;
+            setDaemon(true);
+        }
+
+        synchronized void expect(long num) {
+            expected=num;
+            received=0;
+        }
+
+        public void run() {
+            Object obj;
+            byte[] buf;
+            long   now;
+            boolean done;
+
+            while(true) {
+                try {
+                    obj=ch.receive(0);
+                }
+                catch(ChannelClosedException closed) {
+                    break;
+                }
+                catch(ChannelNotConnectedException not_connected) {
+                    break;
+                }
+                catch(Exception ex) {
+                    continue;
+                }
+                if(!(obj instanceof Message))
+                    continue;
+                buf=((Message)obj).getBuffer();
+                if(buf == null || buf.length < 8)
+                    continue;
+                now=System.currentTimeMillis();
+                latency.record(now - readLong(buf));
+                synchronized(this) {
+                    done=expected > 0 && ++received == expected;
+                }
+                if(done)
+                    receiverDone();
+            }
+        }
+    }
+
+
+
+    public static void main(String[] args) {
+        int     num_members=10, num_senders=1, num_msgs=10000, msg_size=1000;
+        String  props=DEFAULT_PROPS;
+        boolean print_metrics=false, concurrent_join=false;
+
+        for(int i=0; i < args.length; i++) {
+            if("-members".equals(args[i])) {
+                num_members=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-senders".equals(args[i])) {
+                num_senders=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-msgs".equals(args[i])) {
+                num_msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-size".equals(args[i])) {
+                msg_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-props".equals(args[i])) {
+                props=args[++i];
+                continue;
+            }
+            if("-metrics".equals(args[i])) {
+                print_metrics=true;
+                continue;
+            }
+            if("-concurrent_join".equals(args[i])) {
+                concurrent_join=true;
+                continue;
+            }
+            help();
+            return;
+        }
+
+        try {
+            ClusterBenchmark bench=new ClusterBenchmark(num_members, num_senders, num_msgs, msg_size, props);
+            bench.setConcurrentJoin(concurrent_join);
+            bench.start(print_metrics);
+        }
+        catch(Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    static void help() {
+        System.out.println("ClusterBenchmark [-members <num>] [-senders <num>] [-msgs <num per sender>] " +
+                           "[-size <bytes>] [-props <stack>] [-metrics] [-concurrent_join]");
+    }
+}
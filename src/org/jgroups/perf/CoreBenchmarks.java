@@ -0,0 +1,444 @@
+// $Id: CoreBenchmarks.java,v 1.1 2008/09/03 04:24:42 commerce\wuti7102 Exp $
+
+package org.jgroups.perf;
+
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Membership;
+import org.jgroups.Message;
+import org.jgroups.protocols.COMPRESS;
+import org.jgroups.protocols.FRAG2;
+import org.jgroups.protocols.UdpHeader;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.stack.NakReceiverWindow;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Marshaller;
+import org.jgroups.util.Queue;
+import org.jgroups.util.TimeScheduler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Properties;
+import java.util.Vector;
+
+
+/**
+ * Micro-benchmarks for the core data structures and codecs: message serialization, Marshaller, Membership,
+ * NakReceiverWindow, Queue, TimeScheduler, FRAG2 and COMPRESS. Usage:
+ * <pre>
+ * java org.jgroups.perf.CoreBenchmarks [-warmup ms] [-iterations n] [-time ms] [benchmark name prefix]*
+ * </pre>
+ * Prints one line per benchmark with the mean throughput (ops/ms) and the standard deviation of the iterations.
+ * Baseline results are in baseline.txt (in this directory); compare against them (on the same machine) to
+ * detect regressions.
+ * @author Bela Ban
+ * @version $Id: CoreBenchmarks.java,v 1.1 2008/09/03 04:24:42 commerce\wuti7102 Exp $
+ */
+public class CoreBenchmarks {
+
+    static MicroBenchmark[] createBenchmarks() {
+        return new MicroBenchmark[] {
+            new MessageWrite(),
+            new MessageRead(),
+            new MarshallerWriteRead(),
+            new MembershipContains(),
+            new NakReceiverWindowNoGaps(),
+            new NakReceiverWindowGaps(),
+            new QueueProducerConsumer(),
+            new TimeSchedulerAddCancel(),
+            new Frag2FragmentReassemble(),
+            new CompressRoundTrip()
+        };
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        long             warmup=2000, time=1000;
+        int              iterations=5;
+        Vector           names=new Vector();
+        MicroBenchmark[] benchmarks=createBenchmarks();
+
+        for(int i=0; i < args.length; i++) {
+            if("-warmup".equals(args[i])) {
+                warmup=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-iterations".equals(args[i])) {
+                iterations=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-time".equals(args[i])) {
+                time=Long.parseLong(args[++i]);
+                continue;
+            }
+            if(args[i].startsWith("-")) {
+                help();
+                return;
+            }
+            names.add(args[i]);
+        }
+
+        System.out.println("java.vm.name=" + System.getProperty("java.vm.name") + ", java.version=" +
+                           System.getProperty("java.version") + ", os.arch=" + System.getProperty("os.arch"));
+        System.out.println("warmup=" + warmup + " ms, iterations=" + iterations + " x " + time + " ms\n");
+        for(int i=0; i < benchmarks.length; i++) {
+            if(names.size() > 0 && !matches(benchmarks[i].getName(), names))
+                continue;
+            System.out.println(benchmarks[i].measure(warmup, iterations, time));
+        }
+    }
+
+
+    static boolean matches(String name, Vector prefixes) {
+        for(int i=0; i < prefixes.size(); i++) {
+            if(name.startsWith((String)prefixes.elementAt(i)))
+                return true;
+        }
+        return false;
+    }
+
+    static void help() {
+        System.out.println("CoreBenchmarks [-help] [-warmup <ms>] [-iterations <n>] [-time <ms>] [<benchmark name prefix>]*");
+    }
+
+
+    static Message createMessage(int size) throws Exception {
+        Message msg=new Message(null, new IpAddress("127.0.0.1", 7800), new byte[size]);
+        msg.putHeader("UDP", new UdpHeader("demo-group"));
+        return msg;
+    }
+
+    static byte[] serialize(Message msg) throws Exception {
+        ByteArrayOutputStream out_stream=new ByteArrayOutputStream(msg.getLength() + 256);
+        ObjectOutputStream    out=new ObjectOutputStream(out_stream);
+        msg.writeExternal(out);
+        out.close();
+        return out_stream.toByteArray();
+    }
+
+
+
+    /** Message.writeExternal() of a message with a 1000 byte payload and a UdpHeader */
+    static class MessageWrite extends MicroBenchmark {
+        Message msg;
+
+        public String getName() {return "Message.writeExternal (1K)";}
+
+        public void setUp() throws Exception {
+            msg=createMessage(1000);
+        }
+
+        public int getBatchSize() {return 100;}
+
+        public Object run(int num_ops) throws Exception {
+            byte[] buf=null;
+            for(int i=0; i < num_ops; i++)
+                buf=serialize(msg);
+            return buf;
+        }
+    }
+
+
+    /** Message.readExternal() of a message with a 1000 byte payload and a UdpHeader */
+    static class MessageRead extends MicroBenchmark {
+        byte[] buf;
+
+        public String getName() {return "Message.readExternal (1K)";}
+
+        public void setUp() throws Exception {
+            buf=serialize(createMessage(1000));
+        }
+
+        public int getBatchSize() {return 100;}
+
+        public Object run(int num_ops) throws Exception {
+            Message msg=null;
+            for(int i=0; i < num_ops; i++) {
+                msg=new Message();
+                msg.readExternal(new ObjectInputStream(new ByteArrayInputStream(buf)));
+            }
+            return msg;
+        }
+    }
+
+
+    /** Marshaller.write() and read() of 10 addresses in one stream */
+    static class MarshallerWriteRead extends MicroBenchmark {
+        IpAddress[] addrs=new IpAddress[10];
+
+        public String getName() {return "Marshaller write+read (10 addrs)";}
+
+        public void setUp() throws Exception {
+            for(int i=0; i < addrs.length; i++)
+                addrs[i]=new IpAddress("127.0.0.1", 7800 + i);
+        }
+
+        public int getBatchSize() {return 100;}
+
+        public Object run(int num_ops) throws Exception {
+            Object retval=null;
+            for(int i=0; i < num_ops; i++) {
+                ByteArrayOutputStream out_stream=new ByteArrayOutputStream(512);
+                ObjectOutputStream    out=new ObjectOutputStream(out_stream);
+                for(int j=0; j < addrs.length; j++)
+                    Marshaller.write(addrs[j], out);
+                out.close();
+                ObjectInputStream in=new ObjectInputStream(new ByteArrayInputStream(out_stream.toByteArray()));
+                for(int j=0; j < addrs.length; j++)
+                    retval=Marshaller.read(in);
+            }
+            return retval;
+        }
+    }
+
+
+    /** Membership.contains() of the members of a 100 member group (the check done for every received heartbeat) */
+    static class MembershipContains extends MicroBenchmark {
+        Membership  mbrship=new Membership();
+        IpAddress[] addrs=new IpAddress[100];
+
+        public String getName() {return "Membership.contains (100 mbrs)";}
+
+        public void setUp() throws Exception {
+            for(int i=0; i < addrs.length; i++) {
+                addrs[i]=new IpAddress("127.0.0.1", 7800 + i);
+                mbrship.add(addrs[i]);
+            }
+        }
+
+        public int getBatchSize() {return 1000;}
+
+        public Object run(int num_ops) throws Exception {
+            int found=0;
+            for(int i=0; i < num_ops; i++)
+                if(mbrship.contains(addrs[i % addrs.length]))
+                    found++;
+            return new Integer(found);
+        }
+    }
+
+
+    /** NakReceiverWindow.add() of messages in seqno order, each followed by remove() */
+    static class NakReceiverWindowNoGaps extends MicroBenchmark {
+        NakReceiverWindow win;
+        Message           msg;
+        long              seqno=1;
+
+        public String getName() {return "NakReceiverWindow add+remove";}
+
+        public void setUp() throws Exception {
+            win=new NakReceiverWindow(new IpAddress("127.0.0.1", 7800), 1);
+            msg=new Message(null, null, new byte[10]);
+        }
+
+        public Object run(int num_ops) throws Exception {
+            Message m=null;
+            for(int i=0; i < num_ops; i++) {
+                win.add(seqno++, msg);
+                m=win.remove();
+            }
+            win.stable(seqno - 1);
+            return m;
+        }
+    }
+
+
+    /** NakReceiverWindow.add() of pairs of messages in reverse order (every second add creates a gap), then remove() */
+    static class NakReceiverWindowGaps extends MicroBenchmark {
+        NakReceiverWindow win;
+        Message           msg;
+        long              seqno=1;
+
+        public String getName() {return "NakReceiverWindow add+remove (gaps)";}
+
+        public void setUp() throws Exception {
+            win=new NakReceiverWindow(new IpAddress("127.0.0.1", 7800), 1);
+            msg=new Message(null, null, new byte[10]);
+        }
+
+        public Object run(int num_ops) throws Exception {
+            Message m=null;
+            for(int i=0; i < num_ops; i+=2) {
+                win.add(seqno + 1, msg);
+                win.add(seqno, msg);
+                seqno+=2;
+                m=win.remove();
+                m=win.remove();
+            }
+            win.stable(seqno - 1);
+            return m;
+        }
+    }
+
+
+    /** org.jgroups.util.Queue with one producer thread and the benchmark thread as consumer */
+    static class QueueProducerConsumer extends MicroBenchmark {
+        Queue   queue;
+        Thread  producer;
+        Object  element=new Object();
+
+        public String getName() {return "Queue producer/consumer";}
+
+        public void setUp() throws Exception {
+            queue=new Queue();
+            producer=new Thread("QueueProducer") {
+                public void run() {
+                    try {
+                        while(true) {
+                            if(queue.size() < 10000)
+                                queue.add(element);
+                            else
+                                Thread.yield();
+                        }
+                    }
+                    catch(Exception closed) {
+                    }
+                }
+            };
+            producer.setDaemon(true);
+            producer.start();
+        }
+
+        public void tearDown() throws Exception {
+            queue.close(false);
+            producer.join(1000);
+        }
+
+        public Object run(int num_ops) throws Exception {
+            Object retval=null;
+            for(int i=0; i < num_ops; i++)
+                retval=queue.remove();
+            return retval;
+        }
+    }
+
+
+    /** TimeScheduler.add() of a task which is cancelled right away */
+    static class TimeSchedulerAddCancel extends MicroBenchmark {
+        TimeScheduler timer;
+
+        public String getName() {return "TimeScheduler add+cancel";}
+
+        public void setUp() throws Exception {
+            timer=new TimeScheduler();
+            timer.start();
+        }
+
+        public void tearDown() throws Exception {
+            timer.stop();
+        }
+
+        public Object run(int num_ops) throws Exception {
+            Task task=null;
+            for(int i=0; i < num_ops; i++) {
+                task=new Task();
+                timer.add(task);
+                task.cancelled=true;
+            }
+            return task;
+        }
+
+        static class Task implements TimeScheduler.Task {
+            volatile boolean cancelled=false;
+            public boolean cancelled() {return cancelled;}
+            public long nextInterval() {return 5;}
+            public void run() {}
+        }
+    }
+
+
+    /** Sends messages through FRAG2 (fragmented into 8 fragments), which are looped back up and reassembled */
+    static class Frag2FragmentReassemble extends MicroBenchmark {
+        FRAG2        frag;
+        Bottom       bottom;
+        Top          top;
+        byte[]       buf=new byte[8 * 8000];
+
+        public String getName() {return "FRAG2 fragment+reassemble (64K)";}
+
+        public void setUp() throws Exception {
+            Properties props=new Properties();
+            frag=new FRAG2();
+            props.setProperty("frag_size", "8000");
+            frag.setPropertiesInternal(props);
+            frag.init();
+            top=new Top();
+            bottom=new Bottom(new IpAddress("127.0.0.1", 7800));
+            connect(top, frag, bottom);
+        }
+
+        public int getBatchSize() {return 10;}
+
+        public Object run(int num_ops) throws Exception {
+            for(int i=0; i < num_ops; i++)
+                frag.down(new Event(Event.MSG, new Message(null, null, buf)));
+            return top.last;
+        }
+    }
+
+
+    /** Sends an 8K message (compressible text) through COMPRESS, which is looped back up and uncompressed */
+    static class CompressRoundTrip extends MicroBenchmark {
+        COMPRESS     compress;
+        Bottom       bottom;
+        Top          top;
+        byte[]       buf=new byte[8192];
+
+        public String getName() {return "COMPRESS compress+uncompress (8K)";}
+
+        public void setUp() throws Exception {
+            byte[] text="The quick brown fox jumps over the lazy dog, again and again. ".getBytes();
+            for(int i=0; i < buf.length; i++)
+                buf[i]=text[i % text.length];
+            compress=new COMPRESS();
+            compress.setPropertiesInternal(new Properties());
+            compress.init();
+            top=new Top();
+            bottom=new Bottom(new IpAddress("127.0.0.1", 7800));
+            connect(top, compress, bottom);
+        }
+
+        public void tearDown() throws Exception {
+            compress.destroy();
+        }
+
+        public int getBatchSize() {return 10;}
+
+        public Object run(int num_ops) throws Exception {
+            for(int i=0; i < num_ops; i++)
+                compress.down(new Event(Event.MSG, new Message(null, null, buf)));
+            return top.last;
+        }
+    }
+
+
+
+    static void connect(Protocol top, Protocol prot, Protocol bottom) {
+        top.setDownProtocol(prot);
+        prot.setUpProtocol(top);
+        prot.setDownProtocol(bottom);
+        bottom.setUpProtocol(prot);
+    }
+
+    /** Counts the messages received from below */
+    static class Top extends Protocol {
+        Object last;
+        public String getName() {return "Top";}
+        public void up(Event evt) {last=evt.getArg();}
+    }
+
+    /** Loops messages sent down back up, setting the sender address */
+    static class Bottom extends Protocol {
+        final Address local_addr;
+        Bottom(Address local_addr) {this.local_addr=local_addr;}
+        public String getName() {return "Bottom";}
+        public void down(Event evt) {
+            if(evt.getType() == Event.MSG)
+                ((Message)evt.getArg()).setSrc(local_addr);
+            passUp(evt);
+        }
+    }
+}
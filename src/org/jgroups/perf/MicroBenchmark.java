@@ -0,0 +1,119 @@
+// $Id: MicroBenchmark.java,v 1.1 2008/09/03 04:24:42 commerce\wuti7102 Exp $
+
+package org.jgroups.perf;
+
+
+/**
+ * Minimal micro-benchmark harness (no dependencies, runs on J2SE 1.4). A benchmark performs a batch of operations
+ * in {@link #run(int)}; the harness first warms up (so the JIT has compiled the code), then measures a number of
+ * fixed-length iterations and reports the throughput (ops/ms) per iteration. Results of the operations should
+ * be returned (or folded into a value that is returned) from run(), so that the JIT cannot eliminate them.
+ * @author Bela Ban
+ * @version $Id: MicroBenchmark.java,v 1.1 2008/09/03 04:24:42 commerce\wuti7102 Exp $
+ */
+public abstract class MicroBenchmark {
+    /** Receives the results of run(), so that the operations are not optimized away */
+    static volatile int sink=0;
+
+
+    /** The name printed in the results */
+    public abstract String getName();
+
+    /** Called once before warmup */
+    public void setUp() throws Exception {
+    }
+
+    /** Called once after the last iteration */
+    public void tearDown() throws Exception {
+    }
+
+    /** Performs num_ops operations. The returned value is consumed by the harness */
+    public abstract Object run(int num_ops) throws Exception;
+
+    /** The number of operations per call of run() (the harness checks the time between calls) */
+    public int getBatchSize() {
+        return 1000;
+    }
+
+
+    /**
+     * Runs the benchmark
+     * @param warmup Time (ms) to warm up
+     * @param iterations Number of measured iterations
+     * @param iteration_time Time (ms) of each iteration
+     */
+    public Result measure(long warmup, int iterations, long iteration_time) throws Exception {
+        Result result=new Result(getName(), iterations);
+        setUp();
+        try {
+            runFor(warmup);
+            for(int i=0; i < iterations; i++)
+                result.ops_per_ms[i]=runFor(iteration_time);
+        }
+        finally {
+            tearDown();
+        }
+        return result;
+    }
+
+
+    /** Runs batches until time ms have elapsed, and returns the throughput in ops/ms */
+    private double runFor(long time) throws Exception {
+        int    batch=getBatchSize();
+        long   ops=0, start=System.currentTimeMillis(), elapsed;
+        Object retval;
+
+        do {
+            retval=run(batch);
+            if(retval != null)
+                sink+=retval.hashCode();
+            ops+=batch;
+            elapsed=System.currentTimeMillis() - start;
+        }
+        while(elapsed < time);
+        return ops / (double)elapsed;
+    }
+
+
+
+    public static class Result {
+        final String   name;
+        final double[] ops_per_ms;
+
+        Result(String name, int iterations) {
+            this.name=name;
+            ops_per_ms=new double[iterations];
+        }
+
+        public double getMean() {
+            double sum=0;
+            for(int i=0; i < ops_per_ms.length; i++)
+                sum+=ops_per_ms[i];
+            return sum / ops_per_ms.length;
+        }
+
+        /** The standard deviation of the iterations */
+        public double getError() {
+            double mean=getMean(), sum=0;
+            for(int i=0; i < ops_per_ms.length; i++)
+                sum+=(ops_per_ms[i] - mean) * (ops_per_ms[i] - mean);
+            return ops_per_ms.length > 1? Math.sqrt(sum / (ops_per_ms.length - 1)) : 0;
+        }
+
+        /** Formats the result as "name  mean ops/ms  +- error" */
+        public String toString() {
+            StringBuffer sb=new StringBuffer(name);
+            while(sb.length() < 40)
+                sb.append(' ');
+            sb.append(format(getMean()));
+            while(sb.length() < 56)
+                sb.append(' ');
+            sb.append("+- ").append(format(getError())).append(" ops/ms");
+            return sb.toString();
+        }
+
+        static String format(double d) {
+            return String.valueOf(Math.round(d * 100) / 100.0);
+        }
+    }
+}
@@ -2,15 +2,21 @@
 
 package org.jgroups.protocols;
 
+import org.jgroups.Address;
 import org.jgroups.Event;
+import org.jgroups.Message;
 import org.jgroups.log.Trace;
+import org.jgroups.protocols.pbcast.NakAckHeader;
+import org.jgroups.stack.IpAddress;
 import org.jgroups.stack.Protocol;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Properties;
 
 
@@ -21,7 +27,18 @@ import java.util.Properties;
  * event.<br>
  * This protocol should be placed above the transport protocol (e.g. UDP). It is not needed for TCP.<br>
  * Example: senses the network send and receive buffers, plus the max size of a message to be sent and
- * generates a CONFIG event containing "frag_size", "send_buf_size" and "receive_buf_size" keys.
+ * generates a CONFIG event containing "frag_size", "send_buf_size" and "receive_buf_size" keys.<br>
+ * When <code>use_mtu</code> is true, frag_size is derived from the MTU of the network interface the transport is
+ * bound to instead, so that fragments are not fragmented again at the IP layer (where the loss of a single IP
+ * fragment drops the entire datagram). The interface is only known when the transport passes up its local address,
+ * so the CONFIG event with frag_size is sent then. The MTU can also be set explicitly with the <code>mtu</code>
+ * property. The transport's max_bundle_size is not changed: UDP compares it to estimated message sizes, which are
+ * larger than the datagrams of single fragments.<br>
+ * When <code>adaptive_frag_size</code> is true, the loss rate of the messages we multicast is computed from
+ * the (pbcast.NAKACK) retransmission requests we receive: if it exceeds <code>max_loss_rate</code>, frag_size is
+ * reduced and a new CONFIG event is sent, until <code>min_frag_size</code> is reached. A message counts as lost
+ * once, regardless of how many members requested it and how often. When the loss rate stays below half of
+ * max_loss_rate, frag_size is increased again, up to the value sensed initially.
  * 
  * @author Bela Ban
  */
@@ -33,6 +50,42 @@ public class AUTOCONF extends Protocol {
      * (b) serialization overhead */
     static int frag_overhead=1000;
 
+    /** Derive frag_size from the MTU of the interface the transport is bound to */
+    boolean use_mtu=false;
+
+    /** The MTU to use with use_mtu. If 0, the MTU is determined from the network interface */
+    int mtu=0;
+
+    /** Number of bytes to subtract from the max datagram payload (MTU minus IP and UDP headers) to get frag_size,
+     * due to (a) headers and (b) serialization overhead */
+    int mtu_frag_overhead=400;
+
+    /** Reduce frag_size when the loss rate of our messages exceeds max_loss_rate */
+    boolean adaptive_frag_size=false;
+
+    /** Loss rate (lost messages / messages sent) above which frag_size is reduced */
+    double max_loss_rate=0.05;
+
+    /** Number of messages sent after which the loss rate is computed */
+    int loss_check_interval=1000;
+
+    /** frag_size will never be reduced below this value */
+    int min_frag_size=512;
+
+    static final int IPV4_HEADER=20, IPV6_HEADER=40, UDP_HEADER=8;
+
+    /** Number of consecutive checks with a low loss rate after which frag_size is increased */
+    static final int LOW_LOSS_CHECKS=5;
+
+    int     frag_size=0;
+    int     initial_frag_size=0; // sensed in init() (or from the local address with use_mtu), frag_size never grows beyond it
+    Address local_addr=null;
+    long    num_msgs_sent=0, num_msgs_lost=0;
+    long    highest_seqno_sent=-1;
+    HashSet lost_seqnos=new HashSet();   // seqnos (Longs) of our messages which were requested, each counted once
+    long    lowest_tracked_seqno=0;      // requests for seqnos below are ignored (lost_seqnos has been pruned)
+    int     num_low_loss_checks=0;
+
 
     public String getName() {
         return "AUTOCONF";
@@ -72,6 +125,48 @@ public class AUTOCONF extends Protocol {
              props.remove("frag_overhead");
          }
 
+        str=props.getProperty("use_mtu");
+        if(str != null) {
+            use_mtu=new Boolean(str).booleanValue();
+            props.remove("use_mtu");
+        }
+
+        str=props.getProperty("mtu");
+        if(str != null) {
+            mtu=new Integer(str).intValue();
+            props.remove("mtu");
+        }
+
+        str=props.getProperty("mtu_frag_overhead");
+        if(str != null) {
+            mtu_frag_overhead=new Integer(str).intValue();
+            props.remove("mtu_frag_overhead");
+        }
+
+        str=props.getProperty("adaptive_frag_size");
+        if(str != null) {
+            adaptive_frag_size=new Boolean(str).booleanValue();
+            props.remove("adaptive_frag_size");
+        }
+
+        str=props.getProperty("max_loss_rate");
+        if(str != null) {
+            max_loss_rate=new Double(str).doubleValue();
+            props.remove("max_loss_rate");
+        }
+
+        str=props.getProperty("loss_check_interval");
+        if(str != null) {
+            loss_check_interval=new Integer(str).intValue();
+            props.remove("loss_check_interval");
+        }
+
+        str=props.getProperty("min_frag_size");
+        if(str != null) {
+            min_frag_size=new Integer(str).intValue();
+            props.remove("min_frag_size");
+        }
+
 
         if(props.size() > 0) {
             System.err.println("AUTOCONF.setProperties(): the following properties are not recognized:");
@@ -82,6 +177,75 @@ public class AUTOCONF extends Protocol {
     }
 
 
+    /**
+     * Senses frag_size from the MTU of the interface of addr (the address the transport is bound to), unless this
+     * was already done, and sends a CONFIG event with it up the stack (only the layers above use frag_size)
+     */
+    void senseMtuConfiguration(Address addr) {
+        int     size;
+        HashMap map;
+
+        synchronized(this) {
+            if(initial_frag_size > 0)
+                return;
+            size=senseMtuFragSize(addr instanceof IpAddress? ((IpAddress)addr).getIpAddress() : null);
+            if(size <= 0) {
+                Trace.error("AUTOCONF.senseMtuConfiguration()", "frag_size is invalid: " + size);
+                return;
+            }
+            frag_size=initial_frag_size=size;
+            map=new HashMap();
+            map.put("frag_size", new Integer(frag_size));
+        }
+        if(Trace.trace)
+            Trace.info("AUTOCONF.senseMtuConfiguration()", "configuration is\n" + map);
+        passUp(new Event(Event.CONFIG, map));
+    }
+
+
+    /**
+     * Counts the messages of ours for which retransmission is requested (with adaptive_frag_size). pbcast.NAKACK
+     * sends an XMIT_REQ to the original sender, so only requests addressed to us are for our messages
+     */
+    public void up(Event evt) {
+        if(evt.getType() == Event.SET_LOCAL_ADDRESS) {
+            synchronized(this) {
+                local_addr=(Address)evt.getArg();
+            }
+            if(use_mtu)
+                senseMtuConfiguration(local_addr);
+        }
+        if(adaptive_frag_size) {
+            switch(evt.getType()) {
+                case Event.MSG:
+                    Message msg=(Message)evt.getArg();
+                    Object  obj=msg.getHeader("NAKACK");
+                    NakAckHeader hdr;
+                    if(obj instanceof NakAckHeader) {
+                        hdr=(NakAckHeader)obj;
+                        if(hdr.getType() == NakAckHeader.XMIT_REQ && hdr.getRange() != null)
+                            countLostMessages(msg.getDest(), hdr.getRange().low, hdr.getRange().high);
+                    }
+                    break;
+            }
+        }
+        passUp(evt);
+    }
+
+
+    /**
+     * Counts the messages we send (with adaptive_frag_size) and adjusts frag_size to the loss rate
+     */
+    public void down(Event evt) {
+        if(adaptive_frag_size && evt.getType() == Event.MSG) {
+            Object obj=((Message)evt.getArg()).getHeader("NAKACK");
+            if(obj instanceof NakAckHeader && ((NakAckHeader)obj).getType() == NakAckHeader.MSG)
+                checkLossRate(((NakAckHeader)obj).getSeqno());
+        }
+        passDown(evt);
+    }
+
+
     /**
      * Leave empty: no up_thread will be created, but the up_thread of the neighbor below us will be used
      */
@@ -99,17 +263,194 @@ public class AUTOCONF extends Protocol {
 
     /* -------------------------------------- Private metods ------------------------------------------- */
     void senseNetworkConfiguration() {
-        int max_frag_size=senseMaxFragSize();
-        if(max_frag_size <= 0) {
-            Trace.error("AUTOCONF.senseNetworkConfiguration()", "max_frag_size is invalid: " + max_frag_size);
+        int max_frag_size;
+        if(!use_mtu) { // with use_mtu, frag_size is sensed when the local address is known
+            max_frag_size=senseMaxFragSize();
+            if(max_frag_size <= 0) {
+                Trace.error("AUTOCONF.senseNetworkConfiguration()", "max_frag_size is invalid: " + max_frag_size);
+            }
+            else {
+                frag_size=initial_frag_size=max_frag_size;
+                config.put("frag_size", new Integer(frag_size));
+            }
         }
-        else
-            config.put("frag_size", new Integer(max_frag_size));
         senseMaxSendBufferSize(config);
         senseMaxReceiveBufferSize(config);
     }
 
 
+    /**
+     * Computes frag_size from the MTU (either set, or the one of the network interface of bind_addr): the max
+     * payload of a datagram which is not fragmented by IP is the MTU minus the IP and UDP headers, and frag_size is
+     * that value minus mtu_frag_overhead.
+     * @param bind_addr The address the transport is bound to. If null, the local host's address is used
+     * @return The frag_size, or 0 if the MTU could not be determined
+     */
+    int senseMtuFragSize(InetAddress bind_addr) {
+        int ip_header=IPV4_HEADER, max_payload;
+
+        if(bind_addr == null) {
+            try {
+                bind_addr=InetAddress.getLocalHost();
+            }
+            catch(UnknownHostException ex) {
+            }
+        }
+        if(bind_addr instanceof Inet6Address)
+            ip_header=IPV6_HEADER;
+
+        if(mtu <= 0)
+            mtu=senseMtu(bind_addr);
+        if(mtu <= 0) {
+            Trace.warn("AUTOCONF.senseMtuFragSize()", "MTU could not be determined, set it with the mtu property");
+            return 0;
+        }
+
+        max_payload=mtu - ip_header - UDP_HEADER;
+        if(Trace.trace)
+            Trace.info("AUTOCONF.senseMtuFragSize()", "bind_addr=" + bind_addr + ", mtu=" + mtu + ", max payload=" +
+                    max_payload + ", frag_size=" + (max_payload - mtu_frag_overhead));
+        return max_payload - mtu_frag_overhead;
+    }
+
+
+    /**
+     * Returns the MTU of the network interface of local_addr (the transport's bind address). If there is no such
+     * interface, the smallest MTU of
+     * all interfaces (except loopback) is returned. NetworkInterface.getMTU() is invoked reflectively, as it is not
+     * available on all platforms.
+     * @return The MTU, or 0 if it could not be determined
+     */
+    static int senseMtu(InetAddress local_addr) {
+        NetworkInterface intf;
+        Enumeration      en;
+        Method           get_mtu;
+        int              retval=0, tmp;
+
+        try {
+            get_mtu=NetworkInterface.class.getMethod("getMTU", new Class[0]);
+            intf=local_addr != null? NetworkInterface.getByInetAddress(local_addr) : null;
+            if(intf != null && !isLoopback(intf)) {
+                retval=((Integer)get_mtu.invoke(intf, new Object[0])).intValue();
+                if(retval > 0)
+                    return retval;
+            }
+            for(en=NetworkInterface.getNetworkInterfaces(); en != null && en.hasMoreElements();) {
+                intf=(NetworkInterface)en.nextElement();
+                if(isLoopback(intf))
+                    continue;
+                tmp=((Integer)get_mtu.invoke(intf, new Object[0])).intValue();
+                if(tmp > 0 && (retval <= 0 || tmp < retval))
+                    retval=tmp;
+            }
+        }
+        catch(NoSuchMethodException ex) {
+            Trace.warn("AUTOCONF.senseMtu()", "NetworkInterface.getMTU() is not available on this platform");
+        }
+        catch(Throwable ex) {
+            Trace.warn("AUTOCONF.senseMtu()", "failed getting the MTU: " + ex);
+        }
+        return retval;
+    }
+
+
+    static boolean isLoopback(NetworkInterface intf) {
+        for(Enumeration en=intf.getInetAddresses(); en.hasMoreElements();) {
+            if(!((InetAddress)en.nextElement()).isLoopbackAddress())
+                return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Counts the seqnos in [low .. high] of messages we sent which haven't been counted as lost yet. Retransmission
+     * requests for the same message from several receivers, or repeated by a receiver, are counted only once
+     * @param dest The destination of the XMIT_REQ; requests which are not addressed to us are not for our messages
+     */
+    synchronized void countLostMessages(Address dest, long low, long high) {
+        Long seqno;
+
+        if(local_addr == null || dest == null || !dest.equals(local_addr))
+            return;
+        low=Math.max(low, lowest_tracked_seqno);
+        high=Math.min(high, highest_seqno_sent);
+        for(long i=low; i <= high; i++) {
+            seqno=new Long(i);
+            if(lost_seqnos.add(seqno))
+                num_msgs_lost++;
+        }
+    }
+
+
+    /**
+     * Removes the seqnos which are older than 2 * loss_check_interval messages from lost_seqnos. Requests for them
+     * are ignored from now on, so that they are not counted again. Must be called with the lock held
+     */
+    void pruneLostSeqnos() {
+        long lowest=highest_seqno_sent - 2L * loss_check_interval;
+        if(lowest <= lowest_tracked_seqno)
+            return;
+        lowest_tracked_seqno=lowest;
+        for(Iterator it=lost_seqnos.iterator(); it.hasNext();) {
+            if(((Long)it.next()).longValue() < lowest)
+                it.remove();
+        }
+    }
+
+
+    /**
+     * Called for every message sent. Every loss_check_interval messages, computes the loss rate (messages lost
+     * since the last check / messages sent): if it exceeds max_loss_rate, frag_size is reduced by 25% (but not
+     * below min_frag_size). If it was below max_loss_rate / 2 for LOW_LOSS_CHECKS checks in a row, it is increased
+     * by 25% (but not above the sensed value). A CONFIG event with the new value is sent up and down the stack
+     */
+    void checkLossRate(long seqno) {
+        double  loss_rate;
+        int     old_frag_size;
+        HashMap map;
+
+        synchronized(this) {
+            if(seqno > highest_seqno_sent)
+                highest_seqno_sent=seqno;
+            if(++num_msgs_sent < loss_check_interval)
+                return;
+            loss_rate=num_msgs_lost / (double)num_msgs_sent;
+            num_msgs_sent=num_msgs_lost=0;
+            pruneLostSeqnos();
+
+            old_frag_size=frag_size;
+            if(loss_rate > max_loss_rate) {
+                num_low_loss_checks=0;
+                if(frag_size <= min_frag_size)
+                    return;
+                frag_size=Math.max(min_frag_size, frag_size - frag_size / 4);
+            }
+            else if(loss_rate < max_loss_rate / 2 && ++num_low_loss_checks >= LOW_LOSS_CHECKS) {
+                num_low_loss_checks=0;
+                if(frag_size >= initial_frag_size)
+                    return;
+                frag_size=Math.min(initial_frag_size, frag_size + frag_size / 4);
+            }
+            else
+                return;
+
+            map=new HashMap();
+            map.put("frag_size", new Integer(frag_size));
+        }
+
+        if(frag_size < old_frag_size)
+            Trace.warn("AUTOCONF.checkLossRate()", "loss rate is " + loss_rate + " (max_loss_rate=" + max_loss_rate +
+                    "): reducing frag_size from " + old_frag_size + " to " + frag_size);
+        else if(Trace.trace)
+            Trace.info("AUTOCONF.checkLossRate()", "loss rate is " + loss_rate + " (max_loss_rate=" +
+                    max_loss_rate + "): increasing frag_size from " + old_frag_size + " to " + frag_size);
+        Event config_evt=new Event(Event.CONFIG, map);
+        passDown(config_evt);
+        passUp(config_evt);
+    }
+
+
     /**
      * Tries to find out the max number of bytes in a DatagramPacket we can send by sending increasingly
      * larger packets, until there is an exception (e.g. java.io.IOException: message too long)
@@ -4,9 +4,11 @@ import org.jgroups.stack.Protocol;
 import org.jgroups.Event;
 import org.jgroups.Header;
 import org.jgroups.Message;
+import org.jgroups.util.Metrics;
 import org.jgroups.util.Util;
 import org.jgroups.log.Trace;
 
+import java.util.LinkedList;
 import java.util.Properties;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -17,23 +19,79 @@ import java.io.ObjectInput;
 
 /**
  * Compresses the payload of a message. Goal is to reduce the number of messages sent across the wire.
- * Should ideally be layered somewhere above a fragmentation protocol (e.g. FRAG).
+ * Should ideally be layered somewhere above a fragmentation protocol (e.g. FRAG).<p>
+ * Deflaters and inflaters are taken from a pool for each message (and returned afterwards), so messages can be
+ * compressed and uncompressed by several threads concurrently. Every pooled deflater has its own output buffer,
+ * so compressing a message only allocates the (right-sized) compressed payload; payloads larger than
+ * <code>max_buffer_size</code> are compressed in chunks of the output buffer. A payload which doesn't shrink is
+ * sent uncompressed. A payload which doesn't uncompress to its original size is dropped.<p>
+ * When <code>adaptive</code> is true (default is false), the ratio and the CPU time of compression are sampled over
+ * <code>sample_size</code> messages. If the payloads didn't shrink to at least <code>max_ratio</code> of their size,
+ * or (when <code>bandwidth</code> is set) the time spent compressing was higher than the time saved sending the
+ * smaller payloads, messages are sent uncompressed. Compression is sampled again after
+ * <code>probe_interval</code> messages.
  * @author Bela Ban
  * @version $Id: COMPRESS.java,v 1.1 2008/09/03 04:24:39 commerce\wuti7102 Exp $
  */
 public class COMPRESS extends Protocol {
 
-    Deflater deflater=null;
+    /** Idle deflaters (Compressor), the most recently used one first */
+    final LinkedList deflaters=new LinkedList();
 
-    Inflater inflater=null;
+    /** Idle inflaters */
+    final LinkedList inflaters=new LinkedList();
+
+    /** Set by destroy(): deflaters and inflaters returned after that are ended rather than pooled */
+    volatile boolean destroyed=false;
 
 
     /** Values are from 0-9 (0=no compression, 9=best compression) */
-    int compression_level=Deflater.BEST_COMPRESSION; // this is 9
+    int compression_level=Deflater.BEST_SPEED; // this is 1; 9 costs a lot more CPU for a few percent
 
     /** Minimal payload size of a message (in bytes) for compression to kick in */
     long min_size=500;
 
+    /** Max number of idle deflaters and inflaters kept in the pools */
+    int pool_size=8;
+
+    /** Max size of the output buffers of pooled deflaters; larger payloads are compressed in chunks of this size */
+    int max_buffer_size=65536;
+
+    /** Stops compressing messages when compression doesn't pay (see class comment) */
+    boolean adaptive=false;
+
+    /** Max ratio (compressed size / original size) for compression to be worthwhile */
+    double max_ratio=0.9;
+
+    /** Bandwidth of the network (bytes/sec). If > 0, compression is skipped when it takes longer than
+     * sending the bytes it saves. 0 disables the check */
+    long bandwidth=0;
+
+    /** Number of compressed messages over which ratio and CPU time are sampled */
+    int sample_size=100;
+
+    /** Number of messages sent uncompressed before compression is sampled again */
+    int probe_interval=1000;
+
+
+    // adaptive state, guarded by the lock on this
+    boolean compressing=true;
+    int     sampled=0, skipped=0;
+    long    sample_bytes=0, sample_compressed_bytes=0, sample_time=0;
+
+
+    final Metrics.Counter num_compressed=metrics.counter("num_compressed");     // messages sent compressed
+    final Metrics.Counter num_not_shrunk=metrics.counter("num_not_shrunk");     // messages whose payload didn't shrink
+    final Metrics.Counter num_skipped=metrics.counter("num_skipped");           // messages not compressed (adaptive)
+    final Metrics.Counter bytes_saved=metrics.counter("bytes_saved");           // original - compressed bytes
+
+    {
+        metrics.gauge("compressing", new Metrics.Gauge() {
+            public long getValue() {return isCompressing()? 1 : 0;}
+        });
+    }
+
+
     final static String name="COMPRESS";
 
     public String getName() {
@@ -41,15 +99,24 @@ public class COMPRESS extends Protocol {
     }
 
     public void init() throws Exception {
-        deflater=new Deflater(compression_level);
-        inflater=new Inflater();
+        synchronized(this) {
+            compressing=true;
+            sampled=skipped=0;
+            sample_bytes=sample_compressed_bytes=sample_time=0;
+        }
+        destroyed=false;
     }
 
     public void destroy() {
-        deflater.end();
-        deflater=null;
-        inflater.end();
-        inflater=null;
+        destroyed=true;
+        synchronized(deflaters) {
+            while(deflaters.size() > 0)
+                ((Compressor)deflaters.removeFirst()).deflater.end();
+        }
+        synchronized(inflaters) {
+            while(inflaters.size() > 0)
+                ((Inflater)inflaters.removeFirst()).end();
+        }
     }
 
     public boolean setProperties(Properties props) {
@@ -67,6 +134,48 @@ public class COMPRESS extends Protocol {
             props.remove("min_size");
         }
 
+        str=props.getProperty("pool_size");
+        if(str != null) {
+            pool_size=Integer.parseInt(str);
+            props.remove("pool_size");
+        }
+
+        str=props.getProperty("max_buffer_size");
+        if(str != null) {
+            max_buffer_size=Integer.parseInt(str);
+            props.remove("max_buffer_size");
+        }
+
+        str=props.getProperty("adaptive");
+        if(str != null) {
+            adaptive=new Boolean(str).booleanValue();
+            props.remove("adaptive");
+        }
+
+        str=props.getProperty("max_ratio");
+        if(str != null) {
+            max_ratio=new Double(str).doubleValue();
+            props.remove("max_ratio");
+        }
+
+        str=props.getProperty("bandwidth");
+        if(str != null) {
+            bandwidth=Long.parseLong(str);
+            props.remove("bandwidth");
+        }
+
+        str=props.getProperty("sample_size");
+        if(str != null) {
+            sample_size=Integer.parseInt(str);
+            props.remove("sample_size");
+        }
+
+        str=props.getProperty("probe_interval");
+        if(str != null) {
+            probe_interval=Integer.parseInt(str);
+            props.remove("probe_interval");
+        }
+
         if(props.size() > 0) {
             System.err.println("COMPRESS.setProperties(): the following properties are not recognized:");
             props.list(System.out);
@@ -76,6 +185,12 @@ public class COMPRESS extends Protocol {
     }
 
 
+    /** Returns false if the adaptive policy currently sends messages uncompressed */
+    public synchronized boolean isCompressing() {
+        return compressing;
+    }
+
+
     /**
      * If there is no header, we pass the message up. Otherwise we uncompress the payload to its original size.
      * @param evt
@@ -87,19 +202,30 @@ public class COMPRESS extends Protocol {
             if(hdr != null) {
                 byte[] compressed_payload=msg.getRawBuffer();
                 if(compressed_payload != null) {
-                    int original_size=hdr.original_size;
+                    int original_size=hdr.original_size, size;
                     byte[] uncompressed_payload=new byte[original_size];
-                    inflater.reset();
-                    inflater.setInput(compressed_payload, msg.getOffset(), msg.getLength());
+                    Inflater inflater=getInflater();
                     try {
-                        inflater.inflate(uncompressed_payload);
+                        inflater.setInput(compressed_payload, msg.getOffset(), msg.getLength());
+                        size=inflater.inflate(uncompressed_payload);
+                        if(size != original_size || !inflater.finished()) {
+                            Trace.error("COMPRESS.up()", "payload of message from " + msg.getSrc() +
+                                    " uncompressed to " + size + " bytes instead of " + original_size +
+                                    (inflater.finished()? "" : " (not finished)") + ", discarding message");
+                            return;
+                        }
                         if(Trace.trace)
-                            Trace.info("COMPRESS.up()", "uncompressed " + compressed_payload.length + " bytes to " +
+                            Trace.info("COMPRESS.up()", "uncompressed " + msg.getLength() + " bytes to " +
                                     original_size + " bytes");
                         msg.setBuffer(uncompressed_payload);
                     }
                     catch(DataFormatException e) {
-                        Trace.error("COMPRESS.up()", "exception on uncompression: " + Util.printStackTrace(e));
+                        Trace.error("COMPRESS.up()", "exception on uncompression, discarding message from " +
+                                msg.getSrc() + ": " + Util.printStackTrace(e));
+                        return;
+                    }
+                    finally {
+                        returnInflater(inflater);
                     }
                 }
             }
@@ -121,26 +247,179 @@ public class COMPRESS extends Protocol {
             Message msg=(Message)evt.getArg();
             int length=msg.getLength(); // takes offset/length (if set) into account
             if(length >= min_size) {
-                byte[] payload=msg.getRawBuffer(); // here we get the ref so we can avoid copying
-                byte[] compressed_payload=new byte[length];
-                deflater.reset();
-                deflater.setInput(payload, msg.getOffset(), length);
-                deflater.finish();
-                deflater.deflate(compressed_payload);
-                int compressed_size=deflater.getTotalOut();
-                byte[] new_payload=new byte[compressed_size];
-                System.arraycopy(compressed_payload, 0, new_payload, 0, compressed_size);
-                msg.setBuffer(new_payload);
-                msg.putHeader(name, new CompressHeader(length));
-                if(Trace.trace)
-                    Trace.info("COMPRESS.down()", "compressed payload from " + length + " bytes to " +
-                            compressed_size + " bytes");
+                if(shouldCompress())
+                    compress(msg, length);
+                else
+                    num_skipped.inc();
             }
         }
         passDown(evt);
     }
 
 
+    void compress(Message msg, int length) {
+        byte[]     payload=msg.getRawBuffer(); // here we get the ref so we can avoid copying
+        byte[]     new_payload;
+        Compressor compressor=getCompressor();
+        long       start=adaptive? System.currentTimeMillis() : 0;
+
+        try {
+            new_payload=compressor.compress(payload, msg.getOffset(), length);
+        }
+        finally {
+            returnCompressor(compressor);
+        }
+
+        if(adaptive)
+            sample(length, new_payload != null? new_payload.length : length, System.currentTimeMillis() - start);
+        if(new_payload == null) {
+            num_not_shrunk.inc();
+            if(Trace.trace)
+                Trace.info("COMPRESS.down()", "payload of " + length + " bytes doesn't shrink, sending it uncompressed");
+            return;
+        }
+        msg.setBuffer(new_payload);
+        msg.putHeader(name, new CompressHeader(length));
+        num_compressed.inc();
+        bytes_saved.add(length - new_payload.length);
+        if(Trace.trace)
+            Trace.info("COMPRESS.down()", "compressed payload from " + length + " bytes to " +
+                    new_payload.length + " bytes");
+    }
+
+
+    /** Returns false if compression is suspended by the adaptive policy and it is not yet time to sample again */
+    synchronized boolean shouldCompress() {
+        if(!adaptive || compressing)
+            return true;
+        if(++skipped >= probe_interval) {
+            skipped=0;
+            compressing=true;
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Records the size before and after compression and the time (ms) it took. After <code>sample_size</code>
+     * messages, decides whether the following messages are compressed or not. Note that the time is measured with
+     * a resolution of milliseconds, so single measurements are mostly 0 or 1; their sum is accurate enough though
+     */
+    synchronized void sample(int size, int compressed_size, long time) {
+        sampled++;
+        sample_bytes+=size;
+        sample_compressed_bytes+=compressed_size;
+        sample_time+=time;
+        if(sampled < sample_size)
+            return;
+
+        double  ratio=sample_bytes > 0? (double)sample_compressed_bytes / sample_bytes : 1.0;
+        boolean pays=ratio <= max_ratio;
+        if(pays && bandwidth > 0) {
+            long time_saved=(sample_bytes - sample_compressed_bytes) * 1000 / bandwidth;  // ms
+            pays=sample_time <= time_saved;
+        }
+        if(pays != compressing && Trace.trace)
+            Trace.info("COMPRESS.sample()", (pays? "resuming" : "suspending") + " compression: " + sample_bytes +
+                    " bytes compressed to " + sample_compressed_bytes + " in " + sample_time + " ms");
+        compressing=pays;
+        skipped=0;
+        sampled=0;
+        sample_bytes=sample_compressed_bytes=sample_time=0;
+    }
+
+
+    Compressor getCompressor() {
+        synchronized(deflaters) {
+            if(deflaters.size() > 0)
+                return (Compressor)deflaters.removeFirst();
+        }
+        return new Compressor(compression_level, max_buffer_size);
+    }
+
+    void returnCompressor(Compressor c) {
+        synchronized(deflaters) {
+            if(!destroyed && deflaters.size() < pool_size) {
+                deflaters.addFirst(c);
+                return;
+            }
+        }
+        c.deflater.end();
+    }
+
+    Inflater getInflater() {
+        synchronized(inflaters) {
+            if(inflaters.size() > 0)
+                return (Inflater)inflaters.removeFirst();
+        }
+        return new Inflater();
+    }
+
+    void returnInflater(Inflater inflater) {
+        inflater.reset();
+        synchronized(inflaters) {
+            if(!destroyed && inflaters.size() < pool_size) {
+                inflaters.addFirst(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+
+
+    /** A Deflater with a reusable output buffer. Used by one thread at a time */
+    static class Compressor {
+        final Deflater deflater;
+        final int      max_buffer_size;
+        byte[]         buf=null;       // output buffer, kept between messages if not larger than max_buffer_size
+
+        Compressor(int level, int max_buffer_size) {
+            deflater=new Deflater(level);
+            this.max_buffer_size=max_buffer_size;
+        }
+
+        /**
+         * Compresses length bytes of payload, starting at offset. A payload larger than the output buffer is
+         * compressed in chunks of the buffer, which are appended to the compressed payload (grown as needed)
+         * @return The compressed payload, or null if it would not be smaller than the original
+         */
+        byte[] compress(byte[] payload, int offset, int length) {
+            byte[] compressed_payload=null, tmp;
+            int    size=0, n, chunk=0;
+
+            if(buf == null || buf.length < length && buf.length < max_buffer_size)
+                buf=new byte[Math.min(Math.max(length, 1024), Math.max(max_buffer_size, 1024))];
+            deflater.reset();
+            deflater.setInput(payload, offset, length);
+            deflater.finish();
+            while(!deflater.finished() && size + chunk < length) {
+                n=deflater.deflate(buf, chunk, Math.min(buf.length - chunk, length - size - chunk));
+                if(n == 0)
+                    break;
+                chunk+=n;
+                if(chunk == buf.length && !deflater.finished()) { // buffer is full: append it
+                    if(compressed_payload == null || compressed_payload.length < size + chunk) {
+                        tmp=new byte[Math.min(Math.max((size + chunk) * 2, buf.length * 2), length)];
+                        if(compressed_payload != null)
+                            System.arraycopy(compressed_payload, 0, tmp, 0, size);
+                        compressed_payload=tmp;
+                    }
+                    System.arraycopy(buf, 0, compressed_payload, size, chunk);
+                    size+=chunk;
+                    chunk=0;
+                }
+            }
+            if(!deflater.finished() || size + chunk >= length)
+                return null;
+            tmp=new byte[size + chunk];
+            if(size > 0)
+                System.arraycopy(compressed_payload, 0, tmp, 0, size);
+            System.arraycopy(buf, 0, tmp, size, chunk);
+            return tmp;
+        }
+    }
 
 
     public static class CompressHeader extends Header {
@@ -0,0 +1,230 @@
+// $Id: DiscoveryCache.java,v 1.1 2008/09/03 04:24:46 commerce\wuti7102 Exp $
+
+package org.jgroups.protocols;
+
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Message;
+import org.jgroups.View;
+import org.jgroups.log.Trace;
+import org.jgroups.stack.Protocol;
+
+import java.io.*;
+import java.util.Vector;
+
+
+/**
+ * Keeps the members of the last view in a local file, so that discovery (PING, TCPPING) can contact them first on
+ * the next connect, e.g. after a restart. The first member of the view (the coordinator) is first in the file. On
+ * FIND_INITIAL_MBRS, {@link #findCoordinator} sends a GET_MBRS_REQ to all cached members at the same time and
+ * returns as soon as a coordinator responds, so the regular discovery (which waits for <code>timeout</code> ms or
+ * <code>num_initial_members</code> responses, or probes <code>initial_hosts</code> one after the other) can be
+ * skipped. The file also contains the group name; a cache written by a member of a different group is ignored.<p>
+ * The file is written by a separate thread, so that a view change is not delayed by file I/O (the BECOME_SERVER
+ * event following the view would otherwise be delayed as well, and discovery requests meanwhile not answered).
+ * @author Bela Ban
+ * @version $Id: DiscoveryCache.java,v 1.1 2008/09/03 04:24:46 commerce\wuti7102 Exp $
+ */
+public class DiscoveryCache implements Runnable {
+    final File file;
+    Vector     last_saved=null;  // members written last, to skip writing the file when the membership is the same
+    String     pending_group=null;
+    Vector     pending_mbrs=null; // members to be written next by the writer thread (only the latest view is written)
+    Thread     writer=null;
+
+
+    public DiscoveryCache(String file_name) {
+        file=new File(file_name);
+    }
+
+
+    public String toString() {
+        return file.getPath();
+    }
+
+
+    /** Writes the members of view to the file asynchronously (if they are different from the members written last) */
+    public synchronized void save(String group, View view) {
+        Vector mbrs=view != null? view.getMembers() : null;
+
+        if(group == null || mbrs == null || mbrs.size() == 0 || mbrs.equals(last_saved))
+            return;
+        last_saved=mbrs;
+        pending_group=group;
+        pending_mbrs=mbrs;
+        if(writer == null) {
+            writer=new Thread(this, "DiscoveryCache writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+
+    /** Writes the pending members until there are none left */
+    public void run() {
+        String group;
+        Vector mbrs;
+
+        while(true) {
+            synchronized(this) {
+                if(pending_mbrs == null) {
+                    writer=null;
+                    return;
+                }
+                group=pending_group;
+                mbrs=pending_mbrs;
+                pending_mbrs=null;
+            }
+            write(group, mbrs);
+        }
+    }
+
+
+    /**
+     * Writes group and mbrs to the file. The file is written to a temporary file first and then renamed, so a
+     * crash while writing never leaves a truncated cache
+     */
+    void write(String group, Vector mbrs) {
+        File               tmp;
+        ObjectOutputStream out=null;
+
+        tmp=new File(file.getPath() + ".tmp");
+        try {
+            out=new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeObject(group);
+            out.writeObject(mbrs);
+            out.close();
+            out=null;
+            if(!tmp.renameTo(file)) { // fails on some platforms if the file exists
+                file.delete();
+                if(!tmp.renameTo(file))
+                    throw new IOException("could not rename " + tmp + " to " + file);
+            }
+            if(Trace.trace)
+                Trace.info("DiscoveryCache.save()", "wrote members " + mbrs + " to " + file);
+        }
+        catch(IOException ex) {
+            Trace.warn("DiscoveryCache.save()", "failed writing discovery cache " + file + ": " + ex);
+        }
+        finally {
+            if(out != null) {
+                try {out.close();} catch(IOException ex) {}
+            }
+        }
+    }
+
+
+    /** Returns the cached members of group (coordinator first), or null if there is no (valid) cache for group */
+    public Vector load(String group) {
+        ObjectInputStream in=null;
+        Object            cached_group, mbrs;
+
+        if(!file.exists())
+            return null;
+        try {
+            in=new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            cached_group=in.readObject();
+            mbrs=in.readObject();
+            if(group == null || !group.equals(cached_group) || !(mbrs instanceof Vector))
+                return null;
+            return (Vector)mbrs;
+        }
+        catch(Exception ex) {
+            Trace.warn("DiscoveryCache.load()", "failed reading discovery cache " + file + ": " + ex);
+            return null;
+        }
+        finally {
+            if(in != null) {
+                try {in.close();} catch(IOException ex) {}
+            }
+        }
+    }
+
+
+    /**
+     * Sends a GET_MBRS_REQ (with the header of prot) to all cached members of group except local_addr, and waits
+     * until a coordinator has responded, all of them have responded, or timeout ms have elapsed. The responses are
+     * added to rsps (by prot, which notifies rsps) and are kept for the regular discovery. The regular discovery will
+     * get responses from the same members again, so prot has to add responses with {@link #addResponse}.
+     * @return True if a coordinator responded, false if the regular discovery has to be run
+     */
+    public boolean findCoordinator(Protocol prot, String group, Address local_addr, Vector rsps, long timeout) {
+        Vector  mbrs=load(group);
+        Address mbr;
+        Message msg;
+        long    start_time, time_to_wait;
+        int     num_sent=0;
+
+        if(mbrs == null)
+            return false;
+        for(int i=0; i < mbrs.size(); i++) {
+            mbr=(Address)mbrs.elementAt(i);
+            if(mbr == null || mbr.equals(local_addr))
+                continue;
+            msg=new Message(mbr, null, null);
+            msg.putHeader(prot.getName(), new PingHeader(PingHeader.GET_MBRS_REQ, null));
+            prot.passDown(new Event(Event.MSG, msg));
+            num_sent++;
+        }
+        if(num_sent == 0)
+            return false;
+        if(Trace.trace)
+            Trace.info("DiscoveryCache.findCoordinator()", "sent discovery requests to cached members " + mbrs);
+
+        synchronized(rsps) {
+            start_time=System.currentTimeMillis();
+            time_to_wait=timeout;
+            while(time_to_wait > 0) {
+                if(coordResponded(rsps))
+                    return true;
+                if(rsps.size() >= num_sent)
+                    return false;
+                try {
+                    rsps.wait(time_to_wait);
+                }
+                catch(InterruptedException e) {
+                }
+                time_to_wait=timeout - (System.currentTimeMillis() - start_time);
+            }
+            return coordResponded(rsps);
+        }
+    }
+
+
+    /**
+     * Adds rsp to rsps, replacing an earlier response from the same member. Members contacted via the cache are
+     * also contacted by the regular discovery, and a response counted twice would end the wait for
+     * num_initial_members early and count twice in the coordinator vote of GMS
+     * @return True if rsp was added, false if it replaced an earlier response
+     */
+    public static boolean addResponse(Vector rsps, PingRsp rsp) {
+        Address  addr=rsp != null? rsp.getAddress() : null;
+        PingRsp  tmp;
+
+        synchronized(rsps) {
+            if(addr != null) {
+                for(int i=0; i < rsps.size(); i++) {
+                    tmp=(PingRsp)rsps.elementAt(i);
+                    if(addr.equals(tmp.getAddress())) {
+                        rsps.setElementAt(rsp, i);  // the later response has the more recent coordinator
+                        rsps.notifyAll();
+                        return false;
+                    }
+                }
+            }
+            rsps.addElement(rsp);
+            rsps.notifyAll();
+            return true;
+        }
+    }
+
+
+    static boolean coordResponded(Vector rsps) {
+        for(int i=0; i < rsps.size(); i++) {
+            if(((PingRsp)rsps.elementAt(i)).isCoord())
+                return true;
+        }
+        return false;
+    }
+}
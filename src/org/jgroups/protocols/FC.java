@@ -5,6 +5,8 @@ package org.jgroups.protocols;
 import org.jgroups.stack.Protocol;
 import org.jgroups.*;
 import org.jgroups.log.Trace;
+import org.jgroups.log.Log;
+import org.jgroups.util.Metrics;
 
 import java.util.*;
 import java.io.ObjectOutput;
@@ -22,6 +24,8 @@ import java.io.ObjectInput;
  * @version $Revision: 1.1 $
  */
 public class FC extends Protocol {
+    private static final Log log=Log.getLog("FC");
+
 
     /** My own address */
     Address local_addr=null;
@@ -63,6 +67,17 @@ public class FC extends Protocol {
 
     final String name="FC";
 
+    final Metrics.Counter   credits_sent=metrics.counter("credits_sent");          // credits (bytes) sent to senders
+    final Metrics.Counter   credits_received=metrics.counter("credits_received");  // credits (bytes) received
+    final Metrics.Counter   num_blockings=metrics.counter("num_blockings");        // number of times a sender blocked
+    final Metrics.Histogram blocked_time=metrics.histogram("blocked_time");        // time (ms) a sender blocked
+
+    {
+        metrics.gauge("creditors", new Metrics.Gauge() {
+            public long getValue() {return creditors.size();}
+        });
+    }
+
 
 
     
@@ -158,9 +173,10 @@ public class FC extends Protocol {
         if(src == null) return;
         long  new_credits;
 
+        credits_received.add(num_credits);
         new_credits=num_credits + getCredits(sent, src);
-        if(Trace.trace)
-            Trace.info("FC.handleCredit()", "received " + num_credits + " credits from " +
+        if(log.isInfoEnabled())
+            log.info("handleCredit()", "received " + num_credits + " credits from " +
                     src + ", old credit was " + sent.get(src) + ", new credits are " +
                     new_credits + ". Creditors are\n" + printCreditors());
 
@@ -187,21 +203,21 @@ public class FC extends Protocol {
         long    new_credits;
 
         if(src == null) {
-            Trace.error("FC.handleUpMessage()", "src is null");
+            log.error("handleUpMessage()", "src is null");
             return;
         }
 
         if(src.equals(local_addr))
             return;
 
-        if(Trace.trace)
-            Trace.info("FC.handleUpMessage()", "credit for " + src + " is " + received.get(src));
+        if(log.isInfoEnabled())
+            log.info("handleUpMessage()", "credit for " + src + " is " + received.get(src));
 
         if(decrementCredit(received, src, size) == false) {
             // not enough credits left
             new_credits=max_credits - getCredits(received, src);
-            if(Trace.trace)
-                Trace.info("FC.handleUpMessage()", "sending " + new_credits + " credits to " + src);
+            if(log.isInfoEnabled())
+                log.info("handleUpMessage()", "sending " + new_credits + " credits to " + src);
             sendCredit(src, new_credits);
             replenishCredits(received, src, new_credits);
         }
@@ -217,6 +233,7 @@ public class FC extends Protocol {
     void sendCredit(Address dest, long new_credits) {
         Message  msg=new Message(dest, null, null);
         FcHeader hdr=new FcHeader(FcHeader.CREDIT, new_credits);
+        credits_sent.add(new_credits);
         msg.putHeader(getName(), hdr);
         passDown(new Event(Event.MSG, msg));
     }
@@ -228,9 +245,13 @@ public class FC extends Protocol {
      * @return
      */
     boolean handleDownMessage(Message msg) {
+        long start=0;
+
         if(blocking) {
-            if(Trace.trace)
-                Trace.info("FC.handleDownMessage()", "blocking message to " + msg.getDest());
+            if(log.isInfoEnabled())
+                log.info("handleDownMessage()", "blocking message to " + msg.getDest());
+            start=System.currentTimeMillis();
+            num_blockings.inc();
             while(blocking) {
                 try {this.wait(MAX_BLOCK_TIME);} catch(InterruptedException e) {}
             }
@@ -238,22 +259,30 @@ public class FC extends Protocol {
 
         if(decrMessage(msg) == false) {
             blocking=true;
+            if(start == 0) {
+                start=System.currentTimeMillis();
+                num_blockings.inc();
+            }
 
             while(blocking) {
-                if(Trace.trace)
-                    Trace.info("FC.handleDownMessage()", "blocking " + MAX_BLOCK_TIME +
+                if(log.isInfoEnabled())
+                    log.info("handleDownMessage()", "blocking " + MAX_BLOCK_TIME +
                             " msecs. Creditors are\n" + printCreditors());
                 try {this.wait(MAX_BLOCK_TIME);}
                 catch(Throwable e) {e.printStackTrace();}
-                if(decrMessage(msg) == true)
+                if(decrMessage(msg) == true) {
+                    blocked_time.record(System.currentTimeMillis() - start);
                     return true;
+                }
                 else {
-                    if(Trace.trace)
-                        Trace.info("FC.handleDownMessage()",
+                    if(log.isInfoEnabled())
+                        log.info("handleDownMessage()",
                                 "insufficient credits to send message, creditors=\n" + printCreditors());
                 }
             }
         }
+        if(start != 0)
+            blocked_time.record(System.currentTimeMillis() - start);
         return true;
     }
 
@@ -271,7 +300,7 @@ public class FC extends Protocol {
         boolean success=true;
 
         if(msg == null) {
-            Trace.error("FC.decrMessage()", "msg is null");
+            log.error("decrMessage()", "msg is null");
             return false;
         }
         dest=msg.getDest();
@@ -279,8 +308,8 @@ public class FC extends Protocol {
         if(dest != null && !dest.isMulticastAddress()) { // unicast destination
             if(dest.equals(local_addr))
                 return true;
-            if(Trace.trace)
-                Trace.info("FC.decrMessage()", "credit for " + dest + " is " + sent.get(dest));
+            if(log.isInfoEnabled())
+                log.info("decrMessage()", "credit for " + dest + " is " + sent.get(dest));
             if(sufficientCredit(sent, dest, size)) {
                 decrementCredit(sent, dest, size);
             }
@@ -294,8 +323,8 @@ public class FC extends Protocol {
                 dest=(Address)it.next();
                 if(dest.equals(local_addr))
                     continue;
-                if(Trace.trace)
-                    Trace.info("FC.decrMessage()", "credit for " + dest + " is " + sent.get(dest));
+                if(log.isInfoEnabled())
+                    log.info("decrMessage()", "credit for " + dest + " is " + sent.get(dest));
                 if(sufficientCredit(sent, dest, size) == false) {
                     addCreditor(dest);
                     success=false;
@@ -317,8 +346,8 @@ public class FC extends Protocol {
 
     /** If message queueing is enabled, sends queued messages and unlocks sender (if successful) */
     void unblockSender() {
-        if(Trace.trace)
-            Trace.info("FC.unblockSender()", "setting blocking=false");
+        if(log.isInfoEnabled())
+            log.info("unblockSender()", "setting blocking=false");
         blocking=false;
         this.notifyAll();
     }
@@ -366,8 +395,8 @@ public class FC extends Protocol {
                 return true;
             }
             else {
-                if(Trace.trace)
-                    Trace.info("FC.checkCredit()", "insufficient credit for " + mbr +
+                if(log.isInfoEnabled())
+                    log.info("checkCredit()", "insufficient credit for " + mbr +
                             ": credits left=" + credits_left + ", credits required=" + credits_required +
                             " (min_credits=" + min_credits + ")");
                 return false;
@@ -400,7 +429,7 @@ public class FC extends Protocol {
                 return true;
             }
             else {
-                Trace.info("FC.decrementCredit()", "not enough credits left for " +
+                log.info("decrementCredit()", "not enough credits left for " +
                         dest + ": left=" + credits_left + ", required=" + credits_required);
                 return false;
             }
@@ -415,8 +444,8 @@ public class FC extends Protocol {
         Address addr;
         if(mbrs == null) return;
 
-        if(Trace.trace)
-            Trace.info("FC.handleViewChange()", "new membership: " + mbrs);
+        if(log.isInfoEnabled())
+            log.info("handleViewChange()", "new membership: " + mbrs);
 
         members.clear();
         members.addAll(mbrs);
@@ -456,8 +485,8 @@ public class FC extends Protocol {
             if(!mbrs.contains(creditor))
                 it.remove();
         }
-        if(Trace.trace)
-            Trace.info("FC.handleViewChange()", "creditors are\n" + printCreditors());
+        if(log.isInfoEnabled())
+            log.info("handleViewChange()", "creditors are\n" + printCreditors());
         if(creditors.size() == 0 && blocking)
             unblockSender();
     }
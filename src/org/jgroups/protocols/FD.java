@@ -6,6 +6,7 @@ package org.jgroups.protocols;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Properties;
 import java.util.Vector;
@@ -34,7 +35,14 @@ import org.jgroups.util.Marshaller;
  * 'skip' sending the next are-you-alive message. Thus, traffic is reduced.<p>
  * When we receive a ping from a member that's not in the membership list, we shun it by sending it a
  * NOT_MEMBER message. That member will then leave the group (and possibly rejoin). This is only done if
- * <code>shun</code> is true.
+ * <code>shun</code> is true.<p>
+ * If <code>suppress_heartbeats</code> is true, the are-you-alive message is not sent at all if a message was
+ * received from the neighbor within the last <code>timeout</code> ms, so that heartbeats are only sent after a
+ * period of silence. This reduces the background traffic in busy groups, where the heartbeats would otherwise compete
+ * with the application messages.<p>
+ * The time a message was last received from each member (and the number of messages received) is kept in a
+ * {@link Liveness} per member. When a member is suspected, the time we haven't heard from it is logged, recorded
+ * in the <code>suspect_lateness</code> histogram and sent along with the SUSPECT message.
  * @author Bela Ban
  * @version $Revision: 1.1 $
  */
@@ -42,22 +50,34 @@ public class FD extends Protocol {
     Address         ping_dest=null;
     Address         local_addr=null;
     long            timeout=3000;  // number of millisecs to wait for an are-you-alive msg
-    long            last_ack=System.currentTimeMillis();
+    volatile long   last_ack=System.currentTimeMillis();
     int             num_tries=0;
     int             max_tries=2;   // number of times to send a are-you-alive msg (tot time= max_tries*timeout)
-    Vector          members=new Vector();
+    Membership      members=new Membership();
     Hashtable       invalid_pingers=new Hashtable();  // keys=Address, val=Integer (number of pings from suspected mbrs)
 
     /** Members from which we select ping_dest. may be subset of {@link #members} */
     Vector          pingable_mbrs=new Vector();
 
     boolean         shun=true;
+
+    /** Don't send an are-you-alive message if we heard from ping_dest within the last timeout ms */
+    boolean         suppress_heartbeats=false;
+
+    /** Liveness per member (keys=Address, values=Liveness). Replaced (never modified) on a view change, so that
+     * it can be read without locking for every received message */
+    volatile HashMap liveness=new HashMap();
+
     TimeScheduler   timer=null;
     Monitor         monitor=null;  // task that performs the actual monitoring for failure detection
 
     /** Transmits SUSPECT message until view change or UNSUSPECT is received */
     BroadcastTask   bcast_task=new BroadcastTask();
 
+    final Metrics.Counter   heartbeats_sent=metrics.counter("heartbeats_sent");
+    final Metrics.Counter   heartbeats_suppressed=metrics.counter("heartbeats_suppressed");
+    final Metrics.Histogram suspect_lateness=metrics.histogram("suspect_lateness"); // ms past timeout
+
 
 
 
@@ -89,6 +109,12 @@ public class FD extends Protocol {
             props.remove("shun");
         }
 
+        str=props.getProperty("suppress_heartbeats");
+        if(str != null) {
+            suppress_heartbeats=new Boolean(str).booleanValue();
+            props.remove("suppress_heartbeats");
+        }
+
         if(props.size() > 0) {
             System.err.println("FD.setProperties(): the following properties are not recognized:");
             props.list(System.out);
@@ -133,6 +159,27 @@ public class FD extends Protocol {
     }
 
 
+    /** Returns the liveness of mbr, or null if mbr is not a member */
+    Liveness getLiveness(Object mbr) {
+        return mbr != null? (Liveness)liveness.get(mbr) : null;
+    }
+
+
+    /** Creates a new liveness map for the new members, keeping the entries of existing members */
+    void adjustLiveness(Vector mbrs) {
+        HashMap  old=liveness, tmp=new HashMap();
+        Object   mbr;
+        Liveness l;
+
+        for(int i=0; i < mbrs.size(); i++) {
+            mbr=mbrs.elementAt(i);
+            l=(Liveness)old.get(mbr);
+            tmp.put(mbr, l != null? l : new Liveness());
+        }
+        liveness=tmp;
+    }
+
+
     void startMonitor() {
         if(monitor != null && monitor.started == false) {
             monitor=null;
@@ -150,6 +197,8 @@ public class FD extends Protocol {
         Message msg;
         FdHeader hdr=null;
         Object sender, tmphdr;
+        Liveness l;
+        long now;
 
         switch(evt.getType()) {
 
@@ -159,16 +208,19 @@ public class FD extends Protocol {
 
             case Event.MSG:
                 msg=(Message)evt.getArg();
+                sender=msg.getSrc();
+                if((l=getLiveness(sender)) != null) {
+                    now=System.currentTimeMillis();
+                    l.received(now);
+                    if(sender.equals(ping_dest)) {
+                        last_ack=now;
+                        num_tries=0;
+                    }
+                }
                 tmphdr=msg.getHeader(getName());
                 if(tmphdr == null || !(tmphdr instanceof FdHeader)) {
-                    if(ping_dest != null && (sender=msg.getSrc()) != null) {
-                        if(ping_dest.equals(sender)) {
-                            last_ack=System.currentTimeMillis();
-                            if(Trace.debug)
-                                Trace.info("FD.up()", "received msg from " + sender + " (counts as ack)");
-                            num_tries=0;
-                        }
-                    }
+                    if(Trace.debug && sender != null && sender.equals(ping_dest))
+                        Trace.info("FD.up()", "received msg from " + sender + " (counts as ack)");
                     break;  // message did not originate from FD layer, just pass up
                 }
 
@@ -199,7 +251,7 @@ public class FD extends Protocol {
                         }
                         else {
                             stop();
-                            ping_dest=(Address)getPingDest(members);
+                            ping_dest=(Address)getPingDest(members.getMembers());
                             if(ping_dest != null) {
                                 try {
                                     startMonitor();
@@ -223,6 +275,9 @@ public class FD extends Protocol {
                                                           "(waiting for EXIT message)");
                                 }
                                 else {
+                                    if(Trace.trace)
+                                        Trace.info("FD.up()", hdr.from + " suspects " + m + " (not heard from for " +
+                                                              hdr.getNotHeardFrom(m) + " ms)");
                                     pingable_mbrs.remove(m);
                                     ping_dest=(Address)getPingDest(pingable_mbrs);
                                 }
@@ -254,11 +309,11 @@ public class FD extends Protocol {
                 synchronized(this) {
                     stop();
                     v=(View)evt.getArg();
-                    members.removeAllElements();
-                    members.addAll(v.getMembers());
+                    members.set(v.getMembers());
+                    adjustLiveness(v.getMembers());
                     bcast_task.adjustSuspectedMembers(members);
                     pingable_mbrs.removeAllElements();
-                    pingable_mbrs.addAll(members);
+                    pingable_mbrs.addAll(members.getMembers());
                     passDown(evt);
                     ping_dest=(Address)getPingDest(pingable_mbrs);
                     if(ping_dest != null) {
@@ -288,7 +343,7 @@ public class FD extends Protocol {
     void unsuspect(Address mbr) {
         bcast_task.removeSuspectedMember(mbr);
         pingable_mbrs.removeAllElements();
-        pingable_mbrs.addAll(members);
+        pingable_mbrs.addAll(members.getMembers());
         pingable_mbrs.removeAll(bcast_task.getSuspectedMembers());
         ping_dest=(Address)getPingDest(pingable_mbrs);
     }
@@ -299,7 +354,7 @@ public class FD extends Protocol {
         int num_pings=0;
         Message shun_msg;
 
-        if(hb_sender != null && members != null && !members.contains(hb_sender)) {
+        if(hb_sender != null && !members.contains(hb_sender)) {
             if(invalid_pingers.containsKey(hb_sender)) {
                 num_pings=((Integer)invalid_pingers.get(hb_sender)).intValue();
                 if(num_pings >= max_tries) {
@@ -330,9 +385,10 @@ public class FD extends Protocol {
         static final int NOT_MEMBER=3;  // received as response by pinged mbr when we are not a member
 
 
-        int     type=HEARTBEAT;
-        Vector  mbrs=null;
-        Address from=null;  // member who detected that suspected_mbr has failed
+        int       type=HEARTBEAT;
+        Vector    mbrs=null;
+        Address   from=null;  // member who detected that suspected_mbr has failed
+        Hashtable not_heard_from=null; // keys=Address (suspected mbr), values=Long (ms not heard from when suspected)
 
 
         public FdHeader() {
@@ -343,6 +399,13 @@ public class FD extends Protocol {
         }
 
 
+        /** Returns the time (ms) the detector hadn't heard from mbr when it suspected it, or -1 if not known */
+        long getNotHeardFrom(Object mbr) {
+            Long tmp=not_heard_from != null? (Long)not_heard_from.get(mbr) : null;
+            return tmp != null? tmp.longValue() : -1;
+        }
+
+
         public String toString() {
             switch(type) {
                 case HEARTBEAT:
@@ -350,7 +413,8 @@ public class FD extends Protocol {
                 case HEARTBEAT_ACK:
                     return "[FD: heartbeat ack]";
                 case SUSPECT:
-                    return "[FD: SUSPECT (suspected_mbrs=" + mbrs + ", from=" + from + ")]";
+                    return "[FD: SUSPECT (suspected_mbrs=" + mbrs + ", from=" + from +
+                            ", not_heard_from=" + not_heard_from + ")]";
                 case NOT_MEMBER:
                     return "[FD: NOT_MEMBER]";
                 default:
@@ -368,6 +432,7 @@ public class FD extends Protocol {
                 for(Iterator it=mbrs.iterator(); it.hasNext();) {
                     Address addr=(Address)it.next();
                     Marshaller.write(addr, out);
+                    out.writeLong(getNotHeardFrom(addr));
                 }
             }
             Marshaller.write(from, out);
@@ -378,10 +443,14 @@ public class FD extends Protocol {
             boolean mbrs_not_null=in.readBoolean();
             if(mbrs_not_null) {
                 int len=in.readInt();
+                long    time;
                 mbrs=new Vector();
+                not_heard_from=new Hashtable();
                 for(int i=0; i < len; i++) {
                     Address addr=(Address)Marshaller.read(in);
                     mbrs.add(addr);
+                    if((time=in.readLong()) >= 0)
+                        not_heard_from.put(addr, new Long(time));
                 }
             }
             from=(Address)Marshaller.read(in);
@@ -416,43 +485,53 @@ public class FD extends Protocol {
 
         public void run() {
             Message hb_req;
+            Address dest=ping_dest;
             long    not_heard_from=0; // time in msecs we haven't heard from ping_dest
 
-            if(ping_dest == null) {
+            if(dest == null) {
                 Trace.error("FD.Monitor.run()", "ping_dest is null");
                 return;
             }
 
-
-            // 1. send heartbeat request
-            hb_req=new Message(ping_dest, null, null);
+            // 1. send heartbeat request, unless we heard from ping_dest recently (suppress_heartbeats)
+            not_heard_from=System.currentTimeMillis() - last_ack;
+            if(suppress_heartbeats && not_heard_from < timeout) {
+                heartbeats_suppressed.inc();
+                if(Trace.debug)
+                    Trace.debug("FD.Monitor.run()", "heard from " + dest + " " + not_heard_from +
+                                " ms ago, not sending are-you-alive msg");
+                return;
+            }
+            hb_req=new Message(dest, null, null);
             hb_req.putHeader(getName(), new FdHeader(FdHeader.HEARTBEAT));  // send heartbeat request
             if(Trace.trace)
-                Trace.debug("FD.Monitor.run()", "sending are-you-alive msg to " + ping_dest +
+                Trace.debug("FD.Monitor.run()", "sending are-you-alive msg to " + dest +
                         " (own address=" + local_addr + ")");
             passDown(new Event(Event.MSG, hb_req));
+            heartbeats_sent.inc();
 
             // 2. If the time of the last heartbeat is > timeout and max_tries heartbeat messages have not been
             //    received, then broadcast a SUSPECT message. Will be handled by coordinator, which may install
             //    a new view
-            not_heard_from=System.currentTimeMillis() - last_ack;
             if(Trace.debug) // +++ remove
-                Trace.debug("FD.Monitor.run()", "not heard from " + ping_dest + " for " + not_heard_from + " ms");
+                Trace.debug("FD.Monitor.run()", "not heard from " + dest + " for " + not_heard_from + " ms");
             // quick & dirty fix: increase timeout by 500msecs to allow for latency (bela June 27 2003)
             if(not_heard_from > timeout + 500) { // no heartbeat ack for more than timeout msecs
                 if(num_tries >= max_tries) {
-                    if(Trace.trace)
-                        Trace.info("FD.Monitor.run()", "[" + local_addr +
-                                "]: received no heartbeat ack from " +
-                                ping_dest + " for " + num_tries+1 + " times, suspecting it");
                     // broadcast a SUSPECT message to all members - loop until
                     // unsuspect or view change is received
-                    bcast_task.addSuspectedMember(ping_dest);
+                    if(bcast_task.addSuspectedMember(dest, not_heard_from)) {
+                        suspect_lateness.record(not_heard_from - timeout);
+                        Trace.warn("FD.Monitor.run()", "[" + local_addr + "]: suspecting " + dest +
+                                   ": not heard from for " + not_heard_from + " ms (" +
+                                   (not_heard_from - timeout) + " ms late, timeout=" + timeout +
+                                   ", tries=" + (num_tries + 1) + ", " + getLiveness(dest) + ")");
+                    }
                 }
                 else {
                     if(Trace.trace)
                         Trace.debug("FD.Monitor.run()",
-                                    "heartbeat missing from " + ping_dest +
+                                    "heartbeat missing from " + dest +
                                     " (number=" + num_tries + ")");
                     num_tries++;
                 }
@@ -466,6 +545,26 @@ public class FD extends Protocol {
 
     }
 
+    /**
+     * The time at which a message was last received from a member, and the number of messages received from it.
+     * Only modified by the thread passing messages up, so the fields are volatile rather than synchronized
+     */
+    static class Liveness {
+        volatile long last_received=0;
+        volatile long num_received=0;
+
+        void received(long now) {
+            last_received=now;
+            num_received++;
+        }
+
+        public String toString() {
+            return "msgs received=" + num_received + ", last msg received " +
+                    (last_received > 0? (System.currentTimeMillis() - last_received) + " ms ago" : "never");
+        }
+    }
+
+
     /**
      * Task that periodically broadcasts a list of suspected members to the group. Goal is not to lose
      * a SUSPECT message: since these are bcast unreliably, they might get dropped. The BroadcastTask makes
@@ -473,21 +572,28 @@ public class FD extends Protocol {
      * any longer. Then the task terminates.
      */
     private class BroadcastTask implements TimeScheduler.Task {
-        Vector  suspected_mbrs=new Vector();
-        boolean stopped=false;
+        Vector    suspected_mbrs=new Vector();
+        Hashtable not_heard_from=new Hashtable(); // keys=suspected mbrs, values=Long (ms not heard from)
+        boolean   stopped=false;
 
 
         Vector getSuspectedMembers() {
             return suspected_mbrs;
         }
 
-        /** Adds a suspected member. Starts the task if not yet running */
-        void addSuspectedMember(Address mbr) {
-            if(mbr == null) return;
-            if(!members.contains(mbr)) return;
+        /**
+         * Adds a suspected member. Starts the task if not yet running
+         * @return true if mbr was not yet suspected
+         */
+        boolean addSuspectedMember(Address mbr, long time_not_heard_from) {
+            boolean added=false;
+            if(mbr == null) return false;
+            if(!members.contains(mbr)) return false;
             synchronized(suspected_mbrs) {
                 if(!suspected_mbrs.contains(mbr)) {
                     suspected_mbrs.addElement(mbr);
+                    not_heard_from.put(mbr, new Long(time_not_heard_from));
+                    added=true;
                     if(Trace.trace)
                         Trace.info("FD.BroadcastTask.addSuspectedMember()",
                                    "mbr=" + mbr + " (size=" + suspected_mbrs.size() + ")");
@@ -497,6 +603,7 @@ public class FD extends Protocol {
                     timer.add(this, true);
                 }
             }
+            return added;
         }
 
 
@@ -505,6 +612,7 @@ public class FD extends Protocol {
             if(Trace.trace) Trace.info("FD.BroadcastTask.removeSuspectedMember()", "member is " + suspected_mbr);
             synchronized(suspected_mbrs) {
                 suspected_mbrs.removeElement(suspected_mbr);
+                not_heard_from.remove(suspected_mbr);
                 if(suspected_mbrs.size() == 0)
                     stopped=true;
             }
@@ -514,6 +622,7 @@ public class FD extends Protocol {
         void removeAll() {
             synchronized(suspected_mbrs) {
                 suspected_mbrs.removeAllElements();
+                not_heard_from.clear();
                 stopped=true;
             }
         }
@@ -522,7 +631,7 @@ public class FD extends Protocol {
         /**
          * Removes all elements from suspected_mbrs that are <em>not</em> in the new membership
          */
-        void adjustSuspectedMembers(Vector new_mbrship) {
+        void adjustSuspectedMembers(Membership new_mbrship) {
             Address suspected_mbr;
 
             if(new_mbrship == null || new_mbrship.size() == 0) return;
@@ -531,6 +640,7 @@ public class FD extends Protocol {
                     suspected_mbr=(Address)it.next();
                     if(!new_mbrship.contains(suspected_mbr)) {
                         it.remove();
+                        not_heard_from.remove(suspected_mbr);
                         if(Trace.trace)
                             Trace.info("FD.BroadcastTask.adjustSuspectedMembers()",
                                        "removed " + suspected_mbr + " (size=" + suspected_mbrs.size() + ")");
@@ -570,6 +680,7 @@ public class FD extends Protocol {
 
                 hdr=new FdHeader(FdHeader.SUSPECT);
                 hdr.mbrs=(Vector)suspected_mbrs.clone();
+                hdr.not_heard_from=(Hashtable)not_heard_from.clone();
                 hdr.from=local_addr;
             }
             suspect_msg=new Message();       // mcast SUSPECT to all members
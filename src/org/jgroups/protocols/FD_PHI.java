@@ -0,0 +1,449 @@
+// $Id: FD_PHI.java,v 1.1 2008/09/03 04:24:45 commerce\wuti7102 Exp $
+
+package org.jgroups.protocols;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Vector;
+import org.jgroups.*;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Metrics;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.log.Trace;
+
+
+/**
+ * Adaptive (accrual) failure detection based on "The Phi Accrual Failure Detector" by Hayashibara, Defago,
+ * Yared and Katayama.<p>
+ * Every member multicasts a heartbeat every <code>interval</code> ms. For each member, the inter-arrival times
+ * of the last <code>max_samples</code> heartbeats are recorded. Instead of suspecting a member after a fixed timeout,
+ * the suspicion level phi is computed from the time since we last heard from the member and the mean and standard
+ * deviation of the inter-arrival times: phi = -log10(P(a heartbeat arrives later than now)), so phi=1 means a 10%
+ * chance of a wrong suspicion, phi=2 1%, phi=3 0.1% etc. A member is suspected when phi exceeds
+ * <code>threshold</code>. Members whose heartbeats arrive regularly are therefore suspected quickly, whereas
+ * members with a large jitter (e.g. due to GC pauses) are given more time, without having to increase a fixed
+ * timeout for all members.<p>
+ * If <code>count_traffic</code> is true (default), any message received from a member counts as a sign of life, so
+ * a member isn't suspected while we receive messages from it, even if its heartbeats are queued behind them. Only
+ * the intervals between heartbeats are recorded as samples though, as the inter-arrival times of regular messages
+ * would make the mean too small to tolerate the normal gaps between heartbeats.<p>
+ * Our own heartbeats are received (and their suspicion level computed) like those of the other members. If our own
+ * heartbeats are late, too, the delay is caused by the local member (e.g. a GC pause, or a backlog of received
+ * messages) rather than by the other members, and nobody is suspected until our own heartbeats are on time
+ * again.<p>
+ * The SUSPECT event passed up is the same as the one of {@link FD}, so this protocol can replace FD in existing
+ * stacks (VERIFY_SUSPECT should still be placed above it).
+ * @author Bela Ban
+ * @version $Id: FD_PHI.java,v 1.1 2008/09/03 04:24:45 commerce\wuti7102 Exp $
+ */
+public class FD_PHI extends Protocol {
+    static final double LOG_10=Math.log(10);
+
+    Address         local_addr=null;
+    TimeScheduler   timer=null;
+    HeartbeatTask   task=null;
+
+    /** Interval (ms) at which heartbeats are multicast */
+    long            interval=500;
+
+    /** Interval (ms) at which the suspicion levels are checked */
+    long            check_interval=100;
+
+    /** Suspect a member when its phi exceeds this value */
+    double          threshold=8.0;
+
+    /** Number of inter-arrival times kept per member */
+    int             max_samples=200;
+
+    /** The minimum standard deviation (ms) used; prevents suspicions after very regular heartbeats */
+    long            min_std_deviation=200;
+
+    /** Time (ms) added to the mean inter-arrival time, e.g. to tolerate GC pauses of a known length */
+    long            acceptable_pause=0;
+
+    /** Count every message as a sign of life */
+    boolean         count_traffic=true;
+
+    Membership      members=new Membership();
+
+    /** Keys=Address, values=History. Replaced (never modified) on a view change, so it can be read without locking */
+    volatile HashMap histories=new HashMap();
+
+    final Metrics.Counter   heartbeats_sent=metrics.counter("heartbeats_sent");
+    final Metrics.Counter   heartbeats_received=metrics.counter("heartbeats_received");
+    final Metrics.Counter   num_suspects=metrics.counter("suspects");
+    final Metrics.Counter   num_suspects_deferred=metrics.counter("suspects_deferred"); // own heartbeats were late
+    final Metrics.Histogram suspect_time=metrics.histogram("suspect_time"); // ms not heard from when suspected
+
+
+
+    public String getName() {
+        return "FD_PHI";
+    }
+
+
+    public boolean setProperties(Properties props) {
+        String str;
+
+        str=props.getProperty("interval");
+        if(str != null) {
+            interval=new Long(str).longValue();
+            props.remove("interval");
+        }
+
+        str=props.getProperty("check_interval");
+        if(str != null) {
+            check_interval=new Long(str).longValue();
+            props.remove("check_interval");
+        }
+
+        str=props.getProperty("threshold");
+        if(str != null) {
+            threshold=new Double(str).doubleValue();
+            props.remove("threshold");
+        }
+
+        str=props.getProperty("max_samples");
+        if(str != null) {
+            max_samples=Integer.parseInt(str);
+            props.remove("max_samples");
+        }
+
+        str=props.getProperty("min_std_deviation");
+        if(str != null) {
+            min_std_deviation=new Long(str).longValue();
+            props.remove("min_std_deviation");
+        }
+
+        str=props.getProperty("acceptable_pause");
+        if(str != null) {
+            acceptable_pause=new Long(str).longValue();
+            props.remove("acceptable_pause");
+        }
+
+        str=props.getProperty("count_traffic");
+        if(str != null) {
+            count_traffic=new Boolean(str).booleanValue();
+            props.remove("count_traffic");
+        }
+
+        if(interval <= 0 || check_interval <= 0 || threshold <= 0 || max_samples < 1) {
+            System.err.println("FD_PHI.setProperties(): interval, check_interval, threshold and max_samples have to be > 0");
+            return false;
+        }
+
+        if(props.size() > 0) {
+            System.err.println("FD_PHI.setProperties(): the following properties are not recognized:");
+            props.list(System.out);
+            return false;
+        }
+        return true;
+    }
+
+
+    public void init() throws Exception {
+        if(stack != null && stack.timer != null)
+            timer=stack.timer;
+        else
+            throw new Exception("FD_PHI.init(): timer cannot be retrieved from protocol stack");
+    }
+
+
+    public synchronized void stop() {
+        if(task != null) {
+            task.stop();
+            task=null;
+        }
+    }
+
+
+    public void up(Event evt) {
+        Message msg;
+        Object  sender, obj;
+        History history;
+
+        switch(evt.getType()) {
+
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=(Address)evt.getArg();
+                break;
+
+            case Event.MSG:
+                msg=(Message)evt.getArg();
+                sender=msg.getSrc();
+                history=sender != null? (History)histories.get(sender) : null;
+                obj=msg.getHeader(getName());
+                if(obj == null || !(obj instanceof FdPhiHeader)) {
+                    if(count_traffic && history != null)
+                        history.received(System.currentTimeMillis());
+                    break;  // message did not originate from FD_PHI layer, just pass up
+                }
+                msg.removeHeader(getName());
+                heartbeats_received.inc();
+                if(history != null)
+                    history.heartbeat(System.currentTimeMillis());
+                return;  // don't pass up !
+        }
+        passUp(evt);
+    }
+
+
+    public void down(Event evt) {
+        View v;
+
+        switch(evt.getType()) {
+            case Event.VIEW_CHANGE:
+                v=(View)evt.getArg();
+                handleViewChange(v.getMembers());
+                break;
+        }
+        passDown(evt);
+    }
+
+
+
+    /* -------------------------------- Private Methods ------------------------------- */
+
+    synchronized void handleViewChange(Vector mbrs) {
+        HashMap old=histories, tmp=new HashMap();
+        Object  mbr;
+        History history;
+        long    now=System.currentTimeMillis();
+
+        members.set(mbrs);
+        for(int i=0; i < mbrs.size(); i++) {
+            mbr=mbrs.elementAt(i);
+            if(mbr == null)
+                continue;
+            history=(History)old.get(mbr);
+            tmp.put(mbr, history != null? history : new History(now));
+        }
+        histories=tmp;
+
+        if(members.size() > 1) {
+            if(task == null) {
+                task=new HeartbeatTask();
+                if(Trace.trace) Trace.info("FD_PHI.handleViewChange()", "starting heartbeat task");
+                timer.add(task, true);
+            }
+        }
+        else {
+            if(task != null) {
+                if(Trace.trace) Trace.info("FD_PHI.handleViewChange()", "stopping heartbeat task");
+                task.stop();
+                task=null;
+            }
+        }
+    }
+
+
+    /** Returns the suspicion levels of all members */
+    public String printSuspicionLevels() {
+        StringBuffer sb=new StringBuffer();
+        HashMap      tmp=histories;
+        Object       mbr;
+        long         now=System.currentTimeMillis();
+
+        for(Iterator it=tmp.keySet().iterator(); it.hasNext();) {
+            mbr=it.next();
+            sb.append(mbr).append(": ").append(((History)tmp.get(mbr)).toString(now)).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /* ----------------------------- End of Private Methods --------------------------- */
+
+
+
+
+
+    public static class FdPhiHeader extends Header {
+
+        public FdPhiHeader() {
+        } // used for externalization
+
+
+        public long size() {
+            return 0;
+        }
+
+        public String toString() {
+            return "[FD_PHI: heartbeat]";
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+        }
+
+        public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        }
+    }
+
+
+
+    /**
+     * The arrival times of the heartbeats from a member. Keeps the last max_samples inter-arrival times in a ring
+     * buffer, plus their sum and sum of squares, so the mean and standard deviation are computed in constant time
+     */
+    class History {
+        final long[] samples=new long[max_samples];
+        int          index=0, num=0;
+        double       sum=0, sum_of_squares=0;
+        long         last;              // time we last heard from the member (heartbeat or, with count_traffic, any msg)
+        long         last_heartbeat=0;  // time we received the last heartbeat, 0 if none yet
+
+
+        History(long now) {
+            last=now;
+        }
+
+
+        /** Records the time since the previous heartbeat as a sample */
+        synchronized void heartbeat(long now) {
+            long sample=now - last_heartbeat, old;
+
+            last=now;
+            if(last_heartbeat == 0) {
+                last_heartbeat=now;
+                return;
+            }
+            last_heartbeat=now;
+            if(num == samples.length) {
+                old=samples[index];
+                sum-=old;
+                sum_of_squares-=(double)old * old;
+            }
+            else
+                num++;
+            samples[index]=sample;
+            index=(index + 1) % samples.length;
+            sum+=sample;
+            sum_of_squares+=(double)sample * sample;
+        }
+
+
+        /** A sign of life other than a heartbeat: not recorded as a sample */
+        synchronized void received(long now) {
+            last=now;
+        }
+
+
+        synchronized long getLast() {
+            return last;
+        }
+
+
+        synchronized boolean receivedHeartbeat() {
+            return last_heartbeat > 0;
+        }
+
+
+        /**
+         * Computes phi, using a logistic approximation of the cumulative normal distribution of the inter-arrival
+         * times. Until the first heartbeat has been received, the mean is assumed to be <code>interval</code>
+         */
+        synchronized double phi(long now) {
+            double mean=num > 0? sum / num : interval;
+            double variance=num > 0? Math.max(sum_of_squares / num - mean * mean, 0) : 0;
+            double std_dev=Math.max(Math.sqrt(variance), min_std_deviation);
+            double t=now - last, y, e;
+
+            mean+=acceptable_pause;
+            y=(t - mean) / std_dev;
+            e=Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if(t > mean)
+                return -Math.log(e / (1.0 + e)) / LOG_10;
+            else
+                return -Math.log(1.0 - 1.0 / (1.0 + e)) / LOG_10;
+        }
+
+
+        synchronized String toString(long now) {
+            double mean=num > 0? sum / num : interval;
+            return "phi=" + Math.round(phi(now) * 100) / 100.0 + " (not heard from for " + (now - last) +
+                    " ms, samples=" + num + ", mean=" + Math.round(mean) + " ms, std_dev=" +
+                    Math.round(Math.sqrt(num > 0? Math.max(sum_of_squares / num - mean * mean, 0) : 0)) + " ms)";
+        }
+    }
+
+
+
+    /** Multicasts a heartbeat every interval ms and suspects all members whose phi is above threshold */
+    class HeartbeatTask implements TimeScheduler.Task {
+        boolean stopped=false;
+        long    last_sent=0;
+        HashMap suspected=new HashMap();  // members we suspected and haven't heard from since, values=Long (time of last SUSPECT)
+
+        void stop() {
+            stopped=true;
+        }
+
+        public boolean cancelled() {
+            return stopped;
+        }
+
+        public long nextInterval() {
+            return check_interval;
+        }
+
+        public void run() {
+            HashMap tmp=histories;
+            Message hb;
+            Object  mbr;
+            History history, own=local_addr != null? (History)tmp.get(local_addr) : null;
+            long    now=System.currentTimeMillis();
+            double  phi;
+            boolean own_hbs_late;
+            Long    last_suspect;
+
+            // 1. multicast a heartbeat if the last one was sent interval ms ago (allowing for the scheduling jitter)
+            if(now - last_sent >= interval - check_interval / 2) {
+                last_sent=now;
+                hb=new Message(null, null, null);
+                hb.putHeader(getName(), new FdPhiHeader());
+                passDown(new Event(Event.MSG, hb));
+                heartbeats_sent.inc();
+            }
+
+            // 2. suspect members whose phi is above threshold, unless our own heartbeats are late as well (only if
+            //    we received our own heartbeats before). The SUSPECT is passed up again every interval ms until
+            //    the member is excluded or we hear from it again
+            own_hbs_late=own != null && own.receivedHeartbeat() && own.phi(now) > threshold;
+            for(Iterator it=tmp.keySet().iterator(); it.hasNext();) {
+                mbr=it.next();
+                if(mbr.equals(local_addr))
+                    continue;
+                history=(History)tmp.get(mbr);
+                phi=history.phi(now);
+                if(phi <= threshold) {
+                    suspected.remove(mbr);
+                    continue;
+                }
+                if(own_hbs_late) {
+                    num_suspects_deferred.inc();
+                    if(Trace.trace)
+                        Trace.info("FD_PHI.HeartbeatTask.run()", "not suspecting " + mbr + " (" + history.toString(now) +
+                                                                 "): own heartbeats are late (" + own.toString(now) + ")");
+                    continue;
+                }
+                last_suspect=(Long)suspected.get(mbr);
+                if(last_suspect == null) {
+                    num_suspects.inc();
+                    suspect_time.record(now - history.getLast());
+                    Trace.warn("FD_PHI.HeartbeatTask.run()", "[" + local_addr + "]: suspecting " + mbr + ": " +
+                                                             history.toString(now));
+                }
+                else if(now - last_suspect.longValue() < interval)
+                    continue;
+                suspected.put(mbr, new Long(now));
+                passUp(new Event(Event.SUSPECT, mbr));
+            }
+            suspected.keySet().retainAll(tmp.keySet());
+        }
+    }
+
+
+}
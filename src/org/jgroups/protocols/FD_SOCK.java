@@ -826,7 +826,7 @@ public class FD_SOCK extends Protocol implements Runnable {
      * sure they are retransmitted until a view has been received which doesn't contain the suspected members
      * any longer. Then the task terminates.
      */
-    private class BroadcastTask implements TimeScheduler.Task {
+    class BroadcastTask implements TimeScheduler.Task {
         Vector suspected_mbrs=new Vector();
         boolean stopped=false;
 
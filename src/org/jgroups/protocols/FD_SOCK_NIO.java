@@ -0,0 +1,370 @@
+// $Id: FD_SOCK_NIO.java,v 1.1 2008/09/03 04:24:45 commerce\wuti7102 Exp $
+
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.log.Trace;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.Metrics;
+import org.jgroups.util.Util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+
+/**
+ * Variant of {@link FD_SOCK} which uses non-blocking sockets and a single thread. The thread waits on a selector
+ * for
+ * <ul>
+ * <li>connections from the members monitoring us (any number of them, not only 1 at a time as in FD_SOCK),
+ * <li>the connection to the member we monitor (ping_dest): when it is closed abnormally, ping_dest is suspected and
+ * the next member is monitored,
+ * <li>requests to re-evaluate ping_dest, e.g. after a view change.
+ * </ul>
+ * On a view change, the thread is simply woken up; if ping_dest hasn't changed the connection to it is kept,
+ * otherwise the thread closes it and connects to the new ping_dest itself. There is no need to close the socket from
+ * a different thread (as FD_SOCK.interruptPingerThread() does) or to create a new pinger thread, so frequent view
+ * changes don't cause thread churn. The socket addresses of the members are obtained the same way as in FD_SOCK (cache
+ * from the coordinator, WHO_HAS_SOCK and I_HAVE_SOCK messages), but asynchronously: the thread never blocks waiting
+ * for a response. Properties are the same as in FD_SOCK.
+ * @author Bela Ban
+ * @version $Id: FD_SOCK_NIO.java,v 1.1 2008/09/03 04:24:45 commerce\wuti7102 Exp $
+ */
+public class FD_SOCK_NIO extends FD_SOCK {
+    volatile Selector   selector=null;
+    ServerSocketChannel srv_channel=null;                   // accepts connections from members monitoring us
+    Thread              selector_thread=null;
+    volatile boolean    running=false;
+
+    /** Set by other threads to make the selector thread re-evaluate ping_dest */
+    volatile boolean    update_ping_dest=false;
+
+    SelectionKey        ping_key=null;                      // key of the connection to ping_dest (selector thread only)
+    volatile Address    addr_requested_for=null;            // mbr whose socket address we asked for, null if none
+    long                next_addr_request=0;                // time at which WHO_HAS_SOCK is sent again
+    int                 num_addr_requests=0;
+    static final long   ADDR_REQUEST_INTERVAL=3000;         // time to wait for an I_HAVE_SOCK response
+
+    final ByteBuffer    read_buf=ByteBuffer.allocate(64);   // data sent on the connections is discarded
+
+    final Metrics.Counter connections_accepted=metrics.counter("connections_accepted");
+    final Metrics.Counter ping_dest_changes=metrics.counter("ping_dest_changes");
+
+
+
+    public String getName() {
+        return "FD_SOCK_NIO";
+    }
+
+
+    public void init() throws Exception {
+        timer=stack != null ? stack.timer : null;  // no ServerSocketHandler: the selector thread accepts connections
+        if(timer == null)
+            throw new Exception("FD_SOCK_NIO.init(): timer == null");
+    }
+
+
+    public void stop() {
+        bcast_task.removeAll();
+        stopSelectorThread();
+    }
+
+
+    public void up(Event evt) {
+        Object  hdr;
+        boolean i_have_sock=false;
+
+        if(evt.getType() == Event.MSG) {
+            hdr=((Message)evt.getArg()).getHeader(getName());
+            i_have_sock=hdr instanceof FdHeader && ((FdHeader)hdr).type == FdHeader.I_HAVE_SOCK;
+        }
+        super.up(evt);
+        if(i_have_sock && addr_requested_for != null)
+            startPingerThread(); // the selector thread may now be able to connect to ping_dest
+    }
+
+
+    public void down(Event evt) {
+        if(evt.getType() != Event.CONNECT) {
+            super.down(evt);  // VIEW_CHANGE calls startPingerThread(), stopPingerThread() or interruptPingerThread()
+            return;
+        }
+        passDown(evt);
+        try {
+            startSelectorThread();
+        }
+        catch(IOException ex) {
+            Trace.error("FD_SOCK_NIO.down()", "failed creating the server socket: " + ex);
+        }
+    }
+
+
+    /* The pinger thread of FD_SOCK is replaced by a request to the selector thread to re-evaluate ping_dest */
+
+    void startPingerThread() {
+        Selector tmp=selector;
+        update_ping_dest=true;
+        if(tmp != null)
+            tmp.wakeup();
+    }
+
+    void stopPingerThread() {
+        startPingerThread();
+    }
+
+    void interruptPingerThread() {
+        startPingerThread();
+    }
+
+
+
+    void startSelectorThread() throws IOException {
+        if(selector_thread != null)
+            return;
+        srv_channel=Util.createServerSocketChannel(start_port); // grab a random unused port above 10000
+        if(srv_channel == null)
+            throw new IOException("server socket channel could not be created");
+        srv_sock_addr=new IpAddress(srv_channel.socket().getLocalPort());
+        selector=Selector.open();
+        srv_channel.register(selector, SelectionKey.OP_ACCEPT);
+        running=true;
+        update_ping_dest=true;
+        selector_thread=new Thread(this, "FD_SOCK_NIO selector thread");
+        selector_thread.setDaemon(true);
+        selector_thread.start();
+    }
+
+
+    void stopSelectorThread() {
+        Thread   tmp=selector_thread;
+        Selector sel=selector;
+
+        running=false;
+        selector_thread=null;
+        if(sel != null)
+            sel.wakeup();
+        if(tmp != null && tmp.isAlive() && tmp != Thread.currentThread()) {
+            try {
+                tmp.join(1000);
+            }
+            catch(InterruptedException e) {
+            }
+        }
+    }
+
+
+    /**
+     * The selector loop: accepts connections from members monitoring us, detects closing of the connection to
+     * ping_dest, and connects to a new ping_dest when requested. Closes all channels when done
+     */
+    public void run() {
+        Iterator     it;
+        SelectionKey key;
+        long         timeout;
+
+        if(Trace.trace) Trace.info("FD_SOCK_NIO.run()", "selector thread started");
+        while(running) {
+            try {
+                if(update_ping_dest || (addr_requested_for != null && System.currentTimeMillis() >= next_addr_request)) {
+                    update_ping_dest=false;
+                    updatePingDest();
+                }
+                timeout=addr_requested_for != null? Math.max(1, next_addr_request - System.currentTimeMillis()) : 0;
+                selector.select(timeout);
+                for(it=selector.selectedKeys().iterator(); it.hasNext();) {
+                    key=(SelectionKey)it.next();
+                    it.remove();
+                    if(!key.isValid())
+                        continue;
+                    if(key.isAcceptable())
+                        handleAccept();
+                    else if(key.isConnectable())
+                        handleConnect(key);
+                    else if(key.isReadable())
+                        handleRead(key);
+                }
+            }
+            catch(Throwable t) {
+                if(running)
+                    Trace.error("FD_SOCK_NIO.run()", "exception in selector loop: " + t);
+            }
+        }
+        closeAll();
+        if(Trace.trace) Trace.info("FD_SOCK_NIO.run()", "selector thread terminated");
+    }
+
+
+
+
+    /* ----------------------------------- Private Methods -------------------------------------- */
+
+
+    /**
+     * Determines ping_dest. If it changed, closes the connection to the old ping_dest and connects to the new one. If
+     * its socket address is not known, asks ping_dest (and after that all members) for it, and returns; we'll be
+     * called again when the address has been received or the request has to be resent
+     */
+    void updatePingDest() {
+        Address   dest=determinePingDest();
+        IpAddress addr;
+
+        if(dest == null || !dest.equals(ping_dest)) {
+            closePingChannel();
+            addr_requested_for=null;
+            if(dest != null && ping_dest != null)
+                ping_dest_changes.inc();
+            ping_dest=dest;
+            if(Trace.trace) Trace.info("FD_SOCK_NIO.updatePingDest()", "ping_dest is " + dest);
+        }
+        if(dest == null || ping_key != null)
+            return;   // nobody to monitor, or already connected to ping_dest
+
+        addr=(IpAddress)cache.get(dest);
+        if(addr == null) {
+            requestPingAddress(dest);
+            return;
+        }
+        addr_requested_for=null;
+        try {
+            SocketChannel ch=SocketChannel.open();
+            ch.configureBlocking(false);
+            ch.socket().setSoLinger(true, 1);
+            if(ch.connect(new InetSocketAddress(addr.getIpAddress(), addr.getPort())))
+                ping_key=ch.register(selector, SelectionKey.OP_READ, dest);
+            else
+                ping_key=ch.register(selector, SelectionKey.OP_CONNECT, dest);
+        }
+        catch(IOException ex) {
+            pingDestFailed("could not create socket to " + dest + " (" + ex + ")");
+        }
+    }
+
+
+    /**
+     * Sends a WHO_HAS_SOCK request for mbr: first to mbr, then to all members, and so on. The request is resent
+     * every ADDR_REQUEST_INTERVAL ms until the address is received (or mbr is not ping_dest anymore)
+     */
+    void requestPingAddress(Address mbr) {
+        Message  req;
+        FdHeader hdr;
+        long     now=System.currentTimeMillis();
+
+        if(mbr.equals(addr_requested_for) && now < next_addr_request)
+            return;
+        if(!mbr.equals(addr_requested_for)) {
+            addr_requested_for=mbr;
+            num_addr_requests=0;
+        }
+        else
+            Trace.warn("FD_SOCK_NIO.requestPingAddress()", "socket address for " + mbr + " could not be fetched, retrying");
+        hdr=new FdHeader(FdHeader.WHO_HAS_SOCK);
+        hdr.mbr=mbr;
+        req=new Message(num_addr_requests++ % 2 == 0? mbr : null, null, null); // alternate between ucast and mcast
+        req.putHeader(getName(), hdr);
+        next_addr_request=now + ADDR_REQUEST_INTERVAL;
+        passDown(new Event(Event.MSG, req));
+    }
+
+
+    void handleAccept() throws IOException {
+        SocketChannel client=srv_channel.accept();
+
+        if(client == null)
+            return;
+        client.configureBlocking(false);
+        client.register(selector, SelectionKey.OP_READ);
+        connections_accepted.inc();
+        if(Trace.debug)
+            Trace.info("FD_SOCK_NIO.handleAccept()", "accepted connection from " + client.socket().getRemoteSocketAddress());
+    }
+
+
+    void handleConnect(SelectionKey key) {
+        SocketChannel ch=(SocketChannel)key.channel();
+        try {
+            if(ch.finishConnect())
+                key.interestOps(SelectionKey.OP_READ);
+        }
+        catch(IOException ex) {
+            if(key == ping_key)
+                pingDestFailed("could not create socket to " + key.attachment() + " (" + ex + ")");
+            else
+                closeKey(key);
+        }
+    }
+
+
+    /** Data is discarded; only the closing of the connection is of interest */
+    void handleRead(SelectionKey key) {
+        SocketChannel ch=(SocketChannel)key.channel();
+        int           num;
+
+        try {
+            read_buf.clear();
+            num=ch.read(read_buf);
+        }
+        catch(IOException ex) {
+            num=-1;
+        }
+        if(num >= 0)
+            return;
+        if(key == ping_key)
+            pingDestFailed("peer " + key.attachment() + " closed socket");
+        else
+            closeKey(key);  // a member monitoring us closed its connection
+    }
+
+
+    /** The connection to ping_dest broke or could not be established: suspect ping_dest and monitor the next member */
+    void pingDestFailed(String reason) {
+        Address suspected=ping_dest;
+
+        closePingChannel();
+        if(suspected == null)
+            return;
+        if(Trace.trace)
+            Trace.info("FD_SOCK_NIO.pingDestFailed()", reason + "; suspecting " + suspected);
+        broadcastSuspectMessage(suspected);
+        pingable_mbrs.removeElement(suspected);
+        update_ping_dest=true;
+    }
+
+
+    void closePingChannel() {
+        if(ping_key != null) {
+            closeKey(ping_key);
+            ping_key=null;
+        }
+    }
+
+
+    static void closeKey(SelectionKey key) {
+        key.cancel();
+        Util.closeChannel(key.channel());
+    }
+
+
+    void closeAll() {
+        Selector tmp=selector;
+
+        ping_key=null;
+        if(tmp != null) {
+            for(Iterator it=tmp.keys().iterator(); it.hasNext();)
+                closeKey((SelectionKey)it.next());
+            try {
+                tmp.close();
+            }
+            catch(IOException ex) {
+            }
+        }
+        Util.closeChannel(srv_channel);
+        srv_channel=null;
+        selector=null;
+    }
+}
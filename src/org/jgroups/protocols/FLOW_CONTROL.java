@@ -8,7 +8,7 @@ import org.jgroups.Message;
 import org.jgroups.blocks.GroupRequest;
 import org.jgroups.log.Trace;
 import org.jgroups.stack.MessageProtocol;
-import org.jgroups.util.ReusableThread;
+import org.jgroups.util.Executor;
 import org.jgroups.util.RspList;
 import org.jgroups.util.Util;
 
@@ -48,7 +48,7 @@ public class FLOW_CONTROL extends MessageProtocol implements Runnable
     private int _fwdMarginSize = 200;
     private int _estimatedRTT=100000;
     private boolean waitingForResponse=false;
-    private ReusableThread _reusableThread;
+    private Executor _executor;
     private double RTT_WEIGHT = 0.125;
     private int  _msgsSentAfterFCreq = 0;
     private double TIME_OUT_FACTOR = 0.25;//if resp not received from more than n*TIME_OUT_INCREMENT_FACTOR
@@ -61,7 +61,20 @@ public class FLOW_CONTROL extends MessageProtocol implements Runnable
 
     public FLOW_CONTROL()
     {
-	_reusableThread = new ReusableThread(FLOW_CONTROL);
+	// a single thread runs the FCInfo requests one after the other; it terminates when idle
+	_executor = new Executor(FLOW_CONTROL, 0, 1, 0, Executor.BLOCK);
+    }
+
+    public void start() throws Exception
+    {
+	super.start();
+	_executor.start();
+    }
+
+    public void stop()
+    {
+	_executor.stop();
+	super.stop();
     }
 
     public String getName()
@@ -86,9 +99,8 @@ public class FLOW_CONTROL extends MessageProtocol implements Runnable
 		if( (_numMSGsSentThisPeriod > (_windowSize - _fwdMarginSize)) && !waitingForResponse )
 		    {
 			waitingForResponse=true;
-			//wait for the previous request to return.before assigning a new task.
-			_reusableThread.waitUntilDone();
-			_reusableThread.assignTask(this);
+			//the single-threaded executor runs this request after the previous one has returned.
+			_executor.execute(this);
 		    }
 		if(waitingForResponse)
 		    {
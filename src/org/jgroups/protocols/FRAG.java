@@ -5,6 +5,8 @@ package org.jgroups.protocols;
 import org.jgroups.*;
 import org.jgroups.log.Trace;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.FragmentInputStream;
+import org.jgroups.util.FragmentOutputStream;
 import org.jgroups.util.Util;
 
 import java.io.*;
@@ -34,7 +36,10 @@ import java.util.Vector;
  * (b) the fragmentation ID (which is unique per FRAG layer (monotonically increasing) and (c) the
  * fragement ID which ranges from 0 to number_of_fragments-1.<p>
  * Requirement: lossless delivery (e.g. NAK, ACK). No requirement on ordering. Works for both unicast and
- * multicast messages.
+ * multicast messages.<p>
+ * The message is serialized directly into fixed-size fragment buffers (no intermediate contiguous buffer), and
+ * the receiver deserializes it directly from the chain of received fragments, without assembling them into one
+ * buffer first. This keeps the peak memory needed for a large message close to its serialized size.
  *
  * Typical stack:
  * <pre>
@@ -56,7 +61,6 @@ public class FRAG extends Protocol {
     private FragmentationList     fragment_list=new FragmentationList();
     private int                   curr_id=1;
     private Address               local_addr=null;
-    private ByteArrayOutputStream bos=new ByteArrayOutputStream(frag_size);  // to serialize messages to be fragmented
     private Vector                members=new Vector();
 
 
@@ -187,8 +191,8 @@ public class FRAG extends Protocol {
      </pre>
      */
     private void fragment(Message msg) {
+        FragmentOutputStream out;
         ObjectOutputStream oos;
-        byte[] buffer;
         byte[] fragments[];
         Event evt;
         FragHeader hdr;
@@ -199,18 +203,17 @@ public class FRAG extends Protocol {
 
 
         try {
-            // Write message into a byte buffer and fragment it
-            bos.reset();
-            oos=new ObjectOutputStream(bos);
+            // Write message directly into fragment buffers
+            out=new FragmentOutputStream(frag_size);
+            oos=new ObjectOutputStream(out);
             msg.writeExternal(oos);
             oos.flush();
-            buffer=bos.toByteArray();
-            fragments=Util.fragmentBuffer(buffer, frag_size);
+            fragments=out.getFragments();
             num_frags=fragments.length;
 
             if(Trace.trace)
                 Trace.info("FRAG.fragment()", "fragmenting packet to " + (dest != null ? dest.toString() : "<all members>") +
-                        " (size=" + buffer.length + ") into " + num_frags + " fragment(s) [frag_size=" + frag_size + "]");
+                        " (size=" + out.size() + ") into " + num_frags + " fragment(s) [frag_size=" + frag_size + "]");
 
             for(int i=0; i < num_frags; i++) {
                 frag_msg=new Message(dest, src, fragments[i]);
@@ -241,8 +244,7 @@ public class FRAG extends Protocol {
         Address sender=msg.getSrc();
         Message assembled_msg;
         FragHeader hdr=(FragHeader)msg.removeHeader(getName());
-        byte[] m;
-        ByteArrayInputStream bis;
+        byte[] m[];
         ObjectInputStream ois;
 
 
@@ -261,8 +263,7 @@ public class FRAG extends Protocol {
         m=frag_table.add(hdr.id, hdr.frag_id, hdr.num_frags, msg.getBuffer());
         if(m != null) {
             try {
-                bis=new ByteArrayInputStream(m);
-                ois=new ObjectInputStream(bis);
+                ois=new ObjectInputStream(new FragmentInputStream(m));
                 assembled_msg=new Message();
                 assembled_msg.readExternal(ois);
                 if(Trace.trace) Trace.info("FRAG.unfragment()", "assembled_msg is " + assembled_msg);
@@ -493,16 +494,6 @@ public class FRAG extends Protocol {
                 return true;
             }
 
-            /**
-             * Assembles all the fragmentations into one buffer
-             * this method does not check if the fragmentation is complete
-             * @return the complete message in one buffer
-             *
-             */
-            public byte[] assembleBuffer() {
-                return Util.defragmentBuffer(fragments);
-            }
-
             /**
              * debug only
              */
@@ -521,14 +512,14 @@ public class FRAG extends Protocol {
         /**
          * Creates a new entry if not yet present. Adds the fragment.
          * If all fragements for a given message have been received,
-         * an entire message is reassembled and returned.
+         * the (ordered) fragments of the entire message are returned.
          * Otherwise null is returned.
          * @param   id - the message ID, unique for a sender
          * @param   frag_id the index of this fragmentation (0..tot_frags-1)
          * @param   tot_frags the total number of fragmentations expected
          * @param   fragment - the byte buffer for this fragment
          */
-        public synchronized byte[] add(long id,
+        public synchronized byte[][] add(long id,
                                        int frag_id,
                                        int tot_frags,
                                        byte[] fragment) {
@@ -536,7 +527,7 @@ public class FRAG extends Protocol {
             /*initialize the return value to default
              *not complete
              */
-            byte[] retval=null;
+            byte[] retval[]=null;
 
             Entry e=(Entry)h.get(new Long(id));
 
@@ -547,7 +538,7 @@ public class FRAG extends Protocol {
 
             e.set(frag_id, fragment);
             if(e.isComplete()) {
-                retval=e.assembleBuffer();
+                retval=e.fragments;
                 h.remove(new Long(id));
             }
 
@@ -4,7 +4,9 @@ package org.jgroups.protocols;
 
 import org.jgroups.*;
 import org.jgroups.log.Trace;
+import org.jgroups.log.Log;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.Metrics;
 import org.jgroups.util.Util;
 import org.jgroups.util.Range;
 
@@ -24,11 +26,17 @@ import java.util.*;
  * Compared to FRAG, this protocol does <em>not</em> need to serialize the message in order to break it into
  * smaller fragments: it looks only at the message's buffer, which is a byte[] array anyway. We assume that the
  * size addition for headers and src and dest address is minimal when the transport finally has to serialize the
- * message, so we add a constant (1000 bytes).
+ * message, so we add a constant (1000 bytes).<p>
+ * Fragments refer to the original buffer (through offset and length), so no copies are made on the sending
+ * side. On the receiving side, the buffer for the entire message is allocated when the first fragment arrives,
+ * and each fragment is copied directly into its final position. Incomplete messages are discarded when the
+ * sender leaves, or when no fragment has been received for them for <code>frag_timeout</code> ms.
  * @author Bela Ban
  * @version $Id: FRAG2.java,v 1.1 2008/09/03 04:24:39 commerce\wuti7102 Exp $
  */
 public class FRAG2 extends Protocol {
+    private static final Log log=Log.getLog("FRAG2");
+
 
     /** The max number of bytes in a message. If a message's buffer is bigger, it will be fragmented */
     int frag_size=8192;
@@ -37,6 +45,9 @@ public class FRAG2 extends Protocol {
         message is serialized by transport. This will be subtracted from frag_size */
     int overhead=0; // todo: set to a higher value
 
+    /** Number of ms after which an incomplete message (for which we didn't receive a fragment) is discarded */
+    long frag_timeout=60000;
+
     /*the fragmentation list contains a fragmentation table per sender
      *this way it becomes easier to clean up if a sender (member) leaves or crashes
      */
@@ -46,6 +57,11 @@ public class FRAG2 extends Protocol {
     private Vector                members=new Vector();
     private final String          name="FRAG2";
 
+    final Metrics.Counter fragments_sent=metrics.counter("fragments_sent");
+    final Metrics.Counter fragments_received=metrics.counter("fragments_received");
+    final Metrics.Counter msgs_fragmented=metrics.counter("msgs_fragmented");
+    final Metrics.Counter msgs_reassembled=metrics.counter("msgs_reassembled");
+
 
     public final String getName() {
         return name;
@@ -68,15 +84,21 @@ public class FRAG2 extends Protocol {
             props.remove("overhead");
         }
 
+        str=props.getProperty("frag_timeout");
+        if(str != null) {
+            frag_timeout=new Long(str).longValue();
+            props.remove("frag_timeout");
+        }
+
         int old_frag_size=frag_size;
         frag_size-=overhead;
         if(frag_size <=0) {
-            Trace.error("FRAG2.setProperties()", "frag_size=" + old_frag_size + ", overhead=" + overhead +
+            log.error("setProperties()", "frag_size=" + old_frag_size + ", overhead=" + overhead +
                     ", new frag_size=" + frag_size + ": new frag_size is invalid");
             return false;
         }
-        if(Trace.trace)
-            Trace.info("FRAG2.setProperties()", "frag_size=" + old_frag_size + ", overhead=" + overhead +
+        if(log.isInfoEnabled())
+            log.info("setProperties()", "frag_size=" + old_frag_size + ", overhead=" + overhead +
                     ", new frag_size=" + frag_size);
 
         if(props.size() > 0) {
@@ -101,11 +123,11 @@ public class FRAG2 extends Protocol {
                 Message msg=(Message)evt.getArg();
                 long size=msg.getLength();
                 if(size > frag_size) {
-                    if(Trace.trace) {
+                    if(log.isInfoEnabled()) {
                         StringBuffer sb=new StringBuffer("message's buffer size is ");
                         sb.append(size).append(", will fragment ").append("(frag_size=");
                         sb.append(frag_size).append(")");
-                        Trace.info("FRAG2.down()", sb.toString());
+                        log.info("down()", sb.toString());
                     }
                     fragment(msg);  // Fragment and pass down
                     return;
@@ -129,14 +151,14 @@ public class FRAG2 extends Protocol {
                     //the new view doesn't contain the sender, he must have left,
                     //hence we will clear all his fragmentation tables
                     fragment_list.remove(mbr);
-                    if(Trace.trace)
-                        Trace.info("FRAG2.down()", "[VIEW_CHANGE] removed " + mbr + " from fragmentation table");
+                    if(log.isInfoEnabled())
+                        log.info("down()", "[VIEW_CHANGE] removed " + mbr + " from fragmentation table");
                 }
                 break;
 
             case Event.CONFIG:
                 passDown(evt);
-                if(Trace.trace) Trace.info("FRAG2.down()", "received CONFIG event: " + evt.getArg());
+                if(log.isInfoEnabled()) log.info("down()", "received CONFIG event: " + evt.getArg());
                 handleConfigEvent((HashMap)evt.getArg());
                 return;
         }
@@ -168,7 +190,7 @@ public class FRAG2 extends Protocol {
 
             case Event.CONFIG:
                 passUp(evt);
-                if(Trace.trace) Trace.info("FRAG2.up()", "received CONFIG event: " + evt.getArg());
+                if(log.isInfoEnabled()) log.info("up()", "received CONFIG event: " + evt.getArg());
                 handleConfigEvent((HashMap)evt.getArg());
                 return;
         }
@@ -190,26 +212,30 @@ public class FRAG2 extends Protocol {
      */
     void fragment(Message msg) {
         byte[]             buffer;
-        List               fragments;
+        java.util.List     fragments;
         Event              evt;
         FragHeader         hdr;
         Message            frag_msg=null;
         Address            dest=msg.getDest();
         long               id=curr_id++; // used as seqnos
-        int                num_frags=0;
+        int                num_frags=0, offset, length;
         StringBuffer       sb;
         Range              r;
 
         try {
-            buffer=msg.getBuffer();
-            fragments=Util.computeFragOffsets(buffer, frag_size);
+            buffer=msg.getRawBuffer(); // no copy: the fragments refer to subsets of the original buffer
+            offset=msg.getOffset();
+            length=msg.getLength();
+            fragments=Util.computeFragOffsets(offset, length, frag_size);
             num_frags=fragments.size();
+            msgs_fragmented.inc();
+            fragments_sent.add(num_frags);
 
-            if(Trace.trace) {
+            if(log.isInfoEnabled()) {
                 sb=new StringBuffer("fragmenting packet to ");
-                sb.append((dest != null ? dest.toString() : "<all members>")).append(" (size=").append(buffer.length);
+                sb.append((dest != null ? dest.toString() : "<all members>")).append(" (size=").append(length);
                 sb.append(") into ").append(num_frags).append(" fragment(s) [frag_size=").append(frag_size).append("]");
-                Trace.info("FRAG2.fragment()", sb.toString());
+                log.info("fragment()", sb.toString());
             }
 
             for(int i=0; i < fragments.size(); i++) {
@@ -217,16 +243,16 @@ public class FRAG2 extends Protocol {
                 // Copy the original msg (needed because we need to copy the headers too)
                 frag_msg=msg.copy(false); // don't copy the buffer
                 frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
-                hdr=new FragHeader(id, i, num_frags);
-                if(Trace.trace)
-                    Trace.debug("FRAG2.fragment()", "fragment's header is " + hdr);
+                hdr=new FragHeader(id, i, num_frags, (int)r.low - offset, length);
+                if(log.isDebugEnabled())
+                    log.debug("fragment()", "fragment's header is " + hdr);
                 frag_msg.putHeader(name, hdr);
                 evt=new Event(Event.MSG, frag_msg);
                 passDown(evt);
             }
         }
         catch(Exception e) {
-            Trace.error("FRAG2.fragment()", "exception is " + e);
+            log.error("fragment()", "exception is " + e);
         }
 
     }
@@ -245,27 +271,20 @@ public class FRAG2 extends Protocol {
         Message            assembled_msg;
         FragHeader         hdr=(FragHeader)msg.removeHeader(getName());
 
-        if(Trace.trace) Trace.debug("FRAG2.unfragment()", "[" + local_addr + "] received msg, hdr is " + hdr);
+        if(log.isDebugEnabled()) log.debug("unfragment()", "[" + local_addr + "] received msg, hdr is " + hdr);
 
-        frag_table=fragment_list.get(sender);
-        if(frag_table == null) {
-            frag_table=new FragmentationTable(sender);
-            try {
-                fragment_list.add(sender, frag_table);
-            }
-            catch(IllegalArgumentException x) { // the entry has already been added, probably in parallel from another thread
-                frag_table=fragment_list.get(sender);
-            }
-        }
-        assembled_msg=frag_table.add(hdr.id, hdr.frag_id, hdr.num_frags, msg);
+        fragments_received.inc();
+        frag_table=fragment_list.getOrCreate(sender);
+        assembled_msg=frag_table.add(hdr, msg);
         if(assembled_msg != null) {
+            msgs_reassembled.inc();
             try {
-                if(Trace.trace) Trace.info("FRAG2.unfragment()", "assembled_msg is " + assembled_msg);
+                if(log.isInfoEnabled()) log.info("unfragment()", "assembled_msg is " + assembled_msg);
                 assembled_msg.setSrc(sender); // needed ? YES, because fragments have a null src !!
                 passUp(new Event(Event.MSG, assembled_msg));
             }
             catch(Exception e) {
-                Trace.error("FRAG2.unfragment()", "exception is " + e);
+                log.error("unfragment()", "exception is " + e);
             }
         }
     }
@@ -275,8 +294,8 @@ public class FRAG2 extends Protocol {
         if(map == null) return;
         if(map.containsKey("frag_size")) {
             frag_size=((Integer)map.get("frag_size")).intValue();
-            if(Trace.trace)
-                Trace.info("FRAG2.handleConfigEvent()", "setting frag_size=" + frag_size);
+            if(log.isInfoEnabled())
+                log.info("handleConfigEvent()", "setting frag_size=" + frag_size);
         }
     }
 
@@ -285,24 +304,37 @@ public class FRAG2 extends Protocol {
         public long id=0;
         public int frag_id=0;
         public int num_frags=0;
+        /** Position of this fragment's data in the original (unfragmented) buffer */
+        public int offset=0;
+        /** Length of the original (unfragmented) buffer */
+        public int total_length=0;
 
         public FragHeader() {
         } // used for externalization
 
-        public FragHeader(long id, int frag_id, int num_frags) {
+        public FragHeader(long id, int frag_id, int num_frags, int offset, int total_length) {
             this.id=id;
             this.frag_id=frag_id;
             this.num_frags=num_frags;
+            this.offset=offset;
+            this.total_length=total_length;
         }
 
         public String toString() {
-            return "[FRAG2: id=" + id + ", frag_id=" + frag_id + ", num_frags=" + num_frags + "]";
+            return "[FRAG2: id=" + id + ", frag_id=" + frag_id + ", num_frags=" + num_frags +
+                    ", offset=" + offset + ", total_length=" + total_length + "]";
+        }
+
+        public long size() {
+            return 8 + 4 + 4 + 4 + 4;
         }
 
         public void writeExternal(ObjectOutput out) throws IOException {
             out.writeLong(id);
             out.writeInt(frag_id);
             out.writeInt(num_frags);
+            out.writeInt(offset);
+            out.writeInt(total_length);
         }
 
 
@@ -310,6 +342,8 @@ public class FRAG2 extends Protocol {
             id=in.readLong();
             frag_id=in.readInt();
             num_frags=in.readInt();
+            offset=in.readInt();
+            total_length=in.readInt();
         }
 
 
@@ -333,21 +367,19 @@ public class FRAG2 extends Protocol {
 
 
         /**
-         * Adds a fragmentation table for this particular sender
-         * If this sender already has a fragmentation table, an IllegalArgumentException
-         * will be thrown.
+         * Returns the fragmentation table for this sender, creating (and adding) a new one if the
+         * sender doesn't have one yet. Lookup and creation are atomic, so concurrent callers for the same
+         * sender always get the same table
          * @param   sender - the address of the sender, cannot be null
-         * @param   table - the fragmentation table of this sender, cannot be null
-         * @exception IllegalArgumentException if an entry for this sender already exist
+         * @return the fragmentation table for this sender, never null
          */
-        public synchronized void add(Address sender, FragmentationTable table) throws IllegalArgumentException {
-            FragmentationTable healthCheck=(FragmentationTable)frag_tables.get(sender);
-            if(healthCheck == null) {
+        public synchronized FragmentationTable getOrCreate(Address sender) {
+            FragmentationTable table=(FragmentationTable)frag_tables.get(sender);
+            if(table == null) {
+                table=new FragmentationTable(sender);
                 frag_tables.put(sender, table);
             }
-            else {
-                throw new IllegalArgumentException("Sender <" + sender + "> already exists in the fragementation list.");
-            }
+            return table;
         }
 
         /**
@@ -413,13 +445,16 @@ public class FRAG2 extends Protocol {
     /**
      * Keeps track of the fragments that are received.
      * Reassembles fragements into entire messages when all fragments have been received.
-     * The fragmentation holds a an array of byte arrays for a unique sender
-     * The first dimension of the array is the order of the fragmentation, in case the arrive out of order
+     * For each message, the buffer for the entire message is allocated when its first fragment is received, and
+     * every fragment is copied into its position in that buffer directly. Messages for which we haven't received
+     * a fragment for frag_timeout ms are discarded.
      */
     class FragmentationTable {
         private Address sender;
         /* the hashtable that holds the fragmentation entries for this sender*/
         private Hashtable h=new Hashtable(11);  // keys: frag_ids, vals: Entrys
+        /* the last time we checked for (and removed) expired entries */
+        private long last_purge=System.currentTimeMillis();
 
 
         public FragmentationTable(Address sender) {
@@ -428,45 +463,59 @@ public class FRAG2 extends Protocol {
 
 
         /**
-         * inner class represents an entry for a message
-         * each entry holds an array of byte arrays sorted
-         * once all the byte buffer entries have been filled
-         * the fragmentation is considered complete.
+         * inner class represents an entry for a message.
+         * Each entry holds the buffer for the entire message, into which
+         * the fragments are copied as they are received.
+         * Once all fragments have been received, the fragmentation is considered complete.
          */
         class Entry {
             //the total number of fragment in this message
             int tot_frags=0;
-            // each fragment is a byte buffer
-            Message fragments[]=null;
+            // the buffer for the entire message, the fragments are copied into it
+            byte[] buffer=null;
+            // which fragments have been received
+            boolean received[]=null;
             //the number of fragments we have received
             int number_of_frags_recvd=0;
             // the message ID
             long msg_id=-1;
+            // copy (without buffer) of the first fragment received, provides dest, src and headers
+            Message template=null;
+            // the time at which the last fragment was received
+            long timestamp=0;
 
             /**
              * Creates a new entry
              * @param tot_frags the number of fragments to expect for this message
+             * @param total_length the size of the entire (unfragmented) message's buffer
              */
-            Entry(long msg_id, int tot_frags) {
+            Entry(long msg_id, int tot_frags, int total_length) {
                 this.msg_id=msg_id;
                 this.tot_frags=tot_frags;
-                fragments=new Message[tot_frags];
-                for(int i=0; i < tot_frags; i++)
-                    fragments[i]=null;
+                buffer=new byte[total_length];
+                received=new boolean[tot_frags];
+                timestamp=System.currentTimeMillis();
             }
 
             /**
-             * adds on fragmentation buffer to the message
-             * @param frag_id the number of the fragment being added 0..(tot_num_of_frags - 1)
-             * @param frag the byte buffer containing the data for this fragmentation, should not be null
+             * Copies the fragment's data to its position in the message buffer
+             * @param hdr the fragment's header, determines the position of the fragment's data
+             * @param frag the fragment, should not be null
              */
-            public void set(int frag_id, Message frag) {
-                 // don't count an already received fragment (should not happen though because the
+            public void set(FragHeader hdr, Message frag) {
+                int frag_id=hdr.frag_id;
+
+                // don't count an already received fragment (should not happen though because the
                 // reliable transmission protocol(s) below should weed out duplicates
-                if(fragments[frag_id] == null) {
-                    fragments[frag_id]=frag;
-                    number_of_frags_recvd++;
-                }
+                if(received[frag_id])
+                    return;
+                if(frag.getRawBuffer() != null)
+                    System.arraycopy(frag.getRawBuffer(), frag.getOffset(), buffer, hdr.offset, frag.getLength());
+                received[frag_id]=true;
+                number_of_frags_recvd++;
+                if(template == null)
+                    template=frag.copy(false);
+                timestamp=System.currentTimeMillis();
             }
 
             /** returns true if this fragmentation is complete
@@ -474,51 +523,20 @@ public class FRAG2 extends Protocol {
              *
              */
             public boolean isComplete() {
-                /*first make the simple check*/
-                if(number_of_frags_recvd < tot_frags) {
-                    return false;
-                }
-                /*then double check just in case*/
-                for(int i=0; i < fragments.length; i++) {
-                    if(fragments[i] == null)
-                        return false;
-                }
-                /*all fragmentations have been received*/
-                return true;
+                return number_of_frags_recvd >= tot_frags;
             }
 
             /**
-             * Assembles all the fragments into one buffer. Takes all Messages, and combines their buffers into one
-             * buffer.
+             * Returns the reassembled message. All fragments have already been copied into the buffer,
+             * so this doesn't copy anything.
              * This method does not check if the fragmentation is complete (use {@link #isComplete()} to verify
              * before calling this method)
              * @return the complete message in one buffer
              *
              */
             public Message assembleMessage() {
-                Message retval=null;
-                byte[]  combined_buffer, tmp;
-                int     combined_length=0, length, offset;
-                Message fragment;
-                int     index=0;
-
-                for(int i=0; i < fragments.length; i++) {
-                    fragment=fragments[i];
-                    combined_length+=fragment.getLength();
-                }
-
-                combined_buffer=new byte[combined_length];
-                for(int i=0; i < fragments.length; i++) {
-                    fragment=fragments[i];
-                    tmp=fragment.getRawBuffer();
-                    length=fragment.getLength();
-                    offset=fragment.getOffset();
-                    System.arraycopy(tmp, offset, combined_buffer, index, length);
-                    index+=length;
-                }
-
-                retval=fragments[0].copy(false);
-                retval.setBuffer(combined_buffer);
+                Message retval=template;
+                retval.setBuffer(buffer);
                 return retval;
             }
 
@@ -542,31 +560,52 @@ public class FRAG2 extends Protocol {
          * If all fragements for a given message have been received,
          * an entire message is reassembled and returned.
          * Otherwise null is returned.
-         * @param   id - the message ID, unique for a sender
-         * @param   frag_id the index of this fragmentation (0..tot_frags-1)
-         * @param   tot_frags the total number of fragmentations expected
-         * @param   fragment - the byte buffer for this fragment
+         * @param   hdr the fragment's header (message ID, fragment index, number of fragments and position)
+         * @param   fragment - the message carrying the fragment's data
          */
-        public synchronized Message add(long id, int frag_id, int tot_frags, Message fragment) {
+        public synchronized Message add(FragHeader hdr, Message fragment) {
             Message retval=null;
+            Long    key=new Long(hdr.id);
+            Entry   e;
 
-            Entry e=(Entry)h.get(new Long(id));
-
+            removeExpiredEntries();
+            e=(Entry)h.get(key);
             if(e == null) {   // Create new entry if not yet present
-                e=new Entry(id, tot_frags);
-                h.put(new Long(id), e);
+                e=new Entry(hdr.id, hdr.num_frags, hdr.total_length);
+                h.put(key, e);
             }
 
-            e.set(frag_id, fragment);
+            e.set(hdr, fragment);
             if(e.isComplete()) {
                 retval=e.assembleMessage();
-                h.remove(new Long(id));
+                h.remove(key);
             }
 
             return retval;
         }
 
 
+        /** Removes all entries for which no fragment has been received for frag_timeout ms */
+        void removeExpiredEntries() {
+            long  now=System.currentTimeMillis();
+            Entry entry;
+
+            if(frag_timeout <= 0 || now - last_purge < frag_timeout)
+                return;
+            last_purge=now;
+            for(Iterator it=h.values().iterator(); it.hasNext();) {
+                entry=(Entry)it.next();
+                if(now - entry.timestamp >= frag_timeout) {
+                    it.remove();
+                    if(log.isWarnEnabled())
+                        log.warn("FragmentationTable.removeExpiredEntries()", "discarded incomplete message " +
+                                entry.msg_id + " from " + sender + " " + entry + ": no fragment received for " +
+                                frag_timeout + " ms");
+                }
+            }
+        }
+
+
         public void reset() {
         }
 
@@ -575,15 +614,9 @@ public class FRAG2 extends Protocol {
             java.util.Enumeration e=this.h.elements();
             while(e.hasMoreElements()) {
                 Entry entry=(Entry)e.nextElement();
-                int count=0;
-                for(int i=0; i < entry.fragments.length; i++) {
-                    if(entry.fragments[i] != null) {
-                        count++;
-                    }
-                }
                 buf.append("Message ID:").append(entry.msg_id).append("\n\t");
                 buf.append("Total Frags:").append(entry.tot_frags).append("\n\t");
-                buf.append("Frags Received:").append(count).append("\n\n");
+                buf.append("Frags Received:").append(entry.number_of_frags_recvd).append("\n\n");
             }
             return buf.toString();
         }
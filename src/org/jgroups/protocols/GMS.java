@@ -588,6 +588,20 @@ public class GMS extends RpcProtocol implements Runnable {
                 }
                 return true;                         // pass up
 
+            case Event.SUSPECT_MULTIPLE:             // handled (and passed up) as separate SUSPECT events
+                Vector suspects=(Vector)evt.getArg();
+                Event  suspect_evt;
+                for(int i=0; i < suspects.size(); i++) {
+                    suspect_evt=new Event(Event.SUSPECT, suspects.elementAt(i));
+                    try {
+                        event_queue.add(suspect_evt);
+                    }
+                    catch(Exception e) {
+                    }
+                    passUp(suspect_evt);
+                }
+                return false;
+
             case Event.MERGE:
                 try {
                     event_queue.add(evt);
@@ -2,11 +2,15 @@
 
 package org.jgroups.protocols;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.WeakHashMap;
 import org.jgroups.*;
 import org.jgroups.stack.*;
 import org.jgroups.log.Trace;
+import org.jgroups.util.Metrics;
 
 
 /**
@@ -25,15 +29,31 @@ import org.jgroups.log.Trace;
  * <li>Add a trace statement for PERF.up(): <code>trace0=PERF.up DEBUG /tmp/trace.perf</code>. This will write
  * all trace output to the given file.
  * </ol>
+ * Because this serializes all timings with every message, it is expensive. By default, PERF therefore runs in
+ * <em>sampled</em> mode: only 1 in <code>sample_rate</code> messages carries a small {@link PerfSampleHeader},
+ * and each layer records the time it took to process the sampled messages (<code>up_time</code>,
+ * <code>down_time</code>) and the time they waited before the layer got to them (<code>up_wait</code>,
+ * <code>down_wait</code>) into histograms in its {@link Protocol#getMetrics() metrics}. PERF itself records the
+ * <code>latency</code> between sending and delivery of sampled messages. The histograms can be queried at runtime,
+ * e.g. with {@link ProtocolStack#dumpMetrics()} or the diagnostics probe, to find the layer which adds tail
+ * latency. Times are in ms. Set <code>full_headers=true</code> to add a PerfHeader to every message instead.
  * @author Bela Ban Oct 2001
  * @version $Revision: 1.1 $
  */
 public class PERF extends Protocol {
     boolean              details=false;
+    boolean              full_headers=false;
+    int                  sample_rate=100;
+    long                 num_sent=0;
+    Metrics.Histogram    latency=metrics.histogram("latency");
     Vector               members=new Vector();
     Vector               protocols=null;
     static final String  name="PERF";
 
+    /** Time (Long) at which a sampled message was last passed on by a layer, keys are Messages. Weak keys: entries
+     * of messages which are garbage collected are removed. Shared by the SampleObservers of all layers */
+    final Map            passed_times=Collections.synchronizedMap(new WeakHashMap());
+
 
     /** All protocol names have to be unique ! */
     public String  getName() {return name;}
@@ -47,6 +67,16 @@ public class PERF extends Protocol {
 	    details=new Boolean(str).booleanValue();
 	    props.remove("details");
 	}
+	str=props.getProperty("full_headers");
+	if(str != null) {
+	    full_headers=new Boolean(str).booleanValue();
+	    props.remove("full_headers");
+	}
+	str=props.getProperty("sample_rate");
+	if(str != null) {
+	    sample_rate=Integer.parseInt(str);
+	    props.remove("sample_rate");
+	}
 	if(props.size() > 0) {
 	    System.err.println("PERF.setProperties(): these properties are not recognized:");
 	    props.list(System.out);
@@ -65,12 +95,18 @@ public class PERF extends Protocol {
     public void up(Event evt) {
 	Message    msg;
 	PerfHeader hdr;
+	Object     tmp;
 
 	switch(evt.getType()) {
 
 	case Event.MSG:
 	    msg=(Message)evt.getArg();
-	    hdr=removePerfHeader(msg);
+	    tmp=msg.removeHeader(name);
+	    if(tmp instanceof PerfSampleHeader) {
+		latency.record(System.currentTimeMillis() - ((PerfSampleHeader)tmp).sent);
+		break;
+	    }
+	    hdr=(PerfHeader)tmp;
 	    if(hdr != null) {
 		hdr.setEndTime();
 		hdr.setDone(name, PerfHeader.UP); // we do this here because header is removed, so PassUp won't find it
@@ -106,7 +142,13 @@ public class PERF extends Protocol {
 
 	case Event.MSG:
 	    msg=(Message)evt.getArg();
-	    initializeMessage(msg); // Add a PerfHeader to the message
+	    if(full_headers)
+		initializeMessage(msg); // Add a PerfHeader to the message
+	    else if(sample_rate > 0 && ++num_sent % sample_rate == 0) {
+		long now=System.currentTimeMillis();
+		msg.putHeader(name, new PerfSampleHeader(now));
+		passed_times.put(msg, new Long(now));
+	    }
 	    break;
 	}
 
@@ -118,10 +160,10 @@ public class PERF extends Protocol {
 
     /** Create PerfObservers for all protocols save PERF */
     void setupObservers() {
-	Protocol     p=null;
-	String       pname;
-	Vector       prots=protocols;
-	PerfObserver po=null;
+	Protocol         p=null;
+	String           pname;
+	Vector           prots=protocols;
+	ProtocolObserver po=null;
 
 	if(prots == null) {
 	    System.err.println("PERF.setupObservers(): protocol stack is null");
@@ -132,7 +174,7 @@ public class PERF extends Protocol {
 	    p=(Protocol)prots.elementAt(i);
 	    pname=p.getName();
 	    if(pname != null) {
-		po=new PerfObserver(pname);
+		po=full_headers? (ProtocolObserver)new PerfObserver(pname) : new SampleObserver(passed_times);
 		p.setObserver(po);
 	    }
 	}
@@ -162,16 +204,6 @@ public class PERF extends Protocol {
 
 
     
-    /** Removes if present. Otherwise returns null */
-    PerfHeader removePerfHeader(Message m) {
-	Object  hdr=null;
-
-	if(m == null || (hdr=m.removeHeader(name)) == null)
-	    return null;
-	return (PerfHeader)hdr;
-    }
-
-
 //      Vector getProtocols() {
 //  	Vector   ret=(Vector)stack.getProtocols().clone();
 //  	Protocol p;
@@ -276,3 +308,93 @@ class PerfObserver implements ProtocolObserver {
 
 
 }
+
+
+
+/**
+ * Records the time taken by a protocol to process messages with a PerfSampleHeader (and the time they waited
+ * before the protocol got to them) into histograms in the protocol's metrics. The times are kept per message
+ * (keyed by the Message instance, which is different for every copy of a message), and per direction, as the
+ * same message may travel up and down concurrently (e.g. the loopback copy).
+ */
+class SampleObserver implements ProtocolObserver {
+    Metrics.Histogram up_time, up_wait, down_time, down_wait;
+
+    /** Time (Long) at which a message was last passed on by any layer, shared by all observers */
+    final Map passed;
+
+    /** Time (Long) at which a message entered this layer, going up or down */
+    final Map up_entered=Collections.synchronizedMap(new WeakHashMap());
+    final Map down_entered=Collections.synchronizedMap(new WeakHashMap());
+
+
+    SampleObserver(Map passed) {
+        this.passed=passed;
+    }
+
+
+    public void setProtocol(Protocol prot) {
+        Metrics m=prot.getMetrics();
+        up_time=m.histogram("up_time");
+        up_wait=m.histogram("up_wait");
+        down_time=m.histogram("down_time");
+        down_wait=m.histogram("down_wait");
+    }
+
+
+    public boolean up(Event evt, int num_evts) {
+        received(evt, up_entered, up_wait);
+        return true;
+    }
+
+    public boolean passUp(Event evt) {
+        done(evt, up_entered, up_time);
+        return true;
+    }
+
+    public boolean down(Event evt, int num_evts) {
+        received(evt, down_entered, down_wait);
+        return true;
+    }
+
+    public boolean passDown(Event evt) {
+        done(evt, down_entered, down_time);
+        return true;
+    }
+
+
+    void received(Event evt, Map entered, Metrics.Histogram wait) {
+        Message msg=getSampledMessage(evt);
+        Long    last;
+        long    now;
+        if(msg != null) {
+            now=System.currentTimeMillis();
+            entered.put(msg, new Long(now));
+            last=(Long)passed.get(msg);
+            if(last != null)
+                wait.record(now - last.longValue());
+        }
+    }
+
+    void done(Event evt, Map entered, Metrics.Histogram time) {
+        Message msg=getSampledMessage(evt);
+        Long    start;
+        long    now;
+        if(msg != null) {
+            now=System.currentTimeMillis();
+            passed.put(msg, new Long(now));
+            start=(Long)entered.remove(msg);
+            if(start != null)
+                time.record(now - start.longValue());
+        }
+    }
+
+    /** Returns the message of evt if it has a PerfSampleHeader, null otherwise */
+    static Message getSampledMessage(Event evt) {
+        Message msg;
+        if(evt.getType() != Event.MSG)
+            return null;
+        msg=(Message)evt.getArg();
+        return msg.getHeader(PERF.name) instanceof PerfSampleHeader? msg : null;
+    }
+}
@@ -8,6 +8,7 @@ import org.jgroups.stack.GossipClient;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.List;
+import org.jgroups.util.Metrics;
 import org.jgroups.util.Util;
 
 import java.net.InetAddress;
@@ -33,6 +34,10 @@ import java.util.Set;
  * property: num_initial_members - the minimum number of initial members for a FIND_INITAL_MBRS, default is 2
  * property: gossip_host - if you are using GOSSIP then this defines the host of the GossipServer, default is null
  * property: gossip_port - if you are using GOSSIP then this defines the port of the GossipServer, default is null
+ * property: discovery_cache - file in which the members of the last view are kept, see {@link DiscoveryCache}.
+ * The cached members are contacted first on FIND_INITIAL_MBRS; if the coordinator is among them, the regular
+ * discovery is skipped. Default is null (no cache)
+ * property: cache_timeout - the max time (ms) to wait for the cached coordinator, default is 1000
  */
 public class PING extends Protocol {
     Vector members=new Vector(), initial_members=new Vector();
@@ -48,6 +53,11 @@ public class PING extends Protocol {
     boolean is_server=false;
     int       port_range=1;        // number of ports to be probed for initial membership
     List initial_hosts=null;  // hosts to be contacted for the initial membership
+    DiscoveryCache cache=null;     // members of the last view, contacted first
+    long cache_timeout=1000;
+
+    final Metrics.Counter cache_hits=metrics.counter("cache_hits");
+    final Metrics.Counter cache_misses=metrics.counter("cache_misses");
 
     public String getName() {
         return "PING";
@@ -132,6 +142,18 @@ public class PING extends Protocol {
             initial_hosts=createInitialHosts(str);
         }
 
+        str=props.getProperty("discovery_cache");
+        if(str != null) {
+            cache=new DiscoveryCache(str);
+            props.remove("discovery_cache");
+        }
+
+        str=props.getProperty("cache_timeout");
+        if(str != null) {
+            cache_timeout=new Long(str).longValue();
+            props.remove("cache_timeout");
+        }
+
         if(props.size() > 0) {
             StringBuffer sb=new StringBuffer();
             for(Enumeration e=props.propertyNames(); e.hasMoreElements();) {
@@ -223,12 +245,9 @@ public class PING extends Protocol {
                     case PingHeader.GET_MBRS_RSP:   // add response to vector and notify waiting thread
                         rsp=(PingRsp)hdr.arg;
 
-                        synchronized(initial_members) {
-                            if(Trace.trace)
-                                Trace.info("PING.up()", "received FIND_INITAL_MBRS_RSP, rsp=" + rsp);
-                            initial_members.addElement(rsp);
-                            initial_members.notify();
-                        }
+                        if(Trace.trace)
+                            Trace.info("PING.up()", "received FIND_INITAL_MBRS_RSP, rsp=" + rsp);
+                        DiscoveryCache.addResponse(initial_members, rsp); // drops duplicates, notifies waiting thread
                         return;
 
                     default:
@@ -292,6 +311,17 @@ public class PING extends Protocol {
             case Event.FIND_INITIAL_MBRS:   // sent by GMS layer, pass up a GET_MBRS_OK event
                 initial_members.removeAllElements();
 
+                if(cache != null) {
+                    if(cache.findCoordinator(this, group_addr, local_addr, initial_members, cache_timeout)) {
+                        cache_hits.inc();
+                        if(Trace.trace)
+                            Trace.info("PING.down()", "initial mbrs (from discovery cache) are " + initial_members);
+                        passUp(new Event(Event.FIND_INITIAL_MBRS_OK, initial_members));
+                        break;
+                    }
+                    cache_misses.inc();
+                }
+
                 if(client != null) {
                     gossip_rsps=client.getMembers(group_addr);
                     if(gossip_rsps != null && gossip_rsps.size() > 0) {
@@ -336,7 +366,7 @@ public class PING extends Protocol {
                                     h=(IpAddress)hen.nextElement();
                                     if (members_set.contains(h)) {
                                         //update the initial_members list for this already connected member
-                                        initial_members.add(new PingRsp(h, coord));
+                                        DiscoveryCache.addResponse(initial_members, new PingRsp(h, coord));
                                         isMember = true;
                                         numMemberInitialHosts++;
                                         if(Trace.trace) {
@@ -405,6 +435,8 @@ public class PING extends Protocol {
                         members_set.addAll(tmp);
                     }
                 }
+                if(cache != null && evt.getType() == Event.VIEW_CHANGE)
+                    cache.save(group_addr, (View)evt.getArg());
                 passDown(evt);
                 break;
 
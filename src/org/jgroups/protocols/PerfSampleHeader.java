@@ -0,0 +1,48 @@
+// $Id: PerfSampleHeader.java,v 1.1 2008/09/03 04:24:44 commerce\wuti7102 Exp $
+
+package org.jgroups.protocols;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import org.jgroups.Header;
+
+
+/**
+ * Compact header added by PERF to 1 in <code>sample_rate</code> messages. It only contains the time at which the
+ * message was sent. The times at which the message entered and left each layer are kept by the observers of the
+ * layers (see {@link PERF}), not in the header: the header instance is shared by all copies of a message (e.g. the
+ * loopback copy, or retransmissions), which may be processed concurrently.
+ * @author Bela Ban
+ * @version $Id: PerfSampleHeader.java,v 1.1 2008/09/03 04:24:44 commerce\wuti7102 Exp $
+ */
+public class PerfSampleHeader extends Header {
+    /** Time (ms) at which PERF sent the message */
+    long sent=0;
+
+
+    public PerfSampleHeader() {
+    }
+
+    PerfSampleHeader(long sent) {
+        this.sent=sent;
+    }
+
+
+    public long size() {
+        return 8;
+    }
+
+    public String toString() {
+        return "[PerfSampleHeader: sent=" + sent + "]";
+    }
+
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeLong(sent);
+    }
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        sent=in.readLong();
+    }
+}
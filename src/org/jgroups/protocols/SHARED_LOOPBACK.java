@@ -0,0 +1,479 @@
+// $Id: SHARED_LOOPBACK.java,v 1.1 2008/09/03 04:24:44 commerce\wuti7102 Exp $
+
+package org.jgroups.protocols;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Vector;
+import org.jgroups.*;
+import org.jgroups.log.Log;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Metrics;
+import org.jgroups.util.Queue;
+import org.jgroups.util.QueueClosedException;
+import org.jgroups.util.TimeScheduler;
+
+
+/**
+ * Bottommost protocol which connects all channels of the same JVM that use the same bus (property
+ * <code>bus</code>, default is "default"). Unlike {@link LOOPBACK}, which only returns a member's messages to
+ * itself, the bus routes unicast messages to the member with the destination address, and multicast messages to
+ * all members that connected to the same group. This allows to run clusters of many members in a single JVM,
+ * e.g. for benchmarks, without sockets.<p>
+ * Like UDP, a message is serialized once when it is sent, and deserialized by each receiver on its own thread,
+ * so the (de)serialization cost is still measured. Messages to self are always delivered. Other deliveries can be
+ * subjected to simulated network conditions:
+ * <ul>
+ * <li><code>loss_rate</code>: probability (0 - 1) that a message is not delivered to a given receiver
+ * (cf. {@link LOSS})
+ * <li><code>min_delay</code>, <code>max_delay</code>: each delivery is delayed by a random number of ms in
+ * this range (cf. {@link DELAY})
+ * <li><code>reorder_rate</code>: probability that a delivery is held back by an additional random time of up to
+ * <code>reorder_delay</code> ms, so that later messages overtake it (cf. {@link SHUFFLE})
+ * </ul>
+ * Members can also be partitioned, see {@link Bus#setPartition(Address,int)} (cf. {@link PARTITIONER}).
+ * @author Bela Ban
+ * @version $Id: SHARED_LOOPBACK.java,v 1.1 2008/09/03 04:24:44 commerce\wuti7102 Exp $
+ */
+public class SHARED_LOOPBACK extends Protocol {
+    private String           bus_name="default";
+    private double           loss_rate=0;
+    private long             min_delay=0, max_delay=0;
+    private double           reorder_rate=0;
+    private long             reorder_delay=10;
+
+    private Bus              bus=null;
+    private IpAddress        local_addr=null;
+    private String           group_addr=null;
+    private Queue            incoming_queue=null;
+    private IncomingHandler  incoming_handler=null;
+    private final Random     random=new Random();
+
+    private Metrics.Counter  num_dropped=metrics.counter("msgs_dropped");
+    private Metrics.Counter  num_delayed=metrics.counter("msgs_delayed");
+
+    /** Ports of the fake addresses handed out to the members */
+    private static int       next_port=10000;
+
+    private static final Log log=Log.getLog("SHARED_LOOPBACK");
+
+
+    public String getName() {
+        return "SHARED_LOOPBACK";
+    }
+
+    public String toString() {
+        return "Protocol SHARED_LOOPBACK(bus=" + bus_name + ", local address: " + local_addr + ")";
+    }
+
+
+    public boolean setProperties(Properties props) {
+        String str;
+
+        str=props.getProperty("bus");
+        if(str != null) {
+            bus_name=str;
+            props.remove("bus");
+        }
+
+        str=props.getProperty("loss_rate");
+        if(str != null) {
+            loss_rate=Double.parseDouble(str);
+            props.remove("loss_rate");
+        }
+
+        str=props.getProperty("min_delay");
+        if(str != null) {
+            min_delay=Long.parseLong(str);
+            props.remove("min_delay");
+        }
+
+        str=props.getProperty("max_delay");
+        if(str != null) {
+            max_delay=Long.parseLong(str);
+            props.remove("max_delay");
+        }
+
+        str=props.getProperty("reorder_rate");
+        if(str != null) {
+            reorder_rate=Double.parseDouble(str);
+            props.remove("reorder_rate");
+        }
+
+        str=props.getProperty("reorder_delay");
+        if(str != null) {
+            reorder_delay=Long.parseLong(str);
+            props.remove("reorder_delay");
+        }
+
+        if(max_delay < min_delay)
+            max_delay=min_delay;
+
+        if(props.size() > 0) {
+            System.err.println("SHARED_LOOPBACK.setProperties(): the following properties are not recognized:");
+            props.list(System.out);
+            return false;
+        }
+        return true;
+    }
+
+
+    public void init() throws Exception {
+        local_addr=new IpAddress(InetAddress.getByName("127.0.0.1"), nextPort());
+        bus=Bus.getBus(bus_name);
+    }
+
+
+    public void start() throws Exception {
+        incoming_queue=new Queue();
+        incoming_handler=new IncomingHandler();
+        incoming_handler.start();
+        passUp(new Event(Event.SET_LOCAL_ADDRESS, local_addr));
+    }
+
+
+    public void stop() {
+        bus.unregister(this);
+        if(incoming_handler != null) {
+            incoming_handler.stop();
+            incoming_handler=null;
+        }
+    }
+
+
+    /** DON'T REMOVE ! Messages are received from the bus (by the IncomingHandler), not from a layer below */
+    public void startUpHandler() {
+        ;
+    }
+
+
+    public void down(Event evt) {
+        Message msg;
+
+        switch(evt.getType()) {
+
+            case Event.MSG:
+                msg=(Message)evt.getArg();
+                if(msg.getSrc() == null)
+                    msg.setSrc(local_addr);
+                try {
+                    bus.send(this, msg.getDest(), messageToBuffer(msg));
+                }
+                catch(Exception ex) {
+                    log.error("down()", "failed sending message: " + ex);
+                }
+                break;
+
+            case Event.GET_LOCAL_ADDRESS:   // return local address -> Event(SET_LOCAL_ADDRESS, local)
+                passUp(new Event(Event.SET_LOCAL_ADDRESS, local_addr));
+                break;
+
+            case Event.CONNECT:
+                group_addr=(String)evt.getArg();
+                bus.register(this);
+                passUp(new Event(Event.CONNECT_OK));
+                break;
+
+            case Event.DISCONNECT:
+                bus.unregister(this);
+                passUp(new Event(Event.DISCONNECT_OK));
+                break;
+
+            case Event.PERF:
+                passUp(evt);
+                break;
+
+            case Event.ACK:
+                passUp(new Event(Event.ACK_OK));
+                break;
+        }
+    }
+
+
+    public Address getLocalAddress() {
+        return local_addr;
+    }
+
+    public String getGroupAddress() {
+        return group_addr;
+    }
+
+
+    /** Called by the bus: adds the message to the incoming queue, applying the simulated network conditions */
+    void receive(SHARED_LOOPBACK sender, final byte[] buf) {
+        long delay;
+
+        if(sender != this) {
+            if(loss_rate > 0 && random.nextDouble() < loss_rate) {
+                num_dropped.inc();
+                return;
+            }
+            delay=min_delay;
+            if(max_delay > min_delay)
+                delay+=(long)(random.nextDouble() * (max_delay - min_delay));
+            if(reorder_rate > 0 && random.nextDouble() < reorder_rate)
+                delay+=1 + (long)(random.nextDouble() * reorder_delay);
+            if(delay > 0) {
+                num_delayed.inc();
+                bus.getTimer().add(new DelayedDelivery(buf, delay));
+                return;
+            }
+        }
+        deliver(buf);
+    }
+
+
+    private void deliver(byte[] buf) {
+        Queue q=incoming_queue;
+        if(q == null)
+            return;
+        try {
+            q.add(buf);
+        }
+        catch(QueueClosedException e) {
+        }
+    }
+
+
+    private void handleIncoming(byte[] buf) {
+        Message msg=new Message();
+        try {
+            msg.readExternal(new ObjectInputStream(new ByteArrayInputStream(buf)));
+            passUp(new Event(Event.MSG, msg));
+        }
+        catch(Throwable t) {
+            log.error("handleIncoming()", "failed reading message: " + t);
+        }
+    }
+
+
+    private static byte[] messageToBuffer(Message msg) throws Exception {
+        ByteArrayOutputStream out_stream=new ByteArrayOutputStream(msg.getLength() + 128);
+        ObjectOutputStream    out=new ObjectOutputStream(out_stream);
+        msg.writeExternal(out);
+        out.flush();
+        return out_stream.toByteArray();
+    }
+
+
+    private static synchronized int nextPort() {
+        return next_port++;
+    }
+
+
+
+    /**
+     * Routes messages between the members registered on it. Members register when they connect, and are
+     * grouped by their group address (channel name).
+     */
+    public static class Bus {
+        /** Buses, keyed by name */
+        private static final Hashtable buses=new Hashtable();
+
+        private final String    name;
+
+        /** Members, keyed by address */
+        private final Hashtable members=new Hashtable();
+
+        /** Group address -> SHARED_LOOPBACK[], replaced (not modified) on each change */
+        private final Hashtable groups=new Hashtable();
+
+        /** Address -> Integer (partition). Members without an entry are in partition 0 */
+        private final Hashtable partitions=new Hashtable();
+
+        private TimeScheduler   timer=null;
+
+
+        private Bus(String name) {
+            this.name=name;
+        }
+
+
+        /** Returns the bus with the given name, creating it if necessary */
+        public static Bus getBus(String name) {
+            Bus bus;
+            synchronized(buses) {
+                bus=(Bus)buses.get(name);
+                if(bus == null) {
+                    bus=new Bus(name);
+                    buses.put(name, bus);
+                }
+            }
+            return bus;
+        }
+
+
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the addresses of all members registered on this bus */
+        public Vector getMembers() {
+            return new Vector(members.keySet());
+        }
+
+
+        /**
+         * Moves a member into a partition. Messages are only delivered between members of the same partition,
+         * so members in different partitions will suspect each other and form separate views.
+         */
+        public void setPartition(Address mbr, int partition) {
+            partitions.put(mbr, new Integer(partition));
+        }
+
+        /** Merges all partitions again */
+        public void clearPartitions() {
+            partitions.clear();
+        }
+
+
+        synchronized void register(SHARED_LOOPBACK mbr) {
+            SHARED_LOOPBACK[] old_mbrs, new_mbrs;
+
+            members.put(mbr.local_addr, mbr);
+            old_mbrs=(SHARED_LOOPBACK[])groups.get(mbr.group_addr);
+            if(old_mbrs == null)
+                old_mbrs=new SHARED_LOOPBACK[0];
+            for(int i=0; i < old_mbrs.length; i++)
+                if(old_mbrs[i] == mbr)
+                    return;
+            new_mbrs=new SHARED_LOOPBACK[old_mbrs.length + 1];
+            System.arraycopy(old_mbrs, 0, new_mbrs, 0, old_mbrs.length);
+            new_mbrs[old_mbrs.length]=mbr;
+            groups.put(mbr.group_addr, new_mbrs);
+        }
+
+
+        synchronized void unregister(SHARED_LOOPBACK mbr) {
+            SHARED_LOOPBACK[] old_mbrs, new_mbrs;
+            int               index=0;
+
+            if(mbr.local_addr == null || members.remove(mbr.local_addr) == null)
+                return;
+            partitions.remove(mbr.local_addr);
+            old_mbrs=(SHARED_LOOPBACK[])groups.get(mbr.group_addr);
+            if(old_mbrs == null)
+                return;
+            new_mbrs=new SHARED_LOOPBACK[old_mbrs.length - 1];
+            for(int i=0; i < old_mbrs.length; i++)
+                if(old_mbrs[i] != mbr && index < new_mbrs.length)
+                    new_mbrs[index++]=old_mbrs[i];
+            if(new_mbrs.length == 0)
+                groups.remove(mbr.group_addr);
+            else
+                groups.put(mbr.group_addr, new_mbrs);
+        }
+
+
+        /** Sends buf to dest, or to all members of the sender's group if dest is null or a multicast address */
+        void send(SHARED_LOOPBACK sender, Address dest, byte[] buf) {
+            SHARED_LOOPBACK   receiver;
+            SHARED_LOOPBACK[] mbrs;
+            int               partition=getPartition(sender.local_addr);
+
+            if(dest != null && !dest.isMulticastAddress()) {
+                receiver=(SHARED_LOOPBACK)members.get(dest);
+                if(receiver != null && getPartition(dest) == partition)
+                    receiver.receive(sender, buf);
+                return;
+            }
+            if(sender.group_addr == null || (mbrs=(SHARED_LOOPBACK[])groups.get(sender.group_addr)) == null)
+                return;
+            for(int i=0; i < mbrs.length; i++) {
+                receiver=mbrs[i];
+                if(partitions.isEmpty() || getPartition(receiver.local_addr) == partition)
+                    receiver.receive(sender, buf);
+            }
+        }
+
+
+        private int getPartition(Address mbr) {
+            Integer p=partitions.isEmpty()? null : (Integer)partitions.get(mbr);
+            return p != null? p.intValue() : 0;
+        }
+
+
+        synchronized TimeScheduler getTimer() {
+            if(timer == null)
+                timer=new TimeScheduler();
+            return timer;
+        }
+
+
+        public String toString() {
+            return "bus " + name + ": " + members.size() + " members, groups=" + groups.keySet();
+        }
+    }
+
+
+
+    /** Delivers a message to the incoming queue after a delay */
+    private class DelayedDelivery implements TimeScheduler.Task {
+        final byte[] buf;
+        final long   delay;
+        boolean      done=false;
+
+        DelayedDelivery(byte[] buf, long delay) {
+            this.buf=buf;
+            this.delay=delay;
+        }
+
+        public boolean cancelled() {
+            return done;
+        }
+
+        public long nextInterval() {
+            return delay;
+        }
+
+        public void run() {
+            done=true;
+            deliver(buf);
+        }
+    }
+
+
+
+    /** Removes messages from the incoming queue, deserializes them and passes them up */
+    private class IncomingHandler implements Runnable {
+        Thread t=null;
+
+        public void run() {
+            Queue  q=incoming_queue;
+            byte[] buf;
+
+            while(t != null) {
+                try {
+                    buf=(byte[])q.remove();
+                }
+                catch(QueueClosedException closed_ex) {
+                    break;
+                }
+                handleIncoming(buf);
+            }
+        }
+
+        void start() {
+            if(t == null) {
+                t=new Thread(this, "SHARED_LOOPBACK.IncomingHandler thread (" + local_addr + ")");
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        void stop() {
+            t=null;
+            if(incoming_queue != null)
+                incoming_queue.close(false);
+            incoming_queue=null;
+        }
+    }
+}
@@ -11,6 +11,7 @@ import org.jgroups.log.Trace;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.List;
+import org.jgroups.util.Metrics;
 
 import java.net.InetAddress;
 import java.util.Enumeration;
@@ -29,7 +30,10 @@ import java.util.Set;
  * e.g. in case we want to join the group.  When we are a server (after having received the
  * BECOME_SERVER event), we'll respond to TCPPING requests with a TCPPING response.<p> The
  * FIND_INITIAL_MBRS event will eventually be answered with a FIND_INITIAL_MBRS_OK event up
- * the stack.
+ * the stack.<p>
+ * If <code>discovery_cache</code> is set, the members of the last view are kept in that file (see
+ * {@link DiscoveryCache}) and contacted first on FIND_INITIAL_MBRS; if the coordinator responds within
+ * <code>cache_timeout</code> ms, <code>initial_hosts</code> are not probed.
  * @author Bela Ban
  */
 public class TCPPING extends Protocol {
@@ -43,6 +47,11 @@ public class TCPPING extends Protocol {
     int       port_range=1;        // number of ports to be probed for initial membership
     List      initial_hosts=null;  // hosts to be contacted for the initial membership
     boolean   is_server=false;
+    DiscoveryCache cache=null;     // members of the last view, contacted first
+    long      cache_timeout=1000;
+
+    final Metrics.Counter cache_hits=metrics.counter("cache_hits");
+    final Metrics.Counter cache_misses=metrics.counter("cache_misses");
 
 
     public String getName() {
@@ -87,6 +96,18 @@ public class TCPPING extends Protocol {
             initial_hosts=createInitialHosts(str);
         }
 
+        str=props.getProperty("discovery_cache");
+        if(str != null) {
+            cache=new DiscoveryCache(str);
+            props.remove("discovery_cache");
+        }
+
+        str=props.getProperty("cache_timeout");
+        if(str != null) {
+            cache_timeout=new Long(str).longValue();
+            props.remove("cache_timeout");
+        }
+
         if(props.size() > 0) {
             System.err.println("TCPPING.setProperties(): the following properties are not recognized:");
             props.list(System.out);
@@ -134,10 +155,7 @@ public class TCPPING extends Protocol {
 
                     case PingHeader.GET_MBRS_RSP:   // add response to vector and notify waiting thread
                         rsp=(PingRsp) hdr.arg;
-                        synchronized(initial_members) {
-                            initial_members.addElement(rsp);
-                            initial_members.notify();
-                        }
+                        DiscoveryCache.addResponse(initial_members, rsp); // drops duplicates, notifies waiting thread
                         return;
 
                     default:
@@ -186,6 +204,18 @@ public class TCPPING extends Protocol {
             case Event.FIND_INITIAL_MBRS:   // sent by GMS layer, pass up a GET_MBRS_OK event
                 initial_members.removeAllElements();
 
+                if(cache != null) {
+                    if(cache.findCoordinator(this, group_addr, local_addr, initial_members, cache_timeout)) {
+                        cache_hits.inc();
+                        if(Trace.trace)
+                            Trace.info("TCPPING.down()", "[FIND_INITIAL_MBRS] initial members (from discovery cache) are " +
+                                                         initial_members);
+                        passUp(new Event(Event.FIND_INITIAL_MBRS_OK, initial_members));
+                        break;
+                    }
+                    cache_misses.inc();
+                }
+
                 IpAddress h;
                 List hlist;
                 msg=new Message(null, null, null);
@@ -203,7 +233,7 @@ public class TCPPING extends Protocol {
                             h=(IpAddress)hen.nextElement();
                             if (members_set.contains(h)) {
                                 //update the initial_members list for this already connected member
-                                initial_members.add(new PingRsp(h, coord));
+                                DiscoveryCache.addResponse(initial_members, new PingRsp(h, coord));
                                 isMember = true;
                                 numMemberInitialHosts++;
                                 if(Trace.trace) {
@@ -254,6 +284,8 @@ public class TCPPING extends Protocol {
                         members_set.addAll(tmp);
                     }
                 }
+                if(cache != null && evt.getType() == Event.VIEW_CHANGE)
+                    cache.save(group_addr, (View)evt.getArg());
                 passDown(evt);
                 break;
 
@@ -10,6 +10,7 @@ import org.jgroups.util.Queue;
 import org.jgroups.util.List;
 import org.jgroups.stack.*;
 import org.jgroups.log.Trace;
+import org.jgroups.log.Log;
 
 /**
  * IP multicast transport based on UDP. Messages to the group (msg.dest == null) will
@@ -33,6 +34,8 @@ import org.jgroups.log.Trace;
 public class UDP
     extends Protocol
     implements Runnable {
+  private static final Log log=Log.getLog("UDP");
+
 
   /** Socket used for
    * <ol>
@@ -193,7 +196,7 @@ public class UDP
         data = packet.getData();
         if (len == 1 && data[0] == 0) {
           if (Trace.debug) {
-            Trace.info("UDP.run()", "received dummy packet");
+            log.info("run()", "received dummy packet");
           }
           continue;
         }
@@ -207,13 +210,13 @@ public class UDP
         }
 
         if (Trace.debug) {
-          Trace.info("UDP.receive()",
+          log.info("receive()",
                      "received (mcast) " + packet.getLength() + " bytes from " +
                      packet.getAddress() + ":" + packet.getPort() + " (size=" +
                      len + " bytes)");
         }
         if (len > receive_buf.length) {
-          Trace.error("UDP.run()",
+          log.error("run()",
                       "size of the received packet (" + len + ") is bigger than " +
                       "allocated buffer (" + receive_buf.length +
                       "): will not be able to handle packet. " +
@@ -222,7 +225,7 @@ public class UDP
         }
 
         if (Version.compareTo(data) == false) {
-          Trace.warn("UDP.run()",
+          log.warn("run()",
                      "packet from " + packet.getAddress() + ":" +
                      packet.getPort() +
                      " has different version (" +
@@ -242,8 +245,8 @@ public class UDP
         }
       }
       catch (SocketException sock_ex) {
-        if (Trace.trace) {
-          Trace.info("UDP.run()",
+        if (log.isInfoEnabled()) {
+          log.info("run()",
                      "multicast socket is closed, exception=" + sock_ex);
         }
         break;
@@ -252,14 +255,14 @@ public class UDP
         ; // go back to top of loop, where we will terminate loop
       }
       catch (Throwable ex) {
-        Trace.error("UDP.run()",
+        log.error("run()",
                     "exception=" + ex + ", stack trace=" +
                     Util.printStackTrace(ex));
         Util.sleep(300); // so we don't get into 100% cpu spinning (should NEVER happen !)
       }
     }
-    if (Trace.trace) {
-      Trace.info("UDP.run()", "multicast thread terminated");
+    if (log.isInfoEnabled()) {
+      log.info("run()", "multicast thread terminated");
     }
   }
 
@@ -268,30 +271,36 @@ public class UDP
       byte[] diag_rsp = getDiagResponse().getBytes();
       DatagramPacket rsp = new DatagramPacket(diag_rsp, 0, diag_rsp.length,
                                               sender, port);
-      if (Trace.trace) {
-        Trace.info("UDP.handleDiagnosticProbe()",
+      if (log.isInfoEnabled()) {
+        log.info("handleDiagnosticProbe()",
                    "sending diag response to " + sender + ":" + port);
       }
       sock.send(rsp);
     }
     catch (Throwable t) {
-      Trace.error("UDP.handleDiagnosticProbe()",
+      log.error("handleDiagnosticProbe()",
                   "failed sending diag rsp to " + sender + ":" + port +
                   ", exception=" + t);
     }
   }
 
+  /**
+   * Returns one <code>key=value</code> pair per line: the identity of this member, followed by the
+   * metrics of all protocols (<code>PROTOCOL.metric=value</code>, see ProtocolStack.dumpMetrics())
+   */
   String getDiagResponse() {
     StringBuffer sb = new StringBuffer();
-    sb.append(local_addr).append(" (").append(group_addr).append(")");
-    sb.append(" [").append(mcast_addr_name).append(":").append(mcast_port).
-        append("]\n");
-//    sb.append("Version=").append(Version.version).append(", cvs=\"").append(
-//        Version.cvs).append("\"\n");
-    sb.append("bound to ").append(bind_addr).append(":").append(bind_port).
-        append("\n");
-    sb.append("members: ").append(members).append("\n");
-
+    sb.append("local_addr=").append(local_addr).append("\n");
+    sb.append("group_addr=").append(group_addr).append("\n");
+    sb.append("mcast_addr=").append(mcast_addr_name).append(":").append(mcast_port).append("\n");
+    sb.append("bind_addr=").append(bind_addr).append(":").append(bind_port).append("\n");
+    sb.append("members=").append(members).append("\n");
+    if (stack != null) {
+      sb.append(stack.dumpMetrics());
+    }
+    else {
+      metrics.dump(getName(), sb);
+    }
     return sb.toString();
   }
 
@@ -329,8 +338,8 @@ public class UDP
    * Creates the unicast and multicast sockets and starts the unicast and multicast receiver threads
    */
   public void start() throws Exception {
-    if (Trace.trace) {
-      Trace.info("UDP.start()",
+    if (log.isInfoEnabled()) {
+      log.info("start()",
                  "creating sockets and starting threads");
     }
     createSockets();
@@ -339,8 +348,8 @@ public class UDP
   }
 
   public void stop() {
-    if (Trace.trace) {
-      Trace.info("UDP.stop()", "closing sockets and stopping threads");
+    if (log.isInfoEnabled()) {
+      log.info("stop()", "closing sockets and stopping threads");
     }
     stopThreads(); // will close sockets, closeSockets() is not really needed anymore, but...
     closeSockets(); // ... we'll leave it in there for now (doesn't do anything if already closed)
@@ -373,7 +382,7 @@ public class UDP
         bind_addr = InetAddress.getByName(str);
       }
       catch (UnknownHostException unknown) {
-        Trace.fatal("UDP.setProperties()",
+        log.fatal("setProperties()",
                     "(bind_addr): host " + str + " not known");
         return false;
       }
@@ -457,7 +466,7 @@ public class UDP
     if (str != null) {
       use_incoming_packet_handler = new Boolean(str).booleanValue();
       props.remove("use_packet_handler");
-      Trace.warn("UDP.setProperties()",
+      log.warn("setProperties()",
                  "'use_packet_handler' is deprecated; use 'use_incoming_packet_handler' instead");
     }
 
@@ -477,13 +486,13 @@ public class UDP
     if (str != null) {
       int bundle_size = Integer.parseInt(str);
       if (bundle_size > max_bundle_size) {
-        Trace.error("UDP.setProperties()", "max_bundle_size (" + bundle_size +
+        log.error("setProperties()", "max_bundle_size (" + bundle_size +
                     ") is greater than largest UDP fragmentation size (" +
                     max_bundle_size + ")");
         return false;
       }
       if (bundle_size <= 0) {
-        Trace.error("UDP.setProperties()",
+        log.error("setProperties()",
                     "max_bundle_size (" + bundle_size + ") is <= 0");
         return false;
       }
@@ -495,7 +504,7 @@ public class UDP
     if (str != null) {
       max_bundle_timeout = Long.parseLong(str);
       if (max_bundle_timeout <= 0) {
-        Trace.error("UDP.setProperties()",
+        log.error("setProperties()",
                     "max_bundle_timeout of " + max_bundle_timeout +
                     " is invalid");
         return false;
@@ -518,7 +527,7 @@ public class UDP
 
     if (enable_bundling) {
       if (use_outgoing_packet_handler == false) {
-        Trace.warn("UDP.setProperties()",
+        log.warn("setProperties()",
             "enable_bundling is true; setting use_outgoing_packet_handler=true");
       }
       use_outgoing_packet_handler = true;
@@ -546,8 +555,8 @@ public class UDP
 
       case Event.CONFIG:
         passUp(evt);
-        if (Trace.trace) {
-          Trace.info("UDP.up()", "received CONFIG event: " + evt.getArg());
+        if (log.isInfoEnabled()) {
+          log.info("up()", "received CONFIG event: " + evt.getArg());
         }
         handleConfigEvent( (HashMap) evt.getArg());
         return;
@@ -582,8 +591,8 @@ public class UDP
         long total_time=stop-start;
         double msgs_per_msec=num_msgs / (double)total_time;
 
-        if(Trace.trace)
-            Trace.info("UDP.down.profile()",
+        if(log.isInfoEnabled())
+            log.info("down.profile()",
                     "total_time=" + total_time + ", msgs/ms=" + msgs_per_msec);
         num_msgs=0;
              }
@@ -610,7 +619,7 @@ public class UDP
     if (dest_addr == null) { // 'null' means send to all group members
       if (ip_mcast) {
         if (mcast_addr == null) {
-          Trace.error("UDP.down()", "dest address of message is null, and " +
+          log.error("down()", "dest address of message is null, and " +
                       "sending to default address fails as mcast_addr is null, too !" +
                       " Discarding message " + Util.printEvent(evt));
           return;
@@ -629,7 +638,7 @@ public class UDP
       sendUdpMessage(msg);
     }
     catch (Exception e) {
-      Trace.error("UDP.down()",
+      log.error("down()",
                   "exception=" + e + ", msg=" + msg + ", mcast_addr=" +
                   mcast_addr);
     }
@@ -678,7 +687,7 @@ public class UDP
             handleMessage(msg);
           }
           catch (Throwable t) {
-            Trace.error("UDP.handleIncomingUdpPacket()",
+            log.error("handleIncomingUdpPacket()",
                         "failure: " + t.toString());
           }
         }
@@ -690,7 +699,7 @@ public class UDP
       }
     }
     catch (Throwable e) {
-      Trace.error("UDP.handleIncomingUdpPacket()",
+      log.error("handleIncomingUdpPacket()",
                   "exception=" + Trace.getStackTrace(e));
     }
   }
@@ -707,7 +716,7 @@ public class UDP
       if (dst != null && dst.isMulticastAddress() && src != null &&
           local_addr.equals(src)) {
         if (Trace.debug) {
-          Trace.info("UDP.handleMessage()",
+          log.info("handleMessage()",
                      "discarded own loopback multicast packet");
         }
         return;
@@ -716,7 +725,7 @@ public class UDP
 
     evt = new Event(Event.MSG, msg);
     if (Trace.debug) {
-      Trace.info("UDP.handleMessage()",
+      log.info("handleMessage()",
                  "message is " + msg + ", headers are " + msg.getHeaders());
 
       /* Because Protocol.up() is never called by this bottommost layer, we call up() directly in the observer.
@@ -740,8 +749,8 @@ public class UDP
       }
       if (ch_name != null && group_addr != null && !group_addr.equals(ch_name) &&
           !ch_name.equals(Util.DIAG_GROUP)) {
-        if (Trace.trace) {
-          Trace.warn("UDP.handleMessage()",
+        if (log.isWarnEnabled()) {
+          log.warn("handleMessage()",
                      "discarded message from different group (" +
                      ch_name + "). Sender was " + msg.getSrc());
         }
@@ -749,7 +758,7 @@ public class UDP
       }
     }
     else {
-      Trace.error("UDP.handleMessage()", "message does not have a UDP header");
+      log.error("handleMessage()", "message does not have a UDP header");
     }
     passUp(evt);
   }
@@ -764,7 +773,7 @@ public class UDP
     setSourceAddress(msg);
 
     if (Trace.debug) {
-      Trace.debug("UDP.sendUdpMessage()",
+      log.debug("sendUdpMessage()",
                   "sending message to " + msg.getDest() +
                   " (src=" + msg.getSrc() + "), headers are " + msg.getHeaders());
 
@@ -785,7 +794,7 @@ public class UDP
         observer.up(evt, up_queue.size());
       }
       if (Trace.debug) {
-        Trace.info("UDP.sendUdpMessage()", "looped back local message " + copy);
+        log.info("sendUdpMessage()", "looped back local message " + copy);
       }
       passUp(evt);
       if (!dest.isMulticastAddress()) {
@@ -827,7 +836,7 @@ public class UDP
         sendUdpMessage(msg);
       }
       catch (Exception e) {
-        Trace.debug("UDP.sendMultipleUdpMessages()", "exception=" + e);
+        log.debug("sendMultipleUdpMessages()", "exception=" + e);
       }
     }
   }
@@ -872,8 +881,8 @@ public class UDP
     if(bind_addr == null)
       bind_addr = InetAddress.getLocalHost();
 
-    if (bind_addr != null && Trace.trace) {
-      Trace.info("UDP.createSockets()", "unicast sockets will use interface " +
+    if (bind_addr != null && log.isInfoEnabled()) {
+      log.info("createSockets()", "unicast sockets will use interface " +
                  bind_addr.getHostAddress());
 
       // 2. Create socket for receiving unicast UDP packets. The address and port
@@ -926,8 +935,8 @@ public class UDP
 
     setBufferSizes();
 
-    if (Trace.trace) {
-      Trace.info("UDP.createSockets()",
+    if (log.isInfoEnabled()) {
+      log.info("createSockets()",
                  "socket information:\n" + dumpSocketInfo());
     }
   }
@@ -964,14 +973,14 @@ public class UDP
         sock.setSendBufferSize(ucast_send_buf_size);
       }
       catch (Throwable ex) {
-        Trace.warn("UDP.setBufferSizes()",
+        log.warn("setBufferSizes()",
                    "failed setting ucast_send_buf_size in sock: " + ex);
       }
       try {
         sock.setReceiveBufferSize(ucast_recv_buf_size);
       }
       catch (Throwable ex) {
-        Trace.warn("UDP.setBufferSizes()",
+        log.warn("setBufferSizes()",
                    "failed setting ucast_recv_buf_size in sock: " + ex);
       }
 
@@ -982,7 +991,7 @@ public class UDP
         mcast_sock.setSendBufferSize(mcast_send_buf_size);
       }
       catch (Throwable ex) {
-        Trace.warn("UDP.setBufferSizes()",
+        log.warn("setBufferSizes()",
                    "failed setting mcast_send_buf_size in mcast_sock: " + ex);
       }
 
@@ -990,7 +999,7 @@ public class UDP
         mcast_sock.setReceiveBufferSize(mcast_recv_buf_size);
       }
       catch (Throwable ex) {
-        Trace.warn("UDP.setBufferSizes()",
+        log.warn("setBufferSizes()",
                    "failed setting mcast_recv_buf_size in mcast_sock: " + ex);
       }
     }
@@ -1018,8 +1027,8 @@ public class UDP
         }
         mcast_sock.close(); // this will cause the mcast receiver thread to break out of its loop
         mcast_sock = null;
-        if (Trace.trace) {
-          Trace.info("UDP.closeMulticastSocket()", "multicast socket closed");
+        if (log.isInfoEnabled()) {
+          log.info("closeMulticastSocket()", "multicast socket closed");
         }
       }
       catch (IOException ex) {
@@ -1035,8 +1044,8 @@ public class UDP
 
       sock.close();
       sock = null;
-      if (Trace.trace) {
-        Trace.info("UDP.closeSocket()", "socket closed");
+      if (log.isInfoEnabled()) {
+        log.info("closeSocket()", "socket closed");
       }
     }
   }
@@ -1063,12 +1072,12 @@ public class UDP
     }
 
     if (Trace.debug) {
-      Trace.info("UDP.sendDummyPacket()",
+      log.info("sendDummyPacket()",
                  "sending packet to " + dest + ":" + port);
 
     }
     if (sock == null || dest == null) {
-      Trace.warn("UDP.sendDummyPacket()",
+      log.warn("sendDummyPacket()",
                  "sock was null or dest was null, cannot send dummy packet");
       return;
     }
@@ -1077,7 +1086,7 @@ public class UDP
       sock.send(packet);
     }
     catch (Throwable e) {
-      Trace.error("UDP.sendDummyPacket()",
+      log.error("sendDummyPacket()",
                   "exception sending dummy packet to " + dest + ":" + port +
                   ": " + e);
     }
@@ -1091,16 +1100,16 @@ public class UDP
       //start the listener thread of the ucast_recv_sock
       ucast_receiver = new UcastReceiver();
       ucast_receiver.start();
-      if (Trace.trace) {
-        Trace.info("UDP.startThreads()", "created unicast receiver thread");
+      if (log.isInfoEnabled()) {
+        log.info("startThreads()", "created unicast receiver thread");
       }
     }
 
     if (ip_mcast) {
       if (mcast_receiver != null) {
         if (mcast_receiver.isAlive()) {
-          if (Trace.trace) {
-            Trace.info("UDP.createThreads()",
+          if (log.isInfoEnabled()) {
+            log.info("createThreads()",
                        "did not create new multicastreceiver thread as existing " +
                        "multicast receiver thread is still running");
           }
@@ -1193,8 +1202,8 @@ public class UDP
         break;
 
       case Event.CONFIG:
-        if (Trace.trace) {
-          Trace.info("UDP.down()", "received CONFIG event: " + evt.getArg());
+        if (log.isInfoEnabled()) {
+          log.info("down()", "received CONFIG event: " + evt.getArg());
         }
         handleConfigEvent( (HashMap) evt.getArg());
         break;
@@ -1216,6 +1225,9 @@ public class UDP
       mcast_recv_buf_size = ( (Integer) map.get("recv_buf_size")).intValue();
       ucast_recv_buf_size = mcast_recv_buf_size;
     }
+    if (map.containsKey("max_bundle_size")) {
+      max_bundle_size = ( (Integer) map.get("max_bundle_size")).intValue();
+    }
     setBufferSizes();
   }
 
@@ -1266,17 +1278,17 @@ public class UDP
           data = packet.getData();
           if (len == 1 && data[0] == 0) {
             if (Trace.debug) {
-              Trace.info("UDP.UcastReceiver.run()", "received dummy packet");
+              log.info("UcastReceiver.run()", "received dummy packet");
             }
             continue;
           }
           if (Trace.debug) {
-            Trace.info("UDP.UcastReceiver.run()",
+            log.info("UcastReceiver.run()",
                        "received (ucast) " + len + " bytes from " +
                        packet.getAddress() + ":" + packet.getPort());
           }
           if (len > receive_buf.length) {
-            Trace.error("UDP.UcastReceiver.run()",
+            log.error("UcastReceiver.run()",
                         "size of the received packet (" + len +
                         ") is bigger than " +
                         "allocated buffer (" + receive_buf.length +
@@ -1286,7 +1298,7 @@ public class UDP
           }
 
           if (Version.compareTo(data) == false) {
-            Trace.warn("UDP.UcastReceiver.run()",
+            log.warn("UcastReceiver.run()",
                        "packet from " + packet.getAddress() + ":" +
                        packet.getPort() +
                        " has different version (" +
@@ -1306,8 +1318,8 @@ public class UDP
           }
         }
         catch (SocketException sock_ex) {
-          if (Trace.trace) {
-            Trace.info("UDP.UcastReceiver.run()",
+          if (log.isInfoEnabled()) {
+            log.info("UcastReceiver.run()",
                        "unicast receiver socket is closed, exception=" +
                        sock_ex);
           }
@@ -1317,14 +1329,14 @@ public class UDP
           ; // go back to top of loop, where we will terminate loop
         }
         catch (Throwable ex) {
-          Trace.error("UDP.UcastReceiver.run()",
+          log.error("UcastReceiver.run()",
                       "[" + local_addr + "] exception=" + ex +
                       ", stack trace=" + Util.printStackTrace(ex));
           Util.sleep(300); // so we don't get into 100% cpu spinning (should NEVER happen !)
         }
       }
-      if (Trace.trace) {
-        Trace.info("UDP.UcastReceiver.run()",
+      if (log.isInfoEnabled()) {
+        log.info("UcastReceiver.run()",
                    "unicast receiver thread terminated");
       }
     }
@@ -1345,8 +1357,8 @@ public class UDP
           data = (byte[]) incoming_queue.remove();
         }
         catch (QueueClosedException closed_ex) {
-          if (Trace.trace) {
-            Trace.info("UDP.IncomingPacketHandler.run()",
+          if (log.isInfoEnabled()) {
+            log.info("IncomingPacketHandler.run()",
                        "packet_handler thread terminating");
           }
           break;
@@ -1394,14 +1406,14 @@ public class UDP
           handleMessage(msg);
         }
         catch (QueueClosedException closed_ex) {
-          if (Trace.trace) {
-            Trace.info("UDP.OutgoingPacketHandler.run()",
+          if (log.isInfoEnabled()) {
+            log.info("OutgoingPacketHandler.run()",
                        "packet_handler thread terminating");
           }
           break;
         }
         catch (Throwable t) {
-          Trace.error("UDP.OutgoingPacketHandler.run()",
+          log.error("OutgoingPacketHandler.run()",
                       "exception sending packet: " + Util.printStackTrace(t));
         }
         msg = null; // let's give the poor garbage collector a hand...
@@ -1494,8 +1506,8 @@ public class UDP
       }
 
       if (total_bytes + len >= max_bundle_size) {
-        if (Trace.trace) {
-          Trace.info("UDP.BundlingOutgoingPacketHandler.handleMessage()",
+        if (log.isInfoEnabled()) {
+          log.info("BundlingOutgoingPacketHandler.handleMessage()",
                      "sending " + total_bytes + " bytes");
         }
         bundleAndSend(); // send all pending message and clear table
@@ -1526,8 +1538,8 @@ public class UDP
       byte[] data;
       List l;
 
-      if (Trace.trace) {
-        Trace.info("UDP.BundlingOutgoingPacketHandler.bundleAndSend()",
+      if (log.isInfoEnabled()) {
+        log.info("BundlingOutgoingPacketHandler.bundleAndSend()",
                    "\nsending msgs:\n" + dumpMessages(msgs));
 
       }
@@ -1557,7 +1569,7 @@ public class UDP
             doSend(data, addr, port);
           }
           catch (IOException e) {
-            Trace.error("UDP.BundlingOutgoingPacketHandle.bundleAndSend()",
+            log.error("BundlingOutgoingPacketHandle.bundleAndSend()",
                         "exception sending msg (to dest=" + dest + "): " + e);
           }
         }
@@ -47,6 +47,14 @@ public class UNICAST extends Protocol implements AckSenderWindow.RetransmitComma
     boolean       use_gms=true;
     int           window_size=-1;                // sliding window: max number of msgs in table
     int           min_threshold=-1;              // num under which table has to fall before we resume adding msgs
+
+    final Metrics.Counter xmit_msgs_sent=metrics.counter("xmit_msgs_sent");  // msgs retransmitted by us
+
+    {
+        metrics.gauge("connections", new Metrics.Gauge() {
+            public long getValue() {return connections.size();}
+        });
+    }
     
 
 
@@ -316,6 +324,7 @@ public class UNICAST extends Protocol implements AckSenderWindow.RetransmitComma
 	
         if(Trace.debug)
             Trace.info("UNICAST.retransmit()", "[" + local_addr + "] --> XMIT(" + dst + ": #" + seqno + ")");
+        xmit_msgs_sent.inc();
 
 	if(Trace.copy)
 	    passDown(new Event(Event.MSG, msg.copy()));
@@ -8,7 +8,7 @@ import org.jgroups.Header;
 import org.jgroups.Message;
 import org.jgroups.log.Trace;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.Util;
+import org.jgroups.util.Metrics;
 
 import java.io.IOException;
 import java.io.ObjectInput;
@@ -22,7 +22,16 @@ import java.util.Vector;
 /**
  * Catches SUSPECT events traveling up the stack. Verifies that the suspected member is really dead. If yes,
  * passes SUSPECT event up the stack, otherwise discards it. Has to be placed somewhere above the FD layer and
- * below the GMS layer (receiver of the SUSPECT event). Note that SUSPECT events may be reordered by this protocol.
+ * below the GMS layer (receiver of the SUSPECT event). Note that SUSPECT events may be reordered by this protocol.<p>
+ * All suspects are verified in parallel: an ARE_YOU_DEAD message is sent as soon as a member is suspected, and a
+ * single timer thread waits for the earliest timeout. By default, a SUSPECT event is passed up for each member
+ * which failed verification.<p>
+ * When <code>batch_suspects</code> is true, all members whose verification has failed when the timer thread wakes
+ * up are passed up together, in a single SUSPECT_MULTIPLE event (arg = Vector of Addresses), so that GMS can
+ * exclude all of them with one view, e.g. when a number of members crash at the same time. If only one member
+ * failed verification, a regular SUSPECT event is passed up. Only GMS and pbcast.GMS handle SUSPECT_MULTIPLE:
+ * enable batch_suspects only if no other protocol which acts on SUSPECT events (e.g. protocols.NAKACK, SMACK or
+ * TOTAL_TOKEN) is located between this layer and GMS, as those would not learn about the suspected members.
  */
 public class VERIFY_SUSPECT extends Protocol implements Runnable {
     Address local_addr=null;
@@ -30,7 +39,13 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
     int num_msgs=1;     // number of are-you-alive msgs and i-am-not-dead responses (for redundancy)
     Vector members=null;
     Hashtable suspects=new Hashtable();  // keys=Addresses, vals=time in mcses since added
-    Thread timer=null;
+    volatile Thread timer=null;
+    boolean batch_suspects=false;       // pass up all members which failed verification in one SUSPECT_MULTIPLE event
+
+    final Metrics.Counter suspects_confirmed=metrics.counter("suspects_confirmed");
+    final Metrics.Counter suspects_refuted=metrics.counter("suspects_refuted");
+    /** Number of members passed up together (in one SUSPECT or SUSPECT_MULTIPLE event) */
+    final Metrics.Histogram batch_size=metrics.histogram("batch_size");
 
 
     public String getName() {
@@ -58,6 +73,12 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
             props.remove("num_msgs");
         }
 
+        str=props.getProperty("batch_suspects");
+        if(str != null) {
+            batch_suspects=new Boolean(str).booleanValue();
+            props.remove("batch_suspects");
+        }
+
         if(props.size() > 0) {
             System.err.println("VERIFY_SUSPECT.setProperties(): the following properties are not recognized:");
             props.list(System.out);
@@ -122,41 +143,66 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
 
 
     /**
-     * Will be started when a suspect is added to the suspects hashtable. Continually iterates over the
-     * entries and removes entries whose time have elapsed. For each removed entry, a SUSPECT event is passed
-     * up the stack (because elapsed time means verification of member's liveness failed). Computes the shortest
-     * time to wait (min of all timeouts) and waits(time) msecs. Will be woken up when entry is removed (in case
-     * of successful verification of that member's liveness). Terminates when no entry remains in the hashtable.
+     * Will be started when a suspect is added to the suspects hashtable. Waits until the earliest verification times
+     * out, then removes all entries whose time has elapsed and passes them up (because elapsed time means
+     * verification of the members' liveness failed) in one event. Entries removed in the meantime (successful
+     * verification of a member's liveness) are simply not found anymore. If batch_suspects is true and other
+     * verifications are still in progress when the earliest one fails, the failed members are held back until those
+     * have completed too (at most timeout ms), so that members suspected a few ms apart are passed up together.
+     * Terminates when no entry remains in the hashtable, or when stopped.
      */
     public void run() {
         Address mbr;
-        long val, curr_time, diff;
-
-        while(timer != null && suspects.size() > 0) {
-            diff=0;
+        Vector  dead;
+        long    curr_time, diff, wait_time, max_remaining, release_time=0;
 
+        while(true) {
+            dead=null;
+            max_remaining=0;
             synchronized(suspects) {
+                if(timer != Thread.currentThread())
+                    return;
+                if(suspects.size() == 0) {
+                    timer=null;  // suspect() starts a new thread for the next suspect
+                    return;
+                }
+                curr_time=System.currentTimeMillis();
+                wait_time=timeout;
                 for(Enumeration e=suspects.keys(); e.hasMoreElements();) {
                     mbr=(Address)e.nextElement();
-                    val=((Long)suspects.get(mbr)).longValue();
-                    curr_time=System.currentTimeMillis();
-                    diff=curr_time - val;
-                    if(diff >= timeout) {  // haven't been unsuspected, pass up SUSPECT
-                        if(Trace.trace)
-                            Trace.info("VERIFY_SUSPECT.run()", "diff=" + diff + ", mbr " + mbr +
-                                                               " is dead (passing up SUSPECT event)");
-                        passUp(new Event(Event.SUSPECT, mbr));
-                        suspects.remove(mbr);
-                        continue;
+                    diff=curr_time - ((Long)suspects.get(mbr)).longValue();
+                    if(diff >= timeout) {  // haven't been unsuspected
+                        if(dead == null)
+                            dead=new Vector();
+                        dead.addElement(mbr);
+                    }
+                    else {
+                        wait_time=Math.min(wait_time, timeout - diff);
+                        max_remaining=Math.max(max_remaining, timeout - diff);
+                    }
+                }
+                if(dead != null && batch_suspects && max_remaining > 0) { // wait for the verifications in progress
+                    if(release_time == 0)
+                        release_time=curr_time + max_remaining;  // later suspects don't delay the batch any further
+                    if(curr_time < release_time) {
+                        wait_time=Math.min(wait_time, release_time - curr_time);
+                        dead=null;
                     }
-                    diff=Math.max(diff, timeout - diff);
                 }
+                if(dead == null) {
+                    try {
+                        suspects.wait(wait_time);
+                    }
+                    catch(InterruptedException ex) {
+                    }
+                    continue;
+                }
+                for(int i=0; i < dead.size(); i++)
+                    suspects.remove(dead.elementAt(i));
+                release_time=0;
             }
-
-            if(diff > 0)
-                Util.sleep(diff);
+            passUpSuspects(dead); // not holding the lock: GMS may install a new view in the same thread
         }
-        timer=null;
     }
 
 
@@ -173,7 +219,7 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
 
         synchronized(suspects) {
             if(suspects.containsKey(mbr))
-                return;
+                return;  // already being verified
             suspects.put(mbr, new Long(System.currentTimeMillis()));
             if(Trace.trace)
                 Trace.info("VERIFY_SUSPECT.suspect()", "verifying that " + mbr + " is dead");
@@ -182,9 +228,26 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
                 msg.putHeader(getName(), new VerifyHeader(VerifyHeader.ARE_YOU_DEAD, local_addr));
                 passDown(new Event(Event.MSG, msg));
             }
+            if(timer == null)
+                startTimer();
+        }
+    }
+
+
+    /** Passes up the members which failed verification, in one SUSPECT_MULTIPLE event if batch_suspects is true */
+    void passUpSuspects(Vector dead) {
+        if(Trace.trace)
+            Trace.info("VERIFY_SUSPECT.passUpSuspects()", "members " + dead + " are dead (passing up SUSPECT event)");
+        suspects_confirmed.add(dead.size());
+        batch_size.record(dead.size());
+        if(dead.size() == 1)
+            passUp(new Event(Event.SUSPECT, dead.firstElement()));
+        else if(batch_suspects)
+            passUp(new Event(Event.SUSPECT_MULTIPLE, dead));
+        else {
+            for(int i=0; i < dead.size(); i++)
+                passUp(new Event(Event.SUSPECT, dead.elementAt(i)));
         }
-        if(timer == null)
-            startTimer();
     }
 
     void unsuspect(Address mbr) {
@@ -194,6 +257,7 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
                 if(Trace.trace)
                     Trace.info("VERIFY_SUSPECT.unsuspect()", "member " + mbr + " is not dead !");
                 suspects.remove(mbr);
+                suspects_refuted.inc();
                 passDown(new Event(Event.UNSUSPECT, mbr));
                 passUp(new Event(Event.UNSUSPECT, mbr));
             }
@@ -210,14 +274,11 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
     }
 
     public void stop() {
-        Thread tmp;
-        if(timer != null && timer.isAlive()) {
-            tmp=timer;
-            timer=null;
-            tmp.interrupt();
-            tmp=null;
+        synchronized(suspects) {
+            timer=null;  // the timer thread terminates when it sees that it was replaced
+            suspects.clear();
+            suspects.notifyAll();
         }
-        timer=null;
     }
     /* ----------------------------- End of Private Methods -------------------------------- */
 
@@ -6,6 +6,7 @@ package org.jgroups.protocols.pbcast;
 import org.jgroups.*;
 import org.jgroups.log.Trace;
 import org.jgroups.util.Promise;
+import org.jgroups.util.Util;
 
 import java.io.Serializable;
 import java.util.Iterator;
@@ -16,7 +17,11 @@ import java.util.Vector;
 
 /**
  * Coordinator role of the Group MemberShip (GMS) protocol. Accepts JOIN and LEAVE requests and emits view changes
- * accordingly.
+ * accordingly.<p>
+ * If <code>view_bundling</code> is enabled in GMS, JOIN, LEAVE and SUSPECT requests are queued, and the
+ * ViewBundler thread handles all requests received within <code>max_bundling_time</code> ms with a single view:
+ * when many members join (or leave) at the same time, e.g. on startup of a cluster, only one view (and one digest)
+ * is installed, rather than one per member.
  * @author Bela Ban
  */
 public class CoordGmsImpl extends GmsImpl {
@@ -28,6 +33,10 @@ public class CoordGmsImpl extends GmsImpl {
     // for MERGE_REQ/MERGE_RSP correlation, contains MergeData elements
     Serializable merge_id=null;
 
+    /** Queued JOIN/LEAVE/SUSPECT requests (Request elements), handled by view_bundler */
+    final Vector pending_requests=new Vector();
+    ViewBundler  view_bundler=new ViewBundler();
+
     public CoordGmsImpl(GMS g) {
         gms=g;
     }
@@ -66,6 +75,33 @@ public class CoordGmsImpl extends GmsImpl {
         handleSuspect(mbr);
     }
 
+    /** Excludes all members in mbrs with a single view (or queues them, if view bundling is enabled) */
+    public synchronized void suspect(Vector mbrs) {
+        Vector  suspected=new Vector();
+        Address mbr;
+
+        for(int i=0; i < mbrs.size(); i++) {
+            mbr=(Address)mbrs.elementAt(i);
+            if(mbr.equals(gms.local_addr)) {
+                handleSuspect(mbr);
+                continue;
+            }
+            if(gms.view_bundling) {
+                addRequest(Request.SUSPECT, mbr);
+                continue;
+            }
+            if(gms.members.contains(mbr) && !suspected.contains(mbr))
+                suspected.addElement(mbr);
+            else if(Trace.trace)
+                Trace.error("CoordGmsImpl.suspect()", "mbr " + mbr + " is not a member !");
+        }
+        if(suspected.size() > 0) {
+            if(Trace.trace)
+                Trace.info("CoordGmsImpl.suspect()", "excluding suspected mbrs " + suspected);
+            gms.castViewChange(null, null, suspected);
+        }
+    }
+
     public void unsuspect(Address mbr) {
 
     }
@@ -298,6 +334,10 @@ public class CoordGmsImpl extends GmsImpl {
 
         if(Trace.trace)
             Trace.info("CoordGmsImpl.handleLeave()", "mbr=" + mbr);
+        if(gms.view_bundling && !mbr.equals(gms.local_addr)) { // the coordinator's own leave is not delayed
+            addRequest(suspected? Request.SUSPECT : Request.LEAVE, mbr);
+            return;
+        }
         if(!gms.members.contains(mbr)) {
             if(Trace.trace)
                 Trace.error(
@@ -351,6 +391,111 @@ public class CoordGmsImpl extends GmsImpl {
 
     public void stop() {
         merge_task.stop();
+        view_bundler.stop();
+        synchronized(pending_requests) {
+            pending_requests.removeAllElements();
+        }
+    }
+
+
+    /** Queues a JOIN, LEAVE or SUSPECT request, to be handled (together with others) by the view bundler */
+    void addRequest(int type, Address mbr) {
+        synchronized(pending_requests) {
+            pending_requests.addElement(new Request(type, mbr));
+            pending_requests.notifyAll();
+        }
+        view_bundler.start();
+    }
+
+
+    /**
+     * Handles a batch of queued requests with a single view: all new members are added, all leaving and suspected
+     * members are removed. Each new member is sent a JoinRsp with that view and a digest that includes all new
+     * members. A member which leaves (or is suspected) after its JOIN in the same batch is not added.
+     */
+    synchronized void handleRequests(Vector requests) {
+        Vector  new_mbrs=new Vector(), left_mbrs=new Vector(), suspected_mbrs=new Vector();
+        Vector  existing_mbrs=new Vector(); // sent a JOIN although already members (e.g. JOIN_RSP was lost)
+        Request req;
+        Digest  d=null, tmp;
+        View    v;
+        JoinRsp join_rsp;
+
+        if(gms.getImpl() != this) {
+            if(Trace.trace)
+                Trace.warn("CoordGmsImpl.handleRequests()", "not coordinator anymore, discarding " + requests.size() +
+                                                            " requests");
+            return;
+        }
+
+        for(int i=0; i < requests.size(); i++) {
+            req=(Request)requests.elementAt(i);
+            switch(req.type) {
+                case Request.JOIN:
+                    if(gms.local_addr.equals(req.mbr)) {
+                        Trace.error("CoordGmsImpl.handleRequests()", "cannot join myself !");
+                        break;
+                    }
+                    if(gms.members.contains(req.mbr)) {
+                        if(!existing_mbrs.contains(req.mbr))
+                            existing_mbrs.addElement(req.mbr);
+                    }
+                    else if(!new_mbrs.contains(req.mbr))
+                        new_mbrs.addElement(req.mbr);
+                    break;
+                case Request.LEAVE:
+                case Request.SUSPECT:
+                    if(new_mbrs.removeElement(req.mbr) || !gms.members.contains(req.mbr))
+                        break;
+                    existing_mbrs.removeElement(req.mbr);
+                    if(!left_mbrs.contains(req.mbr) && !suspected_mbrs.contains(req.mbr))
+                        (req.type == Request.LEAVE? left_mbrs : suspected_mbrs).addElement(req.mbr);
+                    break;
+            }
+        }
+
+        if(Trace.trace)
+            Trace.info("CoordGmsImpl.handleRequests()", requests.size() + " requests: new_mbrs=" + new_mbrs +
+                                                        ", left_mbrs=" + left_mbrs + ", suspected_mbrs=" +
+                                                        suspected_mbrs + ", existing_mbrs=" + existing_mbrs);
+
+        if(new_mbrs.size() > 0 || existing_mbrs.size() > 0) {
+            tmp=gms.getDigest(); // get existing digest
+            if(tmp == null) {
+                Trace.error("CoordGmsImpl.handleRequests()", "received null digest from GET_DIGEST: " +
+                                                              "will cause JOIN of " + new_mbrs + " to fail");
+                new_mbrs.removeAllElements();
+                existing_mbrs.removeAllElements();
+            }
+            else {
+                d=new Digest(tmp.size() + new_mbrs.size());
+                d.add(tmp);
+                for(int i=0; i < new_mbrs.size(); i++)
+                    d.add((Address)new_mbrs.elementAt(i), 0, 0); // first seqno of a new member will be 1
+            }
+        }
+
+        if(new_mbrs.size() == 0 && left_mbrs.size() == 0 && suspected_mbrs.size() == 0) {
+            if(d != null) { // only JOINs of existing members: return current digest and membership
+                join_rsp=new JoinRsp(new View(gms.view_id, gms.members.getMembers()), d);
+                for(int i=0; i < existing_mbrs.size(); i++)
+                    gms.sendJoinResponse((Address)existing_mbrs.elementAt(i), join_rsp);
+            }
+            return;
+        }
+
+        v=gms.getNextView(new_mbrs, left_mbrs, suspected_mbrs);
+        if(v == null)
+            return;
+        if(d != null) {
+            gms.passDown(new Event(Event.TMP_VIEW, v)); // see GMS.handleJoinRequest()
+            join_rsp=new JoinRsp(v, d);
+            for(int i=0; i < new_mbrs.size(); i++)
+                gms.sendJoinResponse((Address)new_mbrs.elementAt(i), join_rsp);
+            for(int i=0; i < existing_mbrs.size(); i++)
+                gms.sendJoinResponse((Address)existing_mbrs.elementAt(i), join_rsp);
+        }
+        gms.castViewChange(v);
     }
 
     /* ------------------------------------------ Private methods ----------------------------------------- */
@@ -754,4 +899,77 @@ public class CoordGmsImpl extends GmsImpl {
 
     }
 
+
+
+    /** A queued JOIN, LEAVE or SUSPECT request */
+    static class Request {
+        static final int JOIN=1;
+        static final int LEAVE=2;
+        static final int SUSPECT=3;
+
+        final int     type;
+        final Address mbr;
+
+        Request(int type, Address mbr) {
+            this.type=type;
+            this.mbr=mbr;
+        }
+
+        public String toString() {
+            return (type == JOIN? "JOIN(" : type == LEAVE? "LEAVE(" : "SUSPECT(") + mbr + ")";
+        }
+    }
+
+
+    /**
+     * Waits for the first queued request, then waits max_bundling_time ms for more requests, and handles all of
+     * them with one view.
+     */
+    private class ViewBundler implements Runnable {
+        Thread t=null;
+
+        synchronized void start() {
+            if(t == null) {
+                t=new Thread(this, "ViewBundler thread");
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        synchronized void stop() {
+            Thread tmp=t;
+            t=null;
+            if(tmp != null)
+                tmp.interrupt();
+        }
+
+        public void run() {
+            Vector requests;
+
+            while(t == Thread.currentThread()) {
+                synchronized(pending_requests) {
+                    while(pending_requests.isEmpty() && t == Thread.currentThread()) {
+                        try {
+                            pending_requests.wait();
+                        }
+                        catch(InterruptedException e) {
+                        }
+                    }
+                }
+                Util.sleep(gms.max_bundling_time); // collect more requests
+                if(t != Thread.currentThread())
+                    break;
+                synchronized(pending_requests) {
+                    requests=(Vector)pending_requests.clone();
+                    pending_requests.removeAllElements();
+                }
+                try {
+                    handleRequests(requests);
+                }
+                catch(Throwable ex) {
+                    Trace.error("CoordGmsImpl.ViewBundler.run()", "exception=" + ex);
+                }
+            }
+        }
+    }
 }
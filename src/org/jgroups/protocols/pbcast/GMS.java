@@ -61,6 +61,25 @@ public class GMS extends Protocol {
     /** Keeps track of old members (up to num_prev_mbrs) */
     BoundedList        prev_members=null;
 
+    /** If true, the coordinator queues JOIN, LEAVE and SUSPECT requests and handles all requests received within
+     * max_bundling_time ms with a single view (see CoordGmsImpl) */
+    public boolean     view_bundling=false;
+
+    /** Time (ms) during which requests are collected before a new view is installed (if view_bundling is true) */
+    public long        max_bundling_time=50;
+
+    /** If true, views are multicast as deltas (joined and left members) relative to the previous view, unless
+     * they are MergeViews. Members which don't have the previous view fetch the full view (GET_VIEW) */
+    public boolean     view_deltas=false;
+
+    /** The last view multicast by this member (as coordinator). Needed to compute the next delta, as it may not
+     * have been installed yet */
+    View               last_cast_view=null;
+
+    final Metrics.Counter num_views_sent=metrics.counter("views_sent");
+    final Metrics.Counter num_view_deltas_sent=metrics.counter("view_deltas_sent");
+    final Metrics.Counter num_full_views_fetched=metrics.counter("full_views_fetched");
+
 
     public GMS() {
         initState();
@@ -273,17 +292,85 @@ public class GMS extends Protocol {
     public void castViewChange(View new_view, Digest digest) {
         Message view_change_msg;
         GmsHeader hdr;
+        ViewDelta delta=null;
 
+        if(view_deltas && digest == null && !(new_view instanceof MergeView))
+            delta=ViewDelta.create(getLatestView(), new_view);
         if(Trace.trace)
-            Trace.info("GMS.castViewChange()", "mcasting view {" + new_view + "} (" + new_view.size() + " mbrs)\n");
+            Trace.info("GMS.castViewChange()", "mcasting view {" + new_view + "} (" + new_view.size() + " mbrs" +
+                                               (delta != null? ", as delta " + delta : "") + ")\n");
         view_change_msg=new Message(); // bcast to all members
-        hdr=new GmsHeader(GmsHeader.VIEW, new_view);
-        hdr.digest=digest;
+        if(delta != null) {
+            hdr=new GmsHeader(GmsHeader.VIEW_DELTA);
+            hdr.delta=delta;
+        }
+        else {
+            hdr=new GmsHeader(GmsHeader.VIEW, new_view);
+            hdr.digest=digest;
+        }
+        last_cast_view=new_view;
+        (delta != null? num_view_deltas_sent : num_views_sent).inc();
         view_change_msg.putHeader(getName(), hdr);
         passDown(new Event(Event.MSG, view_change_msg));
     }
 
 
+    /**
+     * Returns the last view cast by this member if it is more recent than the installed view (i.e. it hasn't
+     * been received back yet), otherwise the installed view. Returns null if no view has been installed
+     */
+    View getLatestView() {
+        View tmp=last_cast_view;
+        synchronized(members) {
+            if(view_id == null)
+                return null;
+            if(tmp != null && tmp.getVid().compareTo(view_id) >= 0)
+                return tmp;
+            return new View(view_id.copy(), members.getMembers());
+        }
+    }
+
+
+    /**
+     * Applies a delta to the installed view. Returns the new view, or null if the view is already installed, or
+     * if the delta is not based on the installed view. In the latter case the full view is fetched from
+     * <code>sender</code> (unless we are still a client, which receives the view with the JOIN_RSP)
+     */
+    View applyViewDelta(ViewDelta delta, Address sender) {
+        Message   msg;
+        GmsHeader hdr;
+
+        synchronized(members) {
+            if(view_id == null || delta.vid.compareTo(view_id) <= 0)
+                return null;
+            if(delta.isBasedOn(view_id))
+                return delta.apply(members.getMembers());
+        }
+        if(Trace.trace)
+            Trace.warn("GMS.applyViewDelta()", "[" + local_addr + "] delta " + delta + " does not match view " +
+                                               view_id + "; fetching full view from " + sender);
+        num_full_views_fetched.inc();
+        msg=new Message(sender, null, null);
+        hdr=new GmsHeader(GmsHeader.GET_VIEW);
+        msg.putHeader(getName(), hdr);
+        passDown(new Event(Event.MSG, msg));
+        return null;
+    }
+
+
+    /** Sends the latest view to a member which couldn't apply a delta */
+    void sendView(Address dest) {
+        View      v=getLatestView();
+        Message   msg;
+
+        if(v == null || dest == null)
+            return;
+        msg=new Message(dest, null, null);
+        msg.putHeader(getName(), new GmsHeader(GmsHeader.VIEW, v));
+        passDown(new Event(Event.MSG, msg));
+    }
+
+
     /**
      * Sets the new view and sends a VIEW_CHANGE event up and down the stack. If the view is a MergeView (subclass
      * of View), then digest will be non-null and has to be set before installing the view.
@@ -485,6 +572,7 @@ public class GMS extends Protocol {
         Message msg;
         GmsHeader hdr;
         MergeData merge_data;
+        View new_view;
 
         switch(evt.getType()) {
 
@@ -524,6 +612,20 @@ public class GMS extends Protocol {
                         impl.handleViewChange(hdr.view, hdr.digest);
                         break;
 
+                    case GmsHeader.VIEW_DELTA:
+                        if(hdr.delta == null) {
+                            Trace.error("GMS.up()", "[VIEW_DELTA]: delta == null");
+                            return;
+                        }
+                        new_view=applyViewDelta(hdr.delta, msg.getSrc());
+                        if(new_view != null)
+                            impl.handleViewChange(new_view, null);
+                        break;
+
+                    case GmsHeader.GET_VIEW:
+                        sendView(msg.getSrc());
+                        break;
+
                     case GmsHeader.MERGE_REQ:
                         impl.handleMergeRequest(msg.getSrc(), hdr.merge_id);
                         break;
@@ -565,6 +667,17 @@ public class GMS extends Protocol {
                 impl.suspect((Address)evt.getArg());
                 break;                               // pass up
 
+            case Event.SUSPECT_MULTIPLE:             // members which crashed together: exclude them with one view
+                Vector suspects=(Vector)evt.getArg();
+                Event  suspect_evt;
+                impl.suspect(suspects);
+                for(int i=0; i < suspects.size(); i++) {  // the layers above only know SUSPECT
+                    suspect_evt=new Event(Event.SUSPECT, suspects.elementAt(i));
+                    if(impl.handleUpEvent(suspect_evt))
+                        passUp(suspect_evt);
+                }
+                return;
+
             case Event.UNSUSPECT:
                 impl.unsuspect((Address)evt.getArg());
                 return;                              // discard
@@ -682,6 +795,30 @@ public class GMS extends Protocol {
             props.remove("disable_initial_coord");
         }
 
+        str=props.getProperty("view_bundling");
+        if(str != null) {
+            view_bundling=new Boolean(str).booleanValue();
+            props.remove("view_bundling");
+        }
+
+        str=props.getProperty("max_bundling_time");
+        if(str != null) {
+            max_bundling_time=new Long(str).longValue();
+            props.remove("max_bundling_time");
+        }
+
+        str=props.getProperty("view_deltas");
+        if(str != null) {
+            view_deltas=new Boolean(str).booleanValue();
+            props.remove("view_deltas");
+        }
+
+        str=props.getProperty("compact_views");
+        if(str != null) {
+            View.setCompact(new Boolean(str).booleanValue());
+            props.remove("compact_views");
+        }
+
         str=props.getProperty("num_prev_mbrs");
         if(str != null) {
             num_prev_mbrs=Integer.parseInt(str);
@@ -703,13 +840,13 @@ public class GMS extends Protocol {
     void initState() {
         becomeClient();
         view_id=null;
+        last_cast_view=null;
     }
 
 
     void handleJoinRequest(Address mbr) {
         JoinRsp join_rsp;
-        Message m;
-        GmsHeader hdr;
+        GmsImpl tmp_impl=impl;
 
         if(mbr == null) {
             if(Trace.trace)
@@ -720,6 +857,12 @@ public class GMS extends Protocol {
         if(Trace.trace)
             Trace.debug("GMS.handleJoinRequest()", "mbr=" + mbr);
 
+        // the coordinator will send the JOIN_RSP and the view when it handles the queued requests
+        if(view_bundling && tmp_impl instanceof CoordGmsImpl) {
+            ((CoordGmsImpl)tmp_impl).addRequest(CoordGmsImpl.Request.JOIN, mbr);
+            return;
+        }
+
         // 1. Get the new view and digest
         join_rsp=impl.handleJoin(mbr);
         if(join_rsp == null)
@@ -733,10 +876,7 @@ public class GMS extends Protocol {
             passDown(new Event(Event.TMP_VIEW, join_rsp.getView()));
 
         // 3. Return result to client
-        m=new Message(mbr, null, null);
-        hdr=new GmsHeader(GmsHeader.JOIN_RSP, join_rsp);
-        m.putHeader(getName(), hdr);
-        passDown(new Event(Event.MSG, m));
+        sendJoinResponse(mbr, join_rsp);
 
         // 4. Bcast the new view
         if(join_rsp != null)
@@ -744,6 +884,14 @@ public class GMS extends Protocol {
     }
 
 
+    void sendJoinResponse(Address mbr, JoinRsp join_rsp) {
+        Message m=new Message(mbr, null, null);
+        GmsHeader hdr=new GmsHeader(GmsHeader.JOIN_RSP, join_rsp);
+        m.putHeader(getName(), hdr);
+        passDown(new Event(Event.MSG, m));
+    }
+
+
     void sendLeaveResponse(Address mbr) {
         Message msg=new Message(mbr, null, null);
         GmsHeader hdr=new GmsHeader(GmsHeader.LEAVE_RSP);
@@ -765,6 +913,8 @@ public class GMS extends Protocol {
         public static final int MERGE_RSP=7;
         public static final int INSTALL_MERGE_VIEW=8;
         public static final int CANCEL_MERGE=9;
+        public static final int VIEW_DELTA=10;
+        public static final int GET_VIEW=11;
 
         int type=0;
         View view=null;            // used when type=VIEW or MERGE_RSP or INSTALL_MERGE_VIEW
@@ -773,6 +923,7 @@ public class GMS extends Protocol {
         Digest digest=null;          // used when type=MERGE_RSP or INSTALL_MERGE_VIEW
         Serializable merge_id=null;        // used when type=MERGE_REQ or MERGE_RSP or INSTALL_MERGE_VIEW or CANCEL_MERGE
         boolean merge_rejected=false; // used when type=MERGE_RSP
+        ViewDelta delta=null;         // used when type=VIEW_DELTA
 
 
         public GmsHeader() {
@@ -843,6 +994,10 @@ public class GMS extends Protocol {
                 case CANCEL_MERGE:
                     sb.append(", <merge cancelled>, merge_id=" + merge_id);
                     break;
+
+                case VIEW_DELTA:
+                    sb.append(": delta=" + delta);
+                    break;
             }
             sb.append("\n");
             return sb.toString();
@@ -869,6 +1024,10 @@ public class GMS extends Protocol {
                     return "INSTALL_MERGE_VIEW";
                 case CANCEL_MERGE:
                     return "CANCEL_MERGE";
+                case VIEW_DELTA:
+                    return "VIEW_DELTA";
+                case GET_VIEW:
+                    return "GET_VIEW";
                 default:
                     return "<unknown>";
             }
@@ -883,6 +1042,8 @@ public class GMS extends Protocol {
             out.writeObject(digest);
             out.writeObject(merge_id);
             out.writeBoolean(merge_rejected);
+            if(type == VIEW_DELTA) // only sent with view_deltas=true: other headers keep the original layout
+                out.writeObject(delta);
         }
 
 
@@ -894,6 +1055,8 @@ public class GMS extends Protocol {
             digest=(Digest)in.readObject();
             merge_id=(Serializable)in.readObject();
             merge_rejected=in.readBoolean();
+            if(type == VIEW_DELTA)
+                delta=(ViewDelta)in.readObject();
         }
 
     }
@@ -23,6 +23,12 @@ public abstract class GmsImpl {
     public abstract void      suspect(Address mbr);
     public abstract void      unsuspect(Address mbr);
 
+    /** Handles a number of members suspected at the same time. Calls suspect(Address) for each one by default */
+    public void suspect(Vector mbrs) {
+        for(int i=0; i < mbrs.size(); i++)
+            suspect((Address)mbrs.elementAt(i));
+    }
+
     public void               merge(Vector other_coords)                           {;} // only processed by coord
     public void               handleMergeRequest(Address sender, Object merge_id)  {;} // only processed by coords
     public void               handleMergeResponse(MergeData data, Object merge_id) {;} // only processed by coords
@@ -7,9 +7,11 @@ import org.jgroups.Event;
 import org.jgroups.Message;
 import org.jgroups.View;
 import org.jgroups.log.Trace;
+import org.jgroups.log.Log;
 import org.jgroups.stack.NakReceiverWindow;
 import org.jgroups.stack.Protocol;
 import org.jgroups.stack.Retransmitter;
+import org.jgroups.util.Metrics;
 import org.jgroups.util.Range;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
@@ -33,6 +35,8 @@ import java.util.*;
  * @author Bela Ban
  */
 public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand {
+    private static final Log log=Log.getLog("NAKACK");
+
     long[]        retransmit_timeout={600, 1200, 2400, 4800}; // time(s) to wait before requesting retransmission
     boolean       is_server=false;
     Address       local_addr=null;
@@ -60,6 +64,17 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
     TimeScheduler timer=null;
     final String  name="NAKACK";
 
+    final Metrics.Counter xmit_reqs_sent=metrics.counter("xmit_reqs_sent");         // seqnos requested by us
+    final Metrics.Counter xmit_reqs_received=metrics.counter("xmit_reqs_received"); // seqnos requested from us
+    final Metrics.Counter xmit_msgs_sent=metrics.counter("xmit_msgs_sent");         // msgs retransmitted by us
+    final Metrics.Counter xmit_msgs_received=metrics.counter("xmit_msgs_received"); // retransmitted msgs received
+
+    {
+        metrics.gauge("sent_msgs", new Metrics.Gauge() {
+            public long getValue() {return sent_msgs.size();}
+        });
+    }
+
 
 //    public static final HashMap xmit_stats=new HashMap(); // sender - HashMap(seqno - XmitStat)
 //
@@ -249,7 +264,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 
             case Event.CONFIG:
                 passDown(evt);
-                if(Trace.trace) Trace.info("NAKACK.down()", "received CONFIG event: " + evt.getArg());
+                if(log.isInfoEnabled()) log.info("down()", "received CONFIG event: " + evt.getArg());
                 handleConfigEvent((HashMap)evt.getArg());
                 return;
 
@@ -316,7 +331,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 
             case Event.CONFIG:
                 passUp(evt);
-                if(Trace.trace) Trace.info("NAKACK.up()", "received CONFIG event: " + evt.getArg());
+                if(log.isInfoEnabled()) log.info("up()", "received CONFIG event: " + evt.getArg());
                 handleConfigEvent((HashMap)evt.getArg());
                 return;
 
@@ -328,8 +343,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 
                 // discard messages while not yet server (i.e., until JOIN has returned)
                 if(!is_server) {
-                    if(Trace.trace)
-                        Trace.debug("NAKACK.up()", "message was discarded (not yet server)");
+                    if(log.isDebugEnabled())
+                        log.debug("up()", "message was discarded (not yet server)");
                     return;
                 }
 
@@ -346,22 +361,23 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 
                     case NakAckHeader.XMIT_REQ:
                         if(hdr.range == null) {
-                            if(Trace.trace)
-                                Trace.error("NAKACK.up()", "XMIT_REQ: range of xmit msg == null; discarding request from " +
+                            if(log.isErrorEnabled())
+                                log.error("up()", "XMIT_REQ: range of xmit msg == null; discarding request from " +
                                                            msg.getSrc());
                             return;
                         }
+                        xmit_reqs_received.add(hdr.range.high - hdr.range.low + 1);
                         handleXmitReq(msg.getSrc(), hdr.range.low, hdr.range.high);
                         return;
 
                     case NakAckHeader.XMIT_RSP:
                         if(Trace.debug)
-                            Trace.info("NAKACK.handleXmitRsp()", "received missing messages " + hdr.range);
+                            log.info("handleXmitRsp()", "received missing messages " + hdr.range);
                         handleXmitRsp(msg);
                         return;
 
                     default:
-                        Trace.error("NAKACK.up()", "NakAck header type " + hdr.type + " not known !");
+                        log.error("up()", "NakAck header type " + hdr.type + " not known !");
                         return;
                 }
         }
@@ -429,7 +445,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
      */
     void send(Message msg) {
         long msg_id=getNextSeqno();
-        if(Trace.debug) Trace.info("NAKACK.send()", "sending msg #" + msg_id);
+        if(Trace.debug) log.info("send()", "sending msg #" + msg_id);
         msg.putHeader(name, new NakAckHeader(NakAckHeader.MSG, msg_id));
 
         if(Trace.copy)
@@ -450,19 +466,19 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         Address sender;
 
         if(msg == null || hdr == null) {
-            if(Trace.trace)
-                Trace.error("NAKACK.handleMessage()", "msg or header is null");
+            if(log.isErrorEnabled())
+                log.error("handleMessage()", "msg or header is null");
             return;
         }
         sender=msg.getSrc();
         if(sender == null) {
-            if(Trace.trace)
-                Trace.error("NAKACK.handleMessage()", "sender of message is null");
+            if(log.isErrorEnabled())
+                log.error("handleMessage()", "sender of message is null");
             return;
         }
 
         if(Trace.debug)
-            Trace.info("NAKACK.handleMessage()", "[" + local_addr + "] received <" + sender + "#" + hdr.seqno + ">");
+            log.info("handleMessage()", "[" + local_addr + "] received <" + sender + "#" + hdr.seqno + ">");
 
         // msg is potentially re-sent later as result of XMIT_REQ reception; that's why hdr is added !
 
@@ -473,8 +489,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         if(win == null) {  // discard message if there is no entry for sender
             if(leaving)
                 return;
-            if(Trace.trace)
-                Trace.warn("NAKACK.handleMessage()", "[" + local_addr + "] discarded message from non-member " + sender);
+            if(log.isWarnEnabled())
+                log.warn("handleMessage()", "[" + local_addr + "] discarded message from non-member " + sender);
             return;
         }
         win.add(hdr.seqno, msg);  // add in order, then remove and pass up as many msgs as possible
@@ -505,11 +521,11 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         long       size=0, marker=first_seqno, len;
 
         if(Trace.debug)
-            Trace.debug("NAKACK.handleXmitReq()", "received xmit request for " +
+            log.debug("handleXmitReq()", "received xmit request for " +
                                                   dest + " [" + first_seqno + " - " + last_seqno + "]");
 
         if(first_seqno > last_seqno) {
-            Trace.error("NAKACK.handleXmitReq()", "first_seqno (" +
+            log.error("handleXmitReq()", "first_seqno (" +
                                                   first_seqno + ") > last_seqno (" + last_seqno + "): not able to retransmit");
             return;
         }
@@ -517,7 +533,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         for(long i=first_seqno; i <= last_seqno; i++) {
             m=(Message)sent_msgs.get(new Long(i));
             if(m == null) {
-                Trace.error("NAKACK.handleXmitReq()", "(requester=" + dest + ") message with " +
+                log.error("handleXmitReq()", "(requester=" + dest + ") message with " +
                                                       "seqno=" + i + " not found in sent_msgs ! sent_msgs=" + printSentMsgs());
                 continue;
             }
@@ -525,8 +541,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
             size+=len;
             if(size >= max_xmit_size) {
                 // size has reached max_xmit_size. go ahead and send message (excluding the current message)
-                if(Trace.trace)
-                    Trace.debug("NAKACK.handleXmitReq()", "xmitting msgs [" + marker + "-" + (i - 1) + "] to " + dest);
+                if(log.isDebugEnabled())
+                    log.debug("handleXmitReq()", "xmitting msgs [" + marker + "-" + (i - 1) + "] to " + dest);
                 sendXmitRsp(dest, (LinkedList)list.clone(), marker, i - 1);
                 marker=i;
                 list.clear();
@@ -544,8 +560,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         }
 
         if(list.size() > 0) {
-            if(Trace.trace)
-                Trace.debug("NAKACK.handleXmitReq()", "xmitting msgs [" + marker + "-" + last_seqno + "] to " + dest);
+            if(log.isDebugEnabled())
+                log.debug("handleXmitReq()", "xmitting msgs [" + marker + "-" + last_seqno + "] to " + dest);
             sendXmitRsp(dest, (LinkedList)list.clone(), marker, last_seqno);
         }
     }
@@ -553,12 +569,13 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 
     void sendXmitRsp(Address dest, LinkedList xmit_list, long first_seqno, long last_seqno) {
         if(xmit_list == null || xmit_list.size() == 0) {
-            Trace.error("NAKACK.sendXmitRsp()", "xmit_list is empty");
+            log.error("sendXmitRsp()", "xmit_list is empty");
             return;
         }
         if(use_mcast_xmit)
             dest=null;
 
+        xmit_msgs_sent.add(xmit_list.size());
         Message msg=new Message(dest, null, xmit_list);
         msg.putHeader(name, new NakAckHeader(NakAckHeader.XMIT_RSP, first_seqno, last_seqno));
         passDown(new Event(Event.MSG, msg));
@@ -570,12 +587,13 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         Message    m;
 
         if(msg == null) {
-            Trace.warn("NAKACK.handleXmitRsp()", "message is null");
+            log.warn("handleXmitRsp()", "message is null");
             return;
         }
         try {
             list=(LinkedList)msg.getObject();
             if(list != null) {
+                xmit_msgs_received.add(list.size());
                 for(Iterator it=list.iterator(); it.hasNext();) {
                     m=(Message)it.next();
                     up(new Event(Event.MSG, m));
@@ -583,7 +601,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
             }
         }
         catch(Exception ex) {
-            Trace.error("NAKACK.handleXmitRsp()",
+            log.error("handleXmitRsp()",
                         "message did not contain a list (LinkedList) of retransmitted messages: " + ex);
         }
     }
@@ -595,7 +613,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 //        Object       hdr;
 //
 //        if(msg == null) {
-//            Trace.warn("NAKACK.handleXmitRsp()", "message is null");
+//            log.warn("handleXmitRsp()", "message is null");
 //            return;
 //        }
 //        try {
@@ -606,7 +624,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 //
 //                    hdr=m.getHeader(name);
 //                    if(hdr == null || !(hdr instanceof NakAckHeader)) {
-//                        Trace.error("NAKACK.handleXmitRsp()", "retransmitted message does not have a NakAckHeader");
+//                        log.error("handleXmitRsp()", "retransmitted message does not have a NakAckHeader");
 //                        continue;
 //                    }
 //
@@ -616,7 +634,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 //            }
 //        }
 //        catch(Exception ex) {
-//            Trace.error("NAKACK.handleXmitRsp()",
+//            log.error("handleXmitRsp()",
 //                        "message did not contain a list (LinkedList) of retransmitted messages: " + ex);
 //        }
 //    }
@@ -634,8 +652,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
             if(!members.contains(sender)) {
                 win=(NakReceiverWindow)received_msgs.get(sender);
                 win.reset();
-                if(Trace.trace)
-                    Trace.info("NAKACK.adjustReceivers()", "removing " + sender +
+                if(log.isInfoEnabled())
+                    log.info("adjustReceivers()", "removing " + sender +
                                                            " from received_msgs (not member anymore)");
                 received_msgs.remove(sender);
             }
@@ -666,8 +684,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
             sender=(Address)members.elementAt(i);
             range=getLowestAndHighestSeqno(sender, false);  // get the highest received seqno
             if(range == null) {
-                if(Trace.trace)
-                    Trace.error("NAKACK.getDigest()", "range is null");
+                if(log.isErrorEnabled())
+                    log.error("getDigest()", "range is null");
                 continue;
             }
             digest.add(sender, range.low, range.high);  // add another entry to the digest
@@ -693,8 +711,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
             sender=(Address)members.elementAt(i);
             range=getLowestAndHighestSeqno(sender, true);  // get the highest deliverable seqno
             if(range == null) {
-                if(Trace.trace)
-                    Trace.error("NAKACK.getDigest()", "range is null");
+                if(log.isErrorEnabled())
+                    log.error("getDigest()", "range is null");
                 continue;
             }
             high_seqno_seen=getHighSeqnoSeen(sender);
@@ -715,13 +733,13 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 
         clear();
         if(d == null || d.senders == null) {
-            Trace.error("NAKACK.setDigest()", "digest or digest.senders is null");
+            log.error("setDigest()", "digest or digest.senders is null");
             return;
         }
         for(int i=0; i < d.size(); i++) {
             sender=d.senderAt(i);
             if(sender == null) {
-                Trace.error("NAKACK.setDigest()", "sender at index " + i + " in digest is null");
+                log.error("setDigest()", "sender at index " + i + " in digest is null");
                 continue;
             }
             initial_seqno=d.highSeqnoAt(i);
@@ -744,13 +762,13 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         long initial_seqno;
 
         if(d == null || d.senders == null) {
-            Trace.error("NAKACK.mergeDigest()", "digest or digest.senders is null");
+            log.error("mergeDigest()", "digest or digest.senders is null");
             return;
         }
         for(int i=0; i < d.size(); i++) {
             sender=d.senderAt(i);
             if(sender == null) {
-                Trace.error("NAKACK.mergeDigest()", "sender at index " + i + " in digest is null");
+                log.error("mergeDigest()", "sender at index " + i + " in digest is null");
                 continue;
             }
             initial_seqno=d.highSeqnoAt(i);
@@ -785,13 +803,13 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         NakReceiverWindow win;
 
         if(sender == null) {
-            if(Trace.trace)
-                Trace.error("NAKACK.getLowestAndHighestSeqno()", "sender is null");
+            if(log.isErrorEnabled())
+                log.error("getLowestAndHighestSeqno()", "sender is null");
             return r;
         }
         win=(NakReceiverWindow)received_msgs.get(sender);
         if(win == null) {
-            Trace.error("NAKACK.getLowestAndHighestSeqno()", "sender " + sender +
+            log.error("getLowestAndHighestSeqno()", "sender " + sender +
                                                              " not found in received_msgs");
             return r;
         }
@@ -813,8 +831,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         long ret=0;
 
         if(sender == null) {
-            if(Trace.trace)
-                Trace.error("NAKACK.getHighSeqnoSeen()", "sender is null");
+            if(log.isErrorEnabled())
+                log.error("getHighSeqnoSeen()", "sender is null");
             return ret;
         }
         if(sender.equals(local_addr))
@@ -822,7 +840,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 
         win=(NakReceiverWindow)received_msgs.get(sender);
         if(win == null) {
-            Trace.error("NAKACK.getHighSeqnoSeen()", "sender " + sender + " not found in received_msgs");
+            log.error("getHighSeqnoSeen()", "sender " + sender + " not found in received_msgs");
             return ret;
         }
         ret=win.getHighestReceived();
@@ -844,12 +862,12 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         long stability_highest_rcvd; // highest seqno received in the stability vector for a sender P
 
         if(members == null || local_addr == null || d == null) {
-            if(Trace.trace) Trace.warn("NAKACK.stable()", "members, local_addr or digest are null !");
+            if(log.isWarnEnabled()) log.warn("stable()", "members, local_addr or digest are null !");
             return;
         }
 
-        if(Trace.trace)
-            Trace.info("NAKACK.stable()", "received digest " + d);
+        if(log.isInfoEnabled())
+            log.info("stable()", "received digest " + d);
 
         for(int i=0; i < d.size(); i++) {
             sender=d.senderAt(i);
@@ -866,8 +884,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
                 stability_highest_rcvd=d.highSeqnoSeenAt(i);
 
                 if(stability_highest_rcvd >= 0 && stability_highest_rcvd > my_highest_rcvd) {
-                    if(Trace.trace)
-                        Trace.debug("NAKACK.stable()", "my_highest_rcvd (" + my_highest_rcvd +
+                    if(log.isDebugEnabled())
+                        log.debug("stable()", "my_highest_rcvd (" + my_highest_rcvd +
                                                        ") < stability_highest_rcvd (" + stability_highest_rcvd +
                                                        "): requesting retransmission of " + sender + "#" + stability_highest_rcvd);
                     retransmit(stability_highest_rcvd, stability_highest_rcvd, sender);
@@ -878,12 +896,12 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
             if(seqno < 0)
                 continue;
 
-            if(Trace.trace) Trace.info("NAKACK.stable()", "deleting stable msgs < " + sender + "#" + seqno);
+            if(log.isInfoEnabled()) log.info("stable()", "deleting stable msgs < " + sender + "#" + seqno);
 
             // garbage collect from sent_msgs if sender was myself
             if(sender.equals(local_addr)) {
-                if(Trace.trace)
-                    Trace.info("NAKACK.stable()", "removing [" + deleted_up_to + " - " + seqno + "] from sent_msgs");
+                if(log.isInfoEnabled())
+                    log.info("stable()", "removing [" + deleted_up_to + " - " + seqno + "] from sent_msgs");
                 for(long j=deleted_up_to; j <= seqno; j++)
                     sent_msgs.remove(new Long(j));
                 deleted_up_to=seqno;
@@ -911,8 +929,8 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
 
         // Possibly replace with Trace.debug if too many messages. But xmits are
         // usually infrequent
-        if(Trace.trace)
-            Trace.info("NAKACK.retransmit()", "sending XMIT_REQ ([" + first_seqno +
+        if(log.isInfoEnabled())
+            log.info("retransmit()", "sending XMIT_REQ ([" + first_seqno +
                                               ", " + last_seqno + "]) to " + sender);
         //if(Trace.trace)
           //  Trace.debug("TRACE.special()", "XMIT: " + first_seqno + " - " + last_seqno + ", sender=" + sender);
@@ -921,6 +939,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
           //  addXmitRequest(sender, i);
         //}
 
+        xmit_reqs_sent.add(last_seqno - first_seqno + 1);
         hdr=new NakAckHeader(NakAckHeader.XMIT_REQ, first_seqno, last_seqno);
         retransmit_msg.putHeader(name, hdr);
         passDown(new Event(Event.MSG, retransmit_msg));
@@ -985,7 +1004,7 @@ public class NAKACK extends Protocol implements Retransmitter.RetransmitCommand
         if(map == null) return;
         if(map.containsKey("frag_size")) {
             max_xmit_size=((Integer)map.get("frag_size")).intValue();
-            if(Trace.trace) Trace.info("NAKACK.handleConfigEvent()", "max_xmit_size=" + max_xmit_size);
+            if(log.isInfoEnabled()) log.info("handleConfigEvent()", "max_xmit_size=" + max_xmit_size);
         }
     }
 
@@ -43,6 +43,21 @@ public class NakAckHeader extends Header {
     }
 
 
+    public int getType() {
+        return type;
+    }
+
+
+    public Range getRange() {
+        return range;
+    }
+
+
+    public long getSeqno() {
+        return seqno;
+    }
+
+
     public long size() {
         return 512;
     }
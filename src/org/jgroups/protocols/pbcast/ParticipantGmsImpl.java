@@ -79,6 +79,20 @@ public class ParticipantGmsImpl extends GmsImpl {
     }
 
 
+    /** Adds all members to the suspected members before checking (once) whether I'm the new coordinator */
+    public void suspect(Vector mbrs) {
+        Address mbr;
+        for(int i=0; i < mbrs.size(); i++) {
+            mbr=(Address)mbrs.elementAt(i);
+            if(mbr != null && !suspected_mbrs.contains(mbr))
+                suspected_mbrs.addElement(mbr);
+        }
+        if(Trace.trace)
+            Trace.info("ParticipantGmsImpl.suspect()", "suspected mbrs=" + mbrs + ", suspected_mbrs=" + suspected_mbrs);
+        becomeCoordinatorIfNeeded();
+    }
+
+
     /** Removes previously suspected member from list of currently suspected members */
     public void unsuspect(Address mbr) {
         if(mbr != null)
@@ -116,8 +130,6 @@ public class ParticipantGmsImpl extends GmsImpl {
 
 
     public void handleSuspect(Address mbr) {
-        Vector suspects=null;
-
         if(mbr == null) return;
         if(!suspected_mbrs.contains(mbr))
             suspected_mbrs.addElement(mbr);
@@ -126,11 +138,20 @@ public class ParticipantGmsImpl extends GmsImpl {
         if(Trace.trace)
             Trace.info("ParticipantGmsImpl.handleSuspect()", "suspected mbr=" + mbr +
                                                              ", suspected_mbrs=" + suspected_mbrs);
+        becomeCoordinatorIfNeeded();
+    }
+
+
+    /** If I'm the new coordinator once all suspected members are removed, become coordinator and exclude them */
+    void becomeCoordinatorIfNeeded() {
+        Vector suspects;
 
         if(wouldIBeCoordinator()) {
             if(Trace.trace)
-                Trace.info("ParticipantGmsImpl.handleSuspect()", "suspected mbr=" + mbr + "), members are " +
-                                                                 gms.members + ", coord=" + gms.local_addr + ": I'm the new coord !");
+                Trace.info("ParticipantGmsImpl.becomeCoordinatorIfNeeded()", "suspected mbrs=" + suspected_mbrs +
+                                                                             ", members are " + gms.members +
+                                                                             ", coord=" + gms.local_addr +
+                                                                             ": I'm the new coord !");
 
             suspects=(Vector)suspected_mbrs.clone();
             suspected_mbrs.removeAllElements();
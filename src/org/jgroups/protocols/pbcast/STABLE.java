@@ -6,6 +6,7 @@ package org.jgroups.protocols.pbcast;
 import org.jgroups.*;
 import org.jgroups.log.Trace;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.Executor;
 import org.jgroups.util.Promise;
 import org.jgroups.util.TimeScheduler;
 import org.jgroups.util.Util;
@@ -54,6 +55,7 @@ public class STABLE extends Protocol {
     Object              stability_mutex=new Object(); // to synchronize on stability_task
     StableTask          stable_task=null;             // bcasts periodic STABLE message (added to timer below)
     TimeScheduler       timer=null;                   // to send periodic STABLE msgs (and STABILITY messages)
+    Executor            executor=null;                // to send STABLE msgs when max_bytes has been exceeded
     int                 max_gossip_runs=3;            // max. number of times the StableTask runs before terminating
     int                 num_gossip_runs=3;            // this number is decremented (max_gossip_runs doesn't change)
     static final String name="STABLE";
@@ -125,6 +127,7 @@ public class STABLE extends Protocol {
             timer=stack.timer;
         else
             throw new Exception("STABLE.up(): timer cannot be retrieved from protocol stack");
+        executor=stack.executor;
     }
 
     public void stop() {
@@ -154,12 +157,12 @@ public class STABLE extends Protocol {
                             Trace.info("STABLE.up()", "max_bytes has been exceeded (max_bytes=" + max_bytes +
                                     ", number of bytes received=" + num_bytes_received + "): sending STABLE message");
 
-                        new Thread() {
+                        executor.execute(new Runnable() {
                             public void run() {
                                 initialize();
                                 sendStableMessage();
                             }
-                        }.start();
+                        });
                         num_bytes_received=0;
                     }
                 }
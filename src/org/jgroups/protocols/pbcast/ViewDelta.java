@@ -0,0 +1,137 @@
+// $Id: ViewDelta.java,v 1.1 2008/09/03 04:24:44 commerce\wuti7102 Exp $
+
+package org.jgroups.protocols.pbcast;
+
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Vector;
+import org.jgroups.Address;
+import org.jgroups.View;
+import org.jgroups.ViewId;
+import org.jgroups.util.Marshaller;
+
+
+/**
+ * The difference between two consecutive views: the members which joined (appended to the end of the membership)
+ * and the members which left or were removed (suspected). Multicast by GMS instead of the full view if
+ * <code>view_deltas</code> is enabled. A member can only apply the delta if its current view is the one the delta
+ * is based on (prev_vid); otherwise it fetches the full view.
+ * @author Bela Ban
+ * @version $Id: ViewDelta.java,v 1.1 2008/09/03 04:24:44 commerce\wuti7102 Exp $
+ */
+public class ViewDelta implements Externalizable {
+    ViewId prev_vid=null;
+    ViewId vid=null;
+    Vector joined=null;
+    Vector left=null;
+
+
+    public ViewDelta() {
+    } // used for externalization
+
+
+    ViewDelta(ViewId prev_vid, ViewId vid, Vector joined, Vector left) {
+        this.prev_vid=prev_vid;
+        this.vid=vid;
+        this.joined=joined;
+        this.left=left;
+    }
+
+
+    /**
+     * Computes the delta between prev and next. Returns null if next cannot be expressed as a delta, i.e. if the
+     * members of prev without the left members plus the joined members are not exactly (in the same order) the
+     * members of next
+     */
+    static ViewDelta create(View prev, View next) {
+        Vector  prev_mbrs, next_mbrs, joined=new Vector(), left=new Vector();
+        Object  mbr;
+
+        if(prev == null || next == null || prev.getVid() == null || next.getVid() == null)
+            return null;
+        prev_mbrs=prev.getMembers();
+        next_mbrs=next.getMembers();
+        if(prev_mbrs == null || next_mbrs == null)
+            return null;
+        for(int i=0; i < prev_mbrs.size(); i++) {
+            mbr=prev_mbrs.elementAt(i);
+            if(!next_mbrs.contains(mbr))
+                left.addElement(mbr);
+        }
+        for(int i=0; i < next_mbrs.size(); i++) {
+            mbr=next_mbrs.elementAt(i);
+            if(!prev_mbrs.contains(mbr))
+                joined.addElement(mbr);
+        }
+        if(!next_mbrs.equals(apply(prev_mbrs, joined, left)))
+            return null;
+        return new ViewDelta(prev.getVid(), next.getVid(), joined, left);
+    }
+
+
+    /** Returns the view resulting from applying this delta to the members of the view with prev_vid */
+    View apply(Vector prev_mbrs) {
+        return new View((ViewId)vid.clone(), apply(prev_mbrs, joined, left));
+    }
+
+
+    static Vector apply(Vector prev_mbrs, Vector joined, Vector left) {
+        Vector retval=new Vector(prev_mbrs.size() + joined.size());
+        Object mbr;
+
+        for(int i=0; i < prev_mbrs.size(); i++) {
+            mbr=prev_mbrs.elementAt(i);
+            if(!left.contains(mbr))
+                retval.addElement(mbr);
+        }
+        for(int i=0; i < joined.size(); i++) {
+            mbr=joined.elementAt(i);
+            if(!retval.contains(mbr))
+                retval.addElement(mbr);
+        }
+        return retval;
+    }
+
+
+    /** True if the delta is based on the view with the given id (same Lamport time and creator) */
+    boolean isBasedOn(ViewId view_id) {
+        return view_id != null && prev_vid.getId() == view_id.getId() &&
+                (prev_vid.getCoordAddress() == null? view_id.getCoordAddress() == null :
+                 prev_vid.getCoordAddress().equals(view_id.getCoordAddress()));
+    }
+
+
+    public String toString() {
+        return "[" + prev_vid + " -> " + vid + ": joined=" + joined + ", left=" + left + "]";
+    }
+
+
+    public void writeExternal(ObjectOutput out) throws IOException {
+        Address coord=vid.getCoordAddress(), prev_coord=prev_vid.getCoordAddress();
+        boolean same_coord=coord == null? prev_coord == null : coord.equals(prev_coord);
+
+        Marshaller.write(coord, out);
+        out.writeLong(vid.getId());
+        out.writeBoolean(same_coord);
+        if(!same_coord)
+            Marshaller.write(prev_coord, out);
+        out.writeLong(prev_vid.getId());
+        Marshaller.writeList(joined, out);
+        Marshaller.writeList(left, out);
+    }
+
+
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        Address coord=(Address)Marshaller.read(in), prev_coord=coord;
+
+        vid=new ViewId(coord, in.readLong());
+        if(!in.readBoolean())
+            prev_coord=(Address)Marshaller.read(in);
+        prev_vid=new ViewId(prev_coord, in.readLong());
+        joined=Marshaller.readList(in);
+        left=Marshaller.readList(in);
+    }
+}
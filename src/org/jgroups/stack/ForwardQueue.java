@@ -0,0 +1,184 @@
+// $Id: ForwardQueue.java,v 1.1 2008/09/03 04:24:44 commerce\wuti7102 Exp $
+
+package org.jgroups.stack;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+
+/**
+ * Queue of messages to be forwarded to one client of a router ({@link GossipRouter}, {@link Router}). A message
+ * received from a client is framed (length prefix) only once by {@link #createFrame}, and the same read-only buffer
+ * is added to the queues of all destinations as a duplicate, which shares the contents but has its own position.
+ * Adding a frame never blocks; the frames are written by {@link #write} with gathering writes, either by a selector
+ * thread when the channel is writable (GossipRouter) or by a writer thread per client (Router). So a slow client
+ * never holds up the forwarding of messages to the other members of its group.<p>
+ * A queue holds at most <code>max_bytes</code> (a single larger frame is accepted when the queue is empty). When a
+ * client falls behind and its queue is full, the policy determines what happens: with DROP, the message is dropped
+ * for this client (it will be retransmitted by the client's NAKACK or UNICAST), with DISCONNECT the router closes
+ * the connection, so the member is excluded from the group instead of forcing retransmissions.
+ * @author Bela Ban
+ * @version $Id: ForwardQueue.java,v 1.1 2008/09/03 04:24:44 commerce\wuti7102 Exp $
+ */
+public class ForwardQueue {
+    /** Drop messages for a client whose queue is full */
+    public static final int DROP=1;
+
+    /** Disconnect a client whose queue is full */
+    public static final int DISCONNECT=2;
+
+    /** Max number of frames passed to a single gathering write */
+    static final int MAX_WRITE_FRAMES=64;
+
+    final LinkedList frames=new LinkedList();
+    final int        max_bytes;
+    final int        policy;
+    int              queued_bytes=0;
+    long             num_dropped=0;
+    boolean          closed=false;
+
+
+    public ForwardQueue(int max_bytes, int policy) {
+        this.max_bytes=max_bytes;
+        this.policy=policy;
+    }
+
+
+    /** Returns a read-only buffer containing the length of msg followed by msg */
+    public static ByteBuffer createFrame(byte[] msg) {
+        ByteBuffer frame=ByteBuffer.allocate(msg.length + 4);
+        frame.putInt(msg.length).put(msg).flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+
+    /** Converts "drop" or "disconnect" to DROP or DISCONNECT */
+    public static int policy(String name) {
+        if("drop".equalsIgnoreCase(name))
+            return DROP;
+        if("disconnect".equalsIgnoreCase(name))
+            return DISCONNECT;
+        throw new IllegalArgumentException("policy " + name + " is not known (valid are \"drop\" and \"disconnect\")");
+    }
+
+
+    public static String policyToString(int policy) {
+        switch(policy) {
+            case DROP:       return "drop";
+            case DISCONNECT: return "disconnect";
+            default:         return "n/a";
+        }
+    }
+
+
+    public int getPolicy() {
+        return policy;
+    }
+
+
+    /**
+     * Adds frame to the queue (use a duplicate of a frame which is sent to more than one client).
+     * @return False if the queue is full or closed and frame was dropped. If the policy is DISCONNECT, the caller
+     * closes the connection
+     */
+    public synchronized boolean add(ByteBuffer frame) {
+        if(closed)
+            return false;
+        if(frames.size() > 0 && queued_bytes + frame.remaining() > max_bytes) {
+            num_dropped++;
+            return false;
+        }
+        frames.add(frame);
+        queued_bytes+=frame.remaining();
+        notifyAll();
+        return true;
+    }
+
+
+    /**
+     * Writes as many frames as possible to ch. With a non-blocking channel, this returns when the socket buffer is
+     * full; with a blocking channel, when all frames have been written. A frame which is partially written stays at
+     * the head of the queue. The lock is not held while writing, so {@link #add} never waits for the socket; write()
+     * itself must not be called by more than one thread at the same time.
+     * @return True if the queue is empty
+     */
+    public boolean write(GatheringByteChannel ch) throws IOException {
+        ByteBuffer[] bufs;
+        ByteBuffer   frame;
+        Iterator     it;
+        long         written;
+
+        while(true) {
+            synchronized(this) {
+                if(frames.size() == 0)
+                    return true;
+                bufs=new ByteBuffer[Math.min(frames.size(), MAX_WRITE_FRAMES)];
+                it=frames.iterator();
+                for(int i=0; i < bufs.length; i++)
+                    bufs[i]=(ByteBuffer)it.next();
+            }
+            written=ch.write(bufs);
+            synchronized(this) {
+                while(frames.size() > 0) {
+                    frame=(ByteBuffer)frames.getFirst();
+                    if(frame.hasRemaining())
+                        break;
+                    frames.removeFirst();
+                    queued_bytes-=frame.limit();
+                }
+                if(written == 0)
+                    return frames.size() == 0;
+            }
+        }
+    }
+
+
+    /**
+     * Blocks until the queue contains frames or is closed
+     * @return False if the queue was closed
+     */
+    public synchronized boolean waitForFrames() throws InterruptedException {
+        while(!closed && frames.size() == 0)
+            wait();
+        return !closed;
+    }
+
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+
+    public synchronized boolean isEmpty() {
+        return frames.size() == 0;
+    }
+
+
+    /** Returns the number of bytes in the queue */
+    public synchronized int size() {
+        return queued_bytes;
+    }
+
+
+    public synchronized long getNumDropped() {
+        return num_dropped;
+    }
+
+
+    /** Discards all frames; frames added later are dropped */
+    public synchronized void close() {
+        closed=true;
+        frames.clear();
+        queued_bytes=0;
+        notifyAll();
+    }
+
+
+    public synchronized String toString() {
+        return frames.size() + " msgs (" + queued_bytes + " bytes), " + num_dropped + " dropped";
+    }
+}
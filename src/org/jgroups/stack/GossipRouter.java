@@ -4,23 +4,28 @@ package org.jgroups.stack;
 
 import org.jgroups.Address;
 import org.jgroups.log.Trace;
-import org.jgroups.util.Promise;
 import org.jgroups.util.Util;
 
 import java.io.*;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 
 /**
- * Router for TCP based group comunication (using layer TCP instead of UDP). 
- * Instead of the TCP layer sending packets point-to-point to each other 
- * member, it sends the packet to the router which - depending on the target 
+ * Router for TCP based group comunication (using layer TCP instead of UDP).
+ * Instead of the TCP layer sending packets point-to-point to each other
+ * member, it sends the packet to the router which - depending on the target
  * address - multicasts or unicasts it to the group / or single member.<p>
  * This class is especially interesting for applets which cannot directly make
  * connections (neither UDP nor TCP) to a host different from the one they were
- * loaded from. Therefore, an applet would create a normal channel plus 
+ * loaded from. Therefore, an applet would create a normal channel plus
  * protocol stack, but the bottom layer would have to be the TCP layer which
  * sends all packets point-to-point (over a TCP connection) to the router,
  * which in turn forwards them to their end location(s) (also over TCP). A
@@ -33,7 +38,18 @@ import java.util.*;
  * Since 2.1.1 the GossipRouter is also able to answer Gossip requests. Instead
  * of running different Router and GossipServer processes, is enough just to
  * run a single GossipRouter. This should simplify the administration of a
- * JG realm that has needs gossip and routing services. 
+ * JG realm that has needs gossip and routing services.<p>
+ * All connections are handled with non-blocking I/O by a small number of selector threads (<code>selectors</code>,
+ * by default the number of processors): there is no thread per gossip request or per routing client. A new
+ * connection is assigned to one of the selector threads; if the client sends a serialized GossipData within
+ * <code>gossipRequestTimeout</code> ms it is a gossip request, otherwise the connection is a routing connection
+ * (the wire protocol is the same as before, so RouterStub, GossipClient and TUNNEL are unchanged). Messages to be
+ * sent to a client are added to its {@link ForwardQueue} and written by the client's selector thread, so a slow
+ * client never blocks the routing of messages for other clients. A message to a group is framed only once, and the
+ * same buffer is added to the queues of all members. A queue holds at most <code>maxQueueSize</code> bytes; when the
+ * queue of a client which falls behind is full, further messages for it are dropped or the client is disconnected
+ * (<code>slowClientPolicy</code> "drop" or "disconnect"). The routing table is replaced on each change (copy-on-write), so routing a message doesn't
+ * acquire any lock; unicast destinations are found with a hash lookup.
  *
  * @since 2.1.1
  *
@@ -44,7 +60,7 @@ public class GossipRouter {
 
     public static final int GET = -10;
     public static final int REGISTER = -11;
-    public static final int DUMP = -21;   
+    public static final int DUMP = -21;
     public static final int SHUTDOWN = -1;
     public static final int SHUTDOWN_OK = -2;
 
@@ -52,12 +68,15 @@ public class GossipRouter {
     public static final long EXPIRY_TIME = 30000;
     public static final long GOSSIP_REQUEST_TIMEOUT = 1000;
     public static final long ROUTING_CLIENT_REPLY_TIMEOUT = 120000;
+    public static final int MAX_QUEUE_SIZE = 2000000;
+    public static final int MAX_MESSAGE_SIZE = 10000000;
 
-    // BufferedInputStream mark buffer size
-    private int MARK_BUFFER_SIZE = 2048;
-
-    private static final Object GOSSIP_REQUEST = new Object();
-    private static final Object GOSSIP_FAILURE = new Object();
+    // states of a connection
+    static final int NEW = 1;        // waiting for a gossip request (or gossipRequestTimeout)
+    static final int REQUEST = 2;    // routing client: sent its address, waiting for the request type and group
+    static final int ROUTING = 3;    // registered routing client
+    static final int REPLYING = 4;   // sending the response to a request, closed when done
+    static final int CLOSED = 5;
 
     private int port;
     private String bindAddressString;
@@ -67,23 +86,44 @@ public class GossipRouter {
 
     // number of millisecs the main thread waits to receive a gossip request
     // after connection was established; upon expiration, the router initiates
-    // the routing protocol on the connection. Don't set the interval too big, 
+    // the routing protocol on the connection. Don't set the interval too big,
     // otherwise the router will appear slow in answering routing requests.
     private long gossipRequestTimeout;
 
-    // time (in ms) main thread waits for a router client to send the routing 
+    // time (in ms) main thread waits for a router client to send the routing
     // request type and the group afiliation before it declares the request
     // failed.
     private long routingClientReplyTimeout;
 
-    // (groupname - vector of AddressEntry's)
-    private Hashtable routingTable=new Hashtable();  
+    // number of selector threads
+    private int numSelectors=Runtime.getRuntime().availableProcessors();
+
+    // max number of bytes queued for a client
+    private int maxQueueSize=MAX_QUEUE_SIZE;
+
+    // max size of a message (or destination address) received from a client; a client sending a larger one is
+    // disconnected, so a corrupt or malicious length can't make the router allocate unbounded buffers
+    private int maxMessageSize=MAX_MESSAGE_SIZE;
+
+    // what to do with a client whose queue is full: drop messages for it or disconnect it
+    private int slowClientPolicy=ForwardQueue.DROP;
+
+    // (groupname - Connection[]), replaced on each change
+    private volatile HashMap routingTable=new HashMap();
+
+    // (Address - Connection), replaced on each change
+    private volatile HashMap addressTable=new HashMap();
+
+    // guards modifications of routingTable and addressTable
+    private final Object routingLock=new Object();
 
     // (groupname - vector of AddressEntry's)
     private Map gossipTable = new HashMap();
 
-    private ServerSocket srvSock = null;
+    private ServerSocketChannel srvChannel = null;
     private InetAddress bindAddress = null;
+    private SelectorThread[] selectors = null;
+    private int nextSelector=0;
 
     // the cache sweeper
     Timer timer = null;
@@ -104,15 +144,15 @@ public class GossipRouter {
         this(port, bindAddressString, EXPIRY_TIME);
     }
 
-    public GossipRouter(int port, String bindAddressString, 
+    public GossipRouter(int port, String bindAddressString,
                         long expiryTime) {
         this(port, bindAddressString, expiryTime,
-             GOSSIP_REQUEST_TIMEOUT, 
+             GOSSIP_REQUEST_TIMEOUT,
              ROUTING_CLIENT_REPLY_TIMEOUT);
     }
 
-    public GossipRouter(int port, String bindAddressString, 
-                        long expiryTime, long gossipRequestTimeout, 
+    public GossipRouter(int port, String bindAddressString,
+                        long expiryTime, long gossipRequestTimeout,
                         long routingClientReplyTimeout) {
         this.port=port;
         this.bindAddressString=bindAddressString;
@@ -166,8 +206,41 @@ public class GossipRouter {
          return routingClientReplyTimeout;
     }
 
+    public void setSelectors(int numSelectors) {
+        this.numSelectors = Math.max(1, numSelectors);
+    }
+
+    public int getSelectors() {
+        return numSelectors;
+    }
+
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /** Sets the policy for clients whose queue is full: "drop" or "disconnect" */
+    public void setSlowClientPolicy(String policy) {
+        this.slowClientPolicy = ForwardQueue.policy(policy);
+    }
+
+    public String getSlowClientPolicy() {
+        return ForwardQueue.policyToString(slowClientPolicy);
+    }
+
     public boolean isStarted() {
-        return srvSock!=null;
+        return srvChannel!=null;
     }
 
     //
@@ -187,31 +260,43 @@ public class GossipRouter {
      * is called, the managed attributes have already been set.<br>
      * Brings the Router in fully functional state.
      **/
-    public void start() throws Exception {
+    public synchronized void start() throws Exception {
 
-        if (srvSock!=null) {
+        if (srvChannel!=null) {
             throw new Exception("Router already started.");
         }
 
+        srvChannel = ServerSocketChannel.open();
+        srvChannel.socket().setReuseAddress(true);
         if (bindAddressString!=null) {
             bindAddress = InetAddress.getByName(bindAddressString);
-            srvSock = new ServerSocket(port, 50, bindAddress);  
+            srvChannel.socket().bind(new InetSocketAddress(bindAddress, port), 256);
         }
         else {
-            srvSock = new ServerSocket(port, 50);  
+            srvChannel.socket().bind(new InetSocketAddress(port), 256);
+            bindAddress = srvChannel.socket().getInetAddress();
         }
+        srvChannel.configureBlocking(false);
 
-        // start the main server thread
-        new Thread(new Runnable() {
-                public void run() {
-                    mainLoop();
-                    cleanup();
-                }
-            }, "JGroups Router Main Thread").start();
+        // start the selector threads; the first one also accepts new connections
+        selectors = new SelectorThread[Math.max(1, numSelectors)];
+        for(int i=0; i < selectors.length; i++) {
+            selectors[i] = new SelectorThread(i);
+        }
+        srvChannel.register(selectors[0].selector, SelectionKey.OP_ACCEPT);
+        for(int i=0; i < selectors.length; i++) {
+            selectors[i].start();
+        }
+
+        if(Trace.trace) {
+            System.out.println("GossipRouter started at " + new Date() +
+                    "\nListening on port " + port + " bound on address " + bindAddress +
+                    " (" + selectors.length + " selector threads)\n");
+        }
 
         // starts the cache sweeper as daemon thread, so we won't block on it
         // upon termination
-        timer = new Timer(true);   
+        timer = new Timer(true);
         timer.schedule(new TimerTask() {
                 public void run() {
                     sweep();
@@ -223,23 +308,26 @@ public class GossipRouter {
      * JBoss MBean lifecycle operation. The JMX agent allways calls this method
      * before destroy(). Close connections and frees resources.
      **/
-    public void stop() {
+    public synchronized void stop() {
 
-        if (srvSock==null) {
+        if (srvChannel==null) {
             Trace.warn("GossipRouters.stop()", "Router already stopped");
             return;
         }
 
         timer.cancel();
-        shutdown();
+        for(int i=0; i < selectors.length; i++) {
+            selectors[i].finish();
+        }
         try {
-            srvSock.close();
+            srvChannel.close();
         }
         catch(Exception e) {
             Trace.error("GossipRouter.stop()", "Failed to close server socket: "+e);
         }
-        // exiting the mainLoop will clean the tables
-        srvSock = null;
+        cleanup();
+        srvChannel = null;
+        selectors = null;
         Trace.info("GossipRouter.stop()", "Router stopped");
     }
 
@@ -256,11 +344,47 @@ public class GossipRouter {
     //
 
     public String dumpRoutingTable() {
-        return dumpTable(routingTable);
+        StringBuffer sb=new StringBuffer();
+        Map          table=routingTable;
+        Connection[] conns;
+
+        if(table.size() == 0)
+            return "empty routing table";
+        for(Iterator i=table.entrySet().iterator(); i.hasNext();) {
+            Map.Entry entry=(Map.Entry)i.next();
+            sb.append("GROUP: '" + entry.getKey() + "'\n");
+            conns=(Connection[])entry.getValue();
+            for(int j=0; j < conns.length; j++) {
+                sb.append("\t");
+                sb.append(conns[j].toString());
+                sb.append("\n");
+            }
+        }
+        return sb.toString();
     }
 
     public String dumpGossipTable() {
-        return dumpTable(gossipTable);
+        StringBuffer sb=new StringBuffer();
+        synchronized(gossipTable) {
+            if(gossipTable.size() == 0) {
+                return "empty gossip table";
+            }
+            for(Iterator i=gossipTable.keySet().iterator(); i.hasNext();) {
+                String gname=(String)i.next();
+                sb.append("GROUP: '" + gname + "'\n");
+                List l=(List)gossipTable.get(gname);
+                if(l == null || l.size() == 0) {
+                    sb.append("\tempty list of addresses\n");
+                    continue;
+                }
+                for(Iterator j=l.iterator(); j.hasNext();) {
+                    sb.append("\t");
+                    sb.append(j.next().toString());
+                    sb.append("\n");
+                }
+            }
+        }
+        return sb.toString();
     }
 
 
@@ -271,176 +395,19 @@ public class GossipRouter {
 
 
 
-    /**
-     * The main server loop. Runs on the JGroups Router Main Thread.
-     **/
-    private void mainLoop() {
-
-        Socket sock = null;
-        DataInputStream input = null;
-        DataOutputStream output = null;
-        Address peer_addr = null;
-        byte[] buf;
-        int len, type = -1;
-        String gname = null;
-        Date d;
-        boolean up = true;
+    /** Hands a newly accepted connection to the next selector thread (round robin) */
+    private void accept() throws IOException {
+        SocketChannel ch;
 
-        if(bindAddress == null) {
-            bindAddress=srvSock.getInetAddress();
-        }
-        d=new Date();
-        if(Trace.trace) {
-            System.out.println("GossipRouter started at " + d +
-                    "\nListening on port " + port + " bound on address " + bindAddress + "\n");
-        }
-        d=null;
-
-        while(up) {
-
-            try {
-                sock=srvSock.accept();
-                sock.setSoLinger(true, 500);
-
-                if(Trace.debug) {
-                    Trace.debug("GossipRouter.mainLoop()", "router accepted connection from "+sock);
-                }
-
-                final BufferedInputStream bis = new BufferedInputStream(sock.getInputStream());
-                final Promise waitArea = new Promise();
-                final Socket s = sock;
-
-                // @since 2.2.1
-                // Handling of gossip requests on a different thread allows 
-                // the GossipRouter to serve both routing and gossip requests.
-                // The GossipRouter stays backward compatible, old clients 
-                // shouldn't be aware they talk to a merged Router/GossipServer.
-
-               Thread t = new Thread(new Runnable() {
-                        public void run() {
-                            ObjectInputStream ois = null;
-                            try {
-                                bis.mark(MARK_BUFFER_SIZE);
-                                // blocks until gossip request or 'forever'
-                                ois = new ObjectInputStream(bis);
-                                GossipData gossip_req = (GossipData)ois.readObject();
-
-                                // it is a gossip request, set the main thread free
-                                waitArea.setResult(GOSSIP_REQUEST);
-                                GossipData gresp = processGossip(gossip_req);
-                                if (gresp!=null) {
-                                    ObjectOutputStream oos = new ObjectOutputStream(s.getOutputStream());
-                                    oos.writeObject(gresp);
-                                    oos.close();
-                                }
-                                bis.close();
-                                s.close();
-                            }
-                            catch(Exception e) {
-                                Trace.debug("GossipRouter.mainLoop()","gossip thread exception :"+e);
-                                waitArea.setResult(GOSSIP_FAILURE);
-                            }
-                            finally {
-                                try {
-                                    ois.close();
-                                }
-                                catch(Exception e) {
-                                    // OK
-                                }
-                            }
-                        }
-                    }, "Gossip Request Thread");
-
-                t.start();
-
-                Object waitResult = waitArea.getResult(gossipRequestTimeout);
-                waitArea.reset();
-
-                if (waitResult!=null) {
-                    // gossip request, let the gossip thread deal with it
-                    continue;
-                }
-
-                // timeout, this is a routing request
-                peer_addr = new IpAddress(sock.getInetAddress(), sock.getPort());
-                output=new DataOutputStream(sock.getOutputStream());
-                
-                // return the address of the peer so it can set it
-                buf=Util.objectToByteBuffer(peer_addr);
-                output.writeInt(buf.length);
-                output.write(buf, 0, buf.length);
-
-                // The gossip thread still waits for a serialized object, so
-                // wait that read to fail. If it actually gets a GossipData,
-                // that's an error condition we should handle here
-                waitResult = waitArea.getResult(routingClientReplyTimeout);
-
-                if (waitResult==null) {
-                    // timeout
-                    throw new Exception("Timeout waiting for router client answer");
-                }
-                else if (waitResult==GOSSIP_REQUEST) {
-                    // lazy gossip client, let it handle its business, it will
-                    // fail anyway
-                    output.close();
-                    continue;
-                }
-
-                bis.reset();
-                input=new DataInputStream(bis);
-                type=input.readInt();
-                gname=input.readUTF();
-
-                // We can have 2 kinds of messages at this point: GET requests or REGISTER requests.
-                // GET requests are processed right here, REGISTRATION requests cause the spawning of
-                // a separate thread handling it (long running thread as it will do the message routing
-                // on behalf of that client for the duration of the client's lifetime).
-
-                switch(type) {
-                case GossipRouter.GET:
-                    processGetRequest(sock, output, gname); // closes sock after processing
-                    break;
-                case GossipRouter.DUMP:
-                    processDumpRequest(sock, output); // closes sock after processing
-                    break;
-                case GossipRouter.REGISTER:
-                    Address addr;
-                    len=input.readInt();
-                    buf=new byte[len];
-                    input.readFully(buf, 0, buf.length); // read Address
-                    addr=(Address)Util.objectFromByteBuffer(buf);
-                    SocketThread st = new SocketThread(sock, input);
-                    addEntry(gname, new AddressEntry(addr, sock, st, output));
-                    st.start();
-                    break;
-                case GossipRouter.SHUTDOWN:
-                    Trace.info("GossipRouter.mainLoop()", "router shutting down");
-                    output.writeInt(SHUTDOWN_OK);
-                    output.flush();
-                    try {
-                        sock.close();
-                    }
-                    catch(Exception e) {
-                        // OK, going down anyway
-                    }
-                    up = false;
-                    continue;
-                default:
-                    Trace.error("GossipRouter.mainLoop()", "request of type " + type + " not recognized");
-                    continue;
-                }
-            }
-            catch(Exception e) {
-                Trace.error("GossipRouter.mainLoop()", "failure handling a client connection: " + e);
-		e.printStackTrace();
-                try {
-                    sock.close();
-                }
-                catch(IOException e2) {
-                    Trace.warn("GossipRouter.mainLoop()", "failed to close socket "+sock);
-                }
-                continue;
+        while((ch=srvChannel.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.socket().setSoLinger(true, 500);
+            ch.socket().setTcpNoDelay(true);
+            if(Trace.debug) {
+                Trace.debug("GossipRouter.accept()", "router accepted connection from "+ch.socket());
             }
+            nextSelector=(nextSelector + 1) % selectors.length;
+            selectors[nextSelector].add(new Connection(ch));
         }
     }
 
@@ -450,21 +417,21 @@ public class GossipRouter {
      **/
     private void cleanup() {
 
-        // shutdown the routing threads and cleanup the tables
-        synchronized(routingTable) {
-            for(Iterator i=routingTable.keySet().iterator(); i.hasNext();) {
-                String gname=(String)i.next();
-                List l=(List)routingTable.get(gname);
-                if (l!=null) {
-                    for(Iterator j=l.iterator(); j.hasNext(); ) {
-                        AddressEntry e = (AddressEntry)j.next();
-                        e.destroy();
-                    }
-                }
+        Map table;
+
+        // close the routing connections and cleanup the tables
+        synchronized(routingLock) {
+            table=routingTable;
+            routingTable=new HashMap();
+            addressTable=new HashMap();
+        }
+        for(Iterator i=table.values().iterator(); i.hasNext();) {
+            Connection[] conns=(Connection[])i.next();
+            for(int j=0; j < conns.length; j++) {
+                conns[j].close();
             }
-            routingTable.clear();
-            Trace.info("GossipRouter.cleanup()", "routing table cleared");
         }
+        Trace.info("GossipRouter.cleanup()", "routing table cleared");
         synchronized(gossipTable) {
             gossipTable.clear();
             Trace.info("GossipRouter.cleanup()", "gossip table cleared");
@@ -472,32 +439,6 @@ public class GossipRouter {
 
     }
 
-    /**
-     * Connects to the ServerSocket and sends the shutdown header.
-     **/
-    private void shutdown() {       
-        try {
-            Socket s = new Socket(srvSock.getInetAddress(), 
-                                  srvSock.getLocalPort());
-            DataInputStream dis = new DataInputStream(s.getInputStream());
-            int len = dis.readInt();
-            byte[] buf = new byte[len];
-            dis.readFully(buf, 0, buf.length);
-            DataOutputStream dos = new DataOutputStream(s.getOutputStream());
-            dos.writeInt(SHUTDOWN);
-            dos.writeUTF("");
-            // waits until the server replies
-            dis.readInt();
-            dos.flush();
-            dos.close();
-            s.close();
-        }
-        catch(Exception e) {
-            Trace.error("GossipRouter.shutdown()", "shutdown failed: "+e);
-        }
-        
-    }
-
     //
     // GOSSIPING
     //
@@ -522,8 +463,8 @@ public class GossipRouter {
         synchronized(gossipTable) {
 
             switch(gossip.getType()) {
-                
-            case GossipData.REGISTER_REQ: 
+
+            case GossipData.REGISTER_REQ:
                 mbr=gossip.getMbr();
                 if(group == null || mbr == null) {
                     Trace.error("GossipRouter.processGossip()", "group or member is null, cannot register member");
@@ -548,7 +489,7 @@ public class GossipRouter {
                 }
                 return new GossipData(GossipData.GET_RSP, group, null, mbrs);
 
-            case GossipData.GET_RSP: 
+            case GossipData.GET_RSP:
                 Trace.warn("GossipRouter.processGossip()", "received a GET_RSP. Should not be received by server");
                 return null;
 
@@ -561,7 +502,7 @@ public class GossipRouter {
 
 
     /**
-     * Adds a new member to the group in the gossip table or renews the 
+     * Adds a new member to the group in the gossip table or renews the
      * membership where is the case.
      *
      * @since 2.2.1
@@ -579,7 +520,7 @@ public class GossipRouter {
 
             val=(List)gossipTable.get(groupname);
             if(val == null) {
-                val=Collections.synchronizedList(new ArrayList());
+                val=new ArrayList();
                 gossipTable.put(groupname, val);
             }
             int index = val.indexOf(e);
@@ -592,7 +533,7 @@ public class GossipRouter {
     }
 
 
-    /**   
+    /**
      * Removes expired gossip entries (entries older than EXPIRY_TIME msec).
      * @since 2.2.1
      */
@@ -626,7 +567,7 @@ public class GossipRouter {
                 }
             }
         }
-        
+
         if(Trace.trace && num_entries_removed > 0) {
             Trace.info("GossipRouter.sweep()", "done (removed " + num_entries_removed + " entries)");
         }
@@ -639,441 +580,816 @@ public class GossipRouter {
     /**
      Gets the members of group 'groupname'. Returns them as a List of Addresses.
      */
-    private void processGetRequest(Socket sock, DataOutputStream output, String groupname) {
+    private void processGetRequest(Connection conn, String groupname) throws Exception {
 
-        List grpmbrs=(List)routingTable.get(groupname);
-        org.jgroups.util.List ret=null;
-        AddressEntry entry;
+        Connection[] grpmbrs=(Connection[])routingTable.get(groupname);
+        org.jgroups.util.List ret=new org.jgroups.util.List();
+        ByteArrayOutputStream out_stream=new ByteArrayOutputStream();
+        DataOutputStream output=new DataOutputStream(out_stream);
         byte[] buf;
 
-        if(Trace.debug) {
-            Trace.debug("GossipRouter.processGetRequest()", "groupname=" + groupname + ", result=" + grpmbrs);
-        }
-
-        if(grpmbrs != null && grpmbrs.size() > 0) {
-            ret=new org.jgroups.util.List();
-            for(Iterator i=grpmbrs.iterator(); i.hasNext(); ) {
-                entry=(AddressEntry)i.next();
-                ret.add(entry.addr);
+        if(grpmbrs != null) {
+            for(int i=0; i < grpmbrs.length; i++) {
+                ret.add(grpmbrs[i].addr);
             }
         }
-        try {
-            if(ret == null || ret.size() == 0) {
-                output.writeInt(0);
-            }
-            else {
-                buf=Util.objectToByteBuffer(ret);
-                output.writeInt(buf.length);
-                output.write(buf, 0, buf.length);
-            }
+
+        if(Trace.debug) {
+            Trace.debug("GossipRouter.processGetRequest()", "groupname=" + groupname + ", result=" + ret);
         }
-        catch(Exception e) {
-            Trace.error("GossipRouter.processGetRequest()", "exception=" + e);
+
+        if(ret.size() == 0) {
+            output.writeInt(0);
         }
-        finally {
-            try {
-                if(output != null)
-                    output.close();
-                sock.close();
-            }
-            catch(Exception e) {
-            }
+        else {
+            buf=Util.objectToByteBuffer(ret);
+            output.writeInt(buf.length);
+            output.write(buf, 0, buf.length);
         }
+        output.close();
+        conn.sendAndClose(ByteBuffer.wrap(out_stream.toByteArray()));
     }
 
 
     /**
      * Dumps the routing table as String to the socket's OutputStream.
      **/
-    private void processDumpRequest(Socket sock, DataOutputStream output) {
+    private void processDumpRequest(Connection conn) throws IOException {
+        ByteArrayOutputStream out_stream=new ByteArrayOutputStream();
+        DataOutputStream output=new DataOutputStream(out_stream);
 
-        try {
-            output.writeUTF(dumpRoutingTable());
-        }
-        catch(Exception e) {
-            Trace.error("GossipRouter.processDumpRequest()",
-                        "error sending the answer back to the client: " + e);
-        }
-        finally {
-            try {
-                if(output != null) {
-                    output.close();
-                }
-            }
-            catch(Exception e) {
-                Trace.error("GossipRouter.processDumpRequest()",
-                            "error closing the output stream: " + e);
-            }
-            try {
-                sock.close();
-            }
-            catch(Exception e) {
-                Trace.error("GossipRouter.processDumpRequest()",
-                            "error closing the socket: " + e);
-            }
-        }
-    }
-
-
-    private String dumpTable(Map map) {
-
-        String label = (map instanceof Hashtable)?"routing":"gossip";
-        StringBuffer sb=new StringBuffer();
-        synchronized(map) {
-            if(map.size() == 0) {
-                sb.append("empty ");
-                sb.append(label);
-                sb.append(" table");
-            }
-            else {
-                for(Iterator i=map.keySet().iterator(); i.hasNext();) {
-                    String gname=(String)i.next();
-                    sb.append("GROUP: '" + gname + "'\n");
-                    List l=(List)map.get(gname);
-                    if(l == null) {
-                        sb.append("\tnull list of addresses\n");
-                    }
-                    else
-                        if(l.size() == 0) {
-                            sb.append("\tempty list of addresses\n");
-                        }
-                        else {
-                            for(Iterator j=l.iterator(); j.hasNext();) {
-                                AddressEntry ae=(AddressEntry)j.next();
-                                sb.append("\t");
-                                sb.append(ae.toString());
-                                sb.append("\n");
-                            }
-                        }
-                }
-            }
-        }
-        return sb.toString();
+        output.writeUTF(dumpRoutingTable());
+        output.close();
+        conn.sendAndClose(ByteBuffer.wrap(out_stream.toByteArray()));
     }
 
 
+    /**
+     * Sends msg to dest or, if dest is null, to all members of dest_group. The message is framed (length prefix)
+     * once, and the same (read-only) buffer is added to the write queues of all destinations
+     */
+    private void route(Address dest, String dest_group, byte[] msg) {
 
-    private synchronized void route(Address dest, String dest_group, byte[] msg) {
-
-//         Trace.debug("GossipRouter", "routing request for "+dest_group+", destination "+
-//                     (dest==null?"ALL":dest.toString())+", message="+message);
+        ByteBuffer frame;
 
-        if(dest == null) { 
-            // send to all members in group dest.getChannelName()
+        if(dest == null) {
+            // send to all members in group dest_group
             if(dest_group == null) {
                 Trace.error("GossipRouter.route()", "both dest address and group are null");
                 return;
             }
-            else {
-                sendToAllMembersInGroup(dest_group, msg);
+            Connection[] conns=(Connection[])routingTable.get(dest_group);
+            if(conns == null || conns.length == 0) {
+                return;
+            }
+            frame=ForwardQueue.createFrame(msg);
+            for(int i=0; i < conns.length; i++) {
+                conns[i].send(frame.duplicate());
             }
         }
-        else {                  
+        else {
             // send to destination address
-            AddressEntry ae = findAddressEntry(dest);
-            if (ae == null) {
+            Connection conn=(Connection)addressTable.get(dest);
+            if (conn == null) {
                 Trace.error("GossipRouter.route()", "cannot find address "+dest+" in the routing table");
                 return;
             }
-            if (ae.output==null) {
-                Trace.error("GossipRouter.route()", "address "+dest+" is associated with a null output stream");
-                return;
-            }
-            try {
-                sendToMember(ae.output, msg);
-            }
-            catch(Exception e) {
-                Trace.error("GossipRouter.route()", "failed sending message to "+dest+": "+e.getMessage());
-                removeEntry(ae.sock); // will close socket
-            }
+            conn.send(ForwardQueue.createFrame(msg));
         }
     }
 
 
     /**
-     * Adds a new member to the routing group.
+     * Adds a new member to the routing group. An existing connection of the same member is closed.
      **/
-    private void addEntry(String groupname, AddressEntry e) {
+    private void addEntry(String groupname, Connection conn) {
 
-        List val;
+        Connection   old;
+        Connection[] conns, tmp;
+        HashMap      table, addrs;
 
         if(groupname == null) {
             Trace.error("GossipRouter.addEntry()", "groupname was null, not added !");
             return;
         }
 
-        synchronized(routingTable) {
-            val=(List)routingTable.get(groupname);
-
-            if(val == null) {
-                val=Collections.synchronizedList(new ArrayList());
-                routingTable.put(groupname, val);
+        synchronized(routingLock) {
+            old=(Connection)addressTable.get(conn.addr);
+            if(old != null) {
+                removeEntry(old); // new connection for an existing member
             }
-            int index = val.indexOf(e);
-            if (index==-1) {
-                val.add(e);
-                return;
+            table=new HashMap(routingTable);
+            conns=(Connection[])table.get(groupname);
+            if(conns == null) {
+                tmp=new Connection[]{conn};
             }
-            // new connection for an existing member
-            ((AddressEntry)val.remove(index)).destroy();
-            val.add(e);
+            else {
+                tmp=new Connection[conns.length + 1];
+                System.arraycopy(conns, 0, tmp, 0, conns.length);
+                tmp[conns.length]=conn;
+            }
+            table.put(groupname, tmp);
+            addrs=new HashMap(addressTable);
+            addrs.put(conn.addr, conn);
+            routingTable=table;
+            addressTable=addrs;
+        }
+        if(old != null) {
+            old.close();
         }
     }
 
 
-    private void removeEntry(Socket sock) {
+    /** Removes the connection from the routing table (if present). Doesn't close it */
+    private void removeEntry(Connection conn) {
 
-        List val;
-        AddressEntry entry;
-        synchronized(routingTable) {
-            for(Enumeration e=routingTable.keys(); e.hasMoreElements();) {
-                val=(List)routingTable.get(e.nextElement());
-                for(Iterator i=val.iterator(); i.hasNext();) {
-                    entry=(AddressEntry)i.next();
-                    if(entry.sock == sock) {
-                        entry.destroy();
-                        //Util.print("Removing entry " + entry);
-                        i.remove();
-                        return;
-                    }
-                }
+        Connection[] conns, tmp;
+        HashMap      table, addrs;
+        int          index=0;
+
+        if(conn.group == null) {
+            return;
+        }
+        synchronized(routingLock) {
+            conns=(Connection[])routingTable.get(conn.group);
+            if(conns == null) {
+                return;
+            }
+            tmp=new Connection[conns.length];
+            for(int i=0; i < conns.length; i++) {
+                if(conns[i] != conn)
+                    tmp[index++]=conns[i];
+            }
+            if(index == conns.length) {
+                return;
             }
+            table=new HashMap(routingTable);
+            if(index == 0) {
+                table.remove(conn.group);
+            }
+            else {
+                Connection[] rest=new Connection[index];
+                System.arraycopy(tmp, 0, rest, 0, index);
+                table.put(conn.group, rest);
+            }
+            addrs=new HashMap(addressTable);
+            if(addrs.get(conn.addr) == conn) {
+                addrs.remove(conn.addr);
+            }
+            routingTable=table;
+            addressTable=addrs;
         }
     }
 
-    /**
-     * @return null if not found
-     **/
-    private AddressEntry findAddressEntry(Address addr) {
-        
-        List val;
-        AddressEntry entry;
-        synchronized(routingTable) {
-            for(Enumeration e=routingTable.keys(); e.hasMoreElements();) {
-                val=(List)routingTable.get(e.nextElement());
-                for(Iterator i=val.iterator(); i.hasNext();) {
-                    entry=(AddressEntry)i.next();
-                    if(addr.equals(entry.addr)) {
-                        return entry;
-                    }
-                }
-            }
+
+    /** Reads a string written with DataOutput.writeUTF(), or returns null (without consuming) if incomplete */
+    static String readUTF(ByteBuffer buf) throws IOException {
+        int start=buf.position(), len;
+        byte[] tmp;
+
+        if(buf.remaining() < 2) {
+            return null;
+        }
+        len=buf.getShort() & 0xffff;
+        if(buf.remaining() < len) {
+            buf.position(start);
             return null;
         }
+        tmp=new byte[len + 2];
+        buf.position(start);
+        buf.get(tmp);
+        return new DataInputStream(new ByteArrayInputStream(tmp)).readUTF();
     }
 
 
+    /**
+     * Reads a length-prefixed byte array, or returns null (without consuming) if incomplete
+     * @throws IOException If the length is negative or greater than max_len
+     */
+    static byte[] readBuffer(ByteBuffer buf, int max_len) throws IOException {
+        int start=buf.position(), len;
+        byte[] tmp;
 
-
-    private void sendToAllMembersInGroup(String groupname, byte[] msg) {
-
-//         Trace.debug("GossipRouter", "sendToAllMembersInGroup("+groupname+", ... )");
-        List val;
-        synchronized(routingTable) {
-            val=(List)routingTable.get(groupname);
-            if(val == null || val.size() == 0) {
-                return;
-            }
-            for(Iterator i=val.iterator(); i.hasNext();) {
-                AddressEntry ae = (AddressEntry)i.next();
-                DataOutputStream dos = ae.output;
-                if (dos!=null) {
-                    // send only to 'connected' members
-                    try {
-                        sendToMember(dos, msg);
-                    }
-                    catch(Exception e) {
-                        Trace.warn("GossipRouter.sendToAllMembersInGroup()",
-                                "cannot send to "+ae.addr+": "+e.getMessage());
-                        ae.destroy(); // this closes the socket
-                        i.remove();
-                    }
-                }
-            }
+        if(buf.remaining() < 4) {
+            return null;
         }
+        len=buf.getInt();
+        if(len < 0 || len > max_len) {
+            throw new IOException("invalid length " + len + " (max is " + max_len + ")");
+        }
+        if(buf.remaining() < len) {
+            buf.position(start);
+            return null;
+        }
+        tmp=new byte[len];
+        buf.get(tmp);
+        return tmp;
     }
 
 
-    /**
-     * @exception IOException 
-     **/
-    private void sendToMember(DataOutputStream out, byte[] msg) throws IOException {
-
-        if (out==null) {
-            return;
+    /** Deserializes an object without the global lock of Util.objectFromByteBuffer() */
+    static Object readObject(byte[] buf) throws Exception {
+        ObjectInputStream in=new ObjectInputStream(new ByteArrayInputStream(buf));
+        try {
+            return in.readObject();
+        }
+        finally {
+            in.close();
         }
-        out.writeInt(msg.length);
-        out.write(msg, 0, msg.length);
     }
 
 
 
     /**
-     * Class used to store Addresses in both routing and gossip tables. 
-     * If it is used for routing, sock and output have valid values, otherwise
-     * they're null and only the timestamp counts.
+     * Class used to store Addresses in the gossip table. Only the timestamp counts.
      **/
     class AddressEntry {
-        
+
         Address addr=null;
-        Socket sock=null;
-        DataOutputStream output=null;
         long timestamp=0;
-        SocketThread thread;
 
-        /**
-         * AddressEntry for a 'gossip' membership.
-         **/
         public AddressEntry(Address addr) {
-            this(addr, null, null, null);
-        }
-
-        public AddressEntry(Address addr, Socket sock, SocketThread thread, DataOutputStream output) {
             this.addr=addr;
-            this.sock=sock;
-            this.thread = thread;
-            this.output=output;
             this.timestamp = System.currentTimeMillis();
         }
 
-        void destroy() {
-            if (thread != null) {
-                thread.finish();
+        public void update() {
+            timestamp = System.currentTimeMillis();
+        }
+
+        public boolean equals(Object other) {
+            return addr.equals(((AddressEntry)other).addr);
+        }
+
+        public String toString() {
+            return "addr=" + addr + ", timestamp=" + timestamp;
+        }
+    }
+
+
+
+    /**
+     * A selector thread handles a number of connections: it reads and processes their requests and messages, and
+     * writes the messages queued for them. Connections are added by the accepting thread (selector thread 0), and
+     * writes are requested by any selector thread, so both are passed through queues and a wakeup of the selector.
+     */
+    class SelectorThread extends Thread {
+        final Selector selector;
+        final LinkedList pending_adds=new LinkedList();    // new connections to be registered
+        final LinkedList pending_writes=new LinkedList();  // connections which need OP_WRITE
+        final LinkedList handshakes=new LinkedList();      // connections in state NEW or REQUEST
+        private volatile boolean active=true;
+
+        SelectorThread(int id) throws IOException {
+            super("GossipRouter selector-" + id); // not a daemon: keeps a standalone router (main()) running
+            selector=Selector.open();
+        }
+
+        void add(Connection conn) {
+            synchronized(this) {
+                pending_adds.add(conn);
+            }
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection conn) {
+            synchronized(this) {
+                pending_writes.add(conn);
+            }
+            selector.wakeup();
+        }
+
+        void finish() {
+            active=false;
+            selector.wakeup();
+            if(this != Thread.currentThread()) {
+                try {
+                    join(2000);
+                }
+                catch(InterruptedException e) {
+                }
             }
-            if(output != null) {
+        }
+
+        public void run() {
+            Iterator     it;
+            SelectionKey key;
+            Connection   conn;
+            long         timeout;
+
+            while(active) {
                 try {
-                    output.close();
+                    processPending();
+                    timeout=checkHandshakes();
+                    selector.select(timeout);
+                    for(it=selector.selectedKeys().iterator(); it.hasNext();) {
+                        key=(SelectionKey)it.next();
+                        it.remove();
+                        if(!key.isValid()) {
+                            continue;
+                        }
+                        if(key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        conn=(Connection)key.attachment();
+                        if(key.isWritable()) {
+                            conn.handleWrite();
+                        }
+                        if(key.isValid() && key.isReadable()) {
+                            conn.handleRead();
+                        }
+                    }
+                }
+                catch(Throwable t) {
+                    if(active) {
+                        Trace.error("GossipRouter.SelectorThread.run()", "exception in selector loop: " + t);
+                    }
+                }
+            }
+            for(it=selector.keys().iterator(); it.hasNext();) {
+                key=(SelectionKey)it.next();
+                if(key.attachment() instanceof Connection) {
+                    ((Connection)key.attachment()).close();
                 }
-                catch(Exception e) {
+            }
+            try {
+                selector.close();
+            }
+            catch(IOException e) {
+            }
+        }
+
+        /** Registers new connections and requests OP_WRITE. The lists are copied, so no Connection is locked under our lock */
+        private void processPending() {
+            Object[]   adds, writes;
+            Connection conn;
+
+            synchronized(this) {
+                if(pending_adds.size() == 0 && pending_writes.size() == 0) {
+                    return;
                 }
-                output=null;
+                adds=pending_adds.toArray();
+                writes=pending_writes.toArray();
+                pending_adds.clear();
+                pending_writes.clear();
             }
-            if(sock != null) {
+            for(int i=0; i < adds.length; i++) {
+                conn=(Connection)adds[i];
                 try {
-                    sock.close();
+                    conn.register(this);
+                    handshakes.add(conn);
+                }
+                catch(ClosedChannelException e) {
+                    conn.close();
+                }
+            }
+            for(int i=0; i < writes.length; i++) {
+                conn=(Connection)writes[i];
+                if(conn.out_queue.isClosed()) {
+                    conn.close(); // closeLater(): don't wait until the channel is writable
                 }
-                catch(Exception e) {
+                else if(conn.key != null && conn.key.isValid()) {
+                    conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
                 }
-                sock=null;
             }
-            timestamp = 0;
         }
 
-        public void update() {
-            timestamp = System.currentTimeMillis();
+        /** Handles expired handshakes and returns the time until the next one expires (0 if none) */
+        private long checkHandshakes() {
+            long       now=System.currentTimeMillis(), timeout=0, wait;
+            Connection conn;
+
+            for(Iterator it=handshakes.iterator(); it.hasNext();) {
+                conn=(Connection)it.next();
+                if(conn.state != NEW && conn.state != REQUEST) {
+                    it.remove();
+                    continue;
+                }
+                if(now >= conn.deadline) {
+                    if(conn.state == NEW) {
+                        conn.handleRead(); // the gossip request may have been received but not yet read
+                    }
+                    if(conn.state != NEW && conn.state != REQUEST) {
+                        it.remove();
+                        continue;
+                    }
+                    conn.handshakeTimeout();
+                    if(conn.state != REQUEST) {
+                        it.remove();
+                        continue;
+                    }
+                }
+                wait=Math.max(1, conn.deadline - now);
+                timeout=timeout == 0? wait : Math.min(timeout, wait);
+            }
+            return timeout;
         }
+    }
 
-        public boolean equals(Object other) {
-            return addr.equals(((AddressEntry)other).addr);
+
+
+    /**
+     * A connection from a client: a gossip request, a routing request (GET, DUMP, SHUTDOWN) or a registered routing
+     * client. Reads are done only by the owning selector thread; messages can be sent by any thread.
+     */
+    class Connection {
+        final SocketChannel ch;
+        SelectorThread      owner;
+        SelectionKey        key;
+        volatile int        state=NEW;
+        long                deadline;
+        ByteBuffer          in=ByteBuffer.allocate(8192);
+
+        Address             addr;            // address of the routing client
+        String              group;           // group of the routing client
+
+        final ForwardQueue  out_queue=new ForwardQueue(maxQueueSize, slowClientPolicy);
+        boolean             write_requested=false;
+        boolean             close_after_write=false;
+
+        byte[]              last_dest_buf;   // serialized form of the last unicast destination ...
+        Address             last_dest;       // ... and the corresponding address
+
+        Connection(SocketChannel ch) {
+            this.ch=ch;
+            deadline=System.currentTimeMillis() + gossipRequestTimeout;
         }
 
-        public String toString() {
-            StringBuffer sb = new StringBuffer("addr=");
-            sb.append(addr);
-            if (sock==null) {
-                sb.append(", timestamp=");
-                sb.append(timestamp);
+        void register(SelectorThread owner) throws ClosedChannelException {
+            this.owner=owner;
+            key=ch.register(owner.selector, SelectionKey.OP_READ, this);
+        }
+
+
+        /** Adds buf to the write queue; it is written right away if nothing is queued */
+        void send(ByteBuffer buf) {
+            boolean request_write=false;
+
+            if(!out_queue.add(buf)) {
+                if(!out_queue.isClosed()) {
+                    queueFull();
+                }
+                return;
             }
-            else {
-                sb.append(", sock=");
-                sb.append(sock);
+            synchronized(this) {
+                if(write_requested) {
+                    return; // the selector thread will write it
+                }
+                try {
+                    if(!out_queue.write(ch) || close_after_write) {
+                        write_requested=true;
+                        request_write=true;
+                    }
+                }
+                catch(IOException e) {
+                    Trace.warn("GossipRouter.Connection.send()", "cannot send to "+addr+": "+e);
+                    closeLater();
+                    return;
+                }
+            }
+            if(request_write) {
+                owner.requestWrite(this);
             }
-            return sb.toString();
         }
-    }
 
-    /** A SocketThread manages one connection to a client. Its main task is message routing. */
 
-    private static int threadCounter = 0;
+        void sendAndClose(ByteBuffer buf) {
+            synchronized(this) {
+                close_after_write=true;
+            }
+            send(buf);
+        }
+
+
+        /** Called when a message couldn't be added because the client falls behind */
+        private void queueFull() {
+            if(out_queue.getPolicy() == ForwardQueue.DISCONNECT) {
+                Trace.warn("GossipRouter.Connection.queueFull()", "write queue of " + addr + " is full (" +
+                           out_queue + "): disconnecting it");
+                closeLater();
+            }
+            else if(out_queue.getNumDropped() % 1000 == 1) {
+                Trace.warn("GossipRouter.Connection.queueFull()", "write queue of " + addr + " is full (" +
+                           out_queue + ")");
+            }
+        }
 
-    class SocketThread extends Thread {
 
-        private volatile boolean active = true;
-        Socket sock=null;
-        DataInputStream input=null;
+        /** Called by the owning selector thread when the channel is writable */
+        void handleWrite() {
+            boolean done;
 
-        public SocketThread(Socket sock, DataInputStream ois) {
-            super("SocketThread "+(threadCounter++));
-            this.sock=sock;
-            input=ois;
+            synchronized(this) {
+                try {
+                    done=out_queue.write(ch);
+                }
+                catch(IOException e) {
+                    Trace.warn("GossipRouter.Connection.handleWrite()", "cannot send to "+addr+": "+e);
+                    close();
+                    return;
+                }
+                if(done) {
+                    write_requested=false;
+                    if(key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            }
+            if(done && close_after_write) {
+                close();
+            }
         }
 
-        void closeSocket() {
+
+        /** Called by the owning selector thread when data is available */
+        void handleRead() {
+            int num;
+
             try {
-                if(input != null)
-                    input.close();
-                if(sock != null)
-                    sock.close();
+                if(!in.hasRemaining()) {
+                    // the buffer holds at most one incomplete request or message: group name, destination and
+                    // message, each of them limited to maxMessageSize
+                    if(in.capacity() > 2 * maxMessageSize + 65536) {
+                        throw new IOException("received data exceeds the max message size (" + maxMessageSize + ")");
+                    }
+                    ByteBuffer tmp=ByteBuffer.allocate(in.capacity() * 2);
+                    in.flip();
+                    tmp.put(in);
+                    in=tmp;
+                }
+                num=ch.read(in);
+                in.flip();
+                try {
+                    process(num < 0);
+                }
+                finally {
+                    in.compact();
+                }
+                if(num < 0 && state != CLOSED) {
+                    if(Trace.trace && state == ROUTING) {
+                        Trace.info("GossipRouter.Connection.handleRead()", "client " + ch.socket() +
+                                   " closed connection; removing it from routing table");
+                    }
+                    close();
+                }
             }
             catch(Exception e) {
+                if(state != CLOSED) {
+                    Trace.error("GossipRouter.Connection.handleRead()", "failure handling connection " +
+                                ch.socket() + ": " + e);
+                }
+                close();
             }
         }
 
-        void finish() {
-            if (Trace.debug) {
-                Trace.debug("GossipRouter.finish()", "finishing the SocketThread for "+sock);
+
+        /** Processes as much of the received data as possible */
+        private void process(boolean eof) throws Exception {
+            switch(state) {
+                case NEW:
+                    processGossipRequest(eof);
+                    break;
+                case REQUEST:
+                    processRequest();
+                    break;
+                case ROUTING:
+                    while(state == ROUTING && processMessage());
+                    break;
+                default: // REPLYING or CLOSED
+                    in.position(in.limit()); // discard
+                    break;
             }
-            active = false;
         }
 
 
-        public void run() {
+        /**
+         * Data received before the gossip request timeout is a serialized GossipData; the request is processed once
+         * the whole object has been received
+         */
+        private void processGossipRequest(boolean eof) throws Exception {
+            GossipData req, rsp;
+            byte[]     tmp=new byte[in.remaining()];
+
+            if(tmp.length == 0) {
+                return;
+            }
+            in.duplicate().get(tmp);
+            try {
+                req=(GossipData)readObject(tmp);
+            }
+            catch(IOException incomplete) { // wait for the rest of the request (or gossipRequestTimeout)
+                if(eof) throw incomplete;
+                return;
+            }
+            in.position(in.limit());
+            state=REPLYING;  // no routing protocol on this connection
+            rsp=processGossip(req);
+            if(rsp == null) {
+                close();
+                return;
+            }
+            ByteArrayOutputStream out_stream=new ByteArrayOutputStream();
+            ObjectOutputStream oos=new ObjectOutputStream(out_stream);
+            oos.writeObject(rsp);
+            oos.close();
+            sendAndClose(ByteBuffer.wrap(out_stream.toByteArray()));
+        }
+
 
+        /**
+         * Called by the owning selector thread when the handshake deadline expired: in state NEW, this is a routing
+         * client, which is sent its address; in state REQUEST the client didn't send its request in time
+         */
+        void handshakeTimeout() {
+            ByteArrayOutputStream out_stream;
+            DataOutputStream output;
+            Socket sock=ch.socket();
             byte[] buf;
-            int len;
-            Address dst_addr=null;
+
+            if(state == REQUEST) {
+                Trace.error("GossipRouter.Connection.handshakeTimeout()", "failure handling a client connection: " +
+                            "timeout waiting for router client answer (" + sock + ")");
+                close();
+                return;
+            }
+            try {
+                // timeout, this is a routing request: return the address of the peer so it can set it
+                buf=Util.objectToByteBuffer(new IpAddress(sock.getInetAddress(), sock.getPort()));
+                out_stream=new ByteArrayOutputStream(buf.length + 4);
+                output=new DataOutputStream(out_stream);
+                output.writeInt(buf.length);
+                output.write(buf, 0, buf.length);
+                output.close();
+                state=REQUEST;
+                deadline=System.currentTimeMillis() + routingClientReplyTimeout;
+                send(ByteBuffer.wrap(out_stream.toByteArray()));
+            }
+            catch(Exception e) {
+                Trace.error("GossipRouter.Connection.handshakeTimeout()", "failure handling a client connection: " + e);
+                close();
+            }
+        }
+
+
+        /**
+         * We can have 4 kinds of requests at this point: GET, DUMP, REGISTER or SHUTDOWN. GET, DUMP and SHUTDOWN are
+         * answered and the connection is closed, REGISTER turns this connection into a routing connection.
+         */
+        private void processRequest() throws Exception {
+            int    start=in.position(), type;
             String gname;
+            byte[] buf;
 
-            while(active) {
-                try {
-                    gname=input.readUTF(); // group name
-                    len=input.readInt();
-                    if(len == 0)
-                        dst_addr=null;
-                    else {
-                        buf=new byte[len];
-                        input.readFully(buf, 0, buf.length);  // dest address
-                        dst_addr=(Address)Util.objectFromByteBuffer(buf);
-                    }
+            if(in.remaining() < 4) {
+                return;
+            }
+            type=in.getInt();
+            if((gname=readUTF(in)) == null) {
+                in.position(start);
+                return;
+            }
 
-                    len=input.readInt();
-                    if(len == 0) {
-                        Trace.warn("GossipRouter.SocketThread.run()", "received null message");
-                        continue;
-                    }
-                    buf=new byte[len];
-                    input.readFully(buf, 0, buf.length);  // message
-                    route(dst_addr, gname, buf);
+            switch(type) {
+            case GossipRouter.GET:
+                state=REPLYING;
+                processGetRequest(this, gname); // closes the connection after sending the response
+                break;
+            case GossipRouter.DUMP:
+                state=REPLYING;
+                processDumpRequest(this); // closes the connection after sending the response
+                break;
+            case GossipRouter.REGISTER:
+                if((buf=readBuffer(in, maxMessageSize)) == null) {
+                    in.position(start);
+                    return;
                 }
-                catch(EOFException io_ex) {
-                    if(Trace.trace) {
-                        //Trace.info("GossipRouter.SocketThread.run()",
-                        //        "client " +sock.getInetAddress().getHostName() + ":" + sock.getPort() +
-                        //        " closed connection; removing it from routing table");
-                        Trace.info("GossipRouter.SocketThread.run()",
-                        	"client " +sock.getInetAddress().getHostAddress() + ":" + sock.getPort() +
-                        	" closed connection; removing it from routing table");
+                addr=(Address)readObject(buf); // read Address
+                group=gname;
+                state=ROUTING;
+                addEntry(gname, this);
+                while(state == ROUTING && processMessage());
+                break;
+            case GossipRouter.SHUTDOWN:
+                Trace.info("GossipRouter.Connection.processRequest()", "router shutting down");
+                state=REPLYING;
+                ByteBuffer ok=ByteBuffer.allocate(4);
+                ok.putInt(SHUTDOWN_OK).flip();
+                sendAndClose(ok);
+                new Thread("GossipRouter shutdown") {
+                    public void run() {
+                        Util.sleep(500); // give the selector thread time to send SHUTDOWN_OK
+                        GossipRouter.this.stop();
                     }
-                    removeEntry(sock); // will close socket
-                    return;
+                }.start();
+                break;
+            default:
+                Trace.error("GossipRouter.Connection.processRequest()", "request of type " + type + " not recognized");
+                close();
+                break;
+            }
+        }
+
+
+        /** Reads and routes one message; returns false if the message hasn't been received completely */
+        private boolean processMessage() throws Exception {
+            int     start=in.position(), len;
+            String  gname;
+            Address dst_addr;
+            byte[]  buf, dest_buf=null;
+
+            if((gname=readUTF(in)) == null || in.remaining() < 4) {
+                in.position(start);
+                return false;
+            }
+            len=in.getInt(in.position());
+            if(len > 0 && (dest_buf=readBuffer(in, maxMessageSize)) == null) {
+                in.position(start);
+                return false;
+            }
+            if(len == 0) {
+                in.getInt();
+            }
+            if((buf=readBuffer(in, maxMessageSize)) == null) {
+                in.position(start);
+                return false;
+            }
+
+            if(dest_buf == null) {
+                dst_addr=null;
+            }
+            else if(last_dest_buf != null && Arrays.equals(dest_buf, last_dest_buf)) {
+                dst_addr=last_dest;
+            }
+            else {
+                dst_addr=(Address)readObject(dest_buf);
+                last_dest_buf=dest_buf;
+                last_dest=dst_addr;
+            }
+
+            if(buf.length == 0) {
+                Trace.warn("GossipRouter.Connection.processMessage()", "received null message");
+                return true;
+            }
+            route(dst_addr, gname, buf);
+            return true;
+        }
+
+
+        /**
+         * Closes the connection from a thread other than the owner: the queued messages are discarded and the owning
+         * selector thread closes it
+         */
+        private void closeLater() {
+            synchronized(this) {
+                if(out_queue.isClosed()) {
+                    return; // already closing
                 }
-                catch(Exception e) {
-                    Trace.error("GossipRouter.SocketThread.run()","exception=" + e);
-                    break;
+                out_queue.close();
+                close_after_write=true;
+                write_requested=true;
+            }
+            owner.requestWrite(this);
+        }
+
+
+        /** Removes the connection from the routing table and closes the channel. Can be called by any thread */
+        void close() {
+            synchronized(this) {
+                if(state == CLOSED && !ch.isOpen()) {
+                    return;
                 }
+                state=CLOSED;
+            }
+            out_queue.close();
+            removeEntry(this);
+            if(key != null) {
+                key.cancel();
+            }
+            try {
+                ch.close();
+            }
+            catch(IOException e) {
             }
-            closeSocket();
         }
 
+
+        public String toString() {
+            return "addr=" + addr + ", sock=" + ch.socket() + ", queue: " + out_queue;
+        }
     }
 
 
+
     public static void main(String[] args) throws Exception {
         String arg;
         int port=8080;
         long expiry = GossipRouter.EXPIRY_TIME;
         long timeout = GossipRouter.GOSSIP_REQUEST_TIMEOUT;
         long routingTimeout = GossipRouter.ROUTING_CLIENT_REPLY_TIMEOUT;
+        int numSelectors = 0;
+        int maxQueueSize = 0;
+        String policy = null;
         GossipRouter router=null;
         String address=null;
 
@@ -1088,6 +1404,10 @@ public class GossipRouter {
                 System.out.println("                            a gossip request after connection was established;");
                 System.out.println("                            upon expiration, the router initiates the routing");
                 System.out.println("                            protocol on the connection.");
+                System.out.println("        -selectors <num>  - Number of selector threads (default: number of processors).");
+                System.out.println("        -maxqueue <bytes> - Max number of bytes queued for a client (default: " + MAX_QUEUE_SIZE + ").");
+                System.out.println("        -policy <drop|disconnect> - What to do when the queue of a client is full");
+                System.out.println("                            (default: drop).");
                 return;
             }
             else if(arg.equals("-port")) {
@@ -1105,12 +1425,30 @@ public class GossipRouter {
             else if(arg.equals("-rtimeout")) {
                 routingTimeout=new Long(args[++i]).longValue();
             }
+            else if(arg.equals("-selectors")) {
+                numSelectors=new Integer(args[++i]).intValue();
+            }
+            else if(arg.equals("-maxqueue")) {
+                maxQueueSize=new Integer(args[++i]).intValue();
+            }
+            else if(arg.equals("-policy")) {
+                policy=args[++i];
+            }
         }
         System.out.println("GossipRouter is starting...");
         Trace.init();
 
         try {
             router= new GossipRouter(port, address, expiry, timeout, routingTimeout);
+            if(numSelectors > 0) {
+                router.setSelectors(numSelectors);
+            }
+            if(maxQueueSize > 0) {
+                router.setMaxQueueSize(maxQueueSize);
+            }
+            if(policy != null) {
+                router.setSlowClientPolicy(policy);
+            }
             router.start();
         }
         catch(Exception e) {
@@ -6,6 +6,7 @@ package org.jgroups.stack;
 import org.jgroups.Address;
 import org.jgroups.Message;
 import org.jgroups.log.Trace;
+import org.jgroups.log.Log;
 import org.jgroups.util.List;
 import org.jgroups.util.RWLock;
 import org.jgroups.util.TimeScheduler;
@@ -45,6 +46,8 @@ import java.util.Enumeration;
  * @author John Georgiadis May 8 2001
  */
 public class NakReceiverWindow {
+    private static final Log log=Log.getLog("NakReceiverWindow");
+
 
 
     /** Maintains association between seqno and message */
@@ -188,7 +191,7 @@ public class NakReceiverWindow {
             old_tail=tail;
             if(seqno < head) {
                 if(Trace.debug)
-                    Trace.info("NakReceiverWindow.add()", "seqno " + seqno +
+                    log.info("add()", "seqno " + seqno +
                                                           " is smaller than " + head + "); discarding message");
                 return;
             }
@@ -227,7 +230,7 @@ public class NakReceiverWindow {
             }
             else if(seqno < tail) {
                 if(Trace.debug)
-                    Trace.debug("NakReceiverWindow.add()", "added missing msg " + msg.getSrc() + "#" + seqno);
+                    log.debug("add()", "added missing msg " + msg.getSrc() + "#" + seqno);
                 for(Enumeration en=msgs.elements(); en.hasMoreElements();) {
                     current=(Entry)en.nextElement();
                     // overwrite any previous message (e.g. added by down()) and
@@ -412,8 +415,8 @@ public class NakReceiverWindow {
         long my_high;
 
         if(low > high) {
-            if(Trace.trace)
-                Trace.error("NakReceiverWindow.getMissingMessages()", "invalid range: low (" + low +
+            if(log.isErrorEnabled())
+                log.error("getMissingMessages()", "invalid range: low (" + low +
                                                                       ") is higher than high (" + high + ")");
             return null;
         }
@@ -542,8 +545,8 @@ public class NakReceiverWindow {
         Entry entry;
 
         if(missing_msgs == null) {
-            if(Trace.trace)
-                Trace.error("NakReceiverWindow.getMessagesInList()", "argument list is null");
+            if(log.isErrorEnabled())
+                log.error("getMessagesInList()", "argument list is null");
             return ret;
         }
 
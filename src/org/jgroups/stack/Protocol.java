@@ -4,7 +4,9 @@ package org.jgroups.stack;
 
 
 import org.jgroups.Event;
+import org.jgroups.Message;
 import org.jgroups.log.Trace;
+import org.jgroups.util.Metrics;
 import org.jgroups.util.Queue;
 import org.jgroups.util.QueueClosedException;
 
@@ -163,6 +165,22 @@ public abstract class Protocol {
     protected boolean          down_thread=true;  // determines whether the down_handler thread should be started
     protected boolean          up_thread=true;    // determines whether the up_handler thread should be started
 
+    /** Metrics of this layer. Subclasses register their own counters, gauges and histograms */
+    protected final Metrics    metrics=new Metrics();
+    protected boolean          stats=false;       // determines whether the default metrics (msgs/bytes up/down) are collected;
+                                                  // off by default, as the counters are synchronized on every message
+    private final Metrics.Counter num_msgs_up=metrics.counter("msgs_up"), num_bytes_up=metrics.counter("bytes_up");
+    private final Metrics.Counter num_msgs_down=metrics.counter("msgs_down"), num_bytes_down=metrics.counter("bytes_down");
+
+    {
+        metrics.gauge("up_queue_size", new Metrics.Gauge() {
+            public long getValue() {return up_queue.size();}
+        });
+        metrics.gauge("down_queue_size", new Metrics.Gauge() {
+            public long getValue() {return down_queue.size();}
+        });
+    }
+
 
     /**
      * Configures the protocol initially. A configuration string consists of name=value
@@ -207,6 +225,12 @@ public abstract class Protocol {
             props.remove("up_thread_prio");
         }
 
+        str=props.getProperty("stats");
+        if(str != null) {
+            stats=new Boolean(str).booleanValue();
+            props.remove("stats");
+        }
+
         return setProperties(props);
     }
 
@@ -272,6 +296,10 @@ public abstract class Protocol {
         return down_queue;
     }  // used by Debugger (ProtocolView)
 
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
 
     /** List of events that are required to be answered by some layer above.
      @return Vector (of Integers) */
@@ -322,6 +350,10 @@ public abstract class Protocol {
         this.stack=stack;
     }
 
+    public ProtocolStack getProtocolStack() {
+        return stack;
+    }
+
 
     /** Used internally. If overridden, call this method first. Only creates the up_handler thread
      if down_thread is true */
@@ -421,6 +453,10 @@ public abstract class Protocol {
      * caller's thread (e.g. the protocol layer below us).
      */
     protected void receiveUpEvent(Event evt) {
+        if(stats && evt.getType() == Event.MSG) {
+            num_msgs_up.inc();
+            num_bytes_up.add(((Message)evt.getArg()).getLength());
+        }
         if(up_handler == null) {
             if(observer != null) {                               // call debugger hook (if installed)
                 if(observer.up(evt, up_queue.size()) == false) {  // false means discard event
@@ -445,6 +481,10 @@ public abstract class Protocol {
      * caller's thread (e.g. the protocol layer above us).
      */
     protected void receiveDownEvent(Event evt) {
+        if(stats && evt.getType() == Event.MSG) {
+            num_msgs_down.inc();
+            num_bytes_down.add(((Message)evt.getArg()).getLength());
+        }
         if(down_handler == null) {
             if(observer != null) {                                    // call debugger hook (if installed)
                 if(observer.down(evt, down_queue.size()) == false) {  // false means discard event
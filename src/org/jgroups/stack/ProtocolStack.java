@@ -9,6 +9,7 @@ import org.jgroups.Transport;
 import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.log.Trace;
 import org.jgroups.util.Promise;
+import org.jgroups.util.Executor;
 import org.jgroups.util.TimeScheduler;
 
 import java.util.Iterator;
@@ -36,6 +37,9 @@ public class ProtocolStack extends Protocol implements Transport {
     private JChannel                channel=null;
     private boolean                 stopped=true;
     public  TimeScheduler           timer=new TimeScheduler(5000);
+
+    /** Thread pool which can be shared by all protocols of this stack to run tasks asynchronously */
+    public  Executor                executor=new Executor("ProtocolStack.Executor", 0, 10, 0, Executor.BLOCK);
     Promise                         ack_promise=new Promise();
 
     /** Used to sync on START/START_OK events for start()*/
@@ -110,6 +114,29 @@ public class ProtocolStack extends Protocol implements Transport {
     }
 
 
+    /**
+     * Returns the metrics of all protocols, from top to bottom, one <code>PROTOCOL.metric=value</code> per line
+     */
+    public String dumpMetrics() {
+        StringBuffer sb=new StringBuffer();
+        Protocol     prot=top_prot;
+
+        while(prot != null) {
+            if(prot.getName() != null && !prot.getName().equals("ProtocolStack"))
+                prot.getMetrics().dump(prot.getName(), sb);
+            prot=prot.getDownProtocol();
+        }
+        return sb.toString();
+    }
+
+
+    /** Resets the metrics of all protocols */
+    public void resetMetrics() {
+        for(Protocol prot=top_prot; prot != null; prot=prot.getDownProtocol())
+            prot.getMetrics().reset();
+    }
+
+
     public void setup() throws Exception {
         if(top_prot == null) {
             top_prot=conf.setupProtocolStack(setup_string, this);
@@ -206,6 +233,7 @@ public class ProtocolStack extends Protocol implements Transport {
         if(stopped == false) return;
 
         timer.start();
+        executor.start();
 
         if(start_promise == null)
             start_promise=new Promise();
@@ -250,6 +278,8 @@ public class ProtocolStack extends Protocol implements Transport {
             catch(Exception ex) {
             }
         }
+        if(executor != null)
+            executor.stop();
 
         if(stopped) return;
 
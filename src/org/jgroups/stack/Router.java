@@ -13,8 +13,12 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
@@ -36,7 +40,12 @@ import java.util.Iterator;
  * router would therefore have to be running on the host the applet was loaded from.<p>
  * An alternative for running JGroups in an applet (IP multicast is not allows in applets as of
  * 1.2), is to use point-to-point UDP communication via the gossip server. However, then the appplet
- * has to be signed which involves additional administrative effort on the part of the user.
+ * has to be signed which involves additional administrative effort on the part of the user.<p>
+ * Messages are not written to the destinations by the thread which received them: a message is framed once and
+ * added to the {@link ForwardQueue} of each destination, and a writer thread per client sends the queued messages.
+ * So a member with a slow connection doesn't stall the routing for the rest of its group. When the queue of a client
+ * is full (<code>max_queue_size</code> bytes), further messages for it are dropped or the client is disconnected,
+ * depending on <code>slow_client_policy</code>.
  * @author Bela Ban
  */
 public class Router {
@@ -44,21 +53,42 @@ public class Router {
     int          port=8080;
     ServerSocket srv_sock=null;
     InetAddress  bind_address;
+    int          max_queue_size=MAX_QUEUE_SIZE;    // max number of bytes queued for a client
+    int          slow_client_policy=ForwardQueue.DROP;
 
     public static final int GET=-10;
     public static final int REGISTER=-11;
     public static final int DUMP=-21;
+    public static final int MAX_QUEUE_SIZE=2000000;
 
 
     public Router(int port) throws Exception {
-        this.port=port;
-        srv_sock=new ServerSocket(port, 50);  // backlog of 50 connections
+        this(port, null);
     }
 
     public Router(int port, InetAddress bind_address) throws Exception {
         this.port=port;
         this.bind_address=bind_address;
-        srv_sock=new ServerSocket(port, 50, bind_address);  // backlog of 50 connections
+        srv_sock=ServerSocketChannel.open().socket();  // accepted sockets have a channel, used by the writer threads
+        srv_sock.bind(new InetSocketAddress(bind_address, port), 50);  // backlog of 50 connections
+    }
+
+
+    public void setMaxQueueSize(int max_queue_size) {
+        this.max_queue_size=max_queue_size;
+    }
+
+    public int getMaxQueueSize() {
+        return max_queue_size;
+    }
+
+    /** Sets the policy for clients whose queue is full: "drop" or "disconnect" */
+    public void setSlowClientPolicy(String policy) {
+        slow_client_policy=ForwardQueue.policy(policy);
+    }
+
+    public String getSlowClientPolicy() {
+        return ForwardQueue.policyToString(slow_client_policy);
     }
 
 
@@ -239,7 +269,7 @@ public class Router {
         }
     }
 
-    synchronized void route(Address dest, String dest_group, byte[] msg) {
+    void route(Address dest, String dest_group, byte[] msg) {
 
         if(dest == null) { // send to all members in group dest.getChannelName()
             if(dest_group == null) {
@@ -251,11 +281,11 @@ public class Router {
             }
         }
         else {                  // send to destination address
-            DataOutputStream out=findSocket(dest);
-            if(out != null)
-                sendToMember(out, msg);
+            AddressEntry entry=findEntry(dest);
+            if(entry != null)
+                sendToMember(entry, ForwardQueue.createFrame(msg));
             else
-                Trace.error("Router.route()", "routing of message to " + dest + " failed; outstream is null !");
+                Trace.error("Router.route()", "routing of message to " + dest + " failed; destination not found !");
         }
     }
 
@@ -299,11 +329,7 @@ public class Router {
                 for(Enumeration e2=val.elements(); e2.hasMoreElements();) {
                     entry=(AddressEntry)e2.nextElement();
                     if(entry.sock == sock) {
-                        try {
-                            entry.sock.close();
-                        }
-                        catch(Exception ex) {
-                        }
+                        entry.destroy();
                         //Util.print("Removing entry " + entry);
                         val.removeElement(entry);
                         return;
@@ -325,12 +351,7 @@ public class Router {
                 for(Enumeration e2=val.elements(); e2.hasMoreElements();) {
                     entry=(AddressEntry)e2.nextElement();
                     if(entry.output == out) {
-                        try {
-                            if(entry.sock != null)
-                                entry.sock.close();
-                        }
-                        catch(Exception ex) {
-                        }
+                        entry.destroy();
                         //Util.print("Removing entry " + entry);
                         val.removeElement(entry);
                         return;
@@ -353,12 +374,7 @@ public class Router {
             for(Enumeration e2=val.elements(); e2.hasMoreElements();) {
                 entry=(AddressEntry)e2.nextElement();
                 if(entry.addr.equals(addr)) {
-                    try {
-                        if(entry.sock != null)
-                            entry.sock.close();
-                    }
-                    catch(Exception ex) {
-                    }
+                    entry.destroy();
                     //Util.print("Removing entry " + entry);
                     val.removeElement(entry);
                     return;
@@ -368,7 +384,7 @@ public class Router {
     }
 
 
-    DataOutputStream findSocket(Address addr) {
+    AddressEntry findEntry(Address addr) {
         List val;
         AddressEntry entry;
 
@@ -378,7 +394,7 @@ public class Router {
                 for(Enumeration e2=val.elements(); e2.hasMoreElements();) {
                     entry=(AddressEntry)e2.nextElement();
                     if(addr.equals(entry.addr))
-                        return entry.output;
+                        return entry;
                 }
             }
             return null;
@@ -386,31 +402,36 @@ public class Router {
     }
 
 
+    /** Frames msg once and adds it to the queues of all members of the group */
     void sendToAllMembersInGroup(String groupname, byte[] msg) {
         List val;
+        Object[] entries;
+        ByteBuffer frame;
 
         synchronized(groups) {
             val=(List)groups.get(groupname);
             if(val == null || val.size() == 0)
                 return;
-            for(Enumeration e=val.elements(); e.hasMoreElements();) {
-                sendToMember(((AddressEntry)e.nextElement()).output, msg);
-            }
+            entries=val.getContents().toArray();
         }
+        frame=ForwardQueue.createFrame(msg);
+        for(int i=0; i < entries.length; i++)
+            sendToMember((AddressEntry)entries[i], frame.duplicate());
     }
 
 
-    void sendToMember(DataOutputStream out, byte[] msg) {
-        try {
-            if(out != null) {
-                out.writeInt(msg.length);
-                out.write(msg, 0, msg.length);
-            }
-        }
-        catch(Exception e) {
-            Trace.error("Router.sendToMember()", "exception=" + e);
-            removeEntry(out); // closes socket
+    /** Adds frame to the queue of entry. If the queue is full, the frame is dropped or the client disconnected */
+    void sendToMember(AddressEntry entry, ByteBuffer frame) {
+        ForwardQueue queue=entry.queue;
+
+        if(queue.add(frame) || queue.isClosed())
+            return;
+        if(queue.getPolicy() == ForwardQueue.DISCONNECT) {
+            Trace.warn("Router.sendToMember()", "queue of " + entry.addr + " is full (" + queue + "): disconnecting it");
+            removeEntry(entry.sock); // closes socket
         }
+        else if(queue.getNumDropped() % 1000 == 1)
+            Trace.warn("Router.sendToMember()", "queue of " + entry.addr + " is full (" + queue + ")");
     }
 
 
@@ -418,16 +439,20 @@ public class Router {
         Address addr=null;
         Socket sock=null;
         DataOutputStream output=null;
+        ForwardQueue queue=null;
 
 
         public AddressEntry(Address addr, Socket sock, DataOutputStream output) {
             this.addr=addr;
             this.sock=sock;
             this.output=output;
+            queue=new ForwardQueue(max_queue_size, slow_client_policy);
+            new WriterThread(this).start();
         }
 
 
         void destroy() {
+            queue.close(); // terminates the writer thread
             if(output != null) {
                 try {
                     output.close();
@@ -451,7 +476,40 @@ public class Router {
         }
 
         public String toString() {
-            return "addr=" + addr + ", sock=" + sock;
+            return "addr=" + addr + ", sock=" + sock + ", queue: " + queue;
+        }
+    }
+
+
+    /** Sends the messages queued for one client */
+    class WriterThread extends Thread {
+        final AddressEntry  entry;
+        final Socket        sock;
+        final SocketChannel ch;
+
+
+        WriterThread(AddressEntry entry) {
+            super("Router writer thread (" + entry.addr + ")");
+            setDaemon(true);
+            this.entry=entry;
+            sock=entry.sock;
+            ch=sock.getChannel();
+        }
+
+
+        public void run() {
+            try {
+                while(entry.queue.waitForFrames())
+                    entry.queue.write(ch); // blocks until all queued messages have been written
+            }
+            catch(InterruptedException e) {
+            }
+            catch(IOException io_ex) {
+                if(Trace.trace)
+                    Trace.info("Router.WriterThread.run()", "sending to " + entry.addr + " failed (" + io_ex +
+                                                           "); removing it from routing table");
+                removeEntry(sock); // will close socket
+            }
         }
     }
 
@@ -534,11 +592,13 @@ public class Router {
         int port=8080;
         Router router=null;
         InetAddress address=null;
+        int max_queue_size=MAX_QUEUE_SIZE;
+        String policy=null;
         System.out.println("Router is starting...");
         for(int i=0; i < args.length; i++) {
             arg=args[i];
             if(arg.equals("-help")) {
-                System.out.println("Router [-port <port>] [-bindaddress <address>]");
+                System.out.println("Router [-port <port>] [-bindaddress <address>] [-maxqueue <bytes>] [-policy <drop|disconnect>]");
                 return;
             }
             else
@@ -549,6 +609,14 @@ public class Router {
                     if(arg.equals("-bindaddress")) {
                         address=InetAddress.getByName(args[++i]);
                     }
+                    else
+                        if(arg.equals("-maxqueue")) {
+                            max_queue_size=new Integer(args[++i]).intValue();
+                        }
+                        else
+                            if(arg.equals("-policy")) {
+                                policy=args[++i];
+                            }
 
         }
 
@@ -556,6 +624,9 @@ public class Router {
 
         try {
             if(address == null) router=new Router(port); else router=new Router(port, address);
+            router.setMaxQueueSize(max_queue_size);
+            if(policy != null)
+                router.setSlowClientPolicy(policy);
             router.start();
             System.out.println("Router was created at " + new Date());
             System.out.println("Listening on port " + port + " and bound to address " + address);
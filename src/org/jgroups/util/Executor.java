@@ -0,0 +1,434 @@
+// $Id: Executor.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+
+package org.jgroups.util;
+
+
+import org.jgroups.log.Trace;
+
+import java.util.LinkedList;
+import java.util.Vector;
+
+
+/**
+ * Bounded pool of worker threads executing Runnables. Replaces Scheduler, ThreadPool and ReusableThread.<p>
+ * Tasks submitted by a thread which is not a worker of this executor are added to a shared queue. Tasks submitted
+ * by a worker (e.g. a task which creates other tasks) are added to that worker's own queue. A worker first
+ * processes its own queue, then the shared queue, and when both are empty it <em>steals</em> tasks from the
+ * queues of the other workers, so that no worker stays idle while others have work queued.<p>
+ * Threads are created on demand, up to max_threads, and terminate after being idle for keep_alive_time ms
+ * (but the pool never shrinks below min_threads). The total number of queued tasks can be bounded by
+ * max_queue_size; when the queue is full, the rejection policy decides whether a new task is discarded, replaces
+ * the oldest queued task, is run by the caller's thread, or whether the caller blocks until there is space
+ * (workers never block: they run the task themselves).<p>
+ * For each task, the time spent in the queue and the time spent executing are recorded (see {@link #printStats()}).
+ * A single-threaded executor processes tasks in the order in which they were submitted.
+ * @author Bela Ban
+ * @version $Id: Executor.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+ */
+public class Executor {
+
+    /** Discards the new task if the queue is full */
+    public static final int DISCARD=1;
+
+    /** Discards the oldest task in the shared queue and adds the new one if the queue is full */
+    public static final int DISCARD_OLDEST=2;
+
+    /** Runs the new task in the caller's thread if the queue is full */
+    public static final int CALLER_RUNS=3;
+
+    /** Blocks the caller until the new task can be queued */
+    public static final int BLOCK=4;
+
+    String           name="Executor";
+    int              min_threads=1;
+    int              max_threads=1;
+
+    /** Max number of tasks queued (but not yet executing). 0 means unbounded */
+    int              max_queue_size=0;
+    int              rejection_policy=BLOCK;
+
+    /** Number of ms an idle thread waits for a task before it terminates (unless we'd drop below min_threads) */
+    long             keep_alive_time=30000;
+
+    /** Guards all fields below, and the shared queue. Idle workers and blocked callers wait on it */
+    final Object     lock=new Object();
+    final LinkedList queue=new LinkedList(); // shared queue of Tasks
+    final Vector     workers=new Vector();   // Workers
+    int              num_queued=0;           // tasks in the shared queue plus in all local queues
+    int              num_idle=0;             // workers waiting for a task
+    int              num_blocked=0;          // callers waiting for space in the queue (BLOCK)
+    int              thread_id=1;
+    boolean          running=false;
+
+    /* statistics */
+    long             num_executed=0, num_rejected=0, num_stolen=0, num_caller_runs=0, num_prio_threads=0;
+    long             total_wait_time=0, max_wait_time=0, total_exec_time=0, max_exec_time=0;
+
+
+
+    public Executor(String name, int max_threads) {
+        this(name, 1, max_threads, 0, BLOCK);
+    }
+
+
+    /**
+     * @param name The name of the executor, used as prefix for thread names
+     * @param min_threads The min number of threads to keep around when idle
+     * @param max_threads The max number of threads
+     * @param max_queue_size The max number of queued tasks (0 means unbounded)
+     * @param rejection_policy What to do when the queue is full: DISCARD, DISCARD_OLDEST, CALLER_RUNS or BLOCK
+     */
+    public Executor(String name, int min_threads, int max_threads, int max_queue_size, int rejection_policy) {
+        if(max_threads < 1)
+            throw new IllegalArgumentException("max_threads (" + max_threads + ") has to be >= 1");
+        if(rejection_policy < DISCARD || rejection_policy > BLOCK)
+            throw new IllegalArgumentException("rejection policy " + rejection_policy + " is invalid");
+        if(name != null)
+            this.name=name;
+        this.max_threads=max_threads;
+        this.min_threads=Math.max(0, Math.min(min_threads, max_threads));
+        this.max_queue_size=Math.max(0, max_queue_size);
+        this.rejection_policy=rejection_policy;
+    }
+
+
+    public String getName()                  {return name;}
+    public int    getMaxThreads()            {return max_threads;}
+    public int    getMaxQueueSize()          {return max_queue_size;}
+    public int    getRejectionPolicy()       {return rejection_policy;}
+    public long   getKeepAliveTime()         {return keep_alive_time;}
+    public void   setKeepAliveTime(long t)   {keep_alive_time=t;}
+
+    public int getPoolSize() {
+        synchronized(lock) {return workers.size();}
+    }
+
+    public int getQueueSize() {
+        synchronized(lock) {return num_queued;}
+    }
+
+    public boolean isRunning() {
+        synchronized(lock) {return running;}
+    }
+
+
+    /** Converts "discard", "discard_oldest", "caller_runs" or "block" to the corresponding rejection policy */
+    public static int parseRejectionPolicy(String str) {
+        if(str == null) return BLOCK;
+        str=str.trim().toLowerCase();
+        if(str.equals("discard"))        return DISCARD;
+        if(str.equals("discard_oldest")) return DISCARD_OLDEST;
+        if(str.equals("caller_runs"))    return CALLER_RUNS;
+        if(str.equals("block"))          return BLOCK;
+        throw new IllegalArgumentException("rejection policy \"" + str + "\" is unknown");
+    }
+
+
+    /** Starts the executor. Threads are only created when tasks are submitted */
+    public void start() {
+        synchronized(lock) {
+            running=true;
+        }
+    }
+
+
+    /**
+     * Stops the executor: all queued tasks are discarded, tasks which are currently executing run to completion.
+     * Idle threads terminate immediately, the other ones after completing their current task
+     */
+    public void stop() {
+        Worker w;
+        synchronized(lock) {
+            running=false;
+            queue.clear();
+            for(int i=0; i < workers.size(); i++) {
+                w=(Worker)workers.elementAt(i);
+                synchronized(w.local_queue) {
+                    w.local_queue.clear();
+                }
+            }
+            num_queued=0;
+            lock.notifyAll();
+        }
+    }
+
+
+    /**
+     * Submits a task for execution.
+     * @return True if the task was queued or executed, false if it was discarded (executor not running, or queue
+     * full with rejection policy DISCARD)
+     */
+    public boolean execute(Runnable r) {
+        Task    task=new Task(r);
+        Thread  current=Thread.currentThread();
+        Worker  local=current instanceof Worker && ((Worker)current).executor == this? (Worker)current : null;
+        boolean caller_runs=false;
+
+        synchronized(lock) {
+            if(!running) {
+                if(Trace.trace)
+                    Trace.warn("Executor.execute()", name + " is not running, discarding task " + r);
+                return false;
+            }
+            while(max_queue_size > 0 && num_queued >= max_queue_size && !caller_runs) {
+                switch(rejection_policy) {
+                    case DISCARD:
+                        num_rejected++;
+                        if(Trace.trace)
+                            Trace.warn("Executor.execute()", name + ": queue is full (" + max_queue_size +
+                                    " tasks), discarding task " + r);
+                        return false;
+                    case DISCARD_OLDEST:
+                        num_rejected++;
+                        if(queue.size() == 0) // all queued tasks are in local queues: discard the new task
+                            return false;
+                        queue.removeFirst();
+                        num_queued--;
+                        break;
+                    case CALLER_RUNS:
+                        num_caller_runs++;
+                        caller_runs=true;
+                        break;
+                    case BLOCK:
+                        if(local != null) { // a worker must not block on its own executor: it might be the last one
+                            num_caller_runs++;
+                            caller_runs=true;
+                            break;
+                        }
+                        num_blocked++;
+                        try {
+                            lock.wait();
+                        }
+                        catch(InterruptedException e) {
+                            num_rejected++;
+                            return false;
+                        }
+                        finally {
+                            num_blocked--;
+                        }
+                        if(!running)
+                            return false;
+                        break;
+                }
+            }
+
+            if(!caller_runs) {
+                if(local == null)
+                    queue.addLast(task);
+                else {
+                    synchronized(local.local_queue) { // a worker adds to its own queue (lock order: lock, local_queue)
+                        local.local_queue.addLast(task);
+                    }
+                }
+                num_queued++; // only after the task has been added, so a woken worker finds it
+                if(num_idle > 0)
+                    lock.notifyAll(); // notify() might wake a blocked caller (BLOCK) instead of an idle worker
+                else if(workers.size() < max_threads)
+                    addWorker();
+                return true;
+            }
+        }
+
+        run(task); // caller runs
+        return true;
+    }
+
+
+    /**
+     * Executes a task with priority: if there is an idle thread, the task is placed at the head of the shared queue,
+     * otherwise a new thread is created for it, even if max_threads has been reached. This is needed for tasks
+     * which must not wait for the completion of the currently executing tasks (e.g. nested synchronous requests,
+     * for which the currently executing tasks may be waiting).
+     */
+    public boolean executePrio(Runnable r) {
+        final Task task=new Task(r);
+        Thread     t;
+
+        synchronized(lock) {
+            if(!running)
+                return false;
+            if(num_idle > 0) {
+                num_queued++;
+                queue.addFirst(task);
+                lock.notifyAll(); // notify() might wake a blocked caller (BLOCK) instead of an idle worker
+                return true;
+            }
+            num_prio_threads++;
+        }
+        t=new Thread(new Runnable() {
+            public void run() {
+                Executor.this.run(task);
+            }
+        }, name + " prio thread");
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+
+    public String printStats() {
+        StringBuffer sb=new StringBuffer();
+        synchronized(lock) {
+            sb.append(name).append(": threads=").append(workers.size()).append(" (idle=").append(num_idle);
+            sb.append(", max=").append(max_threads).append("), queued=").append(num_queued);
+            sb.append(" (max=").append(max_queue_size).append(")");
+            sb.append(", executed=").append(num_executed).append(", stolen=").append(num_stolen);
+            sb.append(", rejected=").append(num_rejected).append(", caller_runs=").append(num_caller_runs);
+            sb.append(", prio_threads=").append(num_prio_threads);
+            sb.append(", avg wait=").append(num_executed > 0? total_wait_time / num_executed : 0);
+            sb.append("ms, max wait=").append(max_wait_time);
+            sb.append("ms, avg exec=").append(num_executed > 0? total_exec_time / num_executed : 0);
+            sb.append("ms, max exec=").append(max_exec_time).append("ms");
+        }
+        return sb.toString();
+    }
+
+
+    public String toString() {
+        return printStats();
+    }
+
+
+
+    /* ----------------------------------- Private methods ------------------------------- */
+
+    /** Must be called with lock held */
+    private void addWorker() {
+        Worker w=new Worker(this, name + " worker-" + thread_id++);
+        workers.addElement(w);
+        w.start();
+    }
+
+
+    /** Removes a task from the shared queue, or steals one from another worker's queue */
+    private Task take(Worker self) {
+        Task   task=null;
+        Worker w;
+        Object[] tmp;
+
+        synchronized(self.local_queue) {
+            if(self.local_queue.size() > 0)
+                task=(Task)self.local_queue.removeFirst();
+        }
+        if(task == null) {
+            synchronized(lock) {
+                if(queue.size() > 0)
+                    task=(Task)queue.removeFirst();
+                tmp=workers.toArray();
+            }
+            for(int i=0; task == null && i < tmp.length; i++) {
+                w=(Worker)tmp[i];
+                if(w == self) continue;
+                synchronized(w.local_queue) {
+                    if(w.local_queue.size() > 0)
+                        task=(Task)w.local_queue.removeLast(); // the owner takes from the head
+                }
+                if(task != null) {
+                    synchronized(lock) {
+                        num_stolen++;
+                    }
+                }
+            }
+        }
+        if(task != null) {
+            synchronized(lock) {
+                num_queued--;
+                if(num_blocked > 0)
+                    lock.notifyAll();
+            }
+        }
+        return task;
+    }
+
+
+    private void run(Task task) {
+        long start=System.currentTimeMillis(), wait_time=start - task.creation_time, exec_time;
+
+        try {
+            task.target.run();
+        }
+        catch(Throwable t) {
+            Trace.error("Executor.run()", name + ": exception executing " + task.target + ": " + Util.print(t));
+        }
+        exec_time=System.currentTimeMillis() - start;
+        synchronized(lock) {
+            num_executed++;
+            total_wait_time+=wait_time;
+            total_exec_time+=exec_time;
+            if(wait_time > max_wait_time)
+                max_wait_time=wait_time;
+            if(exec_time > max_exec_time)
+                max_exec_time=exec_time;
+        }
+    }
+
+
+    /** Loop of a worker thread */
+    private void work(Worker self) {
+        Task    task;
+        long    start;
+
+        while(true) {
+            task=take(self);
+            if(task != null) {
+                run(task);
+                continue;
+            }
+
+            synchronized(lock) {
+                if(!running) {
+                    workers.removeElement(self);
+                    return;
+                }
+                if(num_queued > 0) // tasks have been queued since take()
+                    continue;
+                num_idle++;
+                start=System.currentTimeMillis();
+                try {
+                    lock.wait(keep_alive_time);
+                }
+                catch(InterruptedException e) {
+                }
+                finally {
+                    num_idle--;
+                }
+                // the decision to terminate and the removal are done atomically: execute() must not count an
+                // exiting worker, and two idle workers must not both terminate when only one is above min_threads
+                if(!running || (num_queued == 0 && System.currentTimeMillis() - start >= keep_alive_time &&
+                        workers.size() > min_threads)) {
+                    workers.removeElement(self);
+                    return;
+                }
+            }
+        }
+    }
+
+    /* ------------------------------- End of Private methods ---------------------------- */
+
+
+
+    private static class Task {
+        Runnable target;
+        long     creation_time=System.currentTimeMillis();
+
+        Task(Runnable target) {
+            this.target=target;
+        }
+    }
+
+
+    private static class Worker extends Thread {
+        final Executor   executor;
+        final LinkedList local_queue=new LinkedList(); // Tasks submitted by this worker
+
+        Worker(Executor executor, String name) {
+            super(name);
+            this.executor=executor;
+            setDaemon(true);
+        }
+
+        public void run() {
+            executor.work(this);
+        }
+    }
+}
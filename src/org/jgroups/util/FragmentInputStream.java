@@ -0,0 +1,85 @@
+// $Id: FragmentInputStream.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+
+package org.jgroups.util;
+
+
+import java.io.InputStream;
+
+
+/**
+ * InputStream which reads from a chain of fragment buffers, in order, as if they were one contiguous buffer.
+ * This allows to deserialize a fragmented message without first copying all fragments into one big buffer.
+ * Null fragments are skipped. Not synchronized.
+ * @author Bela Ban
+ * @version $Id: FragmentInputStream.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+ */
+public class FragmentInputStream extends InputStream {
+    private byte[][] fragments;
+    private int      index=0;   // index of the current fragment
+    private int      pos=0;     // position in the current fragment
+
+
+    public FragmentInputStream(byte[][] fragments) {
+        this.fragments=fragments != null? fragments : new byte[0][];
+    }
+
+
+    public int read() {
+        if(!advance())
+            return -1;
+        return fragments[index][pos++] & 0xff;
+    }
+
+
+    public int read(byte[] b, int off, int len) {
+        int num, read=0;
+
+        if(off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException("off=" + off + ", len=" + len + ", b.length=" + b.length);
+        if(len == 0)
+            return 0;
+        while(len > 0 && advance()) {
+            num=Math.min(len, fragments[index].length - pos);
+            System.arraycopy(fragments[index], pos, b, off, num);
+            pos+=num;
+            off+=num;
+            len-=num;
+            read+=num;
+        }
+        return read > 0? read : -1;
+    }
+
+
+    public long skip(long n) {
+        long skipped=0;
+        int  num;
+
+        while(n > 0 && advance()) {
+            num=(int)Math.min(n, fragments[index].length - pos);
+            pos+=num;
+            n-=num;
+            skipped+=num;
+        }
+        return skipped;
+    }
+
+
+    public int available() {
+        int retval=0;
+        for(int i=index; i < fragments.length; i++) {
+            if(fragments[i] != null)
+                retval+=fragments[i].length;
+        }
+        return retval - pos;
+    }
+
+
+    /** Moves to the next fragment with data if the current one is exhausted. Returns false at the end of the chain */
+    private boolean advance() {
+        while(index < fragments.length && (fragments[index] == null || pos >= fragments[index].length)) {
+            index++;
+            pos=0;
+        }
+        return index < fragments.length;
+    }
+}
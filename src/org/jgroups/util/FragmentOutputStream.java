@@ -0,0 +1,105 @@
+// $Id: FragmentOutputStream.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+
+package org.jgroups.util;
+
+
+import java.io.OutputStream;
+import java.util.Vector;
+
+
+/**
+ * OutputStream which writes its data directly into fixed-size fragment buffers: when the current fragment is
+ * full, a new one is allocated. Contrary to ByteArrayOutputStream, the data is never copied into a bigger buffer
+ * and there is no contiguous copy of the entire data ({@link #getFragments()} returns the fragments themselves).
+ * All fragments but the last one have exactly frag_size bytes; the last fragment is trimmed to its actual size.
+ * Not synchronized.
+ * @author Bela Ban
+ * @version $Id: FragmentOutputStream.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+ */
+public class FragmentOutputStream extends OutputStream {
+    private final int    frag_size;
+    private final Vector fragments=new Vector();
+    private byte[]       current=null;
+    private int          pos=0;     // index of the next byte to be written into current
+    private long         size=0;    // total number of bytes written
+
+
+    public FragmentOutputStream(int frag_size) {
+        if(frag_size <= 0)
+            throw new IllegalArgumentException("frag_size (" + frag_size + ") has to be > 0");
+        this.frag_size=frag_size;
+    }
+
+
+    public void write(int b) {
+        if(current == null || pos >= frag_size)
+            nextFragment();
+        current[pos++]=(byte)b;
+        size++;
+    }
+
+
+    public void write(byte[] b, int off, int len) {
+        int num;
+
+        if(off < 0 || len < 0 || off + len > b.length)
+            throw new IndexOutOfBoundsException("off=" + off + ", len=" + len + ", b.length=" + b.length);
+        while(len > 0) {
+            if(current == null || pos >= frag_size)
+                nextFragment();
+            num=Math.min(len, frag_size - pos);
+            System.arraycopy(b, off, current, pos, num);
+            pos+=num;
+            off+=num;
+            len-=num;
+            size+=num;
+        }
+    }
+
+
+    /** Returns the total number of bytes written */
+    public long size() {
+        return size;
+    }
+
+
+    /** Returns the number of fragments written so far */
+    public int getNumberOfFragments() {
+        return fragments.size();
+    }
+
+
+    /**
+     * Returns the fragments (not copies). The last fragment is trimmed to the number of bytes actually written
+     * into it, so no more data should be written to the stream after calling this method.
+     */
+    public byte[][] getFragments() {
+        byte[][] retval=new byte[fragments.size()][];
+        byte[]   tmp;
+
+        if(current != null && pos < current.length) {
+            tmp=new byte[pos];
+            System.arraycopy(current, 0, tmp, 0, pos);
+            fragments.setElementAt(tmp, fragments.size() - 1);
+            current=tmp;
+        }
+        fragments.copyInto(retval);
+        return retval;
+    }
+
+
+    /** Discards all data written so far */
+    public void reset() {
+        fragments.removeAllElements();
+        current=null;
+        pos=0;
+        size=0;
+    }
+
+
+    private void nextFragment() {
+        current=new byte[frag_size];
+        pos=0;
+        fragments.addElement(current);
+    }
+}
@@ -0,0 +1,225 @@
+// $Id: LongHashMap.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+
+package org.jgroups.util;
+
+
+import java.util.ArrayList;
+
+
+/**
+ * Hash map with primitive long keys (no boxing into Longs), split into a number of stripes, each of which is
+ * a separate hash table guarded by its own lock. Operations on keys in different stripes therefore don't contend
+ * with each other. {@link #values()} locks one stripe at a time, so iterating over the values never blocks
+ * updates to the whole map.<p>
+ * Null values are not allowed.
+ * @author Bela Ban
+ * @version $Id: LongHashMap.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+ */
+public class LongHashMap {
+    private final Stripe[] stripes;
+    private final int      stripe_mask;
+
+
+    public LongHashMap() {
+        this(16);
+    }
+
+
+    /**
+     * @param num_stripes The number of stripes, rounded up to the next power of 2
+     */
+    public LongHashMap(int num_stripes) {
+        int n=1, shift=0;
+        while(n < num_stripes) {
+            n<<=1;
+            shift++;
+        }
+        stripes=new Stripe[n];
+        for(int i=0; i < n; i++)
+            stripes[i]=new Stripe(shift);
+        stripe_mask=n - 1;
+    }
+
+
+    /** Adds the value unless the key is already present.
+     * @return The existing value if the key is present (in which case the map is not changed), otherwise null */
+    public Object putIfAbsent(long key, Object value) {
+        int hash=hash(key);
+        return stripes[hash & stripe_mask].put(key, value, hash, false);
+    }
+
+
+    /** Adds the value, replacing the existing one (if present).
+     * @return The previous value, or null */
+    public Object put(long key, Object value) {
+        int hash=hash(key);
+        return stripes[hash & stripe_mask].put(key, value, hash, true);
+    }
+
+
+    public Object get(long key) {
+        int hash=hash(key);
+        return stripes[hash & stripe_mask].get(key, hash);
+    }
+
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+
+    /** @return The removed value, or null if the key was not present */
+    public Object remove(long key) {
+        int hash=hash(key);
+        return stripes[hash & stripe_mask].remove(key, hash);
+    }
+
+
+    public int size() {
+        int retval=0;
+        for(int i=0; i < stripes.length; i++)
+            retval+=stripes[i].size();
+        return retval;
+    }
+
+
+    public void clear() {
+        for(int i=0; i < stripes.length; i++)
+            stripes[i].clear();
+    }
+
+
+    /** Returns a copy of all values. Only one stripe is locked at a time */
+    public java.util.List values() {
+        ArrayList retval=new ArrayList(size());
+        for(int i=0; i < stripes.length; i++)
+            stripes[i].addValuesTo(retval);
+        return retval;
+    }
+
+
+    public String toString() {
+        return "LongHashMap (" + size() + " entries, " + stripes.length + " stripes)";
+    }
+
+
+    /** Spreads the bits of sequential keys (e.g. request IDs) over stripes and buckets */
+    static int hash(long key) {
+        int h=(int)(key ^ (key >>> 32));
+        h^=h >>> 16;
+        h*=0x85ebca6b;
+        h^=h >>> 13;
+        h*=0xc2b2ae35;
+        h^=h >>> 16;
+        return h;
+    }
+
+
+
+    private static class Entry {
+        final long key;
+        Object     value;
+        Entry      next;
+
+        Entry(long key, Object value, Entry next) {
+            this.key=key;
+            this.value=value;
+            this.next=next;
+        }
+    }
+
+
+    /** A hash table for the keys of one stripe. The low bits of a hash select the stripe, the bits above
+     * them (hash >>> shift) select the bucket within the stripe */
+    private static class Stripe {
+        final int shift;
+        Entry[]   table=new Entry[16];
+        int       size=0;
+
+        Stripe(int shift) {
+            this.shift=shift;
+        }
+
+        synchronized Object put(long key, Object value, int hash, boolean overwrite) {
+            int    index=bucketIndex(hash, table.length);
+            Object old;
+
+            if(value == null)
+                throw new IllegalArgumentException("value must not be null");
+            for(Entry e=table[index]; e != null; e=e.next) {
+                if(e.key == key) {
+                    old=e.value;
+                    if(overwrite)
+                        e.value=value;
+                    return old;
+                }
+            }
+            table[index]=new Entry(key, value, table[index]);
+            if(++size > table.length * 3 / 4)
+                resize();
+            return null;
+        }
+
+        synchronized Object get(long key, int hash) {
+            for(Entry e=table[bucketIndex(hash, table.length)]; e != null; e=e.next) {
+                if(e.key == key)
+                    return e.value;
+            }
+            return null;
+        }
+
+        synchronized Object remove(long key, int hash) {
+            int   index=bucketIndex(hash, table.length);
+            Entry prev=null;
+
+            for(Entry e=table[index]; e != null; prev=e, e=e.next) {
+                if(e.key == key) {
+                    if(prev == null)
+                        table[index]=e.next;
+                    else
+                        prev.next=e.next;
+                    size--;
+                    return e.value;
+                }
+            }
+            return null;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized void clear() {
+            table=new Entry[16];
+            size=0;
+        }
+
+        synchronized void addValuesTo(java.util.List list) {
+            for(int i=0; i < table.length; i++) {
+                for(Entry e=table[i]; e != null; e=e.next)
+                    list.add(e.value);
+            }
+        }
+
+        /** Doubles the table */
+        private void resize() {
+            Entry[] old_table=table, new_table=new Entry[old_table.length * 2];
+            Entry   e, next;
+            int     index;
+
+            for(int i=0; i < old_table.length; i++) {
+                for(e=old_table[i]; e != null; e=next) {
+                    next=e.next;
+                    index=bucketIndex(hash(e.key), new_table.length);
+                    e.next=new_table[index];
+                    new_table[index]=e;
+                }
+            }
+            table=new_table;
+        }
+
+        int bucketIndex(int hash, int length) {
+            return (hash >>> shift) & (length - 1);
+        }
+    }
+}
@@ -9,6 +9,8 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.List;
+import java.util.Vector;
 
 
 
@@ -130,4 +132,67 @@ public class Marshaller {
     }
 
 
+    /**
+     * Writes a list of Externalizable objects (e.g. addresses). If all elements are of the same class, the class
+     * name is written only once (rather than once per element as with {@link #write(Externalizable, ObjectOutput)}),
+     * followed by the data of each element. Otherwise each element is written with write().
+     * @param list The list, may be null. Elements must not be null
+     */
+    public static void writeList(List list, ObjectOutput out) throws IOException {
+        Class   clazz;
+        boolean same_class=true;
+        int     size=list != null? list.size() : -1;
+
+        out.writeInt(size);
+        if(size <= 0)
+            return;
+        clazz=list.get(0).getClass();
+        for(int i=1; i < size && same_class; i++)
+            same_class=list.get(i).getClass() == clazz;
+        out.writeBoolean(same_class);
+        if(same_class) {
+            out.writeUTF(clazz.getName());
+            for(int i=0; i < size; i++)
+                ((Externalizable)list.get(i)).writeExternal(out);
+        }
+        else {
+            for(int i=0; i < size; i++)
+                write((Externalizable)list.get(i), out);
+        }
+    }
+
+
+    /** Reads a list written by {@link #writeList(List, ObjectOutput)}. Returns null if a null list was written */
+    public static Vector readList(ObjectInput in) throws IOException {
+        int            size=in.readInt();
+        Vector         retval;
+        Class          clazz;
+        Externalizable obj;
+
+        if(size < 0)
+            return null;
+        retval=new Vector(size);
+        if(size == 0)
+            return retval;
+        if(!in.readBoolean()) {
+            for(int i=0; i < size; i++)
+                retval.addElement(read(in));
+            return retval;
+        }
+        try {
+            clazz=mConfigurator.get(in.readUTF());
+            for(int i=0; i < size; i++) {
+                obj=(Externalizable)clazz.newInstance();
+                obj.readExternal(in);
+                retval.addElement(obj);
+            }
+            return retval;
+        }
+        catch(Throwable x) {
+            if(x instanceof IOException)
+                throw (IOException)x;
+            else
+                throw new IOException(x.toString());
+        }
+    }
 }
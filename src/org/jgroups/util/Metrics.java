@@ -0,0 +1,269 @@
+// $Id: Metrics.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+
+package org.jgroups.util;
+
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+
+/**
+ * Registry of named metrics (counters, gauges and histograms) of a protocol layer. Every protocol has one
+ * (see <code>Protocol.getMetrics()</code>), the metrics of all layers can be dumped with
+ * <code>ProtocolStack.dumpMetrics()</code>. Metrics are listed in the order in which they were registered.
+ * @author Bela Ban
+ * @version $Id: Metrics.java,v 1.1 2008/09/03 04:24:41 commerce\wuti7102 Exp $
+ */
+public class Metrics {
+    private final Vector    names=new Vector();
+    private final Hashtable metrics=new Hashtable();
+
+
+    /** Returns the counter with the given name, creating it if it doesn't exist */
+    public synchronized Counter counter(String name) {
+        Object m=metrics.get(name);
+        if(m instanceof Counter)
+            return (Counter)m;
+        Counter c=new Counter();
+        register(name, c);
+        return c;
+    }
+
+
+    /** Returns the histogram with the given name, creating it if it doesn't exist */
+    public synchronized Histogram histogram(String name) {
+        Object m=metrics.get(name);
+        if(m instanceof Histogram)
+            return (Histogram)m;
+        Histogram h=new Histogram();
+        register(name, h);
+        return h;
+    }
+
+
+    /** Registers a gauge, replacing an existing metric with the same name */
+    public synchronized void gauge(String name, Gauge g) {
+        register(name, g);
+    }
+
+
+    public synchronized void remove(String name) {
+        if(metrics.remove(name) != null)
+            names.removeElement(name);
+    }
+
+
+    /** Returns a Counter, Gauge or Histogram, or null if no metric with the given name is registered */
+    public Object get(String name) {
+        return metrics.get(name);
+    }
+
+
+    /** Returns the current value of a counter or gauge, or the number of values recorded by a histogram */
+    public long getValue(String name) {
+        return valueOf(metrics.get(name));
+    }
+
+
+    /** Returns a copy of the names of all metrics, in registration order */
+    public synchronized Vector getNames() {
+        return (Vector)names.clone();
+    }
+
+
+    public int size() {
+        return names.size();
+    }
+
+
+    /** Resets all counters and histograms */
+    public synchronized void reset() {
+        Object m;
+        for(int i=0; i < names.size(); i++) {
+            m=metrics.get(names.elementAt(i));
+            if(m instanceof Counter)
+                ((Counter)m).reset();
+            else if(m instanceof Histogram)
+                ((Histogram)m).reset();
+        }
+    }
+
+
+    /**
+     * Appends one <code>prefix.name=value</code> line per metric to sb. Histograms are written as
+     * <code>count=N min=N avg=N p50=N p99=N max=N</code>
+     */
+    public synchronized void dump(String prefix, StringBuffer sb) {
+        String name;
+        Object m;
+        for(int i=0; i < names.size(); i++) {
+            name=(String)names.elementAt(i);
+            m=metrics.get(name);
+            if(prefix != null)
+                sb.append(prefix).append('.');
+            sb.append(name).append('=');
+            if(m instanceof Histogram)
+                sb.append(m);
+            else
+                sb.append(valueOf(m));
+            sb.append('\n');
+        }
+    }
+
+
+    public String toString() {
+        StringBuffer sb=new StringBuffer();
+        dump(null, sb);
+        return sb.toString();
+    }
+
+
+    private void register(String name, Object m) {
+        if(metrics.put(name, m) == null)
+            names.addElement(name);
+    }
+
+
+    private static long valueOf(Object m) {
+        if(m instanceof Counter)
+            return ((Counter)m).get();
+        if(m instanceof Gauge) {
+            try {
+                return ((Gauge)m).getValue();
+            }
+            catch(Throwable t) {
+                return -1;
+            }
+        }
+        if(m instanceof Histogram)
+            return ((Histogram)m).getCount();
+        return 0;
+    }
+
+
+
+    /** A monotonically increasing value, e.g. the number of messages sent */
+    public static class Counter {
+        private long value=0;
+
+        public synchronized void inc() {
+            value++;
+        }
+
+        public synchronized void add(long delta) {
+            value+=delta;
+        }
+
+        public synchronized long get() {
+            return value;
+        }
+
+        public synchronized void reset() {
+            value=0;
+        }
+
+        public String toString() {
+            return String.valueOf(get());
+        }
+    }
+
+
+    /** A value that is computed when read, e.g. the size of a queue */
+    public interface Gauge {
+        long getValue();
+    }
+
+
+    /**
+     * Distribution of recorded values (e.g. latencies in ms, or message sizes). Values below 16 have a bucket each,
+     * larger values are split into 16 buckets per power of 2, so a bucket is at most 1/16 of its values wide.
+     * Percentiles are interpolated within the bucket containing them (and are within [min, max])
+     */
+    public static class Histogram {
+        static final int     SUB_BUCKETS=16, SUB_BUCKET_BITS=4;
+        private final long[] buckets=new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKETS];
+        private long count=0, sum=0, min=Long.MAX_VALUE, max=0;
+
+        public synchronized void record(long value) {
+            if(value < 0)
+                value=0;
+            buckets[bucket(value)]++;
+            count++;
+            sum+=value;
+            if(value < min)
+                min=value;
+            if(value > max)
+                max=value;
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getMin() {
+            return count > 0? min : 0;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        public synchronized double getAverage() {
+            return count > 0? sum / (double)count : 0;
+        }
+
+        /** @param p The percentile, e.g. 0.99 */
+        public synchronized long getPercentile(double p) {
+            long threshold=Math.max(1, (long)Math.ceil(count * p)), total=0, lower, width, retval;
+            if(count == 0)
+                return 0;
+            for(int i=0; i < buckets.length; i++) {
+                if(total + buckets[i] >= threshold) {
+                    lower=lowerBound(i);
+                    width=lowerBound(i + 1) - lower;
+                    // the values in a bucket are assumed to be spread evenly
+                    retval=lower + (long)(width * (double)(threshold - total) / buckets[i]) - 1;
+                    return Math.max(getMin(), Math.min(max, Math.max(lower, retval)));
+                }
+                total+=buckets[i];
+            }
+            return max;
+        }
+
+        public synchronized void reset() {
+            for(int i=0; i < buckets.length; i++)
+                buckets[i]=0;
+            count=sum=max=0;
+            min=Long.MAX_VALUE;
+        }
+
+        public String toString() {
+            StringBuffer sb=new StringBuffer();
+            sb.append("count=").append(getCount()).append(" min=").append(getMin());
+            sb.append(" avg=").append((long)getAverage()).append(" p50=").append(getPercentile(0.5));
+            sb.append(" p99=").append(getPercentile(0.99)).append(" max=").append(getMax());
+            return sb.toString();
+        }
+
+        /**
+         * Values below SUB_BUCKETS are their own bucket. A larger value whose highest bit is bit b falls into one of
+         * the SUB_BUCKETS buckets of [2^b, 2^(b+1) - 1], selected by the SUB_BUCKET_BITS bits below bit b
+         */
+        static int bucket(long value) {
+            int msb=-1;
+            for(long tmp=value; tmp != 0; tmp>>>=1)
+                msb++;
+            if(msb < SUB_BUCKET_BITS)
+                return (int)value;
+            return (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int)((value >>> (msb - SUB_BUCKET_BITS)) - SUB_BUCKETS);
+        }
+
+        /** Returns the smallest value of bucket i */
+        static long lowerBound(int i) {
+            int octave=i / SUB_BUCKETS;
+            if(octave == 0)
+                return i;
+            return (long)(SUB_BUCKETS + i % SUB_BUCKETS) << (octave - 1);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import org.jgroups.log.Trace;
    <li>ReusableThread is started, assigned a task
    </ol>
    @author Bela Ban
+   @deprecated Use {@link Executor} instead
 */
 public class ReusableThread implements Runnable {
     volatile Thread    thread=null;  // thread that works on the task
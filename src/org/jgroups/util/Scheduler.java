@@ -17,6 +17,7 @@ import org.jgroups.log.Trace;
  * exhausted.
  * 
  * @author Bela Ban
+ * @deprecated Relies on Thread.suspend()/resume(). Use {@link Executor} instead
  */
 public class Scheduler implements Runnable {
     Queue              queue=new Queue();
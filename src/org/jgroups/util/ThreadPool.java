@@ -15,6 +15,7 @@ import org.jgroups.log.Trace;
  * todo: Shrink thread pool if threads are unused after some configurable time
  * 
  * @author Bela Ban
+ * @deprecated Use {@link Executor} instead
  */
 public class ThreadPool {
     int              MAX_NUM=255;
@@ -6,7 +6,9 @@ import java.io.*;
 import java.net.BindException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.ArrayList;
@@ -685,6 +687,48 @@ public class Util {
     }
 
 
+    /**
+     * Creates a non-blocking ServerSocketChannel bound to the first available port above start_port (like
+     * {@link #createServerSocket(int)}). Returns null if the channel could not be created
+     */
+    public static ServerSocketChannel createServerSocketChannel(int start_port) {
+        ServerSocketChannel ret=null;
+
+        while(true) {
+            try {
+                ret=ServerSocketChannel.open();
+                ret.configureBlocking(false);
+                ret.socket().bind(new InetSocketAddress(start_port));
+            }
+            catch(BindException bind_ex) {
+                closeChannel(ret);
+                ret=null;
+                start_port++;
+                continue;
+            }
+            catch(IOException io_ex) {
+                Trace.error("Util.createServerSocketChannel()", "exception is " + io_ex);
+                closeChannel(ret);
+                ret=null;
+            }
+            break;
+        }
+        return ret;
+    }
+
+
+    /** Closes a channel, ignoring exceptions */
+    public static void closeChannel(java.nio.channels.Channel ch) {
+        if(ch != null) {
+            try {
+                ch.close();
+            }
+            catch(IOException ex) {
+            }
+        }
+    }
+
+
     /**
      * Creates a DatagramSocket bound to addr. If addr is null, socket won't be bound. If address is already in use,
      * start_port will be incremented until a socket can be created.